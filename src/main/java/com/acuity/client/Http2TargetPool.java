@@ -0,0 +1,268 @@
+package com.acuity.client;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.codec.http2.HttpConversionUtil;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import java.util.function.Consumer;
+
+/**
+ * HTTP/2 connections to the target for HTTP mode with {@code [http] upstream = "h2c"}. All user
+ * connections of the client share {@code [http] h2Connections} cleartext connections (prior
+ * knowledge), and every request is sent on an HTTP/2 stream of its own, so a slow response holds up
+ * no other request at the target. Requests and responses are converted from and to HTTP/1.1 bytes,
+ * which is what travels through the tunnel.
+ */
+final class Http2TargetPool {
+    // Bodies are buffered whole, as the HTTP/1.1 path does
+    private static final int MAX_CONTENT_BYTES = Integer.MAX_VALUE;
+
+    private final TunnelClientApp clientApp;
+    private final Upstream[] upstreams;
+    private int nextUpstream;
+
+    Http2TargetPool(TunnelClientApp clientApp) {
+        this.clientApp = clientApp;
+        this.upstreams = new Upstream[Math.max(1, clientApp.config.getHttpH2Connections())];
+    }
+
+    /**
+     * Parse a request as it came from the user; null when HTTP/2 cannot carry it (CONNECT, protocol
+     * upgrades) or it does not parse
+     */
+    static FullHttpRequest toRequest(byte[] bytes, int maxHeaderBytes) {
+        EmbeddedChannel decoder = new EmbeddedChannel(new HttpRequestDecoder(maxHeaderBytes, maxHeaderBytes, 8192),
+            new HttpObjectAggregator(MAX_CONTENT_BYTES));
+        try {
+            decoder.writeInbound(Unpooled.wrappedBuffer(bytes));
+            FullHttpRequest request = decoder.readInbound();
+            if (request == null) {
+                return null;
+            }
+            if (!request.decoderResult().isSuccess() || HttpMethod.CONNECT.equals(request.method())
+                || request.headers().contains(HttpHeaderNames.UPGRADE)) {
+                request.release();
+                return null;
+            }
+            // The body is complete already, and HTTP/2 has no connection-level headers
+            request.headers().remove(HttpHeaderNames.EXPECT);
+            return request;
+        } finally {
+            decoder.finishAndReleaseAll();
+        }
+    }
+
+    /**
+     * Encode a response from the target as HTTP/1.1 bytes for the user; takes over the response
+     */
+    static byte[] toBytes(FullHttpResponse response) {
+        for (HttpConversionUtil.ExtensionHeaderNames name : HttpConversionUtil.ExtensionHeaderNames.values()) {
+            response.headers().remove(name.text());
+        }
+        EmbeddedChannel encoder = new EmbeddedChannel(new HttpResponseEncoder());
+        try {
+            encoder.writeOutbound(response);
+            ByteBuf out = Unpooled.buffer();
+            ByteBuf part;
+            while ((part = encoder.readOutbound()) != null) {
+                out.writeBytes(part);
+                part.release();
+            }
+            byte[] bytes = new byte[out.readableBytes()];
+            out.readBytes(bytes);
+            out.release();
+            return bytes;
+        } finally {
+            encoder.finishAndReleaseAll();
+        }
+    }
+
+    /**
+     * Send a request on a new stream; takes over the request. The response, or null if the stream or
+     * its connection failed first, is passed to done on the connection's event loop; done releases it.
+     */
+    void send(EventLoop loop, FullHttpRequest request, Consumer<FullHttpResponse> done) {
+        Upstream upstream = pick(loop);
+        upstream.ready.addListener((Future<Channel> connected) -> {
+            if (!connected.isSuccess()) {
+                request.release();
+                done.accept(null);
+                return;
+            }
+            new Http2StreamChannelBootstrap(connected.getNow())
+                .handler(new ChannelInitializer<Http2StreamChannel>() {
+                    @Override
+                    protected void initChannel(Http2StreamChannel ch) {
+                        ch.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(false));
+                        ch.pipeline().addLast(new HttpObjectAggregator(MAX_CONTENT_BYTES));
+                        ch.pipeline().addLast(new ResponseHandler(upstream, done));
+                    }
+                })
+                .open()
+                .addListener(opened -> {
+                    if (opened.isSuccess()) {
+                        upstream.streams++;
+                        ((Http2StreamChannel) opened.getNow()).writeAndFlush(request);
+                    } else {
+                        System.err.println("[TunnelClient] Cannot open an HTTP/2 stream to the target: " + opened.cause().getMessage());
+                        request.release();
+                        done.accept(null);
+                    }
+                });
+        });
+    }
+
+    /**
+     * The connection with the fewest open streams, opening or replacing connections as needed
+     */
+    private synchronized Upstream pick(EventLoop loop) {
+        Upstream best = null;
+        for (int i = 0; i < upstreams.length; i++) {
+            int slot = (nextUpstream + i) % upstreams.length;
+            Upstream upstream = upstreams[slot];
+            if (upstream == null || upstream.isClosed()) {
+                upstream = upstreams[slot] = new Upstream(loop);
+            }
+            if (best == null || upstream.streams < best.streams) {
+                best = upstream;
+            }
+        }
+        nextUpstream = (nextUpstream + 1) % upstreams.length;
+        return best;
+    }
+
+    /**
+     * Close every connection; streams still open fail
+     */
+    synchronized void close() {
+        for (Upstream upstream : upstreams) {
+            if (upstream != null) {
+                upstream.connection.channel().close();
+            }
+        }
+    }
+
+    /**
+     * One multiplexed connection to the target
+     */
+    private final class Upstream {
+        final ChannelFuture connection;
+        // Completed once the connection preface is out; the connect future completes before that
+        final Promise<Channel> ready;
+        // Streams open on this connection; only changed on its event loop
+        volatile int streams;
+
+        Upstream(EventLoop loop) {
+            ready = loop.newPromise();
+            connection = new Bootstrap()
+                .group(loop)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(Http2FrameCodecBuilder.forClient()
+                            .initialSettings(Http2Settings.defaultSettings().pushEnabled(false))
+                            .build());
+                        // The target never opens streams with push disabled, so inbound streams are ignored
+                        ch.pipeline().addLast(new Http2MultiplexHandler(new ChannelInboundHandlerAdapter()));
+                        ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void channelActive(ChannelHandlerContext ctx) throws Exception {
+                                ready.trySuccess(ctx.channel());
+                                super.channelActive(ctx);
+                            }
+                        });
+                    }
+                })
+                .connect(clientApp.targetHost, clientApp.targetPort);
+            connection.addListener((ChannelFuture future) -> {
+                if (!future.isSuccess()) {
+                    System.err.println("[TunnelClient] Cannot connect to HTTP/2 target: " + future.cause().getMessage());
+                    ready.tryFailure(future.cause());
+                }
+            });
+        }
+
+        boolean isClosed() {
+            return connection.isDone() && !connection.channel().isActive();
+        }
+    }
+
+    /**
+     * Waits for the final response on one stream and hands it over
+     */
+    private static final class ResponseHandler extends ChannelInboundHandlerAdapter {
+        private final Upstream upstream;
+        private final Consumer<FullHttpResponse> done;
+        private boolean answered;
+
+        ResponseHandler(Upstream upstream, Consumer<FullHttpResponse> done) {
+            this.upstream = upstream;
+            this.done = done;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (!(msg instanceof FullHttpResponse) || answered) {
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+            FullHttpResponse response = (FullHttpResponse) msg;
+            if (response.status().codeClass() == HttpStatusClass.INFORMATIONAL) {
+                // e.g. 103 Early Hints ahead of the final response
+                response.release();
+                return;
+            }
+            answered = true;
+            done.accept(response);
+            ctx.close();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            upstream.streams--;
+            if (!answered) {
+                // Reset by the target, or the connection went away
+                answered = true;
+                done.accept(null);
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            System.err.println("[TunnelClient] HTTP/2 stream to target failed: " + cause.getMessage());
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.acuity.client;
+
+import com.acuity.common.HttpCachePolicy;
+import com.acuity.common.HttpMessageFramer;
+import com.acuity.config.ClientConfig;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Response cache shared by the HTTP sessions of the proxy client, following {@link HttpCachePolicy}:
+ * a fresh entry answers a request without going to the target, and a stale entry with an ETag or
+ * Last-Modified turns the request into a conditional one, so a 304 is answered from the cache.
+ * Entries live in direct buffers within {@code [http] cacheMaxBytes}; the least recently used go first.
+ */
+final class HttpResponseCache {
+    // A single response may take at most this share of the budget
+    private static final int MAX_ENTRY_SHARE = 8;
+
+    /**
+     * What to do with one request: answer it from the cache, or send it on and pass the response to
+     * {@link #complete}
+     */
+    static final class Lookup {
+        // Response to answer with right away, or null
+        final byte[] fresh;
+        // Request to send to the target; conditional when a stale entry is revalidated
+        final byte[] request;
+        private final HttpCachePolicy.Request cacheRequest;
+        // The stored response being revalidated, or null
+        private final byte[] stale;
+
+        private Lookup(byte[] fresh, byte[] request, HttpCachePolicy.Request cacheRequest, byte[] stale) {
+            this.fresh = fresh;
+            this.request = request;
+            this.cacheRequest = cacheRequest;
+            this.stale = stale;
+        }
+    }
+
+    private final ClientConfig config;
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long usedBytes;
+
+    private long hits;
+    private long revalidated;
+    private long misses;
+    private long bytesSaved;
+    private long lastLoggedLookups;
+
+    HttpResponseCache(ClientConfig config) {
+        this.config = config;
+    }
+
+    boolean isEnabled() {
+        return config.getHttpCacheMaxBytes() > 0;
+    }
+
+    /**
+     * Look a request up; null when the cache has no part in it
+     */
+    Lookup lookup(byte[] request, String method) {
+        if (!isEnabled()) {
+            return null;
+        }
+        String invalidated = HttpCachePolicy.Request.invalidatedKey(request, method);
+        if (invalidated != null) {
+            invalidate(invalidated);
+            return null;
+        }
+        HttpCachePolicy.Request cacheRequest = HttpCachePolicy.Request.of(request, method);
+        if (cacheRequest == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            trim(config.getHttpCacheMaxBytes());
+            Entry entry = entries.get(cacheRequest.key);
+            if (entry == null || cacheRequest.conditional || !entry.stored.matches(cacheRequest)) {
+                return new Lookup(null, request, cacheRequest, null);
+            }
+            if (entry.stored.isFresh(cacheRequest, now)) {
+                byte[] response = entry.serve(now);
+                hits++;
+                bytesSaved += response.length;
+                return new Lookup(response, null, cacheRequest, null);
+            }
+            if (!entry.stored.canRevalidate()) {
+                return new Lookup(null, request, cacheRequest, null);
+            }
+            return new Lookup(null, entry.stored.conditional(cacheRequest, request), cacheRequest, entry.serve(now));
+        }
+    }
+
+    /**
+     * The target answered a looked-up request: store the response if it may be, and return what
+     * the user gets, which for a successful revalidation is the stored response
+     */
+    byte[] complete(Lookup lookup, HttpMessageFramer.Message response) {
+        long now = System.currentTimeMillis();
+        String key = lookup.cacheRequest.key;
+        synchronized (this) {
+            if (lookup.stale != null && response.status == 304) {
+                revalidated++;
+                bytesSaved += Math.max(0, lookup.stale.length - response.bytes.length);
+                Entry entry = entries.get(key);
+                if (entry != null) {
+                    entry.stored.refresh(response, now);
+                }
+                return lookup.stale;
+            }
+            misses++;
+            HttpCachePolicy.Stored stored = HttpCachePolicy.Stored.of(lookup.cacheRequest, response, now);
+            byte[] bytes = stored != null ? HttpCachePolicy.Stored.bytesOf(response) : null;
+            long maxBytes = config.getHttpCacheMaxBytes();
+            if (bytes == null || bytes.length > maxBytes / MAX_ENTRY_SHARE) {
+                // A newer response that cannot be stored replaces the stored one
+                remove(key);
+                return response.bytes;
+            }
+            ByteBuf buffer = PooledByteBufAllocator.DEFAULT.directBuffer(bytes.length);
+            buffer.writeBytes(bytes);
+            remove(key);
+            Entry entry = new Entry(buffer, stored);
+            entries.put(key, entry);
+            usedBytes += entry.size();
+            trim(maxBytes);
+            return response.bytes;
+        }
+    }
+
+    private synchronized void invalidate(String key) {
+        remove(key);
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            usedBytes -= entry.size();
+            entry.release();
+        }
+    }
+
+    // Evict least recently used entries until the cache fits the budget
+    private void trim(long maxBytes) {
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (usedBytes > maxBytes && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            eldest.remove();
+            usedBytes -= entry.size();
+            entry.release();
+        }
+    }
+
+    synchronized void clear() {
+        trim(-1);
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long revalidated() {
+        return revalidated;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+
+    synchronized long bytesSaved() {
+        return bytesSaved;
+    }
+
+    synchronized long usedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * Share of lookups answered without the target sending a body: fresh hits and 304 revalidations
+     */
+    synchronized double hitRatio() {
+        long lookups = hits + revalidated + misses;
+        return lookups == 0 ? 0 : (double) (hits + revalidated) / lookups;
+    }
+
+    /**
+     * Print the counters if there were lookups since the last time
+     */
+    void logStats() {
+        synchronized (this) {
+            long lookups = hits + revalidated + misses;
+            if (lookups == lastLoggedLookups) {
+                return;
+            }
+            lastLoggedLookups = lookups;
+        }
+        System.out.println("[TunnelClient] HTTP cache: " + this);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "hits=" + hits + ", revalidated=" + revalidated + ", misses=" + misses +
+            ", hitRatio=" + String.format("%.2f", hitRatio()) + ", bytesSaved=" + bytesSaved +
+            ", entries=" + entries.size() + ", usedBytes=" + usedBytes;
+    }
+
+    /**
+     * One stored response, held in a direct buffer without its Age header
+     */
+    private static final class Entry {
+        final ByteBuf response;
+        final HttpCachePolicy.Stored stored;
+
+        Entry(ByteBuf response, HttpCachePolicy.Stored stored) {
+            this.response = response;
+            this.stored = stored;
+        }
+
+        byte[] serve(long now) {
+            byte[] age = stored.ageLine(now);
+            int statusLineEnd = stored.statusLineEnd;
+            byte[] bytes = new byte[response.readableBytes() + age.length];
+            response.getBytes(0, bytes, 0, statusLineEnd);
+            System.arraycopy(age, 0, bytes, statusLineEnd, age.length);
+            response.getBytes(statusLineEnd, bytes, statusLineEnd + age.length, response.readableBytes() - statusLineEnd);
+            return bytes;
+        }
+
+        int size() {
+            return response.capacity();
+        }
+
+        void release() {
+            response.release();
+        }
+    }
+}
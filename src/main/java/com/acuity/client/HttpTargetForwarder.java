@@ -0,0 +1,539 @@
+package com.acuity.client;
+
+import com.acuity.common.AdaptiveChunkSizer;
+import com.acuity.common.HttpMessageFramer;
+import com.acuity.common.StreamSchedulingHandler;
+import com.acuity.common.StreamSchedulingHandler.Priority;
+import com.acuity.server.TunnelAction;
+import com.acuity.server.TunnelMessage;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP/1.1 mode of the proxy client. Each user connection gets a session holding one kept-alive
+ * connection to the target. The session puts the user's streams back in order and cuts them into
+ * requests, which are pipelined to the target as soon as they are complete. Each response is sent
+ * back the moment its last byte arrives, instead of waiting for the target to close the socket.
+ * Responses of a user connection all travel on one stream, so a small response never overtakes a
+ * larger one sent before it. Bytes that are not HTTP are relayed unparsed. GET requests go
+ * through the shared {@link HttpResponseCache} first when it is enabled. With an h2c upstream,
+ * requests go to the target on the shared {@link Http2TargetPool} instead, each on a stream of its
+ * own, and the session only falls back to its own HTTP/1.1 connection for what HTTP/2 cannot carry.
+ */
+class HttpTargetForwarder {
+    // Stream the responses of a user connection are sent back on
+    static final String RESPONSE_STREAM_ID = "http";
+
+    // Requests that can safely be sent again when the target closed before answering them
+    private static final Set<String> IDEMPOTENT_METHODS = new HashSet<>(Arrays.asList("GET", "HEAD", "PUT", "DELETE", "OPTIONS", "TRACE"));
+
+    private static final byte[] BAD_GATEWAY = ("HTTP/1.1 502 Bad Gateway\r\nContent-Length: 0\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    private final TunnelClientApp clientApp;
+    private final AdaptiveChunkSizer chunkSizerTemplate;
+    final HttpResponseCache cache;
+    // Set when requests go to the target over HTTP/2
+    final Http2TargetPool h2Pool;
+
+    // User connections with a session: userChannelId -> session
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    HttpTargetForwarder(TunnelClientApp clientApp) {
+        this.clientApp = clientApp;
+        this.chunkSizerTemplate = clientApp.config.createChunkSizer();
+        this.cache = new HttpResponseCache(clientApp.config);
+        this.h2Pool = clientApp.config.isH2cUpstream() ? new Http2TargetPool(clientApp) : null;
+    }
+
+    /**
+     * Hand the bytes of one stream of a user connection to its session
+     *
+     * @param release gives the stream's bytes back to the memory budget once the stream has been dealt with
+     */
+    void forward(String userChannelId, String streamId, byte[] data, ChannelHandlerContext tunnelCtx, Runnable release) {
+        long streamNumber;
+        try {
+            streamNumber = Long.parseLong(streamId);
+        } catch (NumberFormatException e) {
+            release.run();
+            System.err.println("[TunnelClient] HTTP session " + userChannelId + ": ignoring stream with id " + streamId);
+            return;
+        }
+        Session session = sessions.computeIfAbsent(userChannelId, id -> new Session(id, tunnelCtx.channel().eventLoop()));
+        // Sessions are confined to one event loop, which also serves their target connection
+        session.loop.execute(() -> session.streamArrived(streamNumber, data, tunnelCtx, release));
+    }
+
+    /**
+     * The user connection closed on the tunnel server
+     */
+    void close(String userChannelId) {
+        Session session = sessions.remove(userChannelId);
+        if (session != null) {
+            session.loop.execute(session::close);
+        }
+    }
+
+    /**
+     * A request sent to the target and waiting for its response
+     */
+    private static final class Exchange {
+        final byte[] request;
+        final String method;
+        // Stream that carried the request's last byte; it is answered once this exchange is
+        final long streamNumber;
+        // Set when the request went through the cache
+        final HttpResponseCache.Lookup lookup;
+        boolean retried;
+        // HTTP/2 upstream only: the answer, once it is in, waiting for the answers due before it
+        byte[] response;
+
+        Exchange(byte[] request, String method, long streamNumber) {
+            this(request, method, streamNumber, null);
+        }
+
+        Exchange(byte[] request, String method, long streamNumber, HttpResponseCache.Lookup lookup) {
+            this.request = request;
+            this.method = method;
+            this.streamNumber = streamNumber;
+            this.lookup = lookup;
+        }
+
+        // Answered from the cache; waits only for the responses ahead of it
+        boolean isCached() {
+            return lookup != null && lookup.fresh != null;
+        }
+    }
+
+    private final class Session {
+        final String userChannelId;
+        final EventLoop loop;
+        // Streams that arrived ahead of an earlier one: stream number -> bytes
+        final TreeMap<Long, byte[]> earlyStreams = new TreeMap<>();
+        // Streams not yet dealt with: stream number -> gives its bytes back to the memory budget
+        final Map<Long, Runnable> releases = new HashMap<>();
+        final HttpMessageFramer requests = HttpMessageFramer.requests(clientApp.config.getHttpMaxHeaderBytes());
+        long nextStream = 1;
+        ChannelHandlerContext tunnelCtx;
+        Target target;
+        boolean closed;
+        // HTTP/2 upstream only: requests sent on the shared connections, answered in the order they came
+        final ArrayDeque<Exchange> h2InFlight = new ArrayDeque<>();
+        // Requests that must go over HTTP/1.1, waiting for the HTTP/2 requests ahead of them to be answered
+        final ArrayDeque<Exchange> deferred = new ArrayDeque<>();
+        // Set once the session has moved to its own HTTP/1.1 connection, which it then keeps
+        boolean http1 = h2Pool == null;
+
+        Session(String userChannelId, EventLoop loop) {
+            this.userChannelId = userChannelId;
+            this.loop = loop;
+        }
+
+        void streamArrived(long streamNumber, byte[] data, ChannelHandlerContext ctx, Runnable release) {
+            if (closed) {
+                release.run();
+                return;
+            }
+            // Responses go back on the connection that carried the latest request
+            tunnelCtx = ctx;
+            if (streamNumber < nextStream || releases.containsKey(streamNumber)) {
+                release.run();
+                System.err.println("[TunnelClient] HTTP session " + userChannelId + ": stream " + streamNumber + " arrived twice");
+                return;
+            }
+            releases.put(streamNumber, release);
+            earlyStreams.put(streamNumber, data);
+            while (!earlyStreams.isEmpty() && earlyStreams.firstKey() == nextStream) {
+                requestBytes(nextStream, earlyStreams.pollFirstEntry().getValue());
+                nextStream++;
+            }
+        }
+
+        private void requestBytes(long streamNumber, byte[] data) {
+            requests.feed(data);
+            try {
+                HttpMessageFramer.Message request;
+                while ((request = requests.next()) != null) {
+                    HttpResponseCache.Lookup lookup = requests.isPassthrough() ? null : cache.lookup(request.bytes, request.method);
+                    dispatch(lookup != null
+                        ? new Exchange(lookup.fresh != null ? request.bytes : lookup.request, request.method, streamNumber, lookup)
+                        : new Exchange(request.bytes, request.method, streamNumber));
+                }
+            } catch (IOException e) {
+                // Not HTTP after all: relay the rest of the connection as it is
+                System.err.println("[TunnelClient] HTTP session " + userChannelId + ": " + e.getMessage() + ", relaying unparsed");
+                relayUnparsed(target());
+                HttpMessageFramer.Message rest;
+                try {
+                    while ((rest = requests.next()) != null) {
+                        dispatch(new Exchange(rest.bytes, null, streamNumber));
+                    }
+                } catch (IOException impossible) {
+                    // Pass-through never fails
+                }
+            }
+            if (!pending(target, streamNumber) && !awaitingH2(streamNumber)) {
+                // A stream with only part of a request, raw bytes or cache hits expects no response of its own
+                acknowledge(streamNumber);
+            }
+        }
+
+        /**
+         * Send a request over HTTP/2 if the session still can, otherwise on its HTTP/1.1 connection
+         */
+        private void dispatch(Exchange exchange) {
+            if (!http1) {
+                if (deferred.isEmpty()) {
+                    if (exchange.isCached()) {
+                        exchange.response = exchange.lookup.fresh;
+                        h2InFlight.add(exchange);
+                        flushH2();
+                        return;
+                    }
+                    FullHttpRequest request = exchange.method != null && !requests.isPassthrough()
+                        ? Http2TargetPool.toRequest(exchange.request, clientApp.config.getHttpMaxHeaderBytes())
+                        : null;
+                    if (request != null) {
+                        h2InFlight.add(exchange);
+                        sendH2(exchange, request);
+                        return;
+                    }
+                }
+                if (!h2InFlight.isEmpty()) {
+                    deferred.add(exchange);
+                    return;
+                }
+                useHttp1();
+            }
+            send(exchange);
+        }
+
+        private void useHttp1() {
+            System.out.println("[TunnelClient] HTTP session " + userChannelId + ": switching to HTTP/1.1 for a request HTTP/2 cannot carry");
+            http1 = true;
+        }
+
+        private void sendH2(Exchange exchange, FullHttpRequest request) {
+            h2Pool.send(loop, request, response -> loop.execute(() -> h2Answered(exchange, response)));
+        }
+
+        private void h2Answered(Exchange exchange, FullHttpResponse response) {
+            if (closed) {
+                if (response != null) {
+                    response.release();
+                }
+                return;
+            }
+            if (response == null) {
+                FullHttpRequest retry = !exchange.retried && IDEMPOTENT_METHODS.contains(exchange.method)
+                    ? Http2TargetPool.toRequest(exchange.request, clientApp.config.getHttpMaxHeaderBytes())
+                    : null;
+                if (retry != null) {
+                    exchange.retried = true;
+                    sendH2(exchange, retry);
+                    return;
+                }
+                System.err.println("[TunnelClient] HTTP session " + userChannelId + ": HTTP/2 stream closed before answering a " + exchange.method + " request");
+                exchange.response = BAD_GATEWAY;
+            } else {
+                int status = response.status().code();
+                byte[] bytes = Http2TargetPool.toBytes(response);
+                exchange.response = exchange.lookup != null
+                    ? cache.complete(exchange.lookup, new HttpMessageFramer.Message(bytes, null, status, false))
+                    : bytes;
+            }
+            flushH2();
+        }
+
+        /**
+         * Send the answers that are due, in request order; once none are outstanding, requests waiting
+         * for HTTP/1.1 go out
+         */
+        private void flushH2() {
+            while (!h2InFlight.isEmpty() && h2InFlight.peek().response != null) {
+                Exchange exchange = h2InFlight.poll();
+                send(exchange.response);
+                answered(exchange, target);
+            }
+            if (h2InFlight.isEmpty() && !deferred.isEmpty()) {
+                useHttp1();
+                Exchange exchange;
+                while ((exchange = deferred.poll()) != null) {
+                    if (send(exchange)) {
+                        answered(exchange, target);
+                    }
+                }
+            }
+        }
+
+        private boolean awaitingH2(long streamNumber) {
+            return h2InFlight.stream().anyMatch(exchange -> exchange.streamNumber == streamNumber)
+                || deferred.stream().anyMatch(exchange -> exchange.streamNumber == streamNumber);
+        }
+
+        /**
+         * Send a request to the target; a cache hit is answered right away unless responses are due ahead of it
+         *
+         * @return true if the exchange was answered right away
+         */
+        private boolean send(Exchange exchange) {
+            if (exchange.isCached()) {
+                if (target == null || target.inFlight.isEmpty()) {
+                    send(exchange.lookup.fresh);
+                    return true;
+                }
+                target.inFlight.add(exchange);
+                return false;
+            }
+            Target current = target();
+            if (!current.responses.isPassthrough()) {
+                current.responses.expectResponseTo(exchange.method);
+                current.inFlight.add(exchange);
+            }
+            ByteBuf request = Unpooled.wrappedBuffer(exchange.request);
+            current.connection.addListener((ChannelFuture future) -> {
+                if (future.isSuccess()) {
+                    future.channel().writeAndFlush(request);
+                } else {
+                    request.release();
+                }
+            });
+            return false;
+        }
+
+        private Target target() {
+            if (target == null) {
+                target = new Target(this);
+            }
+            return target;
+        }
+
+        void responseBytes(Target from, ByteBuf data) {
+            from.responses.feed(data);
+            try {
+                HttpMessageFramer.Message response;
+                while ((response = from.responses.next()) != null) {
+                    respond(from, response);
+                }
+            } catch (IOException e) {
+                System.err.println("[TunnelClient] HTTP session " + userChannelId + ": target sent " + e.getMessage() + ", relaying unparsed");
+                relayUnparsed(from);
+                responseBytes(from, Unpooled.EMPTY_BUFFER);
+            }
+        }
+
+        /**
+         * Stop parsing in both directions; requests waiting for a response are no longer tracked
+         */
+        private void relayUnparsed(Target current) {
+            requests.passthrough();
+            current.responses.passthrough();
+            for (Exchange exchange : current.inFlight) {
+                acknowledge(exchange.streamNumber);
+            }
+            current.inFlight.clear();
+        }
+
+        private void respond(Target from, HttpMessageFramer.Message response) {
+            if (response.status == 0 || response.isInterim()) {
+                // Raw bytes, or e.g. 100 Continue ahead of the final response
+                send(response.bytes);
+                return;
+            }
+            Exchange exchange = from.inFlight.poll();
+            send(exchange != null && exchange.lookup != null ? cache.complete(exchange.lookup, response) : response.bytes);
+            if (from.responses.isPassthrough()) {
+                // Upgraded: the rest of the user's bytes go to the target unparsed
+                requests.passthrough();
+            }
+            answered(exchange, from);
+            // Cache hits queued behind this response are due now
+            while (!from.inFlight.isEmpty() && from.inFlight.peek().isCached()) {
+                Exchange hit = from.inFlight.poll();
+                send(hit.lookup.fresh);
+                answered(hit, from);
+            }
+        }
+
+        private void answered(Exchange exchange, Target from) {
+            if (exchange != null && !pending(from, exchange.streamNumber) && !pending(target, exchange.streamNumber)
+                && !awaitingH2(exchange.streamNumber)) {
+                acknowledge(exchange.streamNumber);
+            }
+        }
+
+        private boolean pending(Target current, long streamNumber) {
+            return current != null && current.inFlight.stream().anyMatch(other -> other.streamNumber == streamNumber);
+        }
+
+        void targetClosed(Target closedTarget) {
+            if (target == closedTarget) {
+                target = null;
+            }
+            HttpMessageFramer.Message last = closedTarget.responses.finish();
+            if (last != null) {
+                respond(closedTarget, last);
+            }
+            closedTarget.responses.release();
+            if (closed || closedTarget.inFlight.isEmpty()) {
+                return;
+            }
+            // Requests pipelined behind a response that closed the connection get one more try on a new
+            // connection, if all of them are safe to repeat; otherwise each is answered with 502 in order
+            boolean retry = closedTarget.inFlight.stream().allMatch(exchange -> exchange.isCached() || (!exchange.retried && IDEMPOTENT_METHODS.contains(exchange.method)));
+            Exchange exchange;
+            while ((exchange = closedTarget.inFlight.poll()) != null) {
+                if (retry) {
+                    exchange.retried = true;
+                    if (send(exchange)) {
+                        answered(exchange, closedTarget);
+                    }
+                } else if (exchange.isCached()) {
+                    send(exchange.lookup.fresh);
+                    answered(exchange, closedTarget);
+                } else {
+                    System.err.println("[TunnelClient] HTTP session " + userChannelId + ": target closed before answering a " + exchange.method + " request");
+                    send(BAD_GATEWAY);
+                    answered(exchange, closedTarget);
+                }
+            }
+        }
+
+        private void send(byte[] response) {
+            ChannelHandlerContext ctx = tunnelCtx != null ? clientApp.liveConnection(tunnelCtx) : null;
+            if (ctx == null) {
+                System.err.println("[TunnelClient] No tunnel connection available, dropping HTTP response for " + userChannelId);
+                return;
+            }
+            TunnelControlHandler.streamDataToServer(userChannelId, RESPONSE_STREAM_ID, response, ctx,
+                AdaptiveChunkSizer.forChannel(ctx.channel(), chunkSizerTemplate));
+        }
+
+        /**
+         * Tell the server a stream has been dealt with, so it no longer counts as in flight
+         */
+        private void acknowledge(long streamNumber) {
+            Runnable release = releases.remove(streamNumber);
+            if (release != null) {
+                release.run();
+            }
+            ChannelHandlerContext ctx = tunnelCtx != null ? clientApp.liveConnection(tunnelCtx) : null;
+            if (ctx == null) {
+                return;
+            }
+            String streamId = String.valueOf(streamNumber);
+            ctx.writeAndFlush(StreamSchedulingHandler.frame(ctx.channel(), userChannelId + ":" + streamId, Priority.INTERACTIVE,
+                new TunnelMessage(userChannelId, streamId, TunnelAction.FORWARD, new byte[0]).toByteBuf(ctx.alloc())));
+        }
+
+        void close() {
+            closed = true;
+            earlyStreams.clear();
+            releases.values().forEach(Runnable::run);
+            releases.clear();
+            h2InFlight.clear();
+            deferred.clear();
+            requests.release();
+            if (target != null) {
+                target.connection.channel().close();
+            }
+        }
+    }
+
+    /**
+     * One connection to the target; replaced when the target closes it
+     */
+    private final class Target {
+        final HttpMessageFramer responses = HttpMessageFramer.responses(clientApp.config.getHttpMaxHeaderBytes());
+        final ArrayDeque<Exchange> inFlight = new ArrayDeque<>();
+        final ChannelFuture connection;
+
+        Target(Session session) {
+            connection = new Bootstrap()
+                .group(session.loop)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10000)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new IdleStateHandler(0, 0, clientApp.config.getHttpIdleTimeoutSeconds(), TimeUnit.SECONDS));
+                        ch.pipeline().addLast(new TargetResponseHandler(session, Target.this));
+                    }
+                })
+                .connect(clientApp.targetHost, clientApp.targetPort);
+            Channel channel = connection.channel();
+            channel.closeFuture().addListener(closed -> session.targetClosed(this));
+            connection.addListener((ChannelFuture future) -> {
+                if (!future.isSuccess()) {
+                    System.err.println("[TunnelClient] HTTP session " + session.userChannelId + ": cannot connect to target: " + future.cause().getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * Feeds the target's bytes to the session's response framer
+     */
+    private static final class TargetResponseHandler extends ChannelInboundHandlerAdapter {
+        private final Session session;
+        private final Target target;
+
+        TargetResponseHandler(Session session, Target target) {
+            this.session = session;
+            this.target = target;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            ByteBuf data = (ByteBuf) msg;
+            try {
+                session.responseBytes(target, data);
+            } finally {
+                data.release();
+            }
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof IdleStateEvent && target.inFlight.isEmpty()) {
+                // A kept-alive connection nobody used for a while; the next request opens a new one
+                ctx.close();
+                return;
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            System.err.println("[TunnelClient] HTTP session " + session.userChannelId + ": " + cause.getMessage());
+            ctx.close();
+        }
+    }
+}
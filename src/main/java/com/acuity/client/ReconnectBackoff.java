@@ -0,0 +1,46 @@
+package com.acuity.client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential reconnect delay with jitter.
+ * Each attempt doubles the ceiling up to the maximum; the delay is drawn from the upper half of
+ * the ceiling so clients that dropped together don't reconnect in lockstep.
+ */
+public class ReconnectBackoff {
+    public static final long DEFAULT_INITIAL_DELAY_MILLIS = 200;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 30_000;
+
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private int attempt;
+
+    public ReconnectBackoff(long initialDelayMillis, long maxDelayMillis) {
+        this.initialDelayMillis = Math.max(1, initialDelayMillis);
+        this.maxDelayMillis = Math.max(this.initialDelayMillis, maxDelayMillis);
+    }
+
+    /**
+     * Delay before the next attempt; advances the attempt counter
+     */
+    public synchronized long nextDelayMillis() {
+        long ceiling = maxDelayMillis;
+        if (attempt < 62 && initialDelayMillis <= (maxDelayMillis >> attempt)) {
+            ceiling = initialDelayMillis << attempt;
+        }
+        attempt++;
+        long half = ceiling / 2;
+        return half + ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+    }
+
+    /**
+     * Start over from the initial delay after a successful connection
+     */
+    public synchronized void reset() {
+        attempt = 0;
+    }
+
+    public synchronized int getAttempt() {
+        return attempt;
+    }
+}
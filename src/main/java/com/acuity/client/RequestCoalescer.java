@@ -0,0 +1,190 @@
+package com.acuity.client;
+
+import com.acuity.config.ClientConfig;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Single-flight for target requests in TCP mode. While a GET or HEAD request is running against the
+ * target, streams carrying the very same bytes wait for its response instead of sending their own,
+ * so a burst of users asking for one resource costs the target a single request. Followers wait at
+ * most {@code [coalescing] maxWaitMillis}; if the leader takes longer or gets no response, each of
+ * them sends its own request.
+ */
+class RequestCoalescer {
+    private final ClientConfig config;
+    private final TargetRequestPool pool;
+    // Sends one request to the target and returns the response; empty when the request failed
+    private final Function<byte[], byte[]> target;
+    private final Map<Key, CompletableFuture<byte[]>> flights = new ConcurrentHashMap<>();
+
+    private final AtomicLong leaders = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+    private volatile long lastLoggedCoalesced;
+
+    RequestCoalescer(ClientConfig config, TargetRequestPool pool, Function<byte[], byte[]> target) {
+        this.config = config;
+        this.pool = pool;
+        this.target = target;
+    }
+
+    /**
+     * Run a request on the pool, or join an identical one already running, and pass the response to
+     * respond on a pool thread. The timer bounds how long a follower waits. If the pool refuses the
+     * request, refused runs instead.
+     */
+    void execute(byte[] request, ScheduledExecutorService timer, Consumer<byte[]> respond, Runnable refused) {
+        if (!config.isCoalescingEnabled() || !isCoalescable(request)) {
+            submit(() -> respond.accept(target.apply(request)), refused);
+            return;
+        }
+        Key key = new Key(request);
+        CompletableFuture<byte[]> flight = new CompletableFuture<>();
+        CompletableFuture<byte[]> running = flights.putIfAbsent(key, flight);
+        if (running == null) {
+            leaders.incrementAndGet();
+            submit(() -> {
+                byte[] response = new byte[0];
+                try {
+                    response = target.apply(request);
+                } finally {
+                    // Requests from now on start a flight of their own
+                    flights.remove(key, flight);
+                    flight.complete(response);
+                }
+                respond.accept(response);
+            }, () -> {
+                // Followers that joined meanwhile fall back to their own requests
+                flights.remove(key, flight);
+                flight.complete(new byte[0]);
+                refused.run();
+            });
+            return;
+        }
+        follow(request, running, timer, respond, refused);
+    }
+
+    private void follow(byte[] request, CompletableFuture<byte[]> running, ScheduledExecutorService timer,
+                        Consumer<byte[]> respond, Runnable refused) {
+        AtomicBoolean answered = new AtomicBoolean();
+        ScheduledFuture<?> timeout = timer.schedule(() -> {
+            if (answered.compareAndSet(false, true)) {
+                fallBack(request, respond, refused);
+            }
+        }, config.getCoalescingMaxWaitMillis(), TimeUnit.MILLISECONDS);
+        running.thenAccept(response -> {
+            if (!answered.compareAndSet(false, true)) {
+                return;
+            }
+            timeout.cancel(false);
+            if (response.length == 0) {
+                fallBack(request, respond, refused);
+                return;
+            }
+            coalesced.incrementAndGet();
+            // The leader's thread completes every follower, so fan the sends out over the pool
+            submit(() -> respond.accept(response), refused);
+        });
+    }
+
+    private void fallBack(byte[] request, Consumer<byte[]> respond, Runnable refused) {
+        fallbacks.incrementAndGet();
+        submit(() -> respond.accept(target.apply(request)), refused);
+    }
+
+    private void submit(Runnable task, Runnable refused) {
+        try {
+            pool.submit(task);
+        } catch (RejectedExecutionException e) {
+            refused.run();
+        }
+    }
+
+    /**
+     * A single GET or HEAD request without a body. Identical bytes also carry identical credentials and
+     * cookies, so a follower gets the response it would have got itself.
+     */
+    static boolean isCoalescable(byte[] request) {
+        String start = new String(request, 0, Math.min(5, request.length), StandardCharsets.ISO_8859_1);
+        if (!start.startsWith("GET ") && !start.startsWith("HEAD ")) {
+            return false;
+        }
+        return headEnd(request) == request.length;
+    }
+
+    // Offset just past the first blank line
+    private static int headEnd(byte[] request) {
+        for (int i = 3; i < request.length; i++) {
+            if (request[i] == '\n' && request[i - 1] == '\r' && request[i - 2] == '\n' && request[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    long leaders() {
+        return leaders.get();
+    }
+
+    long coalesced() {
+        return coalesced.get();
+    }
+
+    long fallbacks() {
+        return fallbacks.get();
+    }
+
+    /**
+     * Print the counters if requests were coalesced since the last time
+     */
+    void logStats() {
+        long current = coalesced.get();
+        if (current == lastLoggedCoalesced) {
+            return;
+        }
+        lastLoggedCoalesced = current;
+        System.out.println("[TunnelClient] Request coalescing: " + this);
+    }
+
+    @Override
+    public String toString() {
+        return "leaders=" + leaders.get() + ", coalesced=" + coalesced.get() + ", fallbacks=" + fallbacks.get() +
+            ", inFlight=" + flights.size();
+    }
+
+    /**
+     * Request bytes compared by content
+     */
+    private static final class Key {
+        final byte[] request;
+        final int hash;
+
+        Key(byte[] request) {
+            this.request = request;
+            this.hash = Arrays.hashCode(request);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && hash == ((Key) other).hash && Arrays.equals(request, ((Key) other).request);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
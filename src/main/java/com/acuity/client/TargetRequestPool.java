@@ -0,0 +1,183 @@
+package com.acuity.client;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs blocking target requests ({@link TcpRequestExecutor}) off the Netty event loop.
+ *
+ * Platform mode is the bounded thread pool the client has always used; once its threads and queue are
+ * full, further requests are rejected rather than run on the submitting event loop. Virtual mode starts one
+ * virtual thread per request and limits concurrency with a semaphore that is acquired on that thread,
+ * so submitting never blocks or rejects on the event loop.
+ */
+public class TargetRequestPool {
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 1000;
+
+    public enum Mode {
+        PLATFORM,
+        VIRTUAL;
+
+        public static Mode fromString(String mode) {
+            if (mode == null || mode.trim().isEmpty()) {
+                return PLATFORM;
+            }
+            return Mode.valueOf(mode.trim().toUpperCase());
+        }
+    }
+
+    private final Mode mode;
+    private final ExecutorService executor;
+    // Only used in virtual mode; threads are free there, concurrent target connections are not
+    private final ResizableSemaphore permits;
+
+    private TargetRequestPool(Mode mode, ExecutorService executor, ResizableSemaphore permits) {
+        this.mode = mode;
+        this.executor = executor;
+        this.permits = permits;
+    }
+
+    /**
+     * Bounded platform thread pool; when it is saturated {@link #submit} throws {@link RejectedExecutionException}
+     */
+    public static TargetRequestPool platform(int corePoolSize, int maxPoolSize, long keepAliveTimeSeconds, int queueCapacity) {
+        ExecutorService executor = new ThreadPoolExecutor(
+            corePoolSize,
+            maxPoolSize,
+            keepAliveTimeSeconds, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(queueCapacity),
+            new ThreadPoolExecutor.AbortPolicy()
+        );
+        return new TargetRequestPool(Mode.PLATFORM, executor, null);
+    }
+
+    /**
+     * One virtual thread per request with at most maxConcurrentRequests running against the target.
+     * On a JDK without virtual threads this falls back to a platform pool of maxConcurrentRequests
+     * threads, where extra requests wait in the queue instead of each holding a thread.
+     */
+    public static TargetRequestPool virtual(int maxConcurrentRequests) {
+        int limit = Math.max(1, maxConcurrentRequests);
+        ExecutorService executor = newVirtualThreadPerTaskExecutor();
+        if (executor == null) {
+            System.out.println("[TunnelClient] Virtual threads need JDK 21+, running target requests on up to " + limit + " platform threads");
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(limit, limit, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        return new TargetRequestPool(Mode.VIRTUAL, executor, new ResizableSemaphore(limit));
+    }
+
+    /**
+     * Run a request on the pool
+     *
+     * @throws RejectedExecutionException if the platform pool is saturated or the pool is shut down
+     */
+    public void submit(Runnable task) {
+        if (permits == null) {
+            executor.execute(task);
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                task.run();
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    /**
+     * Apply new limits to the running pool; requests already running are not interrupted.
+     * Platform mode takes the thread pool sizes, virtual mode the concurrency limit.
+     */
+    public void resize(int corePoolSize, int maxPoolSize, long keepAliveTimeSeconds, int maxConcurrentRequests) {
+        if (permits != null) {
+            int limit = Math.max(1, maxConcurrentRequests);
+            permits.setLimit(limit);
+            if (executor instanceof ThreadPoolExecutor) {
+                // Platform fallback for virtual threads; its threads follow the concurrency limit
+                resize((ThreadPoolExecutor) executor, limit, limit);
+            }
+            return;
+        }
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+        resize(pool, corePoolSize, maxPoolSize);
+        pool.setKeepAliveTime(keepAliveTimeSeconds, TimeUnit.SECONDS);
+    }
+
+    private static void resize(ThreadPoolExecutor pool, int corePoolSize, int maxPoolSize) {
+        // The core size may never exceed the maximum, so order the two updates by direction
+        if (maxPoolSize >= pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(maxPoolSize);
+            pool.setCorePoolSize(corePoolSize);
+        } else {
+            pool.setCorePoolSize(corePoolSize);
+            pool.setMaximumPoolSize(maxPoolSize);
+        }
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Shutdown the pool gracefully
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Semaphore whose number of permits can be changed while permits are held
+     */
+    private static final class ResizableSemaphore extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        private int limit;
+
+        ResizableSemaphore(int limit) {
+            super(limit);
+            this.limit = limit;
+        }
+
+        synchronized void setLimit(int newLimit) {
+            int delta = newLimit - limit;
+            if (delta > 0) {
+                release(delta);
+            } else if (delta < 0) {
+                // Permits in use are returned as usual; the pool shrinks as they come back
+                reducePermits(-delta);
+            }
+            limit = newLimit;
+        }
+    }
+
+    // Looked up reflectively so the client still builds and runs on JDKs before 21
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -21,10 +21,11 @@ public final class TcpRequestExecutor {
             socket.connect(new InetSocketAddress(targetHost, targetPort), 10000);
             socket.setSoTimeout(20000);
 
-            try (OutputStream out = socket.getOutputStream()) {
-                out.write(requestBytes);
-                out.flush();
-            }
+            OutputStream out = socket.getOutputStream();
+            out.write(requestBytes);
+            out.flush();
+            // Half-close so the target sees the end of the request; closing the stream would close the socket
+            socket.shutdownOutput();
 
             try (InputStream in = socket.getInputStream()) {
                 return readAllBytes(in);
@@ -1,18 +1,40 @@
 package com.acuity.client;
 
-import com.acuity.common.SymmetricDecryptionHandler;
+import com.acuity.common.AdaptiveChunkSizer;
+import com.acuity.common.ChunkDedupHandler;
+import com.acuity.common.MemoryBudget;
+import com.acuity.common.QuicTransport;
 import com.acuity.common.SymmetricEncryption;
 import com.acuity.common.SymmetricEncryptionHandler;
 import com.acuity.config.ClientConfig;
+import com.acuity.config.ConfigChanges;
+import com.acuity.config.ConfigWatcher;
+import com.acuity.server.TunnelMessage;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
-import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.incubator.codec.quic.QuicChannel;
+import io.netty.incubator.codec.quic.QuicStreamChannel;
+import io.netty.incubator.codec.quic.QuicStreamType;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.Future;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 public class TunnelClientApp {
@@ -23,6 +45,31 @@ public class TunnelClientApp {
     final int targetPort;
     final String sharedKey;
     final String groupId;
+    final ClientConfig config;
+    // Runs the blocking target requests so they never stall a tunnel event loop
+    final TargetRequestPool requestPool;
+    // Target sockets of UDP proxy sessions, used when the proxy port is UDP
+    final UdpTargetForwarder udpForwarder = new UdpTargetForwarder(this);
+    // Kept-alive target connections of user connections, used when the proxy port is HTTP
+    final HttpTargetForwarder httpForwarder;
+    // Lets identical TCP-mode requests running at the same time share one target request
+    final RequestCoalescer coalescer;
+    // Bytes held by requests being reassembled and frames queued for the tunnel, across all connections
+    final MemoryBudget memoryBudget = new MemoryBudget("TunnelClient");
+    // Identifies this client's connections as one logical proxy client on the server,
+    // and doubles as the resume token when a dropped connection comes back
+    final String clientId = UUID.randomUUID().toString().substring(0, 8);
+    // Port the server allocated when proxyPort is 0; reconnects and further stripes ask for it again
+    private volatile int allocatedProxyPort;
+
+    // Connections the server has accepted, by connection index; responses for a dropped connection use another one
+    private final Map<Integer, ChannelHandlerContext> liveConnections = new ConcurrentHashMap<>();
+    // Completed with the next connection the server accepts, or null once stopping; replaced on each accept
+    private CompletableFuture<ChannelHandlerContext> nextConnection = new CompletableFuture<>();
+    // Reconnect backoff per connection index, reset once the server accepts the connection
+    private final Map<Integer, ReconnectBackoff> backoffs = new ConcurrentHashMap<>();
+    private EventExecutorGroup codecGroup;
+    private volatile boolean stopping;
 
     public TunnelClientApp(String tunnelHost, int tunnelPort, int proxyPort, String targetHost, int targetPort) {
         this(tunnelHost, tunnelPort, proxyPort, targetHost, targetPort, null, "default");
@@ -33,17 +80,43 @@ public class TunnelClientApp {
     }
 
     public TunnelClientApp(String tunnelHost, int tunnelPort, int proxyPort, String targetHost, int targetPort, String sharedKey, String groupId) {
-        this.tunnelHost = tunnelHost;
-        this.tunnelPort = tunnelPort;
-        this.proxyPort = proxyPort;
-        this.targetHost = targetHost;
-        this.targetPort = targetPort;
-        this.sharedKey = sharedKey;
-        this.groupId = groupId != null && !groupId.isEmpty() ? groupId : "default";
+        this(configOf(tunnelHost, tunnelPort, proxyPort, targetHost, targetPort, sharedKey, groupId));
+    }
+
+    public TunnelClientApp(ClientConfig config) {
+        this.config = config;
+        this.tunnelHost = config.getTunnelHost();
+        this.tunnelPort = config.getTunnelPort();
+        this.proxyPort = config.getProxyPort();
+        this.targetHost = config.getTargetHost();
+        this.targetPort = config.getTargetPort();
+        this.sharedKey = config.getSharedKey();
+        this.groupId = config.getGroupId() != null && !config.getGroupId().isEmpty() ? config.getGroupId() : "default";
+        this.requestPool = config.createTargetRequestPool();
+        this.httpForwarder = new HttpTargetForwarder(this);
+        this.coalescer = new RequestCoalescer(config, requestPool, request -> TcpRequestExecutor.execute(request, targetHost, targetPort));
+    }
+
+    private static ClientConfig configOf(String tunnelHost, int tunnelPort, int proxyPort, String targetHost, int targetPort, String sharedKey, String groupId) {
+        ClientConfig config = new ClientConfig();
+        config.setTunnelHost(tunnelHost);
+        config.setTunnelPort(tunnelPort);
+        config.setProxyPort(proxyPort);
+        config.setTargetHost(targetHost);
+        config.setTargetPort(targetPort);
+        config.setSharedKey(sharedKey);
+        config.setGroupId(groupId);
+        return config;
     }
 
     public void start() throws InterruptedException {
+        config.validate();
+        config.applyGlobalSettings();
         EventLoopGroup group = new NioEventLoopGroup();
+        // Optional pool for GZIP/AES so large frames don't stall the I/O thread
+        codecGroup = config.getCodecOffloadThreads() > 0
+            ? new DefaultEventExecutorGroup(config.getCodecOffloadThreads(), new DefaultThreadFactory("tunnel-codec"))
+            : null;
         try {
             // Initialize symmetric encryption key
             if (sharedKey != null && !sharedKey.isEmpty()) {
@@ -55,41 +128,291 @@ public class TunnelClientApp {
             }
 
             Bootstrap bootstrap = new Bootstrap();
-            bootstrap.group(group)
-                .channel(NioSocketChannel.class)
-                .handler(new ChannelInitializer<SocketChannel>() {
-                    @Override
-                    protected void initChannel(SocketChannel ch) throws Exception {
-                        // Add encryption/decryption handlers
-                        ch.pipeline().addLast(new SymmetricEncryptionHandler());
-                        ch.pipeline().addLast(new SymmetricDecryptionHandler());
-
-                        ch.pipeline().addLast(new IdleStateHandler(60, 60, 0, TimeUnit.SECONDS));
-                        ch.pipeline().addLast(new TunnelControlHandler(TunnelClientApp.this));
-                    }
-                })
-                .option(ChannelOption.SO_KEEPALIVE, true)
-                .option(ChannelOption.TCP_NODELAY, true);
-
-            ChannelFuture future = bootstrap.connect(tunnelHost, tunnelPort).sync();
-            System.out.println("[TunnelClient] Connected to tunnel server at " + tunnelHost + ":" + tunnelPort + " with symmetric encryption");
+            if (config.isQuicEnabled()) {
+                // Each connection is a QUIC connection over its own UDP socket
+                bootstrap.group(group)
+                    .channel(NioDatagramChannel.class);
+            } else {
+                bootstrap.group(group)
+                    .channel(NioSocketChannel.class);
+                config.createChannelTuning().applyTo(bootstrap);
+            }
+
+            // Stripe traffic over several connections; the server treats them as one client by clientId
+            int connections = Math.max(1, config.getConnections());
+            CountDownLatch stopped = new CountDownLatch(connections);
+            for (int i = 0; i < connections; i++) {
+                backoffs.put(i, config.createReconnectBackoff());
+                connect(bootstrap, i, stopped);
+            }
+            if (config.isHttp()) {
+                group.scheduleAtFixedRate(httpForwarder.cache::logStats, 60, 60, TimeUnit.SECONDS);
+            } else {
+                group.scheduleAtFixedRate(coalescer::logStats, 60, 60, TimeUnit.SECONDS);
+            }
+            group.scheduleAtFixedRate(memoryBudget::logStats, 60, 60, TimeUnit.SECONDS);
+            System.out.println("[TunnelClient] Connecting to tunnel server at " + tunnelHost + ":" +
+                (config.isQuicEnabled() ? config.getEffectiveQuicPort() + " over QUIC" : tunnelPort) + " with symmetric encryption" +
+                " (" + connections + " connection" + (connections == 1 ? "" : "s") + ", clientId=" + clientId + ")");
 
             try {
-                future.channel().closeFuture().sync();
+                stopped.await();
             } catch (InterruptedException e) {
                 System.out.println("[TunnelClient] Client interrupted, shutting down gracefully");
-                future.channel().close();
+                stopping = true;
+                for (ChannelHandlerContext ctx : liveConnections.values()) {
+                    ctx.close();
+                }
             }
-        } catch (InterruptedException e) {
-            System.out.println("[TunnelClient] Interrupted during startup");
-            Thread.currentThread().interrupt();
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
+            stopping = true;
+            connectionAwaited(null);
             group.shutdownGracefully();
+            if (codecGroup != null) {
+                codecGroup.shutdownGracefully();
+            }
+            requestPool.shutdown();
+            httpForwarder.cache.clear();
+            if (httpForwarder.h2Pool != null) {
+                httpForwarder.h2Pool.close();
+            }
         }
     }
 
+    private ChannelInitializer<Channel> tunnelInitializer(int connectionIndex) {
+        return new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel ch) throws Exception {
+                // Add encryption/decryption handlers
+                ch.pipeline().addLast(codecGroup, "encrypt", new SymmetricEncryptionHandler());
+                ch.pipeline().addLast(codecGroup, "decrypt", config.createDecryptionHandler());
+                if (config.isBatchingEnabled()) {
+                    ch.pipeline().addLast(config.createFrameBatchingHandler());
+                }
+                if (config.isDedupEnabled()) {
+                    ch.pipeline().addLast(new ChunkDedupHandler(config.getDedupDirectory(), TunnelMessage::peekHeaderLength, TunnelMessage::peekStreamKey));
+                }
+                if (config.isSchedulingEnabled()) {
+                    ch.pipeline().addLast(config.createStreamSchedulingHandler(memoryBudget));
+                }
+
+                if (config.getIdleTimeoutSeconds() > 0) {
+                    ch.pipeline().addLast(new IdleStateHandler(config.getIdleTimeoutSeconds(), config.getIdleTimeoutSeconds(), 0, TimeUnit.SECONDS));
+                }
+                ch.pipeline().addLast(new TunnelControlHandler(TunnelClientApp.this, connectionIndex));
+            }
+        };
+    }
+
+    /**
+     * Streams the server opens on a QUIC connection, one per tunnel stream
+     */
+    private ChannelInitializer<QuicStreamChannel> dataStreamInitializer(int connectionIndex) {
+        return new ChannelInitializer<QuicStreamChannel>() {
+            @Override
+            protected void initChannel(QuicStreamChannel ch) {
+                ch.pipeline().addLast(codecGroup, "encrypt", new SymmetricEncryptionHandler());
+                ch.pipeline().addLast(codecGroup, "decrypt", config.createDecryptionHandler());
+                ch.pipeline().addLast(new TunnelStreamHandler(TunnelClientApp.this, connectionIndex));
+            }
+        };
+    }
+
+    /**
+     * Open one striped tunnel connection and keep it open: whenever it fails or drops it is
+     * reconnected with backoff under the same clientId, which the server uses to resume the client.
+     */
+    private void connect(Bootstrap bootstrap, int connectionIndex, CountDownLatch stopped) {
+        if (stopping) {
+            stopped.countDown();
+            return;
+        }
+        if (config.isQuicEnabled()) {
+            connectQuic(bootstrap, connectionIndex, stopped);
+            return;
+        }
+        bootstrap.clone()
+            .handler(tunnelInitializer(connectionIndex))
+            .connect(tunnelHost, tunnelPort)
+            .addListener((ChannelFuture future) -> {
+                if (future.isSuccess()) {
+                    System.out.println("[TunnelClient] [Connection " + connectionIndex + "] Connected to tunnel server at " + tunnelHost + ":" + tunnelPort);
+                    future.channel().closeFuture().addListener(closed ->
+                        reconnect(bootstrap, connectionIndex, stopped, "Connection lost"));
+                } else {
+                    reconnect(bootstrap, connectionIndex, stopped, "Connect failed: " + future.cause().getMessage());
+                }
+            });
+    }
+
+    /**
+     * Open a QUIC connection and its control stream, which carries the same messages as a TCP tunnel
+     * connection. Closing the control stream closes the connection, and a closed connection is reconnected.
+     */
+    private void connectQuic(Bootstrap bootstrap, int connectionIndex, CountDownLatch stopped) {
+        Bootstrap udpBootstrap;
+        try {
+            udpBootstrap = bootstrap.clone()
+                .handler(QuicTransport.clientCodec(config.getQuicTrustCertFile(), config.getIdleTimeoutSeconds()));
+        } catch (Exception e) {
+            reconnect(bootstrap, connectionIndex, stopped, "QUIC setup failed: " + e.getMessage());
+            return;
+        }
+        udpBootstrap.bind(0).addListener((ChannelFuture bound) -> {
+            if (bound.isSuccess()) {
+                openQuicConnection(bound.channel(), bootstrap, connectionIndex, stopped);
+            } else {
+                reconnect(bootstrap, connectionIndex, stopped, "QUIC socket failed: " + bound.cause().getMessage());
+            }
+        });
+    }
+
+    private void openQuicConnection(Channel udp, Bootstrap bootstrap, int connectionIndex, CountDownLatch stopped) {
+        int quicPort = config.getEffectiveQuicPort();
+        QuicChannel.newBootstrap(udp)
+            .handler(new ChannelInitializer<QuicChannel>() {
+                @Override
+                protected void initChannel(QuicChannel ch) {
+                    // Nothing to do on the connection itself; traffic runs on its streams
+                }
+            })
+            .streamHandler(dataStreamInitializer(connectionIndex))
+            .remoteAddress(new InetSocketAddress(tunnelHost, quicPort))
+            .connect()
+            .addListener((Future<QuicChannel> connected) -> {
+                if (!connected.isSuccess()) {
+                    udp.close();
+                    reconnect(bootstrap, connectionIndex, stopped, "Connect failed: " + connected.cause().getMessage());
+                    return;
+                }
+                QuicChannel quic = connected.getNow();
+                System.out.println("[TunnelClient] [Connection " + connectionIndex + "] Connected to tunnel server at " + tunnelHost + ":" + quicPort + " over QUIC");
+                quic.closeFuture().addListener(closed -> {
+                    udp.close();
+                    reconnect(bootstrap, connectionIndex, stopped, "Connection lost");
+                });
+                quic.createStream(QuicStreamType.BIDIRECTIONAL, tunnelInitializer(connectionIndex))
+                    .addListener((Future<QuicStreamChannel> opened) -> {
+                        if (opened.isSuccess()) {
+                            opened.getNow().closeFuture().addListener(closed -> quic.close());
+                        } else {
+                            quic.close();
+                        }
+                    });
+            });
+    }
+
+    private void reconnect(Bootstrap bootstrap, int connectionIndex, CountDownLatch stopped, String reason) {
+        if (stopping || !config.isReconnectEnabled()) {
+            System.out.println("[TunnelClient] [Connection " + connectionIndex + "] " + reason);
+            stopped.countDown();
+            return;
+        }
+        ReconnectBackoff backoff = backoffs.get(connectionIndex);
+        long delay = backoff.nextDelayMillis();
+        System.out.println("[TunnelClient] [Connection " + connectionIndex + "] " + reason + ", reconnecting in " + delay + "ms (attempt " + backoff.getAttempt() + ")");
+        try {
+            bootstrap.config().group().schedule(() -> connect(bootstrap, connectionIndex, stopped), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            stopped.countDown();
+        }
+    }
+
+
+    /**
+     * Port to request in ADDPROXY: the configured one, or the one the server allocated earlier
+     */
+    int requestedProxyPort() {
+        return proxyPort == 0 ? allocatedProxyPort : proxyPort;
+    }
+
+    void proxyPortAllocated(int port) {
+        allocatedProxyPort = port;
+    }
+
+    /**
+     * Called once the server has accepted a connection's ADDPROXY
+     */
+    void connectionAccepted(int connectionIndex, ChannelHandlerContext ctx) {
+        liveConnections.put(connectionIndex, ctx);
+        ReconnectBackoff backoff = backoffs.get(connectionIndex);
+        if (backoff != null) {
+            backoff.reset();
+        }
+        connectionAwaited(ctx);
+    }
+
+    // Hand a connection to everyone waiting for one; later waiters wait for the connection after it
+    private void connectionAwaited(ChannelHandlerContext ctx) {
+        CompletableFuture<ChannelHandlerContext> awaited;
+        synchronized (this) {
+            awaited = nextConnection;
+            nextConnection = new CompletableFuture<>();
+        }
+        awaited.complete(ctx);
+    }
+
+    void connectionLost(int connectionIndex, ChannelHandlerContext ctx) {
+        liveConnections.remove(connectionIndex, ctx);
+    }
+
+    /**
+     * Connection to send a response on: the one the request came in on if it is still open,
+     * otherwise any accepted connection. With none up, completes once one is re-established,
+     * or with null after the timeout or when the client stops. Nothing blocks while waiting.
+     */
+    CompletableFuture<ChannelHandlerContext> nextLiveConnection(ChannelHandlerContext preferred, long timeoutMillis) {
+        CompletableFuture<ChannelHandlerContext> next;
+        synchronized (this) {
+            // Taken before looking for a live one, so a connection accepted in between is not missed
+            next = nextConnection;
+        }
+        ChannelHandlerContext ctx = liveConnection(preferred);
+        if (ctx != null || stopping || timeoutMillis <= 0) {
+            return CompletableFuture.completedFuture(ctx);
+        }
+        // A dependent future of its own, so its timeout leaves other waiters alone
+        return next.thenApply(accepted -> accepted).completeOnTimeout(null, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The preferred connection if it is open, otherwise any accepted connection, or null if none is up
+     */
+    ChannelHandlerContext liveConnection(ChannelHandlerContext preferred) {
+        if (preferred.channel().isActive()) {
+            return preferred;
+        }
+        for (ChannelHandlerContext ctx : liveConnections.values()) {
+            if (ctx.channel().isActive()) {
+                return ctx;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Apply a reloaded configuration to the running client. Pool limits, chunk sizing, compression and
+     * log level change immediately; settings that need a restart are reported and left as they are.
+     */
+    public void reloadConfig(ClientConfig updated) {
+        try {
+            updated.validate();
+        } catch (IllegalArgumentException e) {
+            System.err.println("[TunnelClient] Ignoring reloaded configuration: " + e.getMessage());
+            return;
+        }
+        ConfigChanges changes = config.reloadFrom(updated);
+        requestPool.resize(config.getCorePoolSize(), config.getMaxPoolSize(),
+            config.getKeepAliveTimeSeconds(), config.getMaxConcurrentRequests());
+        config.applyGlobalSettings();
+        AdaptiveChunkSizer chunkSizer = config.createChunkSizer();
+        for (ChannelHandlerContext ctx : liveConnections.values()) {
+            AdaptiveChunkSizer.reconfigure(ctx.channel(), chunkSizer);
+        }
+        System.out.println("[TunnelClient] Configuration reloaded: " + changes);
+    }
 
     public static void main(String[] args) throws InterruptedException {
         ClientConfig config = new ClientConfig();
@@ -137,8 +460,22 @@ public class TunnelClientApp {
             System.exit(1);
         }
 
+        try {
+            config.validate();
+        } catch (IllegalArgumentException e) {
+            System.err.println("[TunnelClient] " + e.getMessage());
+            System.exit(1);
+        }
+
         System.out.println("[TunnelClient] " + config);
-        new TunnelClientApp(config.getTunnelHost(), config.getTunnelPort(), config.getProxyPort(),
-                           config.getTargetHost(), config.getTargetPort(), config.getSharedKey(), config.getGroupId()).start();
+        TunnelClientApp app = new TunnelClientApp(config);
+        if (args.length > 0 && args[0].endsWith(".toml")) {
+            try {
+                new ConfigWatcher<>(args[0], ClientConfig::loadFromFile, app::reloadConfig, "[TunnelClient]").start();
+            } catch (IOException e) {
+                System.err.println("[TunnelClient] Configuration changes will not be picked up: " + e.getMessage());
+            }
+        }
+        app.start();
     }
 }
@@ -1,42 +1,64 @@
 package com.acuity.client;
 
+import com.acuity.common.AdaptiveChunkSizer;
+import com.acuity.common.ChunkDedupHandler;
+import com.acuity.common.MemoryBudget;
+import com.acuity.config.ClientConfig;
+import com.acuity.common.StreamSchedulingHandler;
+import com.acuity.common.StreamSchedulingHandler.Priority;
+import com.acuity.common.CompressionDictionary;
+import com.acuity.common.SymmetricDecryptionHandler;
+import com.acuity.common.SymmetricEncryptionHandler;
 import com.acuity.server.TunnelAction;
 import com.acuity.server.TunnelMessage;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.timeout.IdleState;
+import io.netty.handler.timeout.IdleStateEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
 
 public class TunnelControlHandler extends ChannelInboundHandlerAdapter {
+    private static final Logger logger = LoggerFactory.getLogger(TunnelControlHandler.class);
+
     private final TunnelClientApp clientApp;
 
-    // Streaming configuration
-    private static final int CHUNK_SIZE = 8192; // 8KB chunks for streaming
+    // Position of this connection among the client's striped tunnel connections
+    private final int connectionIndex;
 
-    // Thread pool for handling TCP requests asynchronously
-    private static final ExecutorService executor = new ThreadPoolExecutor(
-        10,                                         // core pool size
-        50,                                         // maximum pool size
-        60L, TimeUnit.SECONDS,                      // keep-alive time
-        new LinkedBlockingQueue<>(200),             // bounded task queue
-        new ThreadPoolExecutor.CallerRunsPolicy()   // rejection policy
-    );
+    // Chunk sizing settings; each tunnel connection gets its own sizer built from this template
+    private final AdaptiveChunkSizer chunkSizerTemplate;
+
+    // Set when a heartbeat PING is outstanding; a second reader-idle period without traffic closes the connection
+    private boolean awaitingPong;
 
     // Channel context for sending data to tunnel server
     private static volatile ChannelHandlerContext tunnelServerCtx;
 
-    // Streaming sessions: userChannelId -> StreamingSession for receiving data
-    private static final Map<String, StreamingSession> streamingSessions = new HashMap<>();
+    // Streaming sessions on this connection: userChannelId:streamId -> StreamingSession for receiving data.
+    // The server pins each stream to one connection, so only this channel's event loop touches the map.
+    private final Map<String, StreamingSession> streamingSessions = new HashMap<>();
+    // Streams refused for lack of memory; their remaining frames are dropped quietly
+    private final Set<String> refusedStreams = new HashSet<>();
 
     public TunnelControlHandler(TunnelClientApp clientApp) {
+        this(clientApp, 0);
+    }
+
+    public TunnelControlHandler(TunnelClientApp clientApp, int connectionIndex) {
         this.clientApp = clientApp;
+        this.connectionIndex = connectionIndex;
+        this.chunkSizerTemplate = clientApp.config.createChunkSizer();
     }
 
     @Override
@@ -45,111 +67,256 @@ public class TunnelControlHandler extends ChannelInboundHandlerAdapter {
         tunnelServerCtx = ctx;
 
         String groupId = clientApp.groupId != null && !clientApp.groupId.isEmpty() ? clientApp.groupId : "default";
-        String addProxyPayload = clientApp.proxyPort + ":" + groupId + ":" + clientApp.targetPort;
+        String addProxyPayload = clientApp.requestedProxyPort() + ":" + groupId + ":" + clientApp.targetPort + ":" + clientApp.clientId + ":" +
+            clientApp.config.getProtocol().toLowerCase() +
+            (clientApp.config.isPlain() ? ":" + ClientConfig.SECURITY_PLAIN : "");
+        if (!clientApp.config.getHostnames().isEmpty()) {
+            // Names the server routes to this client's group on a port shared by several services
+            addProxyPayload += (clientApp.config.isPlain() ? "" : ":" + ClientConfig.SECURITY_ENCRYPTED) + ":" +
+                String.join(",", clientApp.config.getHostnames()).toLowerCase();
+        }
         String action = TunnelAction.ADDPROXY.toString(addProxyPayload);
+        if (clientApp.config.isPlain()) {
+            // The server may answer in plain frames as soon as it accepts
+            SymmetricDecryptionHandler.acceptPlain(ctx.channel());
+        }
         TunnelMessage msg = new TunnelMessage(null, action, new byte[0]);
-        ctx.writeAndFlush(Unpooled.copiedBuffer(msg.toBytes()));
-        System.out.println("[TunnelClient] Sent control message: " + action);
+        ctx.writeAndFlush(msg.toByteBuf(ctx.alloc()));
+        System.out.println("[TunnelClient] [Connection " + connectionIndex + "] Sent control message: " + action);
+        if (ChunkDedupHandler.isInstalled(ctx.channel())) {
+            // The server answers with the store size both sides use, or not at all if it does not deduplicate
+            ctx.writeAndFlush(new TunnelMessage(null, TunnelAction.DEDUP.toString(String.valueOf(clientApp.config.getDedupStoreBytes())),
+                new byte[0]).toByteBuf(ctx.alloc()));
+        }
     }
 
     @Override
-    public void channelRead(ChannelHandlerContext ctx, Object msg) {
-        ByteBuf byteBuf = (ByteBuf) msg;
-        try {
-            byte[] bytes = new byte[byteBuf.readableBytes()];
-            byteBuf.readBytes(bytes);
-            TunnelMessage tunnelMessage = TunnelMessage.fromBytes(bytes);
-
-            System.out.println("[TunnelClient] Control channel received: " + tunnelMessage);
+    public void channelInactive(ChannelHandlerContext ctx) {
+        clientApp.connectionLost(connectionIndex, ctx);
+        for (StreamingSession session : streamingSessions.values()) {
+            session.release();
+        }
+        streamingSessions.clear();
+        refusedStreams.clear();
+        System.out.println("[TunnelClient] [Connection " + connectionIndex + "] Tunnel connection closed");
+    }
 
-            TunnelAction action = tunnelMessage.getAction();
-            if (action == null) {
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof IdleStateEvent) {
+            IdleStateEvent event = (IdleStateEvent) evt;
+            if (event.state() == IdleState.READER_IDLE && awaitingPong) {
+                // The server missed a heartbeat; drop the connection so it gets re-established
+                System.out.println("[TunnelClient] [Connection " + connectionIndex + "] No heartbeat from tunnel server, closing connection");
+                ctx.close();
                 return;
             }
+            awaitingPong = true;
+            ctx.writeAndFlush(new TunnelMessage(null, TunnelAction.PING, new byte[0]).toByteBuf(ctx.alloc()));
+        }
+        super.userEventTriggered(ctx, evt);
+    }
 
-            String userChannelId = tunnelMessage.getUserChannelId();
-
-            // Handle streaming actions
-            if (action == TunnelAction.STREAM_START) {
-                handleStreamStart(userChannelId, tunnelMessage);
-            } else if (action == TunnelAction.STREAM_DATA) {
-                handleStreamData(userChannelId, tunnelMessage);
-            } else if (action == TunnelAction.STREAM_END) {
-                handleStreamEnd(userChannelId, tunnelMessage, ctx);
-            } else if (action == TunnelAction.FORWARD) {
-                handleForwardAction(userChannelId, tunnelMessage, ctx);
-            } else if (action == TunnelAction.RESPONSE) {
-                System.out.println("[TunnelClient] Proxy " + clientApp.proxyPort + " has been opened.");
-            } else if (action == TunnelAction.ERROR) {
-                String errorMsg = new String(tunnelMessage.getData(), StandardCharsets.UTF_8);
-                System.err.println("[TunnelClient] Tunnel server error: " + errorMsg);
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        ByteBuf byteBuf = (ByteBuf) msg;
+        awaitingPong = false;
+        try {
+            TunnelMessage tunnelMessage = TunnelMessage.fromByteBuf(byteBuf);
+            try {
+                handleTunnelMessage(ctx, tunnelMessage);
+            } finally {
+                tunnelMessage.release();
             }
         } finally {
             byteBuf.release();
         }
     }
 
+    private void handleTunnelMessage(ChannelHandlerContext ctx, TunnelMessage tunnelMessage) {
+        // Every frame passes here, so it is only logged at debug level
+        logger.debug("[TunnelClient] Control channel received: {}", tunnelMessage);
+
+        TunnelAction action = tunnelMessage.getAction();
+        if (action == null) {
+            return;
+        }
+
+        String userChannelId = tunnelMessage.getUserChannelId();
+        String streamKey = tunnelMessage.getStreamKey();
+
+        // Handle streaming actions
+        if (action == TunnelAction.STREAM_START) {
+            handleStreamStart(streamKey, tunnelMessage, ctx);
+        } else if (action == TunnelAction.STREAM_DATA) {
+            handleStreamData(streamKey, tunnelMessage, ctx);
+        } else if (action == TunnelAction.STREAM_END) {
+            handleStreamEnd(streamKey, tunnelMessage, ctx);
+        } else if (action == TunnelAction.FORWARD) {
+            handleForwardAction(userChannelId, tunnelMessage, ctx);
+        } else if (action == TunnelAction.DATAGRAM) {
+            // Whole datagram in one frame; no reassembly and no request pool
+            clientApp.udpForwarder.forward(userChannelId, tunnelMessage.getData(), ctx);
+        } else if (action == TunnelAction.RESPONSE) {
+            String rawAction = tunnelMessage.getRawAction();
+            if (rawAction.indexOf(':') > 0) {
+                // RESPONSE:port names the port the server allocated for us
+                try {
+                    clientApp.proxyPortAllocated(Integer.parseInt(rawAction.substring(rawAction.indexOf(':') + 1).trim()));
+                } catch (NumberFormatException e) {
+                    // Without the port we cannot tell what we were accepted for; drop the registration like a refusal
+                    System.err.println("[TunnelClient] [Connection " + connectionIndex + "] Invalid RESPONSE action, not accepted: " + rawAction);
+                    ctx.close();
+                    return;
+                }
+            }
+            if (clientApp.config.isPlain()) {
+                // Accepted, so the server's group allows plain frames
+                SymmetricEncryptionHandler.sendPlain(ctx.channel());
+            }
+            clientApp.connectionAccepted(connectionIndex, ctx);
+            System.out.println("[TunnelClient] Proxy " + clientApp.requestedProxyPort() + " has been opened.");
+        } else if (action == TunnelAction.EXIT) {
+            // The user connection closed on the server
+            clientApp.httpForwarder.close(userChannelId);
+        } else if (action == TunnelAction.PING) {
+            ctx.writeAndFlush(new TunnelMessage(userChannelId, TunnelAction.PONG, new byte[0]).toByteBuf(ctx.alloc()));
+        } else if (action == TunnelAction.DICTIONARY) {
+            installDictionary(ctx, tunnelMessage);
+        } else if (action == TunnelAction.DEDUP) {
+            startDedup(ctx, tunnelMessage);
+        } else if (action == TunnelAction.ERROR) {
+            String errorMsg = new String(tunnelMessage.getData(), StandardCharsets.UTF_8);
+            System.err.println("[TunnelClient] Tunnel server error: " + errorMsg);
+        }
+    }
+
+    /**
+     * Install the compression dictionary the server trained for our group. The server already decodes
+     * frames compressed with it, so we use it right away; our echo tells the server it may do the same.
+     */
+    private void installDictionary(ChannelHandlerContext ctx, TunnelMessage tunnelMessage) {
+        String rawAction = tunnelMessage.getRawAction();
+        String version = rawAction.substring(rawAction.indexOf(':') + 1);
+        CompressionDictionary dictionary = new CompressionDictionary(Integer.parseInt(version), tunnelMessage.getData());
+        CompressionDictionary.install(ctx.channel(), dictionary);
+        CompressionDictionary.use(ctx.channel(), dictionary);
+        ctx.writeAndFlush(new TunnelMessage(null, TunnelAction.DICTIONARY.toString(version), new byte[0]).toByteBuf(ctx.alloc()));
+        System.out.println("[TunnelClient] Installed compression dictionary v" + version + " (" + dictionary.getBytes().length + " bytes)");
+    }
+
+    /**
+     * The server accepted our dedup offer and encodes frames from now on; its frames after this one may
+     * refer to chunks, so the stores must be open before the next frame is read
+     */
+    private void startDedup(ChannelHandlerContext ctx, TunnelMessage tunnelMessage) {
+        String rawAction = tunnelMessage.getRawAction();
+        int storeBytes = Integer.parseInt(rawAction.substring(rawAction.indexOf(':') + 1));
+        if (!ChunkDedupHandler.start(ctx.channel(), storeBytes)) {
+            System.err.println("[TunnelClient] [Connection " + connectionIndex + "] Cannot open dedup chunk stores, closing connection");
+            ctx.close();
+            return;
+        }
+        System.out.println("[TunnelClient] [Connection " + connectionIndex + "] Deduplicating frames with " + storeBytes + " byte chunk stores");
+    }
+
     /**
      * Handle STREAM_START message - initialize streaming session
      */
-    private void handleStreamStart(String userChannelId, TunnelMessage tunnelMessage) {
+    private void handleStreamStart(String streamKey, TunnelMessage tunnelMessage, ChannelHandlerContext ctx) {
         byte[] data = tunnelMessage.getData();
-        long totalSize = Long.parseLong(new String(data, StandardCharsets.UTF_8));
+        long totalSize;
+        try {
+            totalSize = Long.parseLong(new String(data, StandardCharsets.UTF_8));
+        } catch (NumberFormatException e) {
+            totalSize = -1;
+        }
 
-        System.out.println("[TunnelClient] Stream START: userChannel=" + userChannelId + ", totalSize=" + totalSize + " bytes");
+        System.out.println("[TunnelClient] Stream START: stream=" + streamKey + ", totalSize=" + totalSize + " bytes");
 
-        // Create streaming session
-        StreamingSession session = new StreamingSession(userChannelId, totalSize);
-        streamingSessions.put(userChannelId, session);
+        // The announced size is reserved against the budget before the buffer is allocated
+        MemoryBudget.Lease lease = clientApp.memoryBudget.open(clientApp.config.getMemoryLimits(), clientApp.groupId, tunnelMessage.getUserChannelId());
+        if (totalSize < 0 || totalSize > Integer.MAX_VALUE - 8 || !lease.reserve(totalSize)) {
+            refuseStream(streamKey, tunnelMessage, ctx, "announced " + totalSize + " bytes");
+            return;
+        }
+        StreamingSession previous = streamingSessions.put(streamKey, new StreamingSession(streamKey, totalSize, lease));
+        if (previous != null) {
+            previous.release();
+        }
+    }
+
+    /**
+     * Drop a request that does not fit in the memory budget; the server disconnects its user
+     */
+    private void refuseStream(String streamKey, TunnelMessage tunnelMessage, ChannelHandlerContext ctx, String reason) {
+        StreamingSession session = streamingSessions.remove(streamKey);
+        if (session != null) {
+            session.release();
+        }
+        refusedStreams.add(streamKey);
+        System.err.println("[TunnelClient] Stream " + streamKey + " refused, over the memory budget (" + reason + "): " + clientApp.memoryBudget);
+        sendError(tunnelMessage.getUserChannelId(), tunnelMessage.getStreamId(), ctx, "Stream over the proxy client's memory budget (" + reason + ")");
+    }
+
+    /**
+     * Answer a stream with an ERROR frame, after which the server disconnects its user
+     */
+    private static void sendError(String userChannelId, String streamId, ChannelHandlerContext ctx, String message) {
+        ctx.writeAndFlush(new TunnelMessage(userChannelId, streamId, TunnelAction.ERROR,
+            message.getBytes(StandardCharsets.UTF_8)).toByteBuf(ctx.alloc()));
     }
 
     /**
      * Handle STREAM_DATA message - accumulate chunk
      */
-    private void handleStreamData(String userChannelId, TunnelMessage tunnelMessage) {
-        byte[] chunk = tunnelMessage.getData();
-        StreamingSession session = streamingSessions.get(userChannelId);
+    private void handleStreamData(String streamKey, TunnelMessage tunnelMessage, ChannelHandlerContext ctx) {
+        // Copied once, from the frame straight into the stream's buffer
+        ByteBuf chunk = tunnelMessage.getPayload();
+        StreamingSession session = streamingSessions.get(streamKey);
 
         if (session == null) {
-            System.err.println("[TunnelClient] Received STREAM_DATA for unknown stream: " + userChannelId);
+            if (!refusedStreams.contains(streamKey)) {
+                System.err.println("[TunnelClient] Received STREAM_DATA for unknown stream: " + streamKey);
+            }
             return;
         }
 
-        session.addChunk(chunk);
-        System.out.println("[TunnelClient] Stream DATA: userChannel=" + userChannelId +
-            ", chunkSize=" + chunk.length + " bytes, accumulated=" + session.getAccumulatedSize() + "/" + session.getTotalSize());
+        if (!session.addChunk(chunk)) {
+            refuseStream(streamKey, tunnelMessage, ctx, "more data than announced");
+            return;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("[TunnelClient] Stream DATA: stream={}, chunkSize={} bytes, accumulated={}/{}",
+                streamKey, chunk.readableBytes(), session.getAccumulatedSize(), session.getTotalSize());
+        }
     }
 
     /**
      * Handle STREAM_END message - complete stream and forward to target
      */
-    private void handleStreamEnd(String userChannelId, TunnelMessage tunnelMessage, ChannelHandlerContext ctx) {
-        StreamingSession session = streamingSessions.remove(userChannelId);
+    private void handleStreamEnd(String streamKey, TunnelMessage tunnelMessage, ChannelHandlerContext ctx) {
+        StreamingSession session = streamingSessions.remove(streamKey);
 
         if (session == null) {
-            System.err.println("[TunnelClient] Received STREAM_END for unknown stream: " + userChannelId);
+            if (!refusedStreams.remove(streamKey)) {
+                System.err.println("[TunnelClient] Received STREAM_END for unknown stream: " + streamKey);
+            }
             return;
         }
 
         byte[] completeData = session.getCompleteData();
-        System.out.println("[TunnelClient] Stream END: userChannel=" + userChannelId + ", totalData=" + completeData.length + " bytes");
+        // The request stays on the memory budget until its response is sent or it is refused
+        String userChannelId = tunnelMessage.getUserChannelId();
+        String streamId = tunnelMessage.getStreamId();
+        System.out.println("[TunnelClient] Stream END: stream=" + streamKey + ", totalData=" + completeData.length + " bytes");
+        if (clientApp.config.isHttp()) {
+            clientApp.httpForwarder.forward(userChannelId, streamId, completeData, ctx, session::release);
+            return;
+        }
 
-        // Execute TCP request asynchronously with accumulated data
-        executor.submit(() -> {
-            try {
-                byte[] responseBytes = TcpRequestExecutor.execute(completeData, clientApp.targetHost, clientApp.targetPort);
-
-                // Stream response if it's large, otherwise send as single FORWARD
-                if (responseBytes.length > CHUNK_SIZE) {
-                    streamDataToServer(userChannelId, responseBytes, ctx);
-                } else {
-                    TunnelMessage responseMsg = new TunnelMessage(userChannelId, TunnelAction.FORWARD, responseBytes);
-                    ctx.writeAndFlush(Unpooled.copiedBuffer(responseMsg.toBytes()));
-                }
-            } catch (Exception e) {
-                System.err.println("[TunnelClient] Error executing TCP request: " + e.getMessage());
-            }
-        });
+        // Execute TCP request off the event loop with accumulated data
+        executeTcpRequest(userChannelId, streamId, completeData, ctx, session::release);
     }
 
     /**
@@ -157,71 +324,129 @@ public class TunnelControlHandler extends ChannelInboundHandlerAdapter {
      */
     private void handleForwardAction(String userChannelId, TunnelMessage tunnelMessage, ChannelHandlerContext ctx) {
         byte[] requestBytes = tunnelMessage.getData();
+        String streamId = tunnelMessage.getStreamId();
+        if (clientApp.config.isHttp()) {
+            // Framed by HTTP and sent on a kept-alive connection instead of one connection per request
+            clientApp.httpForwarder.forward(userChannelId, streamId, requestBytes, ctx, () -> { });
+            return;
+        }
+
+        // Execute TCP request off the event loop using the client's request pool
+        executeTcpRequest(userChannelId, streamId, requestBytes, ctx, () -> { });
+    }
 
-        // Execute TCP request asynchronously using thread pool
-        executor.submit(() -> {
+    /**
+     * Run a TCP request on the request pool and send the response back; identical requests already
+     * running share their response instead. A request the saturated pool refuses is answered with an ERROR.
+     *
+     * @param release gives the request's bytes back to the memory budget once the response is sent or the request refused
+     */
+    private void executeTcpRequest(String userChannelId, String streamId, byte[] requestBytes, ChannelHandlerContext ctx, Runnable release) {
+        clientApp.coalescer.execute(requestBytes, ctx.executor(), responseBytes -> {
             try {
-                byte[] responseBytes = TcpRequestExecutor.execute(requestBytes, clientApp.targetHost, clientApp.targetPort);
-
-                // Stream response if it's large, otherwise send as single FORWARD
-                if (responseBytes.length > CHUNK_SIZE) {
-                    streamDataToServer(userChannelId, responseBytes, ctx);
-                } else {
-                    TunnelMessage responseMsg = new TunnelMessage(userChannelId, TunnelAction.FORWARD, responseBytes);
-                    ctx.writeAndFlush(Unpooled.copiedBuffer(responseMsg.toBytes()));
-                }
+                sendResponse(userChannelId, streamId, responseBytes, ctx, release);
             } catch (Exception e) {
+                release.run();
                 System.err.println("[TunnelClient] Error executing TCP request: " + e.getMessage());
             }
+        }, () -> {
+            release.run();
+            System.err.println("[TunnelClient] Request pool saturated, refusing stream " + userChannelId + ":" + streamId);
+            sendError(userChannelId, streamId, ctx, "Proxy client request pool saturated");
         });
     }
 
+    /**
+     * Send a response on the stream it answers. If this connection dropped while the request ran,
+     * the response goes out on another connection of this client once one is up; the server routes
+     * it to the user by channel id, so in-flight streams survive a reconnect. The request pool thread
+     * does not wait for that; the send runs when the connection is accepted.
+     */
+    private void sendResponse(String userChannelId, String streamId, byte[] responseBytes, ChannelHandlerContext ctx, Runnable release) {
+        // A finished response waits out the [resume] window for a dropped connection, unless it will never come back
+        long graceMillis = clientApp.config.isReconnectEnabled() ? clientApp.config.getResumeGraceMillis() : 0;
+        clientApp.nextLiveConnection(ctx, graceMillis).thenAccept(target -> {
+            if (target == null) {
+                System.err.println("[TunnelClient] No tunnel connection available, dropping response for stream " + userChannelId + ":" + streamId);
+                return;
+            }
+            // Stream response if it's large, otherwise send as single FORWARD, on the stream it answers
+            streamDataToServer(userChannelId, streamId, responseBytes, target, AdaptiveChunkSizer.forChannel(target.channel(), chunkSizerTemplate));
+        }).exceptionally(e -> {
+            System.err.println("[TunnelClient] Error sending response for stream " + userChannelId + ":" + streamId + ": " + e.getMessage());
+            return null;
+        }).whenComplete((ignored, e) -> release.run());
+    }
+
     /**
      * Stream large data to tunnel server in chunks
-     * Sends STREAM_START, followed by STREAM_DATA chunks, then STREAM_END
+     * Sends STREAM_START, followed by STREAM_DATA chunks, then STREAM_END.
+     * The response is wrapped once and each chunk is a retained slice of it, so no payload bytes are copied.
      */
     public static void streamDataToServer(String userChannelId, byte[] data, ChannelHandlerContext ctx) {
-        if (data.length <= CHUNK_SIZE) {
-            // Small data: send as single FORWARD message
-            System.out.println("[TunnelClient] Sending small message (" + data.length + " bytes) to tunnel server");
-            TunnelMessage tunnelMessage = new TunnelMessage(userChannelId, TunnelAction.FORWARD, data);
-            ctx.writeAndFlush(Unpooled.copiedBuffer(tunnelMessage.toBytes()));
+        streamDataToServer(userChannelId, null, data, ctx, new AdaptiveChunkSizer(AdaptiveChunkSizer.DEFAULT_CHUNK_SIZE));
+    }
+
+    /**
+     * Stream data to tunnel server as the given stream, using the chunk sizer to pick each chunk's size
+     */
+    public static void streamDataToServer(String userChannelId, String streamId, byte[] data, ChannelHandlerContext ctx, AdaptiveChunkSizer chunkSizer) {
+        ByteBufAllocator alloc = ctx.alloc();
+        int chunkSize = chunkSizer.nextChunkSize(ctx.channel());
+        String streamKey = userChannelId + ":" + streamId;
+
+        if (data.length <= chunkSize) {
+            // Small data: send as single FORWARD message, ahead of the chunks of bulk streams
+            logger.debug("[TunnelClient] Sending small message ({} bytes) to tunnel server", data.length);
+            TunnelMessage tunnelMessage = new TunnelMessage(userChannelId, streamId, TunnelAction.FORWARD, data);
+            ctx.writeAndFlush(StreamSchedulingHandler.frame(ctx.channel(), streamKey, Priority.INTERACTIVE, tunnelMessage.toByteBuf(alloc)));
             return;
         }
 
         // Large data: stream in chunks
-        System.out.println("[TunnelClient] Streaming large message (" + data.length + " bytes) to tunnel server in " + CHUNK_SIZE + " byte chunks");
+        System.out.println("[TunnelClient] Streaming large message (" + data.length + " bytes) to tunnel server in " + chunkSize + " byte chunks");
 
         // Send STREAM_START message
-        TunnelMessage startMessage = new TunnelMessage(userChannelId, TunnelAction.STREAM_START,
-            String.valueOf(data.length).getBytes(StandardCharsets.UTF_8));
-        ctx.write(Unpooled.copiedBuffer(startMessage.toBytes()));
+        ctx.write(StreamSchedulingHandler.frame(ctx.channel(), streamKey, Priority.BULK,
+            TunnelMessage.encode(alloc, userChannelId, streamId, TunnelAction.STREAM_START.toString(),
+                ByteBufUtil.writeAscii(alloc, String.valueOf(data.length)))));
 
         // Send data in chunks
-        int offset = 0;
-        int chunkNumber = 1;
-        while (offset < data.length) {
-            int chunkLength = Math.min(CHUNK_SIZE, data.length - offset);
-            byte[] chunk = new byte[chunkLength];
-            System.arraycopy(data, offset, chunk, 0, chunkLength);
+        ByteBuf source = Unpooled.wrappedBuffer(data);
+        chunkSizer.streamStarted();
+        boolean finishTracked = false;
+        try {
+            int offset = 0;
+            int chunkNumber = 1;
+            while (offset < data.length) {
+                int chunkLength = Math.min(chunkSize, data.length - offset);
+                ByteBuf chunk = source.retainedSlice(offset, chunkLength);
+                chunkSizer.track(ctx.write(StreamSchedulingHandler.frame(ctx.channel(), streamKey, Priority.BULK,
+                    TunnelMessage.encode(alloc, userChannelId, streamId, TunnelAction.STREAM_DATA.toString(), chunk))), chunkLength);
+
+                if (chunkNumber % 10 == 0 && logger.isDebugEnabled()) {
+                    logger.debug("[TunnelClient] Sent chunk {} ({} bytes, offset: {})", chunkNumber, chunkLength, offset);
+                }
 
-            TunnelMessage chunkMessage = new TunnelMessage(userChannelId, TunnelAction.STREAM_DATA, chunk);
-            ctx.write(Unpooled.copiedBuffer(chunkMessage.toBytes()));
+                offset += chunkLength;
+                chunkNumber++;
+                chunkSize = chunkSizer.nextChunkSize(ctx.channel());
+            }
 
-            System.out.println("[TunnelClient] Sent chunk " + chunkNumber +
-                " (" + chunkLength + " bytes, offset: " + offset + ")");
+            // Send STREAM_END message
+            chunkSizer.finishWhenWritten(ctx.write(StreamSchedulingHandler.frame(ctx.channel(), streamKey, Priority.BULK,
+                TunnelMessage.encode(alloc, userChannelId, streamId, TunnelAction.STREAM_END.toString(), Unpooled.EMPTY_BUFFER))));
+            finishTracked = true;
+            ctx.flush();
 
-            offset += chunkLength;
-            chunkNumber++;
+            System.out.println("[TunnelClient] Stream completed: " +
+                (chunkNumber - 1) + " chunks sent");
+        } finally {
+            source.release();
+            if (!finishTracked) {
+                chunkSizer.streamFinished();
+            }
         }
-
-        // Send STREAM_END message
-        TunnelMessage endMessage = new TunnelMessage(userChannelId, TunnelAction.STREAM_END, new byte[0]);
-        ctx.write(Unpooled.copiedBuffer(endMessage.toBytes()));
-        ctx.flush();
-
-        System.out.println("[TunnelClient] Stream completed: " +
-            (chunkNumber - 1) + " chunks sent");
     }
 
     /**
@@ -237,44 +462,55 @@ public class TunnelControlHandler extends ChannelInboundHandlerAdapter {
         ctx.close();
     }
 
-    /**
-     * Shutdown the thread pool gracefully
-     */
-    public static void shutdown() {
-        executor.shutdown();
-        try {
-            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
-                executor.shutdownNow();
-            }
-        } catch (InterruptedException e) {
-            executor.shutdownNow();
-            Thread.currentThread().interrupt();
-        }
-    }
-
     /**
      * Helper class to accumulate streaming data chunks
      */
     private static class StreamingSession {
-        private final String userChannelId;
+        private final String streamKey;
         private final long totalSize;
         private byte[] buffer;
         private int accumulatedSize;
+        // Covers the buffer
+        private final MemoryBudget.Lease lease;
 
-        public StreamingSession(String userChannelId, long totalSize) {
-            this.userChannelId = userChannelId;
+        public StreamingSession(String streamKey, long totalSize, MemoryBudget.Lease lease) {
+            this.streamKey = streamKey;
             this.totalSize = totalSize;
+            this.lease = lease;
             this.buffer = new byte[(int) totalSize];
             this.accumulatedSize = 0;
         }
 
-        public void addChunk(byte[] chunk) {
-            System.arraycopy(chunk, 0, buffer, accumulatedSize, chunk.length);
-            accumulatedSize += chunk.length;
+        /**
+         * Append a chunk; false if it runs past the announced size and the budget cannot cover the extra bytes
+         */
+        public boolean addChunk(ByteBuf chunk) {
+            int length = chunk.readableBytes();
+            long needed = (long) accumulatedSize + length;
+            if (needed > buffer.length) {
+                if (needed > Integer.MAX_VALUE - 8 || !lease.reserve(needed - buffer.length)) {
+                    return false;
+                }
+                byte[] grown = new byte[(int) needed];
+                System.arraycopy(buffer, 0, grown, 0, accumulatedSize);
+                buffer = grown;
+            }
+            chunk.getBytes(chunk.readerIndex(), buffer, accumulatedSize, length);
+            accumulatedSize += length;
+            return true;
         }
 
         public byte[] getCompleteData() {
-            return buffer;
+            if (accumulatedSize == buffer.length) {
+                return buffer;
+            }
+            byte[] data = new byte[accumulatedSize];
+            System.arraycopy(buffer, 0, data, 0, accumulatedSize);
+            return data;
+        }
+
+        public void release() {
+            lease.close();
         }
 
         public int getAccumulatedSize() {
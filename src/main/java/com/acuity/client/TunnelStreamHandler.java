@@ -0,0 +1,35 @@
+package com.acuity.client;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.timeout.IdleStateEvent;
+
+/**
+ * Handler for a QUIC stream the server opened for one tunnel stream. Requests are served as on the
+ * control stream and the response goes back on this stream; the server closes it once the response
+ * is complete, so opening and closing it does not register or drop the tunnel connection.
+ */
+public class TunnelStreamHandler extends TunnelControlHandler {
+    public TunnelStreamHandler(TunnelClientApp clientApp, int connectionIndex) {
+        super(clientApp, connectionIndex);
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        // The control stream has already registered the proxy
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        // Only this stream is gone; the connection stays up
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof IdleStateEvent) {
+            // Heartbeats run on the control stream; a quiet stream is simply closed
+            ctx.close();
+            return;
+        }
+        ctx.fireUserEventTriggered(evt);
+    }
+}
@@ -0,0 +1,128 @@
+package com.acuity.client;
+
+import com.acuity.common.StreamSchedulingHandler;
+import com.acuity.common.StreamSchedulingHandler.Priority;
+import com.acuity.server.TunnelAction;
+import com.acuity.server.TunnelMessage;
+import com.acuity.server.UdpProxyHandler;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Relays the datagrams of UDP proxy sessions to the UDP target. Each session gets its own connected
+ * datagram socket, so replies from the target can be matched back to it; a socket is closed once its
+ * session has been idle for udp.sessionIdleSeconds.
+ */
+class UdpTargetForwarder {
+    private final TunnelClientApp clientApp;
+
+    // Sessions with an open target socket: sessionId -> session
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    UdpTargetForwarder(TunnelClientApp clientApp) {
+        this.clientApp = clientApp;
+    }
+
+    /**
+     * Send one datagram of a session to the target, opening the session's socket on first use
+     */
+    void forward(String sessionId, byte[] data, ChannelHandlerContext tunnelCtx) {
+        Session session = sessions.computeIfAbsent(sessionId, id -> open(id, tunnelCtx));
+        // Replies go back on the connection that carried the latest datagram
+        session.tunnelCtx = tunnelCtx;
+        ByteBuf payload = Unpooled.wrappedBuffer(data);
+        session.socket.addListener((ChannelFuture future) -> {
+            if (future.isSuccess()) {
+                future.channel().writeAndFlush(payload);
+            } else {
+                payload.release();
+            }
+        });
+    }
+
+    private Session open(String sessionId, ChannelHandlerContext tunnelCtx) {
+        Session session = new Session(sessionId, tunnelCtx);
+        session.socket = new Bootstrap()
+            .group(tunnelCtx.channel().eventLoop())
+            .channel(NioDatagramChannel.class)
+            .option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(UdpProxyHandler.MAX_DATAGRAM_BYTES))
+            .handler(new ChannelInitializer<DatagramChannel>() {
+                @Override
+                protected void initChannel(DatagramChannel ch) {
+                    ch.pipeline().addLast(new IdleStateHandler(0, 0, clientApp.config.getUdpSessionIdleSeconds(), TimeUnit.SECONDS));
+                    ch.pipeline().addLast(new TargetReplyHandler(session));
+                }
+            })
+            .connect(clientApp.targetHost, clientApp.targetPort);
+        session.socket.channel().closeFuture().addListener(closed -> {
+            sessions.remove(sessionId, session);
+            System.out.println("[TunnelClient] UDP session " + sessionId + " closed");
+        });
+        System.out.println("[TunnelClient] UDP session " + sessionId + " opened to " + clientApp.targetHost + ":" + clientApp.targetPort);
+        return session;
+    }
+
+    private static final class Session {
+        final String sessionId;
+        volatile ChannelHandlerContext tunnelCtx;
+        ChannelFuture socket;
+
+        Session(String sessionId, ChannelHandlerContext tunnelCtx) {
+            this.sessionId = sessionId;
+            this.tunnelCtx = tunnelCtx;
+        }
+    }
+
+    /**
+     * Sends the target's replies back through the tunnel as DATAGRAM frames of the session
+     */
+    private final class TargetReplyHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+        private final Session session;
+
+        TargetReplyHandler(Session session) {
+            this.session = session;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
+            ChannelHandlerContext tunnelCtx = clientApp.liveConnection(session.tunnelCtx);
+            if (tunnelCtx == null) {
+                System.err.println("[TunnelClient] No tunnel connection available, dropping datagram for UDP session " + session.sessionId);
+                return;
+            }
+            tunnelCtx.writeAndFlush(StreamSchedulingHandler.frame(tunnelCtx.channel(), session.sessionId + ":0", Priority.INTERACTIVE,
+                TunnelMessage.encode(tunnelCtx.alloc(), session.sessionId, "0", TunnelAction.DATAGRAM.toString(), packet.content().retain())));
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof IdleStateEvent) {
+                ctx.close();
+                return;
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            // e.g. ICMP port unreachable from the target; the session stays open until it idles out
+            System.err.println("[TunnelClient] UDP session " + session.sessionId + ": " + cause.getMessage());
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.acuity.common;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.AttributeKey;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses the STREAM_DATA chunk size for one tunnel channel.
+ *
+ * In fixed mode the configured chunk size is always used. In adaptive mode the sizer keeps an
+ * EWMA of how fast the channel drains written chunks and sizes the next chunk so that one frame
+ * takes about targetFrameTimeMicros to send. Fast links therefore grow toward maxChunkSize
+ * (amortizing header, cipher and syscall cost per frame), while the budget is split between all
+ * streams currently sending so concurrent streams still interleave with bounded latency.
+ */
+public class AdaptiveChunkSizer {
+    public static final int DEFAULT_CHUNK_SIZE = 8192;
+    public static final int DEFAULT_MIN_CHUNK_SIZE = 4096;
+    public static final int DEFAULT_MAX_CHUNK_SIZE = 256 * 1024;
+    public static final long DEFAULT_TARGET_FRAME_TIME_MICROS = 1000;
+
+    private static final AttributeKey<AdaptiveChunkSizer> SIZER_KEY = AttributeKey.valueOf("acuity.chunkSizer");
+
+    // Weight of a new drain-rate sample in the moving average
+    private static final double EWMA_ALPHA = 0.2;
+    private static final int CHUNK_ALIGNMENT = 1024;
+
+    // Settings can be replaced at runtime when the configuration is reloaded
+    private volatile int chunkSize;
+    private volatile boolean adaptive;
+    private volatile int minChunkSize;
+    private volatile int maxChunkSize;
+    private volatile long targetFrameTimeNanos;
+
+    private final AtomicInteger activeStreams = new AtomicInteger();
+
+    // Bytes per nanosecond the channel has been draining; 0 until the first sample
+    private volatile double drainRate;
+    // Only touched from the channel's event loop (write listeners)
+    private long lastCompletionNanos;
+
+    public AdaptiveChunkSizer(int chunkSize) {
+        this(chunkSize, false, chunkSize, chunkSize, DEFAULT_TARGET_FRAME_TIME_MICROS);
+    }
+
+    public AdaptiveChunkSizer(int chunkSize, boolean adaptive, int minChunkSize, int maxChunkSize, long targetFrameTimeMicros) {
+        this.chunkSize = chunkSize;
+        this.adaptive = adaptive;
+        this.minChunkSize = minChunkSize;
+        this.maxChunkSize = maxChunkSize;
+        this.targetFrameTimeNanos = targetFrameTimeMicros * 1000L;
+    }
+
+    /**
+     * Get the sizer attached to a tunnel channel, creating it from the template on first use
+     */
+    public static AdaptiveChunkSizer forChannel(Channel channel, AdaptiveChunkSizer template) {
+        AdaptiveChunkSizer sizer = channel.attr(SIZER_KEY).get();
+        if (sizer == null) {
+            AdaptiveChunkSizer created = template.copy();
+            sizer = channel.attr(SIZER_KEY).setIfAbsent(created);
+            if (sizer == null) {
+                sizer = created;
+            }
+        }
+        return sizer;
+    }
+
+    /**
+     * Give the sizer already attached to a channel the template's settings, keeping its measurements
+     */
+    public static void reconfigure(Channel channel, AdaptiveChunkSizer template) {
+        AdaptiveChunkSizer sizer = channel.attr(SIZER_KEY).get();
+        if (sizer != null) {
+            sizer.minChunkSize = template.minChunkSize;
+            sizer.maxChunkSize = template.maxChunkSize;
+            sizer.targetFrameTimeNanos = template.targetFrameTimeNanos;
+            sizer.chunkSize = template.chunkSize;
+            sizer.adaptive = template.adaptive;
+        }
+    }
+
+    /**
+     * Create an independent sizer with the same settings and no measurements
+     */
+    public AdaptiveChunkSizer copy() {
+        return new AdaptiveChunkSizer(chunkSize, adaptive, minChunkSize, maxChunkSize, targetFrameTimeNanos / 1000L);
+    }
+
+    /**
+     * Size of the next chunk to send on the given channel
+     */
+    public int nextChunkSize(Channel channel) {
+        if (!adaptive) {
+            return chunkSize;
+        }
+
+        double rate = drainRate;
+        long target = rate > 0 ? (long) (rate * targetFrameTimeNanos) : chunkSize;
+
+        // Share the frame-time budget between streams that are sending right now
+        target /= Math.max(1, activeStreams.get());
+
+        // Back off while the outbound buffer is above its high water mark
+        if (channel != null && !channel.isWritable()) {
+            target /= 2;
+        }
+
+        long aligned = (target / CHUNK_ALIGNMENT) * CHUNK_ALIGNMENT;
+        return (int) Math.max(minChunkSize, Math.min(maxChunkSize, aligned));
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public void streamStarted() {
+        activeStreams.incrementAndGet();
+    }
+
+    public void streamFinished() {
+        activeStreams.decrementAndGet();
+    }
+
+    /**
+     * Mark a stream finished once its last frame has been written (or has failed)
+     */
+    public void finishWhenWritten(ChannelFuture lastWrite) {
+        lastWrite.addListener((ChannelFutureListener) future -> streamFinished());
+    }
+
+    public int getActiveStreams() {
+        return activeStreams.get();
+    }
+
+    /**
+     * Bytes per second the channel has been draining, or 0 before any measurement
+     */
+    public long getDrainRateBytesPerSecond() {
+        return (long) (drainRate * 1_000_000_000L);
+    }
+
+    /**
+     * Track the completion of a chunk write so the drain rate can be measured
+     */
+    public void track(ChannelFuture writeFuture, int bytes) {
+        if (!adaptive) {
+            return;
+        }
+        long startNanos = System.nanoTime();
+        writeFuture.addListener((ChannelFutureListener) future -> {
+            if (future.isSuccess()) {
+                onChunkWritten(bytes, startNanos, System.nanoTime());
+            }
+        });
+    }
+
+    void onChunkWritten(int bytes, long startNanos, long completionNanos) {
+        // When chunks are queued back to back, each one starts draining when the previous one finished
+        long serviceStart = Math.max(startNanos, lastCompletionNanos);
+        lastCompletionNanos = completionNanos;
+        long elapsed = completionNanos - serviceStart;
+        if (elapsed <= 0) {
+            return;
+        }
+
+        double sample = (double) bytes / elapsed;
+        double rate = drainRate;
+        drainRate = rate > 0 ? rate * (1 - EWMA_ALPHA) + sample * EWMA_ALPHA : sample;
+    }
+}
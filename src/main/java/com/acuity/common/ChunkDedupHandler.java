@@ -0,0 +1,476 @@
+package com.acuity.common;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.CorruptedFrameException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * Deduplicates the payloads of tunnel frames against content the peer has already received.
+ *
+ * Each stream's payload bytes are cut into chunks at content-defined boundaries (FastCDC), so the same
+ * content yields the same chunks however it was split into frames. Both ends keep every chunk of the
+ * connection in a {@link ChunkStore} per direction: the receiver to rebuild frames, the sender as a mirror
+ * that tells it what the receiver holds. Bytes are sent as literals until a chunk turns out to be stored;
+ * from there on the sender follows the chunks that came after it last time and sends only how many bytes
+ * still match, so a repeated transfer costs a few bytes per frame.
+ *
+ * Encoded frames start with a marker byte that no tunnel frame starts with. Frames are only encoded once
+ * both ends agreed on the store size and called {@link #start}; until then the handler passes frames through.
+ * Must sit after FrameBatchingHandler and before StreamSchedulingHandler in the pipeline, so frames are
+ * encoded in the order they reach the socket.
+ */
+public class ChunkDedupHandler extends ChannelDuplexHandler {
+    private static final Logger logger = LoggerFactory.getLogger(ChunkDedupHandler.class);
+
+    public static final int DEFAULT_STORE_BYTES = 64 * 1024 * 1024;
+    public static final int MIN_STORE_BYTES = 1024 * 1024;
+    public static final int MAX_STORE_BYTES = 1024 * 1024 * 1024;
+
+    // First byte of an encoded frame; tunnel frames start with their format version
+    static final byte MARKER = 0x44;
+    // Payloads below this size are passed through
+    static final int MIN_PAYLOAD_BYTES = 1024;
+
+    private static final byte OP_LITERAL = 0;
+    // [16 byte hash][offset][length]: bytes of a stored chunk
+    private static final byte OP_COPY = 1;
+    // [length]: bytes from where the stream's last copy ended, following the chunks that came next
+    private static final byte OP_CONTINUE = 2;
+    // Shorter matches are sent as literals
+    private static final int MIN_MATCH_BYTES = 32;
+
+    // FastCDC chunk bounds with normalized chunking around an 8 KiB average
+    static final int MIN_CHUNK_BYTES = 2 * 1024;
+    static final int AVG_CHUNK_BYTES = 8 * 1024;
+    static final int MAX_CHUNK_BYTES = 32 * 1024;
+    private static final long MASK_SMALL = 0x0003590703530000L;
+    private static final long MASK_LARGE = 0x0000d90003530000L;
+    private static final long[] GEAR = new long[256];
+
+    // Chunking state is kept for this many streams per direction, least recently used dropped first
+    private static final int MAX_STREAMS = 64;
+
+    static {
+        // Both ends must cut at the same places, so the table comes from a fixed seed
+        Random random = new Random(0x6163756974794344L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final Path directory;
+    private final ToIntFunction<ByteBuf> headerLength;
+    private final Function<ByteBuf, String> streamKey;
+    private final MessageDigest digest;
+
+    // Null until started
+    private Direction outbound;
+    private Direction inbound;
+
+    /**
+     * @param directory    where the chunk stores are mapped; empty uses java.io.tmpdir
+     * @param headerLength length of a frame's header, which is sent as is; negative if the frame is not a stream frame
+     * @param streamKey    the stream a frame belongs to
+     */
+    public ChunkDedupHandler(String directory, ToIntFunction<ByteBuf> headerLength, Function<ByteBuf, String> streamKey) {
+        this.directory = directory == null || directory.isEmpty()
+            ? Paths.get(System.getProperty("java.io.tmpdir"), "acuity-dedup")
+            : Paths.get(directory);
+        this.headerLength = headerLength;
+        this.streamKey = streamKey;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * True if the channel has a dedup handler
+     */
+    public static boolean isInstalled(Channel channel) {
+        return channel.pipeline().get(ChunkDedupHandler.class) != null;
+    }
+
+    /**
+     * Open the channel's chunk stores with the size both ends agreed on and encode frames from now on.
+     * Must run on the channel's event loop. Returns false if the channel has no dedup handler or the
+     * stores cannot be mapped.
+     */
+    public static boolean start(Channel channel, int storeBytes) {
+        ChunkDedupHandler handler = channel.pipeline().get(ChunkDedupHandler.class);
+        if (handler == null) {
+            return false;
+        }
+        if (handler.outbound != null) {
+            return handler.outbound.store.capacity() == storeBytes;
+        }
+        try {
+            handler.inbound = new Direction(ChunkStore.map(handler.directory, storeBytes));
+            handler.outbound = new Direction(ChunkStore.map(handler.directory, storeBytes));
+            return true;
+        } catch (IOException | RuntimeException e) {
+            logger.warn("[Dedup] Cannot map {} byte chunk stores in {}: {}", storeBytes, handler.directory, e.getMessage());
+            handler.inbound = null;
+            return false;
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (outbound == null || !(msg instanceof ByteBuf)) {
+            ctx.write(msg, promise);
+            return;
+        }
+        ByteBuf frame = (ByteBuf) msg;
+        int header = headerLength.applyAsInt(frame);
+        if (header < 0 || frame.readableBytes() - header < MIN_PAYLOAD_BYTES) {
+            ctx.write(frame, promise);
+            return;
+        }
+        ByteBuf encoded;
+        try {
+            encoded = encode(ctx, frame, header);
+        } finally {
+            frame.release();
+        }
+        ctx.write(encoded, promise);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof ByteBuf) || !((ByteBuf) msg).isReadable() || ((ByteBuf) msg).getByte(((ByteBuf) msg).readerIndex()) != MARKER) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        ByteBuf frame = (ByteBuf) msg;
+        ByteBuf decoded;
+        try {
+            if (inbound == null) {
+                throw new CorruptedFrameException("Deduplicated frame before dedup was agreed on");
+            }
+            decoded = decode(ctx, frame);
+        } finally {
+            frame.release();
+        }
+        ctx.fireChannelRead(decoded);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (outbound != null && (outbound.payloadBytes > 0 || inbound.payloadBytes > 0)) {
+            logger.info("[Dedup] Channel {} closed: sent {} payload bytes as {}, received {} as {}",
+                ctx.channel().id(), outbound.payloadBytes, outbound.encodedBytes, inbound.payloadBytes, inbound.encodedBytes);
+        }
+        super.channelInactive(ctx);
+    }
+
+    /**
+     * Frame format: [MARKER][2 byte header length][header][ops], where the ops rebuild the payload
+     */
+    private ByteBuf encode(ChannelHandlerContext ctx, ByteBuf frame, int header) {
+        int payloadLength = frame.readableBytes() - header;
+        byte[] data = new byte[payloadLength];
+        frame.getBytes(frame.readerIndex() + header, data);
+        Stream stream = outbound.stream(streamKey.apply(frame));
+
+        ByteBuf out = ctx.alloc().buffer(3 + header + 64);
+        out.writeByte(MARKER);
+        out.writeShort(header);
+        out.writeBytes(frame, frame.readerIndex(), header);
+        int pos = 0;
+        while (pos < payloadLength) {
+            if (stream.cursor != null) {
+                int matched = matching(stream, data, pos, payloadLength);
+                if (matched >= MIN_MATCH_BYTES || (matched > 0 && pos + matched == payloadLength)) {
+                    out.writeByte(OP_CONTINUE).writeInt(matched);
+                    advance(outbound, stream, null, 0, matched);
+                    feed(outbound, stream, data, pos, pos + matched);
+                    pos += matched;
+                    continue;
+                }
+            }
+            pos = encodeLiterals(stream, data, pos, payloadLength, out);
+        }
+        outbound.payloadBytes += payloadLength;
+        outbound.encodedBytes += out.readableBytes() - header;
+        return out;
+    }
+
+    /**
+     * Send bytes as literals until a chunk ending in them is already stored, which is then copied; returns
+     * where the literals ended
+     */
+    private int encodeLiterals(Stream stream, byte[] data, int start, int end, ByteBuf out) {
+        int pos = start;
+        while (pos < end) {
+            int boundary = cut(stream, data, pos, end);
+            if (boundary < 0) {
+                pos = end;
+                break;
+            }
+            int chunkLength = stream.pendingLength;
+            int chunkStart = boundary - chunkLength;
+            ChunkStore.Key key = hash(stream);
+            ChunkStore.Entry stored = outbound.store.get(key);
+            ChunkStore.Key next = stored != null ? stored.next : null;
+            record(outbound, stream, key);
+            pos = boundary;
+            if (stored != null) {
+                int copyStart = Math.max(start, chunkStart);
+                writeLiteral(out, data, start, copyStart);
+                out.writeByte(OP_COPY).writeLong(key.high).writeLong(key.low)
+                    .writeInt(copyStart - chunkStart).writeInt(boundary - copyStart);
+                // The copy reached the end of the chunk
+                stream.cursor = next;
+                stream.cursorOffset = 0;
+                return pos;
+            }
+        }
+        writeLiteral(out, data, start, pos);
+        stream.cursor = null;
+        return pos;
+    }
+
+    private static void writeLiteral(ByteBuf out, byte[] data, int start, int end) {
+        if (end > start) {
+            out.writeByte(OP_LITERAL).writeInt(end - start).writeBytes(data, start, end - start);
+        }
+    }
+
+    private ByteBuf decode(ChannelHandlerContext ctx, ByteBuf frame) {
+        frame.skipBytes(1);
+        int header = frame.readUnsignedShort();
+        if (header < 4 || frame.readableBytes() < header) {
+            throw new CorruptedFrameException("Invalid deduplicated frame header length: " + header);
+        }
+        ByteBuf headerBytes = frame.readSlice(header);
+        int payloadLength = headerBytes.getInt(headerBytes.readerIndex() + header - 4);
+        if (payloadLength < 0) {
+            throw new CorruptedFrameException("Invalid deduplicated payload length: " + payloadLength);
+        }
+        Stream stream = inbound.stream(streamKey.apply(headerBytes));
+        byte[] data = new byte[payloadLength];
+        int pos = 0;
+        while (frame.isReadable()) {
+            byte op = frame.readByte();
+            if (op == OP_LITERAL) {
+                int length = readLength(frame, payloadLength - pos);
+                frame.readBytes(data, pos, length);
+                stream.cursor = null;
+                feed(inbound, stream, data, pos, pos + length);
+                pos += length;
+            } else if (op == OP_COPY) {
+                ChunkStore.Key key = new ChunkStore.Key(frame.readLong(), frame.readLong());
+                int offset = frame.readInt();
+                int length = readLength(frame, payloadLength - pos);
+                ChunkStore.Entry stored = inbound.store.get(key);
+                if (stored == null || offset < 0 || offset + length > stored.length) {
+                    throw new CorruptedFrameException("Deduplicated frame refers to a chunk that is not stored");
+                }
+                inbound.store.read(stored, offset, data, pos, length);
+                stream.cursor = offset + length == stored.length ? stored.next : key;
+                stream.cursorOffset = offset + length == stored.length ? 0 : offset + length;
+                feed(inbound, stream, data, pos, pos + length);
+                pos += length;
+            } else if (op == OP_CONTINUE) {
+                int length = readLength(frame, payloadLength - pos);
+                advance(inbound, stream, data, pos, length);
+                feed(inbound, stream, data, pos, pos + length);
+                pos += length;
+            } else {
+                throw new CorruptedFrameException("Unknown dedup op: " + op);
+            }
+        }
+        if (pos != payloadLength) {
+            throw new CorruptedFrameException("Deduplicated frame rebuilt " + pos + " of " + payloadLength + " payload bytes");
+        }
+        inbound.payloadBytes += payloadLength;
+        inbound.encodedBytes += frame.readerIndex() - header;
+        ByteBuf out = ctx.alloc().buffer(header + payloadLength);
+        out.writeBytes(headerBytes, headerBytes.readerIndex(), header);
+        out.writeBytes(data);
+        return out;
+    }
+
+    private static int readLength(ByteBuf frame, int remaining) {
+        int length = frame.readInt();
+        if (length < 0 || length > remaining) {
+            throw new CorruptedFrameException("Invalid dedup op length: " + length);
+        }
+        return length;
+    }
+
+    /**
+     * How many bytes from pos match the stored chunks from the stream's cursor on
+     */
+    private int matching(Stream stream, byte[] data, int pos, int end) {
+        ChunkStore.Key key = stream.cursor;
+        int offset = stream.cursorOffset;
+        int matched = 0;
+        while (key != null && pos + matched < end) {
+            ChunkStore.Entry stored = outbound.store.get(key);
+            if (stored == null) {
+                break;
+            }
+            int length = Math.min(stored.length - offset, end - pos - matched);
+            int same = outbound.store.matching(stored, offset, data, pos + matched, length, outbound.scratch);
+            matched += same;
+            if (same < length) {
+                break;
+            }
+            offset += same;
+            if (offset == stored.length) {
+                key = stored.next;
+                offset = 0;
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Move the stream's cursor over length stored bytes, copying them to dst if it is not null
+     */
+    private static void advance(Direction direction, Stream stream, byte[] dst, int dstOffset, int length) {
+        while (length > 0) {
+            ChunkStore.Entry stored = stream.cursor != null ? direction.store.get(stream.cursor) : null;
+            if (stored == null) {
+                throw new CorruptedFrameException("Deduplicated frame continues past the stored chunks");
+            }
+            int step = Math.min(stored.length - stream.cursorOffset, length);
+            if (dst != null) {
+                direction.store.read(stored, stream.cursorOffset, dst, dstOffset, step);
+                dstOffset += step;
+            }
+            stream.cursorOffset += step;
+            length -= step;
+            if (stream.cursorOffset == stored.length) {
+                stream.cursor = stored.next;
+                stream.cursorOffset = 0;
+            }
+        }
+    }
+
+    /**
+     * Pass payload bytes through the stream's chunker, storing every chunk that completes
+     */
+    private void feed(Direction direction, Stream stream, byte[] data, int start, int end) {
+        int pos = start;
+        while (pos < end) {
+            int boundary = cut(stream, data, pos, end);
+            if (boundary < 0) {
+                return;
+            }
+            record(direction, stream, hash(stream));
+            pos = boundary;
+        }
+    }
+
+    /**
+     * Append bytes to the stream's pending chunk until it ends; returns the index after its last byte, or -1
+     * if all bytes were taken without reaching a boundary
+     */
+    static int cut(Stream stream, byte[] data, int start, int end) {
+        byte[] pending = stream.pending;
+        int length = stream.pendingLength;
+        long fingerprint = stream.fingerprint;
+        for (int i = start; i < end; i++) {
+            pending[length++] = data[i];
+            fingerprint = (fingerprint << 1) + GEAR[data[i] & 0xff];
+            if (length >= MIN_CHUNK_BYTES
+                && ((fingerprint & (length < AVG_CHUNK_BYTES ? MASK_SMALL : MASK_LARGE)) == 0 || length >= MAX_CHUNK_BYTES)) {
+                stream.pendingLength = length;
+                stream.fingerprint = fingerprint;
+                return i + 1;
+            }
+        }
+        stream.pendingLength = length;
+        stream.fingerprint = fingerprint;
+        return -1;
+    }
+
+    private ChunkStore.Key hash(Stream stream) {
+        digest.update(stream.pending, 0, stream.pendingLength);
+        byte[] sha = digest.digest();
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 8; i++) {
+            high = (high << 8) | (sha[i] & 0xff);
+            low = (low << 8) | (sha[i + 8] & 0xff);
+        }
+        return new ChunkStore.Key(high, low);
+    }
+
+    /**
+     * Store the stream's completed chunk, or refresh it if it is stored already, and link it to the previous one
+     */
+    private static void record(Direction direction, Stream stream, ChunkStore.Key key) {
+        ChunkStore.Entry stored = direction.store.get(key);
+        if (stored == null) {
+            direction.store.put(key, stream.pending, 0, stream.pendingLength);
+        } else {
+            direction.store.touch(stored);
+        }
+        ChunkStore.Entry previous = stream.last != null ? direction.store.get(stream.last) : null;
+        if (previous != null) {
+            previous.next = key;
+        }
+        stream.last = key;
+        stream.pendingLength = 0;
+        stream.fingerprint = 0;
+    }
+
+    /**
+     * Chunk store and per-stream state of one direction
+     */
+    private static final class Direction {
+        final ChunkStore store;
+        final Map<String, Stream> streams = new LinkedHashMap<String, Stream>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Stream> eldest) {
+                return size() > MAX_STREAMS;
+            }
+        };
+        final byte[] scratch = new byte[MAX_CHUNK_BYTES];
+        long payloadBytes;
+        long encodedBytes;
+
+        Direction(ChunkStore store) {
+            this.store = store;
+        }
+
+        Stream stream(String key) {
+            return streams.computeIfAbsent(key, k -> new Stream());
+        }
+    }
+
+    /**
+     * Chunking state of one stream, identical at both ends
+     */
+    static final class Stream {
+        final byte[] pending = new byte[MAX_CHUNK_BYTES];
+        int pendingLength;
+        long fingerprint;
+        // Last chunk completed
+        ChunkStore.Key last;
+        // Stored chunk and offset the next continue op starts at, or null
+        ChunkStore.Key cursor;
+        int cursorOffset;
+    }
+}
@@ -0,0 +1,160 @@
+package com.acuity.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bounded store of deduplication chunks, kept in a ring buffer and indexed by content hash.
+ *
+ * Chunks are appended at the head and the oldest are overwritten once the ring is full. A chunk that is
+ * seen again while in the older half of the ring is copied back to the head, so chunks in use are evicted
+ * least recently used first. Every change is a function of the chunks put and touched, so two stores fed
+ * the same sequence hold the same chunks at the same places; the encoder mirrors the decoder's store this way.
+ * Not thread-safe: each store belongs to one channel.
+ */
+final class ChunkStore {
+    private final ByteBuffer ring;
+    private final int capacity;
+    private final Map<Key, Entry> index = new HashMap<>();
+    // Entries in ring order, oldest first; superseded entries stay until they are overwritten
+    private final ArrayDeque<Entry> log = new ArrayDeque<>();
+    // Absolute write position; the ring offset is head % capacity
+    private long head;
+
+    ChunkStore(ByteBuffer ring) {
+        this.ring = ring;
+        this.capacity = ring.capacity();
+    }
+
+    /**
+     * A store backed by a memory-mapped file of the given size in the directory. The file is unlinked
+     * once mapped, so its pages go back to the OS when the store is garbage collected.
+     */
+    static ChunkStore map(Path directory, int capacity) throws IOException {
+        Files.createDirectories(directory);
+        Path file = Files.createTempFile(directory, "dedup-", ".chunks");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+            return new ChunkStore(channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        }
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    int size() {
+        return index.size();
+    }
+
+    /**
+     * The stored chunk with the hash, or null
+     */
+    Entry get(Key key) {
+        return index.get(key);
+    }
+
+    /**
+     * Store a chunk at the head, evicting the oldest chunks it overwrites
+     */
+    Entry put(Key key, byte[] bytes, int offset, int length) {
+        long position = head;
+        int ringOffset = (int) (position % capacity);
+        if (ringOffset + length > capacity) {
+            // Chunks never wrap; the rest of the ring is skipped
+            position += capacity - ringOffset;
+            ringOffset = 0;
+        }
+        head = position + length;
+        while (!log.isEmpty() && log.peekFirst().position < head - capacity) {
+            Entry evicted = log.pollFirst();
+            if (index.get(evicted.key) == evicted) {
+                index.remove(evicted.key);
+            }
+        }
+        // Positioned views rather than the absolute bulk put and get, which need JDK 16 and 13
+        ByteBuffer view = ring.duplicate();
+        view.position(ringOffset);
+        view.put(bytes, offset, length);
+        Entry entry = new Entry(key, position, length);
+        Entry previous = index.put(key, entry);
+        if (previous != null) {
+            entry.next = previous.next;
+        }
+        log.addLast(entry);
+        return entry;
+    }
+
+    /**
+     * Note that a stored chunk was seen again; returns its entry, which moves to the head if it was getting old
+     */
+    Entry touch(Entry entry) {
+        if (entry.position >= head - capacity / 2) {
+            return entry;
+        }
+        byte[] bytes = new byte[entry.length];
+        read(entry, 0, bytes, 0, entry.length);
+        return put(entry.key, bytes, 0, entry.length);
+    }
+
+    void read(Entry entry, int offset, byte[] dst, int dstOffset, int length) {
+        ByteBuffer view = ring.duplicate();
+        view.position((int) (entry.position % capacity) + offset);
+        view.get(dst, dstOffset, length);
+    }
+
+    /**
+     * Number of leading bytes of src that equal the chunk's bytes from offset, up to length
+     */
+    int matching(Entry entry, int offset, byte[] src, int srcOffset, int length, byte[] scratch) {
+        read(entry, offset, scratch, 0, length);
+        int mismatch = Arrays.mismatch(scratch, 0, length, src, srcOffset, srcOffset + length);
+        return mismatch < 0 ? length : mismatch;
+    }
+
+    /**
+     * Content hash of a chunk
+     */
+    static final class Key {
+        final long high;
+        final long low;
+
+        Key(long high, long low) {
+            this.high = high;
+            this.low = low;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).high == high && ((Key) o).low == low;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(high ^ low);
+        }
+    }
+
+    /**
+     * Where a chunk is stored, and the chunk that followed it the last time it was seen
+     */
+    static final class Entry {
+        final Key key;
+        final long position;
+        final int length;
+        Key next;
+
+        Entry(Key key, long position, int length) {
+            this.key = key;
+            this.position = position;
+            this.length = length;
+        }
+    }
+}
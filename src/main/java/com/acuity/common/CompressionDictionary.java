@@ -0,0 +1,276 @@
+package com.acuity.common;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+/**
+ * A preset dictionary for compressing the tunnel frames of one group, trained from its sampled traffic.
+ * Deflate refers back up to 32 KiB, so whatever a frame shares with the dictionary costs a short
+ * back-reference even in a frame of a few hundred bytes, where GZIP alone finds nothing to refer to.
+ * Frames name their dictionary by its Adler-32, and each connection keeps the two latest it was
+ * given, so frames already on the way still decode while a new dictionary rolls out.
+ */
+public final class CompressionDictionary {
+    // The deflate window; bytes of a longer dictionary would be out of reach
+    public static final int MAX_BYTES = 32 * 1024;
+
+    // Recurring content is found as 8-byte shingles, and dictionaries are built from segments of samples
+    private static final int SHINGLE_BYTES = 8;
+    private static final int SEGMENT_BYTES = 64;
+
+    private static final AttributeKey<State> STATE_KEY = AttributeKey.valueOf("acuity.compressionDictionary");
+
+    private final int version;
+    private final byte[] bytes;
+    private final int id;
+
+    public CompressionDictionary(int version, byte[] bytes) {
+        this.version = version;
+        this.bytes = bytes;
+        Adler32 adler = new Adler32();
+        adler.update(bytes);
+        this.id = (int) adler.getValue();
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Adler-32 of the dictionary, which zlib frames compressed with it carry
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Dictionary state of one tunnel connection
+     */
+    private static final class State {
+        // The two latest dictionaries the peer may compress with
+        volatile CompressionDictionary newest;
+        volatile CompressionDictionary previous;
+        // Dictionary frames to the peer are compressed with, once the peer has it
+        volatile CompressionDictionary sending;
+        // Sees plaintext frames in both directions while dictionaries are trained for the connection's group
+        volatile Consumer<ByteBuf> sampler;
+    }
+
+    private static State state(Channel channel) {
+        State state = channel.attr(STATE_KEY).get();
+        if (state == null) {
+            State created = new State();
+            state = channel.attr(STATE_KEY).setIfAbsent(created);
+            if (state == null) {
+                state = created;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Accept frames compressed with the dictionary on the channel
+     */
+    public static void install(Channel channel, CompressionDictionary dictionary) {
+        State state = state(channel);
+        synchronized (state) {
+            if (state.newest != null && state.newest.id == dictionary.id) {
+                return;
+            }
+            state.previous = state.newest;
+            state.newest = dictionary;
+        }
+    }
+
+    /**
+     * Compress frames written to the channel with the dictionary; the peer must have installed it
+     */
+    public static void use(Channel channel, CompressionDictionary dictionary) {
+        state(channel).sending = dictionary;
+    }
+
+    /**
+     * Pass plaintext frames of the channel to the sampler, or stop with null
+     */
+    public static void sample(Channel channel, Consumer<ByteBuf> sampler) {
+        state(channel).sampler = sampler;
+    }
+
+    /**
+     * Dictionary to compress frames to the channel with, or null
+     */
+    static CompressionDictionary sending(Channel channel) {
+        State state = channel.attr(STATE_KEY).get();
+        return state != null ? state.sending : null;
+    }
+
+    /**
+     * Bytes of the installed dictionary with the given Adler-32, or null
+     */
+    static byte[] lookup(Channel channel, int id) {
+        State state = channel.attr(STATE_KEY).get();
+        if (state == null) {
+            return null;
+        }
+        CompressionDictionary newest = state.newest;
+        if (newest != null && newest.id == id) {
+            return newest.bytes;
+        }
+        CompressionDictionary previous = state.previous;
+        return previous != null && previous.id == id ? previous.bytes : null;
+    }
+
+    /**
+     * Offer a plaintext frame to the channel's sampler, if it has one; the frame is not consumed
+     */
+    static void offer(Channel channel, ByteBuf plaintext) {
+        State state = channel.attr(STATE_KEY).get();
+        Consumer<ByteBuf> sampler = state != null ? state.sampler : null;
+        if (sampler != null) {
+            sampler.accept(plaintext);
+        }
+    }
+
+    /**
+     * Build a dictionary of at most maxBytes from traffic samples, or null if nothing recurs across them.
+     * Segments are picked greedily by how many other samples share their shingles, each shingle
+     * counting only until a picked segment covers it. The best segments go last, where deflate's
+     * back-references to them are shortest.
+     */
+    public static byte[] train(List<byte[]> samples, int maxBytes) {
+        // Shingle -> number of samples it occurs in
+        Map<Long, Integer> frequency = new HashMap<>();
+        for (byte[] sample : samples) {
+            Set<Long> seen = new HashSet<>();
+            for (int i = 0; i + SHINGLE_BYTES <= sample.length; i++) {
+                seen.add(shingle(sample, i));
+            }
+            for (Long shingle : seen) {
+                frequency.merge(shingle, 1, Integer::sum);
+            }
+        }
+
+        PriorityQueue<Segment> candidates = new PriorityQueue<>((a, b) -> Long.compare(b.score, a.score));
+        for (byte[] sample : samples) {
+            for (int start = 0; start < sample.length; start += SEGMENT_BYTES) {
+                Segment segment = new Segment(sample, start, Math.min(sample.length, start + SEGMENT_BYTES));
+                segment.score = segment.score(frequency);
+                if (segment.score > 0) {
+                    candidates.add(segment);
+                }
+            }
+        }
+
+        List<Segment> picked = new ArrayList<>();
+        int size = 0;
+        while (!candidates.isEmpty() && size < maxBytes) {
+            Segment best = candidates.poll();
+            // Scores only drop as shingles get covered, so a stale score is an upper bound
+            long score = best.score(frequency);
+            if (score <= 0) {
+                continue;
+            }
+            if (!candidates.isEmpty() && score < candidates.peek().score) {
+                best.score = score;
+                candidates.add(best);
+                continue;
+            }
+            picked.add(best);
+            size += best.end - best.start;
+            for (int i = best.start; i + SHINGLE_BYTES <= best.end; i++) {
+                frequency.remove(shingle(best.sample, i));
+            }
+        }
+        if (picked.isEmpty()) {
+            return null;
+        }
+
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(size);
+        for (int i = picked.size() - 1; i >= 0; i--) {
+            Segment segment = picked.get(i);
+            dictionary.write(segment.sample, segment.start, segment.end - segment.start);
+        }
+        byte[] bytes = dictionary.toByteArray();
+        return bytes.length > maxBytes ? Arrays.copyOfRange(bytes, bytes.length - maxBytes, bytes.length) : bytes;
+    }
+
+    /**
+     * Total size of the samples compressed one by one with the dictionary, or with plain deflate when it is null
+     */
+    public static long compressedSize(List<byte[]> samples, byte[] dictionary) {
+        Deflater deflater = new Deflater(DataCompression.getCompressionLevel(), dictionary == null);
+        byte[] out = new byte[8192];
+        long total = 0;
+        try {
+            for (byte[] sample : samples) {
+                deflater.reset();
+                if (dictionary != null) {
+                    deflater.setDictionary(dictionary);
+                }
+                deflater.setInput(sample);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    total += deflater.deflate(out);
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        return total;
+    }
+
+    private static long shingle(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < SHINGLE_BYTES; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * A run of bytes of one sample that may go into the dictionary
+     */
+    private static final class Segment {
+        final byte[] sample;
+        final int start;
+        final int end;
+        long score;
+
+        Segment(byte[] sample, int start, int end) {
+            this.sample = sample;
+            this.start = start;
+            this.end = end;
+        }
+
+        // Other samples sharing each distinct shingle not covered yet
+        long score(Map<Long, Integer> frequency) {
+            Set<Long> seen = new HashSet<>();
+            long score = 0;
+            for (int i = start; i + SHINGLE_BYTES <= end; i++) {
+                long shingle = shingle(sample, i);
+                if (seen.add(shingle)) {
+                    score += Math.max(0, frequency.getOrDefault(shingle, 0) - 1);
+                }
+            }
+            return score;
+        }
+    }
+}
@@ -1,17 +1,51 @@
 package com.acuity.common;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.function.IntFunction;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
 
 /**
- * Utility class for compressing and decompressing data using GZIP
+ * Utility class for compressing and decompressing data using GZIP, or zlib with a preset dictionary
  */
 public class DataCompression {
 
     private static final int BUFFER_SIZE = 8192;
 
+    // Minimal GZIP member header as written by GZIPOutputStream (no optional fields)
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int GZIP_TRAILER_LENGTH = 8;
+
+    // Deflate cannot expand data by more than this factor, used to bound the trailer-declared size
+    private static final int MAX_INFLATE_RATIO = 1032;
+
+    // Deflate level for frame compression; a thread picks up a new level on its next frame
+    private static volatile int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    // Raw deflate streams are reused per thread and reset between frames
+    private static final ThreadLocal<Deflater> deflaters =
+        ThreadLocal.withInitial(() -> new Deflater(compressionLevel, true));
+    private static final ThreadLocal<int[]> deflaterLevels = ThreadLocal.withInitial(() -> new int[] {compressionLevel});
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+    // zlib streams for dictionary frames; their header names the dictionary by its Adler-32
+    private static final ThreadLocal<Deflater> zlibDeflaters =
+        ThreadLocal.withInitial(() -> new Deflater(compressionLevel, false));
+    private static final ThreadLocal<int[]> zlibDeflaterLevels = ThreadLocal.withInitial(() -> new int[] {compressionLevel});
+    private static final ThreadLocal<Inflater> zlibInflaters = ThreadLocal.withInitial(() -> new Inflater(false));
+    private static final ThreadLocal<CRC32> checksums = ThreadLocal.withInitial(CRC32::new);
+
     /**
      * Compress data using GZIP
      */
@@ -35,6 +69,10 @@ public class DataCompression {
      * Decompress data that was compressed using GZIP
      */
     public static byte[] decompress(byte[] compressedData) throws Exception {
+        return decompress(compressedData, Integer.MAX_VALUE);
+    }
+
+    private static byte[] decompress(byte[] compressedData, int maxLength) throws Exception {
         if (compressedData == null || compressedData.length == 0) {
             return new byte[0];
         }
@@ -47,6 +85,9 @@ public class DataCompression {
             int bytesRead;
 
             while ((bytesRead = gzipIn.read(buffer)) != -1) {
+                if (baos.size() + bytesRead > maxLength) {
+                    throw new DataFormatException("GZIP data inflates beyond " + maxLength + " bytes");
+                }
                 baos.write(buffer, 0, bytesRead);
             }
 
@@ -54,6 +95,202 @@ public class DataCompression {
         }
     }
 
+    /**
+     * Compress the readable bytes of src into dst using GZIP without intermediate byte arrays.
+     * The reader index of src is left unchanged so the caller can fall back to the original data.
+     */
+    public static void compress(ByteBuf src, ByteBuf dst) {
+        Deflater deflater = deflaterForCurrentLevel(deflaters, deflaterLevels, true);
+        CRC32 crc = checksums.get();
+        deflater.reset();
+        crc.reset();
+
+        dst.writeBytes(GZIP_HEADER);
+        for (ByteBuffer input : src.nioBuffers(src.readerIndex(), src.readableBytes())) {
+            int position = input.position();
+            crc.update(input);
+            input.position(position);
+
+            deflater.setInput(input);
+            while (!deflater.needsInput()) {
+                deflate(deflater, dst);
+            }
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate(deflater, dst);
+        }
+
+        dst.writeIntLE((int) crc.getValue());
+        dst.writeIntLE(src.readableBytes());
+    }
+
+    /**
+     * Decompress a GZIP frame of at most maxLength bytes into a buffer from the given allocator.
+     * The returned buffer is owned by the caller.
+     *
+     * @throws DataFormatException if the data is corrupt or inflates beyond maxLength, or beyond what deflate can produce
+     */
+    public static ByteBuf decompress(ByteBuf src, ByteBufAllocator alloc, int maxLength) throws Exception {
+        int start = src.readerIndex();
+        int length = src.readableBytes();
+        if (length < GZIP_HEADER.length + GZIP_TRAILER_LENGTH
+                || src.getUnsignedShortLE(start) != GZIP_MAGIC
+                || src.getByte(start + 2) != Deflater.DEFLATED) {
+            throw new DataFormatException("Not in GZIP format");
+        }
+
+        if (src.getByte(start + 3) != 0) {
+            // Optional header fields are never written by this tunnel; let GZIPInputStream deal with them
+            byte[] decompressed = decompress(ByteBufUtil.getBytes(src), maxLength);
+            src.skipBytes(length);
+            return Unpooled.wrappedBuffer(decompressed);
+        }
+
+        int expectedCrc = src.getIntLE(start + length - GZIP_TRAILER_LENGTH);
+        int declaredLength = src.getIntLE(start + length - 4);
+        long maxInflated = Math.min((long) length * MAX_INFLATE_RATIO, maxLength);
+        if (declaredLength < 0 || declaredLength > maxInflated) {
+            throw new DataFormatException("GZIP frame declares " + Integer.toUnsignedString(declaredLength) + " bytes, over " + maxInflated);
+        }
+
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(src.nioBuffer(start + GZIP_HEADER.length, length - GZIP_HEADER.length - GZIP_TRAILER_LENGTH));
+
+        ByteBuf dst = alloc.directBuffer(Math.max(declaredLength, 1));
+        try {
+            while (!inflater.finished()) {
+                if (!dst.isWritable()) {
+                    if (dst.readableBytes() >= maxInflated) {
+                        throw new DataFormatException("GZIP frame inflates beyond " + maxInflated + " bytes");
+                    }
+                    dst.ensureWritable(BUFFER_SIZE);
+                }
+                int inflated = inflater.inflate(dst.nioBuffer(dst.writerIndex(), dst.writableBytes()));
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated GZIP data");
+                }
+                dst.writerIndex(dst.writerIndex() + inflated);
+            }
+
+            CRC32 crc = checksums.get();
+            crc.reset();
+            for (ByteBuffer output : dst.nioBuffers()) {
+                crc.update(output);
+            }
+            if ((int) crc.getValue() != expectedCrc || dst.readableBytes() != declaredLength) {
+                throw new DataFormatException("Corrupt GZIP trailer");
+            }
+        } catch (Exception e) {
+            dst.release();
+            throw e;
+        }
+
+        src.skipBytes(length);
+        return dst;
+    }
+
+    /**
+     * Compress the readable bytes of src into dst as a zlib stream with a preset dictionary, so even a
+     * small frame can refer back to content common in the traffic. The zlib header carries the
+     * dictionary's Adler-32 and the trailer the data's. The reader index of src is left unchanged.
+     */
+    public static void compress(ByteBuf src, ByteBuf dst, byte[] dictionary) {
+        Deflater deflater = deflaterForCurrentLevel(zlibDeflaters, zlibDeflaterLevels, false);
+        deflater.reset();
+        deflater.setDictionary(dictionary);
+        for (ByteBuffer input : src.nioBuffers(src.readerIndex(), src.readableBytes())) {
+            deflater.setInput(input);
+            while (!deflater.needsInput()) {
+                deflate(deflater, dst);
+            }
+        }
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate(deflater, dst);
+        }
+    }
+
+    /**
+     * Decompress a zlib frame of at most maxLength bytes, written with a preset dictionary, into a buffer from
+     * the given allocator. The dictionary is looked up by the Adler-32 the frame names.
+     * The returned buffer is owned by the caller.
+     *
+     * @throws DataFormatException if the data is corrupt, inflates beyond maxLength or names a dictionary that is not known
+     */
+    public static ByteBuf decompress(ByteBuf src, ByteBufAllocator alloc, IntFunction<byte[]> dictionaries, int maxLength) throws Exception {
+        int length = src.readableBytes();
+        long maxInflated = Math.min((long) length * MAX_INFLATE_RATIO, maxLength);
+        Inflater inflater = zlibInflaters.get();
+        inflater.reset();
+        inflater.setInput(src.nioBuffer(src.readerIndex(), length));
+
+        ByteBuf dst = alloc.directBuffer((int) Math.min(Math.max(length * 4L, 64), Math.max(maxInflated, 1)));
+        try {
+            while (!inflater.finished()) {
+                if (!dst.isWritable()) {
+                    if (dst.readableBytes() >= maxInflated) {
+                        throw new DataFormatException("Dictionary frame inflates beyond " + maxInflated + " bytes");
+                    }
+                    dst.ensureWritable(BUFFER_SIZE);
+                }
+                int inflated = inflater.inflate(dst.nioBuffer(dst.writerIndex(), dst.writableBytes()));
+                if (inflated == 0 && inflater.needsDictionary()) {
+                    byte[] dictionary = dictionaries.apply(inflater.getAdler());
+                    if (dictionary == null) {
+                        throw new DataFormatException("Unknown compression dictionary " + Integer.toHexString(inflater.getAdler()));
+                    }
+                    inflater.setDictionary(dictionary);
+                    continue;
+                }
+                if (inflated == 0 && inflater.needsInput()) {
+                    throw new DataFormatException("Truncated zlib data");
+                }
+                dst.writerIndex(dst.writerIndex() + inflated);
+            }
+        } catch (Exception e) {
+            dst.release();
+            throw e;
+        }
+
+        src.skipBytes(length);
+        return dst;
+    }
+
+    /**
+     * Set the deflate level (0-9, or -1 for the zlib default) used for frame compression
+     */
+    public static void setCompressionLevel(int level) {
+        compressionLevel = level;
+    }
+
+    public static int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    private static Deflater deflaterForCurrentLevel(ThreadLocal<Deflater> deflaters, ThreadLocal<int[]> levels, boolean nowrap) {
+        int level = compressionLevel;
+        int[] threadLevel = levels.get();
+        if (threadLevel[0] == level) {
+            return deflaters.get();
+        }
+        // Replace rather than setLevel(), which would apply the old level to the next input
+        deflaters.get().end();
+        Deflater deflater = new Deflater(level, nowrap);
+        deflaters.set(deflater);
+        threadLevel[0] = level;
+        return deflater;
+    }
+
+    private static void deflate(Deflater deflater, ByteBuf dst) {
+        if (!dst.isWritable()) {
+            dst.ensureWritable(BUFFER_SIZE);
+        }
+        int written = deflater.deflate(dst.nioBuffer(dst.writerIndex(), dst.writableBytes()));
+        dst.writerIndex(dst.writerIndex() + written);
+    }
+
     /**
      * Calculate compression ratio
      */
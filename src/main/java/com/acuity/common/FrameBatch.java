@@ -0,0 +1,21 @@
+package com.acuity.common;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
+
+/**
+ * Several plaintext tunnel frames coalesced into one encrypted super-frame.
+ * Content layout: ([4 bytes frame length][frame])*
+ */
+public class FrameBatch extends DefaultByteBufHolder {
+    private final int frameCount;
+
+    public FrameBatch(ByteBuf content, int frameCount) {
+        super(content);
+        this.frameCount = frameCount;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+}
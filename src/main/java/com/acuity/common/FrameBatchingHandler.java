@@ -0,0 +1,195 @@
+package com.acuity.common;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.PromiseNotifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces tunnel frames written on one channel into a single encrypted super-frame.
+ *
+ * Frames are held until the end of the current event-loop tick (or maxDelayMicros, if set) and
+ * then handed to SymmetricEncryptionHandler as one FrameBatch, so hundreds of small responses
+ * cost one compress/encrypt pass and one syscall instead of one each. A batch is cut early once
+ * it reaches maxBatchBytes, and a frame that is already that large is passed through on its own.
+ * Must sit after SymmetricEncryptionHandler in the pipeline so outbound writes reach it first.
+ */
+public class FrameBatchingHandler extends ChannelDuplexHandler {
+    public static final int DEFAULT_MAX_BATCH_BYTES = 64 * 1024;
+    public static final long DEFAULT_MAX_DELAY_MICROS = 0;
+
+    // Frames up to this size are copied into the batch; larger ones are added as components
+    private static final int COPY_THRESHOLD = 1024;
+    private static final int LENGTH_PREFIX = 4;
+
+    private final int maxBatchBytes;
+    private final long maxDelayMicros;
+
+    private final List<ByteBuf> pendingFrames = new ArrayList<>();
+    private final List<ChannelPromise> pendingPromises = new ArrayList<>();
+    private int pendingBytes;
+    private boolean flushScheduled;
+    private ChannelHandlerContext ctx;
+
+    private final Runnable flushTask = () -> {
+        flushScheduled = false;
+        writePending();
+        ctx.flush();
+    };
+
+    public FrameBatchingHandler() {
+        this(DEFAULT_MAX_BATCH_BYTES, DEFAULT_MAX_DELAY_MICROS);
+    }
+
+    public FrameBatchingHandler(int maxBatchBytes, long maxDelayMicros) {
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxDelayMicros = maxDelayMicros;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (!(msg instanceof ByteBuf)) {
+            // Keep ordering: anything queued goes out before a foreign message
+            writePending();
+            ctx.write(msg, promise);
+            return;
+        }
+
+        ByteBuf frame = (ByteBuf) msg;
+        int frameBytes = LENGTH_PREFIX + frame.readableBytes();
+        if (frameBytes >= maxBatchBytes) {
+            writePending();
+            ctx.write(frame, promise);
+            return;
+        }
+        if (pendingBytes + frameBytes > maxBatchBytes) {
+            writePending();
+        }
+
+        pendingFrames.add(frame);
+        pendingPromises.add(promise);
+        pendingBytes += frameBytes;
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) {
+        if (pendingFrames.isEmpty()) {
+            ctx.flush();
+            return;
+        }
+        if (flushScheduled) {
+            return;
+        }
+
+        // Let the rest of this tick's writes join the batch before it is encrypted
+        flushScheduled = true;
+        if (maxDelayMicros > 0) {
+            ctx.executor().schedule(flushTask, maxDelayMicros, TimeUnit.MICROSECONDS);
+        } else {
+            ctx.executor().execute(flushTask);
+        }
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) {
+        writePending();
+        ctx.flush();
+        ctx.close(promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        writePending();
+        ctx.flush();
+    }
+
+    /**
+     * Write everything queued so far as one frame (or a batch), without flushing
+     */
+    private void writePending() {
+        int frameCount = pendingFrames.size();
+        if (frameCount == 0) {
+            return;
+        }
+        if (frameCount == 1) {
+            ByteBuf frame = pendingFrames.get(0);
+            ChannelPromise promise = pendingPromises.get(0);
+            clearPending();
+            ctx.write(frame, promise);
+            return;
+        }
+
+        CompositeByteBuf batch = ctx.alloc().compositeDirectBuffer(frameCount * 2);
+        ByteBuf scratch = null;
+        try {
+            for (int i = 0; i < frameCount; i++) {
+                ByteBuf frame = pendingFrames.set(i, null);
+                if (scratch == null) {
+                    scratch = ctx.alloc().directBuffer(Math.min(pendingBytes, maxBatchBytes));
+                }
+                scratch.writeInt(frame.readableBytes());
+                if (frame.readableBytes() <= COPY_THRESHOLD) {
+                    scratch.writeBytes(frame);
+                    frame.release();
+                } else {
+                    batch.addComponent(true, scratch);
+                    scratch = null;
+                    batch.addComponent(true, frame);
+                }
+            }
+            if (scratch != null) {
+                batch.addComponent(true, scratch);
+                scratch = null;
+            }
+        } catch (RuntimeException e) {
+            for (ByteBuf frame : pendingFrames) {
+                if (frame != null) {
+                    frame.release();
+                }
+            }
+            if (scratch != null) {
+                scratch.release();
+            }
+            batch.release();
+            for (ChannelPromise promise : pendingPromises) {
+                promise.tryFailure(e);
+            }
+            clearPending();
+            return;
+        }
+
+        List<ChannelPromise> promises = new ArrayList<>(pendingPromises.size());
+        for (ChannelPromise promise : pendingPromises) {
+            if (!promise.isVoid()) {
+                promises.add(promise);
+            }
+        }
+        clearPending();
+
+        if (promises.isEmpty()) {
+            ctx.write(new FrameBatch(batch, frameCount), ctx.voidPromise());
+        } else {
+            ChannelPromise batchPromise = ctx.newPromise();
+            batchPromise.addListener(new PromiseNotifier<Void, Future<Void>>(promises.toArray(new ChannelPromise[0])));
+            ctx.write(new FrameBatch(batch, frameCount), batchPromise);
+        }
+    }
+
+    private void clearPending() {
+        pendingFrames.clear();
+        pendingPromises.clear();
+        pendingBytes = 0;
+    }
+}
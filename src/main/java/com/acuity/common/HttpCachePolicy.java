@@ -0,0 +1,385 @@
+package com.acuity.common;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Shared-cache rules for HTTP/1.1 (RFC 9111), used by the proxy client's response cache and the
+ * tunnel server's edge cache: which requests a cache may answer, which responses it may store and
+ * for how long, and how a stored response is matched, aged and revalidated.
+ */
+public final class HttpCachePolicy {
+    // Requests that leave stored responses valid; any other method invalidates its URI
+    private static final Set<String> SAFE_METHODS = new HashSet<>(Arrays.asList("GET", "HEAD", "OPTIONS", "TRACE"));
+    // Statuses stored when the response allows it
+    private static final Set<Integer> CACHEABLE_STATUSES = new HashSet<>(Arrays.asList(200, 203, 301, 404, 410));
+
+    private HttpCachePolicy() {
+    }
+
+    /**
+     * A GET request as a cache sees it
+     */
+    public static final class Request {
+        // Host and request target
+        public final String key;
+        // The user sent validators of their own, so a 304 is theirs to handle
+        public final boolean conditional;
+        private final Head head;
+        private final boolean noCache;
+        private final long maxAgeSeconds;
+
+        private Request(String key, Head head) {
+            Map<String, String> directives = directives(head.get("cache-control"));
+            this.key = key;
+            this.head = head;
+            this.conditional = head.get("if-none-match") != null || head.get("if-modified-since") != null;
+            this.noCache = directives.containsKey("no-cache")
+                || (head.get("cache-control") == null && contains(head.get("pragma"), "no-cache"));
+            this.maxAgeSeconds = seconds(directives.get("max-age"));
+        }
+
+        /**
+         * The request as a cache sees it, or null if no cache may answer it
+         */
+        public static Request of(byte[] request, String method) {
+            if (!"GET".equals(method)) {
+                return null;
+            }
+            Head head = Head.parse(request);
+            String key = head != null ? keyOf(head) : null;
+            if (key == null || head.get("authorization") != null || directives(head.get("cache-control")).containsKey("no-store")) {
+                return null;
+            }
+            return new Request(key, head);
+        }
+
+        /**
+         * Key of the stored response a request with an unsafe method makes invalid, or null
+         */
+        public static String invalidatedKey(byte[] request, String method) {
+            if (method == null || SAFE_METHODS.contains(method)) {
+                return null;
+            }
+            Head head = Head.parse(request);
+            return head != null ? keyOf(head) : null;
+        }
+    }
+
+    /**
+     * What a cache keeps about a stored response besides its bytes
+     */
+    public static final class Stored {
+        // Where the status line ends; Age goes there when the response is served
+        public final int statusLineEnd;
+        // Request header values the response was selected by
+        private final Map<String, String> varyValues;
+        private String etag;
+        private String lastModified;
+        private long storedAt;
+        private long initialAgeMillis;
+        private long freshnessMillis;
+
+        private Stored(int statusLineEnd, Map<String, String> varyValues) {
+            this.statusLineEnd = statusLineEnd;
+            this.varyValues = varyValues;
+        }
+
+        /**
+         * Metadata of a response a shared cache may store, or null if it may not be stored
+         */
+        public static Stored of(Request request, HttpMessageFramer.Message response, long now) {
+            Head head = Head.parse(response.bytes);
+            if (head == null) {
+                return null;
+            }
+            Map<String, String> directives = directives(head.get("cache-control"));
+            String vary = head.get("vary");
+            boolean framed = head.get("content-length") != null || contains(head.get("transfer-encoding"), "chunked");
+            if (!CACHEABLE_STATUSES.contains(response.status) || !framed || response.close
+                || directives.containsKey("no-store") || directives.containsKey("private")
+                || head.get("set-cookie") != null || (vary != null && vary.contains("*"))) {
+                return null;
+            }
+            long freshness = freshnessMillis(head, directives);
+            if (freshness <= 0 && head.get("etag") == null && head.get("last-modified") == null) {
+                // Could never be served, not even after revalidation
+                return null;
+            }
+
+            Map<String, String> varyValues = new HashMap<>();
+            if (vary != null) {
+                for (String name : vary.split(",")) {
+                    String header = name.trim().toLowerCase();
+                    if (!header.isEmpty()) {
+                        varyValues.put(header, normalize(request.head.get(header)));
+                    }
+                }
+            }
+            Stored stored = new Stored(head.lines.get(0)[2], varyValues);
+            stored.etag = head.get("etag");
+            stored.lastModified = head.get("last-modified");
+            stored.update(head, freshness, now);
+            return stored;
+        }
+
+        /**
+         * The response bytes to store: the message without its Age header, which is recomputed when served
+         */
+        public static byte[] bytesOf(HttpMessageFramer.Message response) {
+            Head head = Head.parse(response.bytes);
+            return head != null ? head.without(response.bytes, "age") : response.bytes;
+        }
+
+        public boolean matches(Request request) {
+            for (Map.Entry<String, String> vary : varyValues.entrySet()) {
+                if (!vary.getValue().equals(normalize(request.head.get(vary.getKey())))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public long ageMillis(long now) {
+            return initialAgeMillis + Math.max(0, now - storedAt);
+        }
+
+        /**
+         * True if the response may answer the request without asking the origin
+         */
+        public boolean isFresh(Request request, long now) {
+            long age = ageMillis(now);
+            return !request.noCache && age < freshnessMillis && (request.maxAgeSeconds < 0 || age <= request.maxAgeSeconds * 1000);
+        }
+
+        public boolean canRevalidate() {
+            return etag != null || lastModified != null;
+        }
+
+        /**
+         * The request with this response's validators added, so an unchanged resource is answered with 304
+         */
+        public byte[] conditional(Request request, byte[] requestBytes) {
+            StringBuilder validators = new StringBuilder();
+            if (etag != null) {
+                validators.append("If-None-Match: ").append(etag).append("\r\n");
+            }
+            if (lastModified != null) {
+                validators.append("If-Modified-Since: ").append(lastModified).append("\r\n");
+            }
+            return request.head.withHeaders(requestBytes, validators.toString());
+        }
+
+        /**
+         * A 304 confirmed the response; take the new freshness information it carries
+         */
+        public void refresh(HttpMessageFramer.Message notModified, long now) {
+            Head head = Head.parse(notModified.bytes);
+            if (head == null) {
+                return;
+            }
+            long freshness = freshnessMillis;
+            if (head.get("cache-control") != null || head.get("expires") != null) {
+                freshness = freshnessMillis(head, directives(head.get("cache-control")));
+            }
+            if (head.get("etag") != null) {
+                etag = head.get("etag");
+            }
+            update(head, freshness, now);
+        }
+
+        /**
+         * Header line telling the user how old the served response is
+         */
+        public byte[] ageLine(long now) {
+            return ("Age: " + ageMillis(now) / 1000 + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        private void update(Head head, long freshness, long now) {
+            long date = httpDate(head.get("date"));
+            long ageHeader = seconds(head.get("age"));
+            initialAgeMillis = Math.max(Math.max(0, ageHeader) * 1000, date >= 0 ? Math.max(0, now - date) : 0);
+            freshnessMillis = freshness;
+            storedAt = now;
+        }
+    }
+
+    // Host and request target; absolute-form targets already name the host
+    private static String keyOf(Head request) {
+        String[] startLine = request.startLine().split(" ");
+        if (startLine.length < 2) {
+            return null;
+        }
+        String target = startLine[1];
+        if (target.startsWith("http://") || target.startsWith("https://")) {
+            return target;
+        }
+        String host = request.get("host");
+        return (host != null ? host.toLowerCase() : "") + target;
+    }
+
+    private static long freshnessMillis(Head response, Map<String, String> directives) {
+        if (directives.containsKey("no-cache")) {
+            return 0;
+        }
+        long sharedMaxAge = seconds(directives.get("s-maxage"));
+        if (sharedMaxAge >= 0) {
+            return sharedMaxAge * 1000;
+        }
+        long maxAge = seconds(directives.get("max-age"));
+        if (maxAge >= 0) {
+            return maxAge * 1000;
+        }
+        String expires = response.get("expires");
+        if (expires == null) {
+            return 0;
+        }
+        long expiresAt = httpDate(expires);
+        long date = httpDate(response.get("date"));
+        // An invalid Expires means already expired
+        return expiresAt < 0 ? 0 : Math.max(0, expiresAt - (date >= 0 ? date : System.currentTimeMillis()));
+    }
+
+    private static Map<String, String> directives(String cacheControl) {
+        Map<String, String> directives = new HashMap<>();
+        if (cacheControl == null) {
+            return directives;
+        }
+        for (String directive : cacheControl.split(",")) {
+            int equals = directive.indexOf('=');
+            String name = (equals >= 0 ? directive.substring(0, equals) : directive).trim().toLowerCase();
+            String value = equals >= 0 ? directive.substring(equals + 1).trim().replace("\"", "") : "";
+            if (!name.isEmpty()) {
+                directives.put(name, value);
+            }
+        }
+        return directives;
+    }
+
+    private static long seconds(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long httpDate(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private static boolean contains(String value, String token) {
+        return value != null && value.toLowerCase().contains(token);
+    }
+
+    private static String normalize(String value) {
+        return value == null ? "" : value.trim().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * Start line and headers of a message, with where each line sits in the message bytes
+     */
+    private static final class Head {
+        // Per line: start, end without the line break, start of the next line
+        final List<int[]> lines = new ArrayList<>();
+        final Map<String, String> headers = new HashMap<>();
+        private final byte[] message;
+        // Start of the empty line that ends the head
+        private int blankLine;
+
+        private Head(byte[] message) {
+            this.message = message;
+        }
+
+        static Head parse(byte[] message) {
+            Head head = new Head(message);
+            int start = 0;
+            while (start < message.length) {
+                int newline = start;
+                while (newline < message.length && message[newline] != '\n') {
+                    newline++;
+                }
+                if (newline == message.length) {
+                    return null;
+                }
+                int end = newline > start && message[newline - 1] == '\r' ? newline - 1 : newline;
+                if (end == start) {
+                    head.blankLine = start;
+                    return head.lines.isEmpty() ? null : head;
+                }
+                head.lines.add(new int[] {start, end, newline + 1});
+                if (head.lines.size() > 1) {
+                    String line = new String(message, start, end - start, StandardCharsets.ISO_8859_1);
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        head.headers.merge(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim(),
+                            (first, second) -> first + ", " + second);
+                    }
+                }
+                start = newline + 1;
+            }
+            return null;
+        }
+
+        String startLine() {
+            int[] line = lines.get(0);
+            return new String(message, line[0], line[1] - line[0], StandardCharsets.ISO_8859_1);
+        }
+
+        String get(String name) {
+            return headers.get(name);
+        }
+
+        // The message with header lines added at the end of the head
+        byte[] withHeaders(byte[] bytes, String headerLines) {
+            byte[] added = headerLines.getBytes(StandardCharsets.ISO_8859_1);
+            byte[] result = new byte[bytes.length + added.length];
+            System.arraycopy(bytes, 0, result, 0, blankLine);
+            System.arraycopy(added, 0, result, blankLine, added.length);
+            System.arraycopy(bytes, blankLine, result, blankLine + added.length, bytes.length - blankLine);
+            return result;
+        }
+
+        // The message without the header lines of one name
+        byte[] without(byte[] bytes, String name) {
+            if (get(name) == null) {
+                return bytes;
+            }
+            byte[] result = new byte[bytes.length];
+            int length = 0;
+            int copyFrom = 0;
+            for (int i = 1; i < lines.size(); i++) {
+                int[] line = lines.get(i);
+                String text = new String(bytes, line[0], line[1] - line[0], StandardCharsets.ISO_8859_1);
+                int colon = text.indexOf(':');
+                if (colon > 0 && text.substring(0, colon).trim().equalsIgnoreCase(name)) {
+                    System.arraycopy(bytes, copyFrom, result, length, line[0] - copyFrom);
+                    length += line[0] - copyFrom;
+                    copyFrom = line[2];
+                }
+            }
+            System.arraycopy(bytes, copyFrom, result, length, bytes.length - copyFrom);
+            length += bytes.length - copyFrom;
+            return Arrays.copyOf(result, length);
+        }
+    }
+}
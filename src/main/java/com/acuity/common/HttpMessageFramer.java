@@ -0,0 +1,330 @@
+package com.acuity.common;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.ByteProcessor;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * Cuts a byte stream into HTTP/1.1 messages by the messages' own framing: Content-Length, chunked
+ * transfer encoding, or for responses without either, the end of the connection. Bytes are fed as
+ * they arrive and complete messages come out whole and in order. After a protocol upgrade (101, or
+ * a 2xx answer to CONNECT) the framer passes bytes through unparsed.
+ */
+public final class HttpMessageFramer {
+
+    /**
+     * A complete message and the parts of its head the forwarder acts on
+     */
+    public static final class Message {
+        public final byte[] bytes;
+        // Request method; null for responses and pass-through bytes
+        public final String method;
+        // Response status; 0 for requests and pass-through bytes
+        public final int status;
+        // The sender will close the connection after this message
+        public final boolean close;
+
+        public Message(byte[] bytes, String method, int status, boolean close) {
+            this.bytes = bytes;
+            this.method = method;
+            this.status = status;
+            this.close = close;
+        }
+
+        /**
+         * 1xx other than 101: more responses to the same request follow
+         */
+        public boolean isInterim() {
+            return status >= 100 && status < 200 && status != 101;
+        }
+    }
+
+    private enum State { HEAD, FIXED_BODY, CHUNK_SIZE, CHUNK_DATA, TRAILERS, UNTIL_CLOSE, PASSTHROUGH }
+
+    private static final long UNTIL_CLOSE = -2;
+    private static final long CHUNKED = -1;
+
+    private final boolean responses;
+    private final int maxHeaderBytes;
+    private final ByteBuf buffer = Unpooled.buffer();
+    // Responses only: methods of the requests still waiting for their response, oldest first
+    private final ArrayDeque<String> requestMethods = new ArrayDeque<>();
+
+    private State state = State.HEAD;
+    // How far into the buffer the current message has been parsed
+    private int scanIndex;
+    private long remaining;
+    private String method;
+    private int status;
+    private boolean close;
+    private boolean upgrade;
+
+    private HttpMessageFramer(boolean responses, int maxHeaderBytes) {
+        this.responses = responses;
+        this.maxHeaderBytes = maxHeaderBytes;
+    }
+
+    public static HttpMessageFramer requests(int maxHeaderBytes) {
+        return new HttpMessageFramer(false, maxHeaderBytes);
+    }
+
+    public static HttpMessageFramer responses(int maxHeaderBytes) {
+        return new HttpMessageFramer(true, maxHeaderBytes);
+    }
+
+    public void feed(byte[] data) {
+        buffer.writeBytes(data);
+    }
+
+    public void feed(ByteBuf data) {
+        buffer.writeBytes(data);
+    }
+
+    /**
+     * Responses only: a request has been sent, so the next response answers it. Responses to HEAD
+     * carry no body whatever their headers say, so the method decides how the response is framed.
+     */
+    public void expectResponseTo(String requestMethod) {
+        requestMethods.add(requestMethod);
+    }
+
+    /**
+     * Stop parsing and hand every byte through as it arrives
+     */
+    public void passthrough() {
+        state = State.PASSTHROUGH;
+    }
+
+    public boolean isPassthrough() {
+        return state == State.PASSTHROUGH;
+    }
+
+    /**
+     * Next complete message, or null until more bytes arrive
+     *
+     * @throws IOException if the bytes are not HTTP/1.1
+     */
+    public Message next() throws IOException {
+        while (true) {
+            switch (state) {
+                case PASSTHROUGH:
+                    return buffer.isReadable() ? take(buffer.writerIndex(), null, 0, false) : null;
+                case HEAD:
+                    skipEmptyLines();
+                    int headEnd = buffer.indexOf(scanIndex, buffer.writerIndex(), (byte) '\n');
+                    while (headEnd >= 0 && !isHeadEnd(headEnd)) {
+                        headEnd = buffer.indexOf(headEnd + 1, buffer.writerIndex(), (byte) '\n');
+                    }
+                    if (headEnd < 0) {
+                        if (buffer.readableBytes() > maxHeaderBytes) {
+                            throw new IOException("HTTP head exceeds " + maxHeaderBytes + " bytes");
+                        }
+                        scanIndex = Math.max(buffer.readerIndex(), buffer.writerIndex() - 3);
+                        return null;
+                    }
+                    long bodyLength = parseHead(buffer.toString(buffer.readerIndex(), headEnd - buffer.readerIndex(), StandardCharsets.ISO_8859_1));
+                    scanIndex = headEnd + 1;
+                    if (bodyLength == 0) {
+                        return complete();
+                    } else if (bodyLength == CHUNKED) {
+                        state = State.CHUNK_SIZE;
+                    } else if (bodyLength == UNTIL_CLOSE) {
+                        state = State.UNTIL_CLOSE;
+                    } else {
+                        remaining = bodyLength;
+                        state = State.FIXED_BODY;
+                    }
+                    break;
+                case FIXED_BODY:
+                    if (buffer.writerIndex() - scanIndex < remaining) {
+                        return null;
+                    }
+                    scanIndex += (int) remaining;
+                    return complete();
+                case CHUNK_SIZE:
+                    int sizeEnd = buffer.indexOf(scanIndex, buffer.writerIndex(), (byte) '\n');
+                    if (sizeEnd < 0) {
+                        return null;
+                    }
+                    long chunkSize = parseChunkSize(buffer.toString(scanIndex, sizeEnd - scanIndex, StandardCharsets.ISO_8859_1));
+                    scanIndex = sizeEnd + 1;
+                    if (chunkSize == 0) {
+                        state = State.TRAILERS;
+                    } else {
+                        // The chunk is followed by CRLF
+                        remaining = chunkSize + 2;
+                        state = State.CHUNK_DATA;
+                    }
+                    break;
+                case CHUNK_DATA:
+                    if (buffer.writerIndex() - scanIndex < remaining) {
+                        return null;
+                    }
+                    scanIndex += (int) remaining;
+                    state = State.CHUNK_SIZE;
+                    break;
+                case TRAILERS:
+                    int lineEnd = buffer.indexOf(scanIndex, buffer.writerIndex(), (byte) '\n');
+                    if (lineEnd < 0) {
+                        return null;
+                    }
+                    boolean emptyLine = lineEnd == scanIndex || (lineEnd == scanIndex + 1 && buffer.getByte(scanIndex) == '\r');
+                    scanIndex = lineEnd + 1;
+                    if (emptyLine) {
+                        return complete();
+                    }
+                    break;
+                case UNTIL_CLOSE:
+                default:
+                    return null;
+            }
+        }
+    }
+
+    /**
+     * The connection ended: a response framed by the end of the connection is now complete
+     */
+    public Message finish() {
+        if (state == State.UNTIL_CLOSE) {
+            return take(buffer.writerIndex(), null, status, true);
+        }
+        return null;
+    }
+
+    /**
+     * True if a message has been started but not completed
+     */
+    public boolean hasPartialMessage() {
+        return state != State.PASSTHROUGH && buffer.isReadable();
+    }
+
+    public void release() {
+        buffer.release();
+    }
+
+    private Message complete() {
+        Message message = take(scanIndex, method, status, close);
+        state = upgrade ? State.PASSTHROUGH : State.HEAD;
+        upgrade = false;
+        return message;
+    }
+
+    private Message take(int end, String messageMethod, int messageStatus, boolean messageClose) {
+        byte[] bytes = new byte[end - buffer.readerIndex()];
+        buffer.readBytes(bytes);
+        buffer.discardReadBytes();
+        scanIndex = buffer.readerIndex();
+        return new Message(bytes, messageMethod, messageStatus, messageClose);
+    }
+
+    // Robust parsers ignore empty lines before a request line (RFC 9112, section 2.2)
+    private void skipEmptyLines() {
+        if (scanIndex != buffer.readerIndex()) {
+            return;
+        }
+        int start = buffer.forEachByte(buffer.readerIndex(), buffer.readableBytes(), ByteProcessor.FIND_NON_CRLF);
+        buffer.readerIndex(start < 0 ? buffer.writerIndex() : start);
+        scanIndex = buffer.readerIndex();
+    }
+
+    // lineEnd is a '\n'; the head ends if the line before it is empty
+    private boolean isHeadEnd(int lineEnd) {
+        if (lineEnd - 1 >= buffer.readerIndex() && buffer.getByte(lineEnd - 1) == '\n') {
+            return true;
+        }
+        return lineEnd - 2 >= buffer.readerIndex() && buffer.getByte(lineEnd - 1) == '\r' && buffer.getByte(lineEnd - 2) == '\n';
+    }
+
+    /**
+     * Read the start line and headers; returns the body length, CHUNKED or UNTIL_CLOSE
+     */
+    private long parseHead(String head) throws IOException {
+        String[] lines = head.split("\r?\n");
+        String[] startLine = lines[0].split(" ", 3);
+        if (startLine.length < 2) {
+            throw new IOException("Malformed HTTP start line: " + lines[0]);
+        }
+        String version = responses ? startLine[0] : (startLine.length > 2 ? startLine[2].trim() : "HTTP/1.0");
+        if (!version.startsWith("HTTP/1.")) {
+            throw new IOException("Unsupported HTTP version: " + lines[0]);
+        }
+
+        boolean chunked = false;
+        long contentLength = -1;
+        boolean connectionClose = false;
+        boolean keepAlive = false;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim().toLowerCase();
+            String value = lines[i].substring(colon + 1).trim().toLowerCase();
+            if (name.equals("transfer-encoding")) {
+                String[] codings = value.split(",");
+                chunked = codings[codings.length - 1].trim().equals("chunked");
+            } else if (name.equals("content-length")) {
+                try {
+                    contentLength = Long.parseLong(value.split(",")[0].trim());
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid Content-Length: " + value);
+                }
+            } else if (name.equals("connection")) {
+                connectionClose |= value.contains("close");
+                keepAlive |= value.contains("keep-alive");
+            }
+        }
+        close = connectionClose || (version.equals("HTTP/1.0") && !keepAlive);
+
+        if (!responses) {
+            method = startLine[0];
+            status = 0;
+            return chunked ? CHUNKED : Math.max(0, contentLength);
+        }
+
+        method = null;
+        try {
+            status = Integer.parseInt(startLine[1].trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed HTTP status line: " + lines[0]);
+        }
+        if (status >= 100 && status < 200) {
+            // Interim responses leave the request waiting for its final response; 101 switches protocols
+            upgrade = status == 101;
+            if (upgrade) {
+                requestMethods.poll();
+            }
+            return 0;
+        }
+        String requestMethod = requestMethods.poll();
+        if ("CONNECT".equals(requestMethod) && status < 300) {
+            upgrade = true;
+            return 0;
+        }
+        if ("HEAD".equals(requestMethod) || status == 204 || status == 304) {
+            return 0;
+        }
+        if (chunked) {
+            return CHUNKED;
+        }
+        if (contentLength >= 0) {
+            return contentLength;
+        }
+        close = true;
+        return UNTIL_CLOSE;
+    }
+
+    private static long parseChunkSize(String line) throws IOException {
+        int end = line.indexOf(';');
+        String size = (end >= 0 ? line.substring(0, end) : line).trim();
+        try {
+            return Long.parseLong(size, 16);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid chunk size: " + line);
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.acuity.common;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accounts for the bytes that in-flight data holds in memory: in total, per group, per user connection
+ * and per stream. Buffers reserve their bytes through a {@link Lease} before allocating them, and a
+ * reservation that would take any level over its limit is refused as a whole. What a peer announces or
+ * sends can therefore never make the process hold more than the budget. Thread-safe.
+ */
+public class MemoryBudget {
+    private static final Logger logger = LoggerFactory.getLogger(MemoryBudget.class);
+
+    private final String name;
+    private final AtomicLong used = new AtomicLong();
+    // Bytes held per group and per user connection; entries go away once they drop to 0
+    private final Map<String, Long> groups = new ConcurrentHashMap<>();
+    private final Map<String, Long> users = new ConcurrentHashMap<>();
+    private final AtomicLong peak = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private long lastLoggedRefused;
+    private boolean lastLoggedIdle = true;
+
+    /**
+     * @param name prefix of the usage log lines, e.g. "TunnelServer"
+     */
+    public MemoryBudget(String name) {
+        this.name = name;
+    }
+
+    /**
+     * An empty lease for a stream of a user connection in a group; it holds nothing until it reserves.
+     * A null group or user leaves that level out, e.g. for buffers of a whole tunnel connection.
+     */
+    public Lease open(Limits limits, String groupId, String userId) {
+        return new Lease(limits, groupId, userId);
+    }
+
+    /**
+     * True when the group, the user or the whole process is at or over its limit, so producers of
+     * more data for them should pause
+     */
+    public boolean isExhausted(Limits limits, String groupId, String userId) {
+        return over(used.get(), limits.globalBytes)
+            || over(usedByGroup(groupId), limits.perGroupBytes)
+            || over(usedByUser(userId), limits.perUserBytes);
+    }
+
+    private static boolean over(long held, long limit) {
+        return limit != Limits.UNLIMITED && held >= limit;
+    }
+
+    public long used() {
+        return used.get();
+    }
+
+    public long usedByGroup(String groupId) {
+        return groupId != null ? groups.getOrDefault(groupId, 0L) : 0;
+    }
+
+    public long usedByUser(String userId) {
+        return userId != null ? users.getOrDefault(userId, 0L) : 0;
+    }
+
+    /**
+     * Number of reservations refused so far
+     */
+    public long refused() {
+        return refused.get();
+    }
+
+    /**
+     * Take bytes at every level, or nothing if any level would go over its limit
+     */
+    private boolean take(Limits limits, String groupId, String userId, long bytes, boolean enforce) {
+        long total = used.addAndGet(bytes);
+        if (enforce && limits.globalBytes != Limits.UNLIMITED && total > limits.globalBytes) {
+            used.addAndGet(-bytes);
+            refused.incrementAndGet();
+            return false;
+        }
+        if (!add(groups, groupId, bytes, enforce ? limits.perGroupBytes : Limits.UNLIMITED)) {
+            used.addAndGet(-bytes);
+            refused.incrementAndGet();
+            return false;
+        }
+        if (!add(users, userId, bytes, enforce ? limits.perUserBytes : Limits.UNLIMITED)) {
+            add(groups, groupId, -bytes, Limits.UNLIMITED);
+            used.addAndGet(-bytes);
+            refused.incrementAndGet();
+            return false;
+        }
+        peak.accumulateAndGet(total, Math::max);
+        return true;
+    }
+
+    private void give(String groupId, String userId, long bytes) {
+        add(users, userId, -bytes, Limits.UNLIMITED);
+        add(groups, groupId, -bytes, Limits.UNLIMITED);
+        used.addAndGet(-bytes);
+    }
+
+    private static boolean add(Map<String, Long> counters, String key, long bytes, long limit) {
+        if (key == null) {
+            return true;
+        }
+        boolean[] added = {true};
+        counters.compute(key, (k, held) -> {
+            long current = held != null ? held : 0;
+            if (bytes > 0 && limit != Limits.UNLIMITED && current + bytes > limit) {
+                added[0] = false;
+                return held;
+            }
+            long updated = current + bytes;
+            return updated == 0 ? null : updated;
+        });
+        return added[0];
+    }
+
+    /**
+     * Log usage if anything is held or was refused since the last time
+     */
+    public synchronized void logStats() {
+        long refusedNow = refused.get();
+        boolean idle = used.get() == 0;
+        if (idle && lastLoggedIdle && refusedNow == lastLoggedRefused) {
+            return;
+        }
+        lastLoggedRefused = refusedNow;
+        lastLoggedIdle = idle;
+        logger.info("[{}] Memory budget: {}", name, this);
+    }
+
+    @Override
+    public String toString() {
+        return "used=" + used.get() + ", peak=" + peak.get() + ", refused=" + refused.get() +
+            ", groups=" + groups + ", users=" + users.size();
+    }
+
+    /**
+     * Bytes held for one stream. Reservations grow it as its buffer grows; closing it gives everything back.
+     */
+    public final class Lease {
+        private final Limits limits;
+        private final String groupId;
+        private final String userId;
+        private long bytes;
+        private boolean closed;
+
+        private Lease(Limits limits, String groupId, String userId) {
+            this.limits = limits;
+            this.groupId = groupId;
+            this.userId = userId;
+        }
+
+        /**
+         * Hold more bytes if the stream, its user, its group and the process all stay within their limits
+         */
+        public synchronized boolean reserve(long more) {
+            if (closed || more < 0) {
+                return false;
+            }
+            if (limits.perStreamBytes != Limits.UNLIMITED && bytes + more > limits.perStreamBytes) {
+                refused.incrementAndGet();
+                return false;
+            }
+            if (!take(limits, groupId, userId, more, true)) {
+                return false;
+            }
+            bytes += more;
+            return true;
+        }
+
+        /**
+         * Count bytes that are already held and cannot be refused, such as frames queued for writing
+         */
+        public synchronized void charge(long more) {
+            if (!closed) {
+                take(limits, groupId, userId, more, false);
+                bytes += more;
+            }
+        }
+
+        /**
+         * Give back part of what is held
+         */
+        public synchronized void release(long fewer) {
+            long released = Math.min(fewer, bytes);
+            if (released > 0) {
+                give(groupId, userId, released);
+                bytes -= released;
+            }
+        }
+
+        /**
+         * Give back everything; later reservations are refused
+         */
+        public synchronized void close() {
+            release(bytes);
+            closed = true;
+        }
+
+        public synchronized long bytes() {
+            return bytes;
+        }
+    }
+
+    /**
+     * Limits in bytes for the whole process, per group, per user connection and per stream. A limit of 0 means unlimited.
+     */
+    public static final class Limits {
+        public static final long UNLIMITED = 0;
+        public static final long DEFAULT_GLOBAL_BYTES = 1024L * 1024 * 1024;
+        public static final long DEFAULT_PER_STREAM_BYTES = 256L * 1024 * 1024;
+
+        private final long globalBytes;
+        private final long perGroupBytes;
+        private final long perUserBytes;
+        private final long perStreamBytes;
+
+        public Limits(long globalBytes, long perGroupBytes, long perUserBytes, long perStreamBytes) {
+            this.globalBytes = globalBytes;
+            this.perGroupBytes = perGroupBytes;
+            this.perUserBytes = perUserBytes;
+            this.perStreamBytes = perStreamBytes;
+        }
+
+        public static Limits defaults() {
+            return new Limits(DEFAULT_GLOBAL_BYTES, UNLIMITED, UNLIMITED, DEFAULT_PER_STREAM_BYTES);
+        }
+
+        public static Limits unlimited() {
+            return new Limits(UNLIMITED, UNLIMITED, UNLIMITED, UNLIMITED);
+        }
+
+        public long getGlobalBytes() {
+            return globalBytes;
+        }
+
+        public long getPerGroupBytes() {
+            return perGroupBytes;
+        }
+
+        public long getPerUserBytes() {
+            return perUserBytes;
+        }
+
+        public long getPerStreamBytes() {
+            return perStreamBytes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Limits)) {
+                return false;
+            }
+            Limits other = (Limits) o;
+            return globalBytes == other.globalBytes && perGroupBytes == other.perGroupBytes
+                && perUserBytes == other.perUserBytes && perStreamBytes == other.perStreamBytes;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(globalBytes, perGroupBytes, perUserBytes, perStreamBytes);
+        }
+
+        @Override
+        public String toString() {
+            return "global=" + globalBytes + ", perGroup=" + perGroupBytes + ", perUser=" + perUserBytes + ", perStream=" + perStreamBytes;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.acuity.common;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.incubator.codec.quic.InsecureQuicTokenHandler;
+import io.netty.incubator.codec.quic.QuicClientCodecBuilder;
+import io.netty.incubator.codec.quic.QuicServerCodecBuilder;
+import io.netty.incubator.codec.quic.QuicSslContext;
+import io.netty.incubator.codec.quic.QuicSslContextBuilder;
+
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * QUIC settings shared by the tunnel server and client.
+ *
+ * Over QUIC every tunnel stream travels on a QUIC stream of its own, so a lost packet only stalls the
+ * stream it belongs to instead of every stream on the connection. QUIC requires TLS: the server uses the
+ * configured certificate or a generated self-signed one, and the client checks it against a pinned
+ * certificate if one is configured. Tunnel frames are encrypted with the shared key inside TLS, as on TCP.
+ */
+public final class QuicTransport {
+    public static final String APPLICATION_PROTOCOL = "acuity-tunnel";
+
+    // Flow-control windows for the whole connection and for each stream
+    private static final long MAX_DATA = 64L * 1024 * 1024;
+    private static final long MAX_STREAM_DATA = 4L * 1024 * 1024;
+    // Concurrent streams a peer may open; the limit is raised again as streams close
+    private static final long MAX_STREAMS = 100_000;
+    // Idle timeout when heartbeats are disabled
+    private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 300_000;
+
+    private QuicTransport() {
+    }
+
+    /**
+     * Build the server codec; certFile and keyFile (PEM, PKCS#8 key) may be empty to use a self-signed certificate
+     */
+    public static QuicServerCodecBuilder serverCodecBuilder(String certFile, String keyFile, long heartbeatSeconds) throws GeneralSecurityException {
+        QuicSslContext sslContext;
+        if (certFile == null || certFile.isEmpty()) {
+            SelfSignedCertificate certificate = new SelfSignedCertificate();
+            sslContext = QuicSslContextBuilder.forServer(certificate.privateKey(), null, certificate.certificate())
+                .applicationProtocols(APPLICATION_PROTOCOL).build();
+        } else {
+            sslContext = QuicSslContextBuilder.forServer(new File(keyFile), null, new File(certFile))
+                .applicationProtocols(APPLICATION_PROTOCOL).build();
+        }
+        return new QuicServerCodecBuilder()
+            .sslContext(sslContext)
+            .maxIdleTimeout(idleTimeoutMillis(heartbeatSeconds), TimeUnit.MILLISECONDS)
+            .initialMaxData(MAX_DATA)
+            .initialMaxStreamDataBidirectionalLocal(MAX_STREAM_DATA)
+            .initialMaxStreamDataBidirectionalRemote(MAX_STREAM_DATA)
+            .initialMaxStreamsBidirectional(MAX_STREAMS)
+            .tokenHandler(InsecureQuicTokenHandler.INSTANCE);
+    }
+
+    /**
+     * Build the client codec for one datagram channel; trustCertFile may be empty to accept any server certificate
+     */
+    public static ChannelHandler clientCodec(String trustCertFile, long heartbeatSeconds) throws GeneralSecurityException, IOException {
+        QuicSslContextBuilder ssl = QuicSslContextBuilder.forClient().applicationProtocols(APPLICATION_PROTOCOL);
+        if (trustCertFile == null || trustCertFile.isEmpty()) {
+            ssl.trustManager(InsecureTrustManagerFactory.INSTANCE);
+        } else {
+            ssl.trustManager(trustManagerFor(trustCertFile));
+        }
+        return new QuicClientCodecBuilder()
+            .sslContext(ssl.build())
+            .maxIdleTimeout(idleTimeoutMillis(heartbeatSeconds), TimeUnit.MILLISECONDS)
+            .initialMaxData(MAX_DATA)
+            .initialMaxStreamDataBidirectionalLocal(MAX_STREAM_DATA)
+            .initialMaxStreamDataBidirectionalRemote(MAX_STREAM_DATA)
+            // The server opens a stream per tunnel stream
+            .initialMaxStreamsBidirectional(MAX_STREAMS)
+            .build();
+    }
+
+    /**
+     * A connection is dropped after three missed heartbeats
+     */
+    static long idleTimeoutMillis(long heartbeatSeconds) {
+        return heartbeatSeconds > 0 ? TimeUnit.SECONDS.toMillis(heartbeatSeconds * 3) : DEFAULT_IDLE_TIMEOUT_MILLIS;
+    }
+
+    private static TrustManagerFactory trustManagerFor(String certFile) throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        keyStore.load(null, null);
+        try (InputStream in = new FileInputStream(certFile)) {
+            int index = 0;
+            for (Certificate certificate : CertificateFactory.getInstance("X.509").generateCertificates(in)) {
+                keyStore.setCertificateEntry("tunnel-server-" + index++, certificate);
+            }
+        }
+        TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init(keyStore);
+        return factory;
+    }
+}
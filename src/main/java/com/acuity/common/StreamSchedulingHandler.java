@@ -0,0 +1,232 @@
+package com.acuity.common;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.DefaultByteBufHolder;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.AttributeKey;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Outbound scheduler for the frames of many streams sharing one tunnel channel.
+ *
+ * Stream frames wrapped with {@link #frame} are queued per stream and released by deficit round-robin
+ * while the channel is writable, so a bulk transfer can only hold the socket for one quantum at a time
+ * and small interactive responses go out between its chunks instead of behind all of them. Interactive
+ * streams get interactiveWeight quanta per round. Frames of one stream keep their order; anything not
+ * wrapped (control messages) is written straight through. Queued bytes can be counted against a
+ * {@link MemoryBudget}, so producers can pause while the tunnel is backed up.
+ * Must sit after FrameBatchingHandler in the pipeline so outbound writes reach it first.
+ */
+public class StreamSchedulingHandler extends ChannelDuplexHandler {
+    public static final int DEFAULT_QUANTUM_BYTES = 16 * 1024;
+    public static final int DEFAULT_INTERACTIVE_WEIGHT = 8;
+
+    private static final AttributeKey<Boolean> SCHEDULED_KEY = AttributeKey.valueOf("acuity.streamScheduling");
+
+    public enum Priority {
+        // Responses small enough to go out as a single frame
+        INTERACTIVE,
+        // Chunked transfers
+        BULK
+    }
+
+    private final int quantumBytes;
+    private final int interactiveWeight;
+    // Bytes waiting in the queues, or null if they are not accounted
+    private final MemoryBudget.Lease queuedMemory;
+
+    // Streams with queued frames, by stream key, and the order they are visited in
+    private final Map<String, StreamQueue> queues = new HashMap<>();
+    private final ArrayDeque<StreamQueue> rounds = new ArrayDeque<>();
+    private boolean drainScheduled;
+
+    public StreamSchedulingHandler() {
+        this(DEFAULT_QUANTUM_BYTES, DEFAULT_INTERACTIVE_WEIGHT);
+    }
+
+    public StreamSchedulingHandler(int quantumBytes, int interactiveWeight) {
+        this(quantumBytes, interactiveWeight, null);
+    }
+
+    public StreamSchedulingHandler(int quantumBytes, int interactiveWeight, MemoryBudget.Lease queuedMemory) {
+        this.quantumBytes = quantumBytes;
+        this.interactiveWeight = interactiveWeight;
+        this.queuedMemory = queuedMemory;
+    }
+
+    /**
+     * Wrap a stream frame for scheduling if the channel has a scheduler, otherwise return the frame as is
+     */
+    public static Object frame(Channel channel, String streamKey, Priority priority, ByteBuf frame) {
+        if (!Boolean.TRUE.equals(channel.attr(SCHEDULED_KEY).get())) {
+            return frame;
+        }
+        return new StreamFrame(streamKey, priority, frame);
+    }
+
+    /**
+     * Have {@link #frame} tag the stream frames written to a channel, for an outbound handler that routes them by stream
+     */
+    public static void enableStreamFrames(Channel channel) {
+        channel.attr(SCHEDULED_KEY).set(Boolean.TRUE);
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        enableStreamFrames(ctx.channel());
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        ctx.channel().attr(SCHEDULED_KEY).set(null);
+        failQueued(new ClosedChannelException());
+        if (queuedMemory != null) {
+            queuedMemory.close();
+        }
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (!(msg instanceof StreamFrame)) {
+            ctx.write(msg, promise);
+            return;
+        }
+
+        StreamFrame frame = (StreamFrame) msg;
+        StreamQueue queue = queues.get(frame.streamKey);
+        if (queue == null) {
+            int weight = frame.priority == Priority.INTERACTIVE ? interactiveWeight : 1;
+            queue = new StreamQueue(frame.streamKey, quantumBytes * weight);
+            queues.put(frame.streamKey, queue);
+            rounds.addLast(queue);
+        }
+        QueuedFrame queued = new QueuedFrame(frame.content(), promise);
+        queue.frames.addLast(queued);
+        if (queuedMemory != null) {
+            // Already in memory, so it is counted rather than refused
+            queuedMemory.charge(queued.bytes);
+        }
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) {
+        drain(ctx);
+        ctx.flush();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable() && !rounds.isEmpty() && !drainScheduled) {
+            // This fires from inside the socket write; drain from a task so writes queued meanwhile get their turn
+            drainScheduled = true;
+            ctx.executor().execute(() -> {
+                drainScheduled = false;
+                drain(ctx);
+                ctx.flush();
+            });
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        failQueued(new ClosedChannelException());
+        super.channelInactive(ctx);
+    }
+
+    /**
+     * Deficit round-robin over the queued streams until they are empty or the channel stops being writable
+     */
+    private void drain(ChannelHandlerContext ctx) {
+        while (!rounds.isEmpty() && ctx.channel().isWritable()) {
+            StreamQueue queue = rounds.pollFirst();
+            queue.deficit += queue.quantum;
+            QueuedFrame next;
+            while ((next = queue.frames.peekFirst()) != null && next.bytes <= queue.deficit) {
+                queue.frames.pollFirst();
+                queue.deficit -= next.bytes;
+                unqueued(next);
+                ctx.write(next.frame, next.promise);
+            }
+            if (queue.frames.isEmpty()) {
+                queues.remove(queue.streamKey);
+            } else {
+                rounds.addLast(queue);
+            }
+        }
+    }
+
+    private void failQueued(Throwable cause) {
+        for (StreamQueue queue : rounds) {
+            for (QueuedFrame queued : queue.frames) {
+                unqueued(queued);
+                queued.frame.release();
+                queued.promise.tryFailure(cause);
+            }
+        }
+        rounds.clear();
+        queues.clear();
+    }
+
+    private void unqueued(QueuedFrame frame) {
+        if (queuedMemory != null) {
+            queuedMemory.release(frame.bytes);
+        }
+    }
+
+    /**
+     * Number of streams with frames waiting to be written
+     */
+    public int getQueuedStreams() {
+        return rounds.size();
+    }
+
+    /**
+     * A frame tagged with its stream. A holder, so the frame is still released if the write fails before it is routed.
+     */
+    public static final class StreamFrame extends DefaultByteBufHolder {
+        final String streamKey;
+        final Priority priority;
+
+        StreamFrame(String streamKey, Priority priority, ByteBuf frame) {
+            super(frame);
+            this.streamKey = streamKey;
+            this.priority = priority;
+        }
+
+        public String streamKey() {
+            return streamKey;
+        }
+    }
+
+    private static final class StreamQueue {
+        final String streamKey;
+        final int quantum;
+        final ArrayDeque<QueuedFrame> frames = new ArrayDeque<>();
+        long deficit;
+
+        StreamQueue(String streamKey, int quantum) {
+            this.streamKey = streamKey;
+            this.quantum = quantum;
+        }
+    }
+
+    private static final class QueuedFrame {
+        final ByteBuf frame;
+        final ChannelPromise promise;
+        final int bytes;
+
+        QueuedFrame(ByteBuf frame, ChannelPromise promise) {
+            this.frame = frame;
+            this.promise = promise;
+            this.bytes = frame.readableBytes();
+        }
+    }
+}
@@ -1,16 +1,52 @@
 package com.acuity.common;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.TooLongFrameException;
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import java.util.List;
 
 /**
  * Netty handler for decrypting and decompressing incoming tunnel messages
- * Format: [1 byte compression flag][4 bytes encrypted length][encrypted data]
+ * Format: [1 byte flags][4 bytes encrypted length][encrypted data]
+ * Batched frames are split back into individual tunnel frames.
+ * Plain frames are only accepted on channels that negotiated them, and are passed on as slices of the read buffer.
+ * The length comes from the peer, so a frame longer than the configured maximum closes the channel instead of
+ * being buffered.
  */
 public class SymmetricDecryptionHandler extends ByteToMessageDecoder {
+    private static final Logger logger = LoggerFactory.getLogger(SymmetricDecryptionHandler.class);
+
+    // Set on a channel whose peer may send plain frames
+    private static final AttributeKey<Boolean> PLAIN_ALLOWED_KEY = AttributeKey.valueOf("acuity.plainFramesAllowed");
+
+    public static final int DEFAULT_MAX_FRAME_BYTES = 16 * 1024 * 1024;
+
+    private final int maxFrameBytes;
+
+    public SymmetricDecryptionHandler() {
+        this(DEFAULT_MAX_FRAME_BYTES);
+    }
+
+    /**
+     * @param maxFrameBytes longest encrypted frame, and longest frame once decompressed, the peer may send
+     */
+    public SymmetricDecryptionHandler(int maxFrameBytes) {
+        this.maxFrameBytes = maxFrameBytes;
+    }
+
+    /**
+     * Accept plain frames on the channel from now on
+     */
+    public static void acceptPlain(Channel channel) {
+        channel.attr(PLAIN_ALLOWED_KEY).set(Boolean.TRUE);
+    }
+
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
         // Need at least 1 byte for compression flag + 4 bytes for length
@@ -20,38 +56,109 @@ public class SymmetricDecryptionHandler extends ByteToMessageDecoder {
 
         in.markReaderIndex();
 
-        // Read compression flag (1 byte)
-        byte compressionFlag = in.readByte();
-        boolean isCompressed = (compressionFlag & 0xFF) == 1;
+        // Read flags (1 byte)
+        byte flags = in.readByte();
+        boolean isCompressed = (flags & SymmetricEncryptionHandler.FLAG_COMPRESSED) != 0;
+        boolean isBatch = (flags & SymmetricEncryptionHandler.FLAG_BATCH) != 0;
+        boolean isPlain = (flags & SymmetricEncryptionHandler.FLAG_PLAIN) != 0;
+        boolean isDictionary = (flags & SymmetricEncryptionHandler.FLAG_DICTIONARY) != 0;
 
         // Read message length (4 bytes)
         int messageLength = in.readInt();
+        if (messageLength < 0 || messageLength > maxFrameBytes) {
+            // The stream cannot be resynchronized; drop what is buffered rather than wait for the rest
+            in.skipBytes(in.readableBytes());
+            ctx.close();
+            if (messageLength < 0) {
+                throw new CorruptedFrameException("Negative frame length: " + messageLength);
+            }
+            throw new TooLongFrameException("Frame length " + messageLength + " exceeds " + maxFrameBytes + " bytes");
+        }
 
         if (in.readableBytes() < messageLength) {
             in.resetReaderIndex();
             return; // Wait for more data
         }
 
-        byte[] encryptedData = new byte[messageLength];
-        in.readBytes(encryptedData);
+        if (isPlain) {
+            if (!Boolean.TRUE.equals(ctx.channel().attr(PLAIN_ALLOWED_KEY).get())) {
+                // An unencrypted frame where encryption is required; the peer cannot be trusted
+                throw new CorruptedFrameException("Plain frame on a channel that requires encryption");
+            }
+            ByteBuf plaintext = in.readRetainedSlice(messageLength);
+            if (isBatch) {
+                try {
+                    splitBatch(plaintext, out);
+                } finally {
+                    plaintext.release();
+                }
+            } else {
+                out.add(plaintext);
+            }
+            return;
+        }
+
+        // Decrypt straight out of the cumulation buffer into a pooled buffer
+        ByteBuf encryptedData = in.readSlice(messageLength);
+        ByteBuf decryptedData = ctx.alloc().directBuffer(messageLength);
 
         try {
             // Decrypt the data
-            byte[] decryptedData = SymmetricEncryption.decrypt(encryptedData);
+            SymmetricEncryption.decrypt(encryptedData, decryptedData);
 
             // Decompress if needed
-            if (isCompressed) {
-                byte[] decompressedData = DataCompression.decompress(decryptedData);
-                System.out.println("[Decompression] Decrypted data: compressed=" + decryptedData.length +
-                    " bytes, decompressed=" + decompressedData.length + " bytes, ratio=" +
-                    String.format("%.2f%%", DataCompression.getCompressionRatio(decompressedData.length, decryptedData.length)));
-                out.add(Unpooled.copiedBuffer(decompressedData));
+            ByteBuf plaintext;
+            if (isDictionary) {
+                int compressedLength = decryptedData.readableBytes();
+                plaintext = DataCompression.decompress(decryptedData, ctx.alloc(), id -> CompressionDictionary.lookup(ctx.channel(), id), maxFrameBytes);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("[Decompression] Decrypted dictionary frame: compressed={} bytes, decompressed={} bytes, ratio={}",
+                        compressedLength, plaintext.readableBytes(),
+                        String.format("%.2f%%", DataCompression.getCompressionRatio(plaintext.readableBytes(), compressedLength)));
+                }
+            } else if (isCompressed) {
+                int compressedLength = decryptedData.readableBytes();
+                plaintext = DataCompression.decompress(decryptedData, ctx.alloc(), maxFrameBytes);
+                if (logger.isDebugEnabled()) {
+                    logger.debug("[Decompression] Decrypted data: compressed={} bytes, decompressed={} bytes, ratio={}",
+                        compressedLength, plaintext.readableBytes(),
+                        String.format("%.2f%%", DataCompression.getCompressionRatio(plaintext.readableBytes(), compressedLength)));
+                }
             } else {
-                out.add(Unpooled.copiedBuffer(decryptedData));
+                plaintext = decryptedData.retain();
+            }
+            CompressionDictionary.offer(ctx.channel(), plaintext);
+
+            if (isBatch) {
+                try {
+                    splitBatch(plaintext, out);
+                } finally {
+                    plaintext.release();
+                }
+            } else {
+                out.add(plaintext);
             }
         } catch (Exception e) {
             System.err.println("Decryption/Decompression failed: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            decryptedData.release();
+        }
+    }
+
+    /**
+     * Emit each length-prefixed frame of a batch as a retained slice of the batch buffer
+     */
+    private static void splitBatch(ByteBuf batch, List<Object> out) {
+        while (batch.isReadable()) {
+            if (batch.readableBytes() < 4) {
+                throw new CorruptedFrameException("Truncated frame length in batch");
+            }
+            int frameLength = batch.readInt();
+            if (frameLength < 0 || frameLength > batch.readableBytes()) {
+                throw new CorruptedFrameException("Invalid frame length in batch: " + frameLength);
+            }
+            out.add(batch.readRetainedSlice(frameLength));
         }
     }
 }
@@ -1,9 +1,12 @@
 package com.acuity.common;
 
+import io.netty.buffer.ByteBuf;
+
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.util.Base64;
 
@@ -14,6 +17,12 @@ public class SymmetricEncryption {
     private static final String ALGORITHM = "AES";
     private static final int KEY_SIZE = 256;
     private static final String TRANSFORMATION = "AES/ECB/PKCS5Padding";
+    private static final int BLOCK_SIZE = 16;
+    private static final ByteBuffer EMPTY_INPUT = ByteBuffer.allocate(0);
+
+    // Cipher instances are reused per thread; they are re-initialized with the current key on every use
+    private static final ThreadLocal<Cipher> encryptCiphers = new ThreadLocal<>();
+    private static final ThreadLocal<Cipher> decryptCiphers = new ThreadLocal<>();
 
     private static SecretKey secretKey;
 
@@ -82,4 +91,51 @@ public class SymmetricEncryption {
     public static byte[] decryptFromString(String encryptedData) throws Exception {
         return decrypt(Base64.getDecoder().decode(encryptedData));
     }
+
+    /**
+     * Length of the ciphertext produced for a plaintext of the given length (PKCS5 always adds padding)
+     */
+    public static int getEncryptedLength(int plaintextLength) {
+        return (plaintextLength / BLOCK_SIZE + 1) * BLOCK_SIZE;
+    }
+
+    /**
+     * Encrypt the readable bytes of in directly into out, without intermediate byte arrays.
+     * Composite inputs are processed component by component.
+     */
+    public static void encrypt(ByteBuf in, ByteBuf out) throws Exception {
+        transform(cipher(encryptCiphers, Cipher.ENCRYPT_MODE), in, out);
+    }
+
+    /**
+     * Decrypt the readable bytes of in directly into out
+     */
+    public static void decrypt(ByteBuf in, ByteBuf out) throws Exception {
+        transform(cipher(decryptCiphers, Cipher.DECRYPT_MODE), in, out);
+    }
+
+    private static Cipher cipher(ThreadLocal<Cipher> ciphers, int mode) throws Exception {
+        Cipher cipher = ciphers.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(TRANSFORMATION);
+            ciphers.set(cipher);
+        }
+        cipher.init(mode, getOrGenerateKey());
+        return cipher;
+    }
+
+    private static void transform(Cipher cipher, ByteBuf in, ByteBuf out) throws Exception {
+        int outputLength = cipher.getOutputSize(in.readableBytes());
+        out.ensureWritable(outputLength);
+        ByteBuffer output = out.nioBuffer(out.writerIndex(), outputLength);
+
+        int written = 0;
+        for (ByteBuffer input : in.nioBuffers()) {
+            written += cipher.update(input, output);
+        }
+        written += cipher.doFinal(EMPTY_INPUT, output);
+
+        in.skipBytes(in.readableBytes());
+        out.writerIndex(out.writerIndex() + written);
+    }
 }
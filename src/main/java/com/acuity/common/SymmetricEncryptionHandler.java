@@ -1,59 +1,163 @@
 package com.acuity.common;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.MessageToByteEncoder;
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Netty handler for compressing and encrypting outgoing tunnel messages
- * Format: [1 byte compression flag][4 bytes encrypted length][encrypted data]
+ * Format: [1 byte flags][4 bytes encrypted length][encrypted data]
+ * Flags: bit 0 = compressed, bit 1 = FrameBatch of length-prefixed frames, bit 2 = plain (neither encrypted nor compressed),
+ * bit 3 = compressed with the connection's {@link CompressionDictionary}
+ *
+ * Once a connection has negotiated plain frames (a group the server trusts), frames are written as the header
+ * followed by the message buffer itself, so the payload reaches the socket without being copied.
  */
-public class SymmetricEncryptionHandler extends MessageToByteEncoder<ByteBuf> {
+public class SymmetricEncryptionHandler extends MessageToByteEncoder<Object> {
+    private static final Logger logger = LoggerFactory.getLogger(SymmetricEncryptionHandler.class);
 
     // Compression threshold: compress if data > 1KB
-    private static final int COMPRESSION_THRESHOLD = 1024;
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    // With a dictionary even small frames shrink: compress if data > 64 bytes
+    public static final int DEFAULT_DICTIONARY_THRESHOLD = 64;
+
+    // Process-wide compression policy, replaceable at runtime when the configuration is reloaded
+    private static volatile boolean compressionEnabled = true;
+    private static volatile int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    private static volatile int dictionaryThreshold = DEFAULT_DICTIONARY_THRESHOLD;
+
+    public static final int FLAG_COMPRESSED = 0x01;
+    public static final int FLAG_BATCH = 0x02;
+    public static final int FLAG_PLAIN = 0x04;
+    public static final int FLAG_DICTIONARY = 0x08;
+
+    // Set on a channel once both ends have agreed to exchange plain frames
+    private static final AttributeKey<Boolean> PLAIN_KEY = AttributeKey.valueOf("acuity.plainFrames");
+
+    // Flags (1 byte) + encrypted length (4 bytes)
+    private static final int FRAME_HEADER_LENGTH = 5;
+
+    @Override
+    public boolean acceptOutboundMessage(Object msg) {
+        return msg instanceof ByteBuf || msg instanceof FrameBatch;
+    }
+
+    /**
+     * Write the channel's following frames in plain mode
+     */
+    public static void sendPlain(Channel channel) {
+        channel.attr(PLAIN_KEY).set(Boolean.TRUE);
+    }
+
+    public static boolean isPlain(Channel channel) {
+        return Boolean.TRUE.equals(channel.attr(PLAIN_KEY).get());
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (acceptOutboundMessage(msg) && isPlain(ctx.channel())) {
+            writePlain(ctx, msg, promise);
+        } else {
+            super.write(ctx, msg, promise);
+        }
+    }
+
+    /**
+     * Frame the message without copying it: the header and the message's own buffer go out as one composite
+     */
+    private static void writePlain(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        // The message's reference moves into the composite
+        ByteBuf payload = plaintextOf(msg);
+        ByteBuf header = ctx.alloc().directBuffer(FRAME_HEADER_LENGTH)
+            .writeByte(FLAG_PLAIN | (msg instanceof FrameBatch ? FLAG_BATCH : 0))
+            .writeInt(payload.readableBytes());
+        CompositeByteBuf frame = ctx.alloc().compositeDirectBuffer(2).addComponents(true, header, payload);
+        ctx.write(frame, promise);
+    }
+
+    @Override
+    protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, Object msg, boolean preferDirect) {
+        // Size for the uncompressed case so the frame never needs to grow
+        return ctx.alloc().directBuffer(FRAME_HEADER_LENGTH + SymmetricEncryption.getEncryptedLength(plaintextOf(msg).readableBytes()));
+    }
 
     @Override
-    protected void encode(ChannelHandlerContext ctx, ByteBuf msg, ByteBuf out) throws Exception {
-        byte[] plaintext = new byte[msg.readableBytes()];
-        msg.readBytes(plaintext);
+    protected void encode(ChannelHandlerContext ctx, Object frame, ByteBuf out) throws Exception {
+        ByteBuf msg = plaintextOf(frame);
+        int plaintextLength = msg.readableBytes();
+        ByteBuf compressedData = null;
 
         try {
+            CompressionDictionary.offer(ctx.channel(), msg);
             // Determine if compression should be applied
-            boolean shouldCompress = plaintext.length > COMPRESSION_THRESHOLD;
-            byte[] dataToEncrypt = plaintext;
+            CompressionDictionary dictionary = compressionEnabled ? CompressionDictionary.sending(ctx.channel()) : null;
+            boolean shouldCompress = compressionEnabled && plaintextLength > (dictionary != null ? dictionaryThreshold : compressionThreshold);
+            ByteBuf dataToEncrypt = msg;
 
             if (shouldCompress) {
-                byte[] compressedData = DataCompression.compress(plaintext);
+                compressedData = ctx.alloc().directBuffer(plaintextLength);
+                if (dictionary != null) {
+                    DataCompression.compress(msg, compressedData, dictionary.getBytes());
+                } else {
+                    DataCompression.compress(msg, compressedData);
+                }
                 // Only use compression if it actually reduces size
-                if (compressedData.length < plaintext.length) {
+                if (compressedData.readableBytes() < plaintextLength) {
                     dataToEncrypt = compressedData;
                 } else {
                     shouldCompress = false;
                 }
             }
+            int dataLength = dataToEncrypt.readableBytes();
 
-            // Encrypt the (possibly compressed) data
-            byte[] encryptedData = SymmetricEncryption.encrypt(dataToEncrypt);
-
-            // Write compression flag (1 byte)
-            out.writeByte(shouldCompress ? 1 : 0);
+            // Write flags (1 byte)
+            int flags = shouldCompress ? (dictionary != null ? FLAG_DICTIONARY : FLAG_COMPRESSED) : 0;
+            if (frame instanceof FrameBatch) {
+                flags |= FLAG_BATCH;
+            }
+            out.writeByte(flags);
 
             // Write length prefix (4 bytes) followed by encrypted data
-            out.writeInt(encryptedData.length);
-            out.writeBytes(encryptedData);
+            out.writeInt(SymmetricEncryption.getEncryptedLength(dataLength));
+            SymmetricEncryption.encrypt(dataToEncrypt, out);
 
-            if (shouldCompress) {
-                double ratio = DataCompression.getCompressionRatio(plaintext.length, dataToEncrypt.length);
-                System.out.println("[Compression] Encrypted data: original=" + plaintext.length +
-                    " bytes, compressed=" + dataToEncrypt.length + " bytes, ratio=" +
-                    String.format("%.2f%%", ratio));
+            // Per-frame metrics are debug-only so logging doesn't dominate small frames
+            if (shouldCompress && logger.isDebugEnabled()) {
+                double ratio = DataCompression.getCompressionRatio(plaintextLength, dataLength);
+                logger.debug("[Compression] Encrypted data: original={} bytes, compressed={} bytes, ratio={}",
+                    plaintextLength, dataLength, String.format("%.2f%%", ratio));
             }
         } catch (Exception e) {
             System.err.println("Encryption/Compression failed: " + e.getMessage());
             e.printStackTrace();
+            // Never emit a partially written frame
+            out.clear();
+        } finally {
+            if (compressedData != null) {
+                compressedData.release();
+            }
+            // Encoding reads from the buffer views; mark the message consumed either way
+            msg.skipBytes(msg.readableBytes());
         }
     }
-}
 
+    /**
+     * Set whether frames are compressed and the plaintext sizes above which compression is tried,
+     * without and with a dictionary
+     */
+    public static void configureCompression(boolean enabled, int thresholdBytes, int dictionaryThresholdBytes) {
+        compressionThreshold = thresholdBytes;
+        dictionaryThreshold = dictionaryThresholdBytes;
+        compressionEnabled = enabled;
+    }
 
+    private static ByteBuf plaintextOf(Object msg) {
+        return msg instanceof FrameBatch ? ((FrameBatch) msg).content() : (ByteBuf) msg;
+    }
+}
@@ -0,0 +1,30 @@
+package com.acuity.common;
+
+/**
+ * Token bucket that paces traffic by reservation: taking more tokens than are available still
+ * succeeds, and the result says how long the caller should wait before sending more.
+ * The rate is passed on every call so it can follow configuration changes and fair shares.
+ */
+public class TokenBucket {
+    private double tokens;
+    private long lastRefillNanos;
+    private boolean started;
+
+    /**
+     * Take bytes from the bucket, refilled at bytesPerSecond up to burstBytes.
+     * Returns the nanoseconds until the bucket is out of debt, 0 if there was enough.
+     */
+    public synchronized long reserve(long bytes, long bytesPerSecond, long burstBytes, long nowNanos) {
+        if (!started) {
+            // A new bucket starts full
+            tokens = burstBytes;
+            started = true;
+        } else {
+            double elapsedSeconds = Math.max(0, nowNanos - lastRefillNanos) / 1e9;
+            tokens = Math.min(burstBytes, tokens + elapsedSeconds * bytesPerSecond);
+        }
+        lastRefillNanos = nowNanos;
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / bytesPerSecond);
+    }
+}
@@ -0,0 +1,107 @@
+package com.acuity.config;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.WriteBufferWaterMark;
+
+import java.util.List;
+
+/**
+ * Socket and channel options shared by the client and server bootstraps.
+ * Buffer sizes of 0 keep the operating system defaults.
+ */
+public class ChannelTuning {
+    public static final int DEFAULT_WRITE_BUFFER_LOW_WATER_MARK = 32 * 1024;
+    public static final int DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK = 64 * 1024;
+    public static final String DEFAULT_ALLOCATOR = "pooled";
+
+    private final boolean soKeepalive;
+    private final boolean tcpNodelay;
+    private final int soRcvbuf;
+    private final int soSndbuf;
+    private final int writeBufferLowWaterMark;
+    private final int writeBufferHighWaterMark;
+    private final String allocator;
+
+    public ChannelTuning(boolean soKeepalive, boolean tcpNodelay, int soRcvbuf, int soSndbuf,
+                         int writeBufferLowWaterMark, int writeBufferHighWaterMark, String allocator) {
+        this.soKeepalive = soKeepalive;
+        this.tcpNodelay = tcpNodelay;
+        this.soRcvbuf = soRcvbuf;
+        this.soSndbuf = soSndbuf;
+        this.writeBufferLowWaterMark = writeBufferLowWaterMark;
+        this.writeBufferHighWaterMark = writeBufferHighWaterMark;
+        this.allocator = allocator;
+    }
+
+    /**
+     * Apply the options to outgoing connections
+     */
+    public void applyTo(Bootstrap bootstrap) {
+        bootstrap.option(ChannelOption.ALLOCATOR, allocator())
+            .option(ChannelOption.SO_KEEPALIVE, soKeepalive)
+            .option(ChannelOption.TCP_NODELAY, tcpNodelay)
+            .option(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(writeBufferLowWaterMark, writeBufferHighWaterMark));
+        if (soRcvbuf > 0) {
+            bootstrap.option(ChannelOption.SO_RCVBUF, soRcvbuf);
+        }
+        if (soSndbuf > 0) {
+            bootstrap.option(ChannelOption.SO_SNDBUF, soSndbuf);
+        }
+    }
+
+    /**
+     * Apply the options to accepted connections. SO_RCVBUF is also set on the listening socket
+     * so windows above 64KB can be negotiated during the handshake.
+     */
+    public void applyToChildren(ServerBootstrap bootstrap) {
+        bootstrap.childOption(ChannelOption.ALLOCATOR, allocator())
+            .childOption(ChannelOption.SO_KEEPALIVE, soKeepalive)
+            .childOption(ChannelOption.TCP_NODELAY, tcpNodelay)
+            .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(writeBufferLowWaterMark, writeBufferHighWaterMark));
+        if (soRcvbuf > 0) {
+            bootstrap.option(ChannelOption.SO_RCVBUF, soRcvbuf);
+            bootstrap.childOption(ChannelOption.SO_RCVBUF, soRcvbuf);
+        }
+        if (soSndbuf > 0) {
+            bootstrap.childOption(ChannelOption.SO_SNDBUF, soSndbuf);
+        }
+    }
+
+    public ByteBufAllocator allocator() {
+        return "unpooled".equalsIgnoreCase(allocator) ? UnpooledByteBufAllocator.DEFAULT : PooledByteBufAllocator.DEFAULT;
+    }
+
+    /**
+     * Add a message to errors for each invalid setting
+     */
+    void validate(List<String> errors) {
+        if (soRcvbuf < 0) {
+            errors.add("soRcvbuf must be >= 0 (0 keeps the OS default), got " + soRcvbuf);
+        }
+        if (soSndbuf < 0) {
+            errors.add("soSndbuf must be >= 0 (0 keeps the OS default), got " + soSndbuf);
+        }
+        if (writeBufferLowWaterMark <= 0 || writeBufferHighWaterMark < writeBufferLowWaterMark) {
+            errors.add("write buffer water marks must satisfy 0 < writeBufferLowWaterMark <= writeBufferHighWaterMark, got "
+                + writeBufferLowWaterMark + "/" + writeBufferHighWaterMark);
+        }
+        if (!"pooled".equalsIgnoreCase(allocator) && !"unpooled".equalsIgnoreCase(allocator)) {
+            errors.add("allocator must be \"pooled\" or \"unpooled\", got \"" + allocator + "\"");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "soKeepalive=" + soKeepalive +
+                ", tcpNodelay=" + tcpNodelay +
+                ", soRcvbuf=" + soRcvbuf +
+                ", soSndbuf=" + soSndbuf +
+                ", writeBufferWaterMark=" + writeBufferLowWaterMark + "/" + writeBufferHighWaterMark +
+                ", allocator='" + allocator + '\'';
+    }
+}
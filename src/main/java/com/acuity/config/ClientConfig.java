@@ -1,15 +1,40 @@
 package com.acuity.config;
 
+import com.acuity.client.ReconnectBackoff;
+import com.acuity.client.TargetRequestPool;
+import com.acuity.common.AdaptiveChunkSizer;
+import com.acuity.common.ChunkDedupHandler;
+import com.acuity.common.MemoryBudget;
+import com.acuity.common.DataCompression;
+import com.acuity.common.FrameBatchingHandler;
+import com.acuity.common.StreamSchedulingHandler;
+import com.acuity.common.SymmetricDecryptionHandler;
+import com.acuity.common.SymmetricEncryptionHandler;
 import com.moandjiezana.toml.Toml;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 /**
  * Configuration for the Acuity Tunnel Client loaded from TOML file
  */
 public class ClientConfig {
+    public static final String PROTOCOL_TCP = "tcp";
+    public static final String PROTOCOL_UDP = "udp";
+    public static final String PROTOCOL_HTTP = "http";
+    public static final String UPSTREAM_HTTP1 = "http1";
+    public static final String UPSTREAM_H2C = "h2c";
+    public static final long DEFAULT_UDP_SESSION_IDLE_SECONDS = 60;
+    public static final String SECURITY_ENCRYPTED = "encrypted";
+    public static final String SECURITY_PLAIN = "plain";
+    // A hostname or a "*." wildcard for every name below a domain
+    private static final Pattern HOSTNAME_PATTERN = Pattern.compile("(\\*\\.)?[A-Za-z0-9]([A-Za-z0-9-]*[A-Za-z0-9])?(\\.[A-Za-z0-9]([A-Za-z0-9-]*[A-Za-z0-9])?)*");
+
     private String tunnelHost;
     private int tunnelPort;
     private int proxyPort;
@@ -17,13 +42,61 @@ public class ClientConfig {
     private int targetPort;
     private String sharedKey;
     private String groupId;
-    private int corePoolSize;
-    private int maxPoolSize;
-    private long keepAliveTimeSeconds;
+    private int connections;
+    private String protocol;
+    private String security;
+    private List<String> hostnames;
+    private volatile long udpSessionIdleSeconds;
+    private volatile long httpIdleTimeoutSeconds;
+    private volatile int httpMaxHeaderBytes;
+    private volatile long httpCacheMaxBytes;
+    private String httpUpstream;
+    private int httpH2Connections;
+    private boolean quicEnabled;
+    private int quicPort;
+    private String quicTrustCertFile;
+    private volatile int corePoolSize;
+    private volatile int maxPoolSize;
+    private volatile long keepAliveTimeSeconds;
     private int queueCapacity;
-    private long idleTimeoutSeconds;
+    private String threadPoolMode;
+    private volatile int maxConcurrentRequests;
+    private volatile boolean coalescingEnabled;
+    private volatile long coalescingMaxWaitMillis;
+    private volatile long idleTimeoutSeconds;
     private boolean soKeepalive;
     private boolean tcpNodelay;
+    private int soRcvbuf;
+    private int soSndbuf;
+    private int writeBufferLowWaterMark;
+    private int writeBufferHighWaterMark;
+    private String allocator;
+    private volatile int chunkSize;
+    private volatile boolean adaptiveChunkSize;
+    private volatile int minChunkSize;
+    private volatile int maxChunkSize;
+    private volatile long targetFrameTimeMicros;
+    private volatile boolean batchingEnabled;
+    private volatile int maxBatchBytes;
+    private volatile long maxBatchDelayMicros;
+    private volatile boolean schedulingEnabled;
+    private volatile int schedulingQuantumBytes;
+    private volatile int interactiveWeight;
+    private int codecOffloadThreads;
+    private volatile boolean reconnectEnabled;
+    private long reconnectInitialDelayMillis;
+    private long reconnectMaxDelayMillis;
+    private volatile long resumeGraceMillis;
+    private volatile boolean compressionEnabled;
+    private volatile int compressionThresholdBytes;
+    private volatile int compressionLevel;
+    private volatile int compressionDictionaryThresholdBytes;
+    private volatile boolean dedupEnabled;
+    private volatile int dedupStoreBytes;
+    private volatile String dedupDirectory;
+    private volatile MemoryBudget.Limits memoryLimits;
+    private volatile int maxFrameBytes;
+    private volatile String logLevel;
 
     // Default values
     public ClientConfig() {
@@ -34,13 +107,61 @@ public class ClientConfig {
         this.targetPort = 80;
         this.sharedKey = null;
         this.groupId = "default";
+        this.connections = 1;
+        this.protocol = PROTOCOL_TCP;
+        this.security = SECURITY_ENCRYPTED;
+        this.hostnames = new ArrayList<>();
+        this.udpSessionIdleSeconds = DEFAULT_UDP_SESSION_IDLE_SECONDS;
+        this.httpIdleTimeoutSeconds = 60;
+        this.httpMaxHeaderBytes = 65536;
+        this.httpCacheMaxBytes = 0;
+        this.httpUpstream = UPSTREAM_HTTP1;
+        this.httpH2Connections = 2;
+        this.quicEnabled = false;
+        this.quicPort = 0; // 0 uses tunnelPort
+        this.quicTrustCertFile = ""; // empty accepts any server certificate
         this.corePoolSize = 10;
         this.maxPoolSize = 50;
         this.keepAliveTimeSeconds = 60;
         this.queueCapacity = 200;
+        this.threadPoolMode = "platform";
+        this.maxConcurrentRequests = TargetRequestPool.DEFAULT_MAX_CONCURRENT_REQUESTS;
+        this.coalescingEnabled = true;
+        this.coalescingMaxWaitMillis = 30000;
         this.idleTimeoutSeconds = 60;
         this.soKeepalive = true;
         this.tcpNodelay = true;
+        this.soRcvbuf = 0; // 0 keeps the OS default
+        this.soSndbuf = 0;
+        this.writeBufferLowWaterMark = ChannelTuning.DEFAULT_WRITE_BUFFER_LOW_WATER_MARK;
+        this.writeBufferHighWaterMark = ChannelTuning.DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK;
+        this.allocator = ChannelTuning.DEFAULT_ALLOCATOR;
+        this.chunkSize = AdaptiveChunkSizer.DEFAULT_CHUNK_SIZE;
+        this.adaptiveChunkSize = false;
+        this.minChunkSize = AdaptiveChunkSizer.DEFAULT_MIN_CHUNK_SIZE;
+        this.maxChunkSize = AdaptiveChunkSizer.DEFAULT_MAX_CHUNK_SIZE;
+        this.targetFrameTimeMicros = AdaptiveChunkSizer.DEFAULT_TARGET_FRAME_TIME_MICROS;
+        this.batchingEnabled = true;
+        this.maxBatchBytes = FrameBatchingHandler.DEFAULT_MAX_BATCH_BYTES;
+        this.maxBatchDelayMicros = FrameBatchingHandler.DEFAULT_MAX_DELAY_MICROS;
+        this.schedulingEnabled = true;
+        this.schedulingQuantumBytes = StreamSchedulingHandler.DEFAULT_QUANTUM_BYTES;
+        this.interactiveWeight = StreamSchedulingHandler.DEFAULT_INTERACTIVE_WEIGHT;
+        this.codecOffloadThreads = 0; // 0 means encrypt/compress on the I/O threads
+        this.reconnectEnabled = true;
+        this.reconnectInitialDelayMillis = ReconnectBackoff.DEFAULT_INITIAL_DELAY_MILLIS;
+        this.reconnectMaxDelayMillis = ReconnectBackoff.DEFAULT_MAX_DELAY_MILLIS;
+        this.resumeGraceMillis = 10_000;
+        this.compressionEnabled = true;
+        this.compressionThresholdBytes = SymmetricEncryptionHandler.DEFAULT_COMPRESSION_THRESHOLD;
+        this.compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        this.compressionDictionaryThresholdBytes = SymmetricEncryptionHandler.DEFAULT_DICTIONARY_THRESHOLD;
+        this.dedupEnabled = false;
+        this.dedupStoreBytes = ChunkDedupHandler.DEFAULT_STORE_BYTES;
+        this.dedupDirectory = ""; // empty maps the chunk stores under java.io.tmpdir
+        this.memoryLimits = MemoryBudget.Limits.defaults();
+        this.maxFrameBytes = SymmetricDecryptionHandler.DEFAULT_MAX_FRAME_BYTES;
+        this.logLevel = ""; // empty keeps the levels from logback.xml
     }
 
     /**
@@ -75,6 +196,57 @@ public class ClientConfig {
             if (clientConfig.contains("groupId")) {
                 config.groupId = clientConfig.getString("groupId");
             }
+            if (clientConfig.contains("connections")) {
+                config.connections = clientConfig.getLong("connections").intValue();
+            }
+            if (clientConfig.contains("protocol")) {
+                config.protocol = clientConfig.getString("protocol");
+            }
+            if (clientConfig.contains("security")) {
+                config.security = clientConfig.getString("security");
+            }
+            if (clientConfig.contains("hostnames")) {
+                config.hostnames = new ArrayList<>(clientConfig.<String>getList("hostnames"));
+            }
+        }
+
+        if (toml.contains("udp")) {
+            Toml udpConfig = toml.getTable("udp");
+            if (udpConfig.contains("sessionIdleSeconds")) {
+                config.udpSessionIdleSeconds = udpConfig.getLong("sessionIdleSeconds");
+            }
+        }
+
+        if (toml.contains("http")) {
+            Toml httpConfig = toml.getTable("http");
+            if (httpConfig.contains("idleTimeoutSeconds")) {
+                config.httpIdleTimeoutSeconds = httpConfig.getLong("idleTimeoutSeconds");
+            }
+            if (httpConfig.contains("maxHeaderBytes")) {
+                config.httpMaxHeaderBytes = httpConfig.getLong("maxHeaderBytes").intValue();
+            }
+            if (httpConfig.contains("cacheMaxBytes")) {
+                config.httpCacheMaxBytes = httpConfig.getLong("cacheMaxBytes");
+            }
+            if (httpConfig.contains("upstream")) {
+                config.httpUpstream = httpConfig.getString("upstream");
+            }
+            if (httpConfig.contains("h2Connections")) {
+                config.httpH2Connections = httpConfig.getLong("h2Connections").intValue();
+            }
+        }
+
+        if (toml.contains("quic")) {
+            Toml quicConfig = toml.getTable("quic");
+            if (quicConfig.contains("enabled")) {
+                config.quicEnabled = quicConfig.getBoolean("enabled");
+            }
+            if (quicConfig.contains("port")) {
+                config.quicPort = quicConfig.getLong("port").intValue();
+            }
+            if (quicConfig.contains("trustCertFile")) {
+                config.quicTrustCertFile = quicConfig.getString("trustCertFile");
+            }
         }
 
         if (toml.contains("threadPool")) {
@@ -91,6 +263,22 @@ public class ClientConfig {
             if (threadPoolConfig.contains("queueCapacity")) {
                 config.queueCapacity = threadPoolConfig.getLong("queueCapacity").intValue();
             }
+            if (threadPoolConfig.contains("mode")) {
+                config.threadPoolMode = threadPoolConfig.getString("mode");
+            }
+            if (threadPoolConfig.contains("maxConcurrentRequests")) {
+                config.maxConcurrentRequests = threadPoolConfig.getLong("maxConcurrentRequests").intValue();
+            }
+        }
+
+        if (toml.contains("coalescing")) {
+            Toml coalescingConfig = toml.getTable("coalescing");
+            if (coalescingConfig.contains("enabled")) {
+                config.coalescingEnabled = coalescingConfig.getBoolean("enabled");
+            }
+            if (coalescingConfig.contains("maxWaitMillis")) {
+                config.coalescingMaxWaitMillis = coalescingConfig.getLong("maxWaitMillis");
+            }
         }
 
         if (toml.contains("netty")) {
@@ -104,6 +292,141 @@ public class ClientConfig {
             if (nettyConfig.contains("tcpNodelay")) {
                 config.tcpNodelay = nettyConfig.getBoolean("tcpNodelay");
             }
+            if (nettyConfig.contains("soRcvbuf")) {
+                config.soRcvbuf = nettyConfig.getLong("soRcvbuf").intValue();
+            }
+            if (nettyConfig.contains("soSndbuf")) {
+                config.soSndbuf = nettyConfig.getLong("soSndbuf").intValue();
+            }
+            if (nettyConfig.contains("writeBufferLowWaterMark")) {
+                config.writeBufferLowWaterMark = nettyConfig.getLong("writeBufferLowWaterMark").intValue();
+            }
+            if (nettyConfig.contains("writeBufferHighWaterMark")) {
+                config.writeBufferHighWaterMark = nettyConfig.getLong("writeBufferHighWaterMark").intValue();
+            }
+            if (nettyConfig.contains("allocator")) {
+                config.allocator = nettyConfig.getString("allocator");
+            }
+        }
+
+        if (toml.contains("streaming")) {
+            Toml streamingConfig = toml.getTable("streaming");
+            if (streamingConfig.contains("chunkSize")) {
+                config.chunkSize = streamingConfig.getLong("chunkSize").intValue();
+            }
+            if (streamingConfig.contains("adaptiveChunkSize")) {
+                config.adaptiveChunkSize = streamingConfig.getBoolean("adaptiveChunkSize");
+            }
+            if (streamingConfig.contains("minChunkSize")) {
+                config.minChunkSize = streamingConfig.getLong("minChunkSize").intValue();
+            }
+            if (streamingConfig.contains("maxChunkSize")) {
+                config.maxChunkSize = streamingConfig.getLong("maxChunkSize").intValue();
+            }
+            if (streamingConfig.contains("targetFrameTimeMicros")) {
+                config.targetFrameTimeMicros = streamingConfig.getLong("targetFrameTimeMicros");
+            }
+        }
+
+        if (toml.contains("batching")) {
+            Toml batchingConfig = toml.getTable("batching");
+            if (batchingConfig.contains("enabled")) {
+                config.batchingEnabled = batchingConfig.getBoolean("enabled");
+            }
+            if (batchingConfig.contains("maxBatchBytes")) {
+                config.maxBatchBytes = batchingConfig.getLong("maxBatchBytes").intValue();
+            }
+            if (batchingConfig.contains("maxDelayMicros")) {
+                config.maxBatchDelayMicros = batchingConfig.getLong("maxDelayMicros");
+            }
+        }
+
+        if (toml.contains("scheduling")) {
+            Toml schedulingConfig = toml.getTable("scheduling");
+            if (schedulingConfig.contains("enabled")) {
+                config.schedulingEnabled = schedulingConfig.getBoolean("enabled");
+            }
+            if (schedulingConfig.contains("quantumBytes")) {
+                config.schedulingQuantumBytes = schedulingConfig.getLong("quantumBytes").intValue();
+            }
+            if (schedulingConfig.contains("interactiveWeight")) {
+                config.interactiveWeight = schedulingConfig.getLong("interactiveWeight").intValue();
+            }
+        }
+
+        if (toml.contains("codec")) {
+            Toml codecConfig = toml.getTable("codec");
+            if (codecConfig.contains("offloadThreads")) {
+                config.codecOffloadThreads = codecConfig.getLong("offloadThreads").intValue();
+            }
+        }
+
+        if (toml.contains("reconnect")) {
+            Toml reconnectConfig = toml.getTable("reconnect");
+            if (reconnectConfig.contains("enabled")) {
+                config.reconnectEnabled = reconnectConfig.getBoolean("enabled");
+            }
+            if (reconnectConfig.contains("initialDelayMillis")) {
+                config.reconnectInitialDelayMillis = reconnectConfig.getLong("initialDelayMillis");
+            }
+            if (reconnectConfig.contains("maxDelayMillis")) {
+                config.reconnectMaxDelayMillis = reconnectConfig.getLong("maxDelayMillis");
+            }
+        }
+
+        if (toml.contains("resume")) {
+            Toml resumeConfig = toml.getTable("resume");
+            if (resumeConfig.contains("graceMillis")) {
+                config.resumeGraceMillis = resumeConfig.getLong("graceMillis");
+            }
+        }
+
+        if (toml.contains("compression")) {
+            Toml compressionConfig = toml.getTable("compression");
+            if (compressionConfig.contains("enabled")) {
+                config.compressionEnabled = compressionConfig.getBoolean("enabled");
+            }
+            if (compressionConfig.contains("thresholdBytes")) {
+                config.compressionThresholdBytes = compressionConfig.getLong("thresholdBytes").intValue();
+            }
+            if (compressionConfig.contains("level")) {
+                config.compressionLevel = compressionConfig.getLong("level").intValue();
+            }
+            if (compressionConfig.contains("dictionaryThresholdBytes")) {
+                config.compressionDictionaryThresholdBytes = compressionConfig.getLong("dictionaryThresholdBytes").intValue();
+            }
+        }
+
+        if (toml.contains("dedup")) {
+            Toml dedupConfig = toml.getTable("dedup");
+            if (dedupConfig.contains("enabled")) {
+                config.dedupEnabled = dedupConfig.getBoolean("enabled");
+            }
+            if (dedupConfig.contains("storeBytes")) {
+                config.dedupStoreBytes = dedupConfig.getLong("storeBytes").intValue();
+            }
+            if (dedupConfig.contains("directory")) {
+                config.dedupDirectory = dedupConfig.getString("directory");
+            }
+        }
+
+        if (toml.contains("memory")) {
+            Toml memoryConfig = toml.getTable("memory");
+            config.memoryLimits = new MemoryBudget.Limits(
+                memoryConfig.getLong("globalBytes", MemoryBudget.Limits.DEFAULT_GLOBAL_BYTES),
+                memoryConfig.getLong("perGroupBytes", MemoryBudget.Limits.UNLIMITED),
+                memoryConfig.getLong("perUserBytes", MemoryBudget.Limits.UNLIMITED),
+                memoryConfig.getLong("perStreamBytes", MemoryBudget.Limits.DEFAULT_PER_STREAM_BYTES));
+            if (memoryConfig.contains("maxFrameBytes")) {
+                config.maxFrameBytes = memoryConfig.getLong("maxFrameBytes").intValue();
+            }
+        }
+
+        if (toml.contains("logging")) {
+            Toml loggingConfig = toml.getTable("logging");
+            if (loggingConfig.contains("level")) {
+                config.logLevel = loggingConfig.getString("level");
+            }
         }
 
         return config;
@@ -166,6 +489,151 @@ public class ClientConfig {
         this.groupId = groupId;
     }
 
+    public int getConnections() {
+        return connections;
+    }
+
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    public String getProtocol() {
+        return protocol;
+    }
+
+    public void setProtocol(String protocol) {
+        this.protocol = protocol;
+    }
+
+    /**
+     * True when the proxy port carries datagrams instead of TCP connections
+     */
+    public boolean isUdp() {
+        return PROTOCOL_UDP.equalsIgnoreCase(protocol);
+    }
+
+    /**
+     * True when the proxy port carries HTTP/1.1: requests are framed and kept-alive target connections reused
+     */
+    public boolean isHttp() {
+        return PROTOCOL_HTTP.equalsIgnoreCase(protocol);
+    }
+
+    public String getSecurity() {
+        return security;
+    }
+
+    public void setSecurity(String security) {
+        this.security = security;
+    }
+
+    public List<String> getHostnames() {
+        return hostnames;
+    }
+
+    public void setHostnames(List<String> hostnames) {
+        this.hostnames = hostnames;
+    }
+
+    /**
+     * True when the client asks to skip encryption; the server only agrees for groups it lists as plain
+     */
+    public boolean isPlain() {
+        return SECURITY_PLAIN.equalsIgnoreCase(security);
+    }
+
+    public long getUdpSessionIdleSeconds() {
+        return udpSessionIdleSeconds;
+    }
+
+    public void setUdpSessionIdleSeconds(long udpSessionIdleSeconds) {
+        this.udpSessionIdleSeconds = udpSessionIdleSeconds;
+    }
+
+    public long getHttpIdleTimeoutSeconds() {
+        return httpIdleTimeoutSeconds;
+    }
+
+    public void setHttpIdleTimeoutSeconds(long httpIdleTimeoutSeconds) {
+        this.httpIdleTimeoutSeconds = httpIdleTimeoutSeconds;
+    }
+
+    public int getHttpMaxHeaderBytes() {
+        return httpMaxHeaderBytes;
+    }
+
+    public void setHttpMaxHeaderBytes(int httpMaxHeaderBytes) {
+        this.httpMaxHeaderBytes = httpMaxHeaderBytes;
+    }
+
+    /**
+     * Byte budget of the HTTP response cache; 0 disables it
+     */
+    public long getHttpCacheMaxBytes() {
+        return httpCacheMaxBytes;
+    }
+
+    public void setHttpCacheMaxBytes(long httpCacheMaxBytes) {
+        this.httpCacheMaxBytes = httpCacheMaxBytes;
+    }
+
+    public String getHttpUpstream() {
+        return httpUpstream;
+    }
+
+    public void setHttpUpstream(String httpUpstream) {
+        this.httpUpstream = httpUpstream;
+    }
+
+    /**
+     * True when HTTP requests go to the target over shared HTTP/2 connections (prior knowledge, no TLS)
+     */
+    public boolean isH2cUpstream() {
+        return UPSTREAM_H2C.equalsIgnoreCase(httpUpstream);
+    }
+
+    /**
+     * Multiplexed HTTP/2 connections to the target, shared by all user connections
+     */
+    public int getHttpH2Connections() {
+        return httpH2Connections;
+    }
+
+    public void setHttpH2Connections(int httpH2Connections) {
+        this.httpH2Connections = httpH2Connections;
+    }
+
+    public boolean isQuicEnabled() {
+        return quicEnabled;
+    }
+
+    public void setQuicEnabled(boolean quicEnabled) {
+        this.quicEnabled = quicEnabled;
+    }
+
+    public int getQuicPort() {
+        return quicPort;
+    }
+
+    public void setQuicPort(int quicPort) {
+        this.quicPort = quicPort;
+    }
+
+    /**
+     * UDP port of the server's QUIC listener; defaults to the tunnel port
+     */
+    public int getEffectiveQuicPort() {
+        return quicPort > 0 ? quicPort : tunnelPort;
+    }
+
+    public String getQuicTrustCertFile() {
+        return quicTrustCertFile;
+    }
+
+    public void setQuicTrustCertFile(String quicTrustCertFile) {
+        this.quicTrustCertFile = quicTrustCertFile;
+    }
+
     public int getCorePoolSize() {
         return corePoolSize;
     }
@@ -182,6 +650,54 @@ public class ClientConfig {
         return queueCapacity;
     }
 
+    public String getThreadPoolMode() {
+        return threadPoolMode;
+    }
+
+    public void setThreadPoolMode(String threadPoolMode) {
+        this.threadPoolMode = threadPoolMode;
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests;
+    }
+
+    public void setMaxConcurrentRequests(int maxConcurrentRequests) {
+        this.maxConcurrentRequests = maxConcurrentRequests;
+    }
+
+    /**
+     * True when identical GET/HEAD requests running at the same time share one target request (TCP mode)
+     */
+    public boolean isCoalescingEnabled() {
+        return coalescingEnabled;
+    }
+
+    public void setCoalescingEnabled(boolean coalescingEnabled) {
+        this.coalescingEnabled = coalescingEnabled;
+    }
+
+    /**
+     * How long a coalesced request waits for the one it joined before sending its own
+     */
+    public long getCoalescingMaxWaitMillis() {
+        return coalescingMaxWaitMillis;
+    }
+
+    public void setCoalescingMaxWaitMillis(long coalescingMaxWaitMillis) {
+        this.coalescingMaxWaitMillis = coalescingMaxWaitMillis;
+    }
+
+    /**
+     * Build the pool for target requests described by the [threadPool] settings
+     */
+    public TargetRequestPool createTargetRequestPool() {
+        if (TargetRequestPool.Mode.fromString(threadPoolMode) == TargetRequestPool.Mode.VIRTUAL) {
+            return TargetRequestPool.virtual(maxConcurrentRequests);
+        }
+        return TargetRequestPool.platform(corePoolSize, maxPoolSize, keepAliveTimeSeconds, queueCapacity);
+    }
+
     public long getIdleTimeoutSeconds() {
         return idleTimeoutSeconds;
     }
@@ -194,6 +710,543 @@ public class ClientConfig {
         return tcpNodelay;
     }
 
+    public int getSoRcvbuf() {
+        return soRcvbuf;
+    }
+
+    public void setSoRcvbuf(int soRcvbuf) {
+        this.soRcvbuf = soRcvbuf;
+    }
+
+    public int getSoSndbuf() {
+        return soSndbuf;
+    }
+
+    public void setSoSndbuf(int soSndbuf) {
+        this.soSndbuf = soSndbuf;
+    }
+
+    public int getWriteBufferLowWaterMark() {
+        return writeBufferLowWaterMark;
+    }
+
+    public int getWriteBufferHighWaterMark() {
+        return writeBufferHighWaterMark;
+    }
+
+    public String getAllocator() {
+        return allocator;
+    }
+
+    public void setAllocator(String allocator) {
+        this.allocator = allocator;
+    }
+
+    /**
+     * Build the socket and channel options described by the configuration
+     */
+    public ChannelTuning createChannelTuning() {
+        return new ChannelTuning(soKeepalive, tcpNodelay, soRcvbuf, soSndbuf, writeBufferLowWaterMark, writeBufferHighWaterMark, allocator);
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public boolean isAdaptiveChunkSize() {
+        return adaptiveChunkSize;
+    }
+
+    public void setAdaptiveChunkSize(boolean adaptiveChunkSize) {
+        this.adaptiveChunkSize = adaptiveChunkSize;
+    }
+
+    public int getMinChunkSize() {
+        return minChunkSize;
+    }
+
+    public int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    public long getTargetFrameTimeMicros() {
+        return targetFrameTimeMicros;
+    }
+
+    /**
+     * Build the chunk sizer template described by the [streaming] settings
+     */
+    public AdaptiveChunkSizer createChunkSizer() {
+        return new AdaptiveChunkSizer(chunkSize, adaptiveChunkSize, minChunkSize, maxChunkSize, targetFrameTimeMicros);
+    }
+
+    public boolean isBatchingEnabled() {
+        return batchingEnabled;
+    }
+
+    public void setBatchingEnabled(boolean batchingEnabled) {
+        this.batchingEnabled = batchingEnabled;
+    }
+
+    public int getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    public long getMaxBatchDelayMicros() {
+        return maxBatchDelayMicros;
+    }
+
+    /**
+     * Build the tunnel frame batcher described by the [batching] settings
+     */
+    public FrameBatchingHandler createFrameBatchingHandler() {
+        return new FrameBatchingHandler(maxBatchBytes, maxBatchDelayMicros);
+    }
+
+    public boolean isSchedulingEnabled() {
+        return schedulingEnabled;
+    }
+
+    public void setSchedulingEnabled(boolean schedulingEnabled) {
+        this.schedulingEnabled = schedulingEnabled;
+    }
+
+    public int getSchedulingQuantumBytes() {
+        return schedulingQuantumBytes;
+    }
+
+    public int getInteractiveWeight() {
+        return interactiveWeight;
+    }
+
+    /**
+     * Build the per-connection stream scheduler described by the [scheduling] settings, counting its queued bytes against the budget
+     */
+    public StreamSchedulingHandler createStreamSchedulingHandler(MemoryBudget memoryBudget) {
+        return new StreamSchedulingHandler(schedulingQuantumBytes, interactiveWeight, memoryBudget.open(memoryLimits, null, null));
+    }
+
+    public int getCodecOffloadThreads() {
+        return codecOffloadThreads;
+    }
+
+    public void setCodecOffloadThreads(int codecOffloadThreads) {
+        this.codecOffloadThreads = codecOffloadThreads;
+    }
+
+    public boolean isReconnectEnabled() {
+        return reconnectEnabled;
+    }
+
+    public void setReconnectEnabled(boolean reconnectEnabled) {
+        this.reconnectEnabled = reconnectEnabled;
+    }
+
+    public long getReconnectInitialDelayMillis() {
+        return reconnectInitialDelayMillis;
+    }
+
+    public long getReconnectMaxDelayMillis() {
+        return reconnectMaxDelayMillis;
+    }
+
+    /**
+     * Build a reconnect backoff described by the [reconnect] settings
+     */
+    public ReconnectBackoff createReconnectBackoff() {
+        return new ReconnectBackoff(reconnectInitialDelayMillis, reconnectMaxDelayMillis);
+    }
+
+    public long getResumeGraceMillis() {
+        return resumeGraceMillis;
+    }
+
+    public void setResumeGraceMillis(long resumeGraceMillis) {
+        this.resumeGraceMillis = resumeGraceMillis;
+    }
+
+    public void setIdleTimeoutSeconds(long idleTimeoutSeconds) {
+        this.idleTimeoutSeconds = idleTimeoutSeconds;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    public int getCompressionThresholdBytes() {
+        return compressionThresholdBytes;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public int getCompressionDictionaryThresholdBytes() {
+        return compressionDictionaryThresholdBytes;
+    }
+
+    public boolean isDedupEnabled() {
+        return dedupEnabled;
+    }
+
+    public void setDedupEnabled(boolean dedupEnabled) {
+        this.dedupEnabled = dedupEnabled;
+    }
+
+    /**
+     * Size of each chunk store of a tunnel connection, offered to the server
+     */
+    public int getDedupStoreBytes() {
+        return dedupStoreBytes;
+    }
+
+    public void setDedupStoreBytes(int dedupStoreBytes) {
+        this.dedupStoreBytes = dedupStoreBytes;
+    }
+
+    /**
+     * Directory the chunk stores are mapped in; empty uses java.io.tmpdir
+     */
+    public String getDedupDirectory() {
+        return dedupDirectory;
+    }
+
+    public void setDedupDirectory(String dedupDirectory) {
+        this.dedupDirectory = dedupDirectory;
+    }
+
+    /**
+     * Limits on the bytes in-flight streams may hold in memory
+     */
+    public MemoryBudget.Limits getMemoryLimits() {
+        return memoryLimits;
+    }
+
+    public void setMemoryLimits(MemoryBudget.Limits memoryLimits) {
+        this.memoryLimits = memoryLimits;
+    }
+
+    /**
+     * Longest frame a peer may send, before or after decompression
+     */
+    public int getMaxFrameBytes() {
+        return maxFrameBytes;
+    }
+
+    public void setMaxFrameBytes(int maxFrameBytes) {
+        this.maxFrameBytes = maxFrameBytes;
+    }
+
+    /**
+     * Build the decryption handler of a tunnel connection, which refuses frames over memory.maxFrameBytes
+     */
+    public SymmetricDecryptionHandler createDecryptionHandler() {
+        return new SymmetricDecryptionHandler(maxFrameBytes);
+    }
+
+    public String getLogLevel() {
+        return logLevel;
+    }
+
+    public void setLogLevel(String logLevel) {
+        this.logLevel = logLevel;
+    }
+
+    /**
+     * Push the process-wide settings (compression policy, log level) to the components that use them
+     */
+    public void applyGlobalSettings() {
+        SymmetricEncryptionHandler.configureCompression(compressionEnabled, compressionThresholdBytes, compressionDictionaryThresholdBytes);
+        DataCompression.setCompressionLevel(compressionLevel);
+        LogLevels.apply(logLevel);
+    }
+
+    /**
+     * Take over the settings of a reloaded configuration that can change while running.
+     * Pool sizes, chunk sizing, coalescing, compression, log level and reconnect on/off apply at once (the caller
+     * resizes pools and pushes global settings); heartbeat, batching and scheduling settings apply to new tunnel
+     * connections. Everything else is only reported, since it needs a restart.
+     */
+    public ConfigChanges reloadFrom(ClientConfig updated) {
+        ConfigChanges changes = new ConfigChanges();
+        if (changes.applied("threadPool.corePoolSize", corePoolSize, updated.corePoolSize)) {
+            corePoolSize = updated.corePoolSize;
+        }
+        if (changes.applied("threadPool.maxPoolSize", maxPoolSize, updated.maxPoolSize)) {
+            maxPoolSize = updated.maxPoolSize;
+        }
+        if (changes.applied("threadPool.keepAliveTimeSeconds", keepAliveTimeSeconds, updated.keepAliveTimeSeconds)) {
+            keepAliveTimeSeconds = updated.keepAliveTimeSeconds;
+        }
+        if (changes.applied("threadPool.maxConcurrentRequests", maxConcurrentRequests, updated.maxConcurrentRequests)) {
+            maxConcurrentRequests = updated.maxConcurrentRequests;
+        }
+        if (changes.applied("coalescing.enabled", coalescingEnabled, updated.coalescingEnabled)) {
+            coalescingEnabled = updated.coalescingEnabled;
+        }
+        if (changes.applied("coalescing.maxWaitMillis", coalescingMaxWaitMillis, updated.coalescingMaxWaitMillis)) {
+            coalescingMaxWaitMillis = updated.coalescingMaxWaitMillis;
+        }
+        if (changes.applied("netty.idleTimeoutSeconds (new connections)", idleTimeoutSeconds, updated.idleTimeoutSeconds)) {
+            idleTimeoutSeconds = updated.idleTimeoutSeconds;
+        }
+        if (changes.applied("udp.sessionIdleSeconds (new sessions)", udpSessionIdleSeconds, updated.udpSessionIdleSeconds)) {
+            udpSessionIdleSeconds = updated.udpSessionIdleSeconds;
+        }
+        if (changes.applied("http.idleTimeoutSeconds (new target connections)", httpIdleTimeoutSeconds, updated.httpIdleTimeoutSeconds)) {
+            httpIdleTimeoutSeconds = updated.httpIdleTimeoutSeconds;
+        }
+        if (changes.applied("http.maxHeaderBytes (new target connections)", httpMaxHeaderBytes, updated.httpMaxHeaderBytes)) {
+            httpMaxHeaderBytes = updated.httpMaxHeaderBytes;
+        }
+        if (changes.applied("http.cacheMaxBytes", httpCacheMaxBytes, updated.httpCacheMaxBytes)) {
+            httpCacheMaxBytes = updated.httpCacheMaxBytes;
+        }
+        if (changes.applied("streaming.chunkSize", chunkSize, updated.chunkSize)) {
+            chunkSize = updated.chunkSize;
+        }
+        if (changes.applied("streaming.adaptiveChunkSize", adaptiveChunkSize, updated.adaptiveChunkSize)) {
+            adaptiveChunkSize = updated.adaptiveChunkSize;
+        }
+        if (changes.applied("streaming.minChunkSize", minChunkSize, updated.minChunkSize)) {
+            minChunkSize = updated.minChunkSize;
+        }
+        if (changes.applied("streaming.maxChunkSize", maxChunkSize, updated.maxChunkSize)) {
+            maxChunkSize = updated.maxChunkSize;
+        }
+        if (changes.applied("streaming.targetFrameTimeMicros", targetFrameTimeMicros, updated.targetFrameTimeMicros)) {
+            targetFrameTimeMicros = updated.targetFrameTimeMicros;
+        }
+        if (changes.applied("batching.enabled (new connections)", batchingEnabled, updated.batchingEnabled)) {
+            batchingEnabled = updated.batchingEnabled;
+        }
+        if (changes.applied("batching.maxBatchBytes (new connections)", maxBatchBytes, updated.maxBatchBytes)) {
+            maxBatchBytes = updated.maxBatchBytes;
+        }
+        if (changes.applied("batching.maxDelayMicros (new connections)", maxBatchDelayMicros, updated.maxBatchDelayMicros)) {
+            maxBatchDelayMicros = updated.maxBatchDelayMicros;
+        }
+        if (changes.applied("scheduling.enabled (new connections)", schedulingEnabled, updated.schedulingEnabled)) {
+            schedulingEnabled = updated.schedulingEnabled;
+        }
+        if (changes.applied("scheduling.quantumBytes (new connections)", schedulingQuantumBytes, updated.schedulingQuantumBytes)) {
+            schedulingQuantumBytes = updated.schedulingQuantumBytes;
+        }
+        if (changes.applied("scheduling.interactiveWeight (new connections)", interactiveWeight, updated.interactiveWeight)) {
+            interactiveWeight = updated.interactiveWeight;
+        }
+        if (changes.applied("compression.enabled", compressionEnabled, updated.compressionEnabled)) {
+            compressionEnabled = updated.compressionEnabled;
+        }
+        if (changes.applied("compression.thresholdBytes", compressionThresholdBytes, updated.compressionThresholdBytes)) {
+            compressionThresholdBytes = updated.compressionThresholdBytes;
+        }
+        if (changes.applied("compression.level", compressionLevel, updated.compressionLevel)) {
+            compressionLevel = updated.compressionLevel;
+        }
+        if (changes.applied("compression.dictionaryThresholdBytes", compressionDictionaryThresholdBytes, updated.compressionDictionaryThresholdBytes)) {
+            compressionDictionaryThresholdBytes = updated.compressionDictionaryThresholdBytes;
+        }
+        if (changes.applied("dedup.enabled (new connections)", dedupEnabled, updated.dedupEnabled)) {
+            dedupEnabled = updated.dedupEnabled;
+        }
+        if (changes.applied("dedup.storeBytes (new connections)", dedupStoreBytes, updated.dedupStoreBytes)) {
+            dedupStoreBytes = updated.dedupStoreBytes;
+        }
+        if (changes.applied("dedup.directory (new connections)", dedupDirectory, updated.dedupDirectory)) {
+            dedupDirectory = updated.dedupDirectory;
+        }
+        if (changes.applied("memory (new streams)", memoryLimits, updated.memoryLimits)) {
+            memoryLimits = updated.memoryLimits;
+        }
+        if (changes.applied("memory.maxFrameBytes (new connections)", maxFrameBytes, updated.maxFrameBytes)) {
+            maxFrameBytes = updated.maxFrameBytes;
+        }
+        if (changes.applied("logging.level", logLevel, updated.logLevel)) {
+            logLevel = updated.logLevel;
+        }
+        if (changes.applied("reconnect.enabled", reconnectEnabled, updated.reconnectEnabled)) {
+            reconnectEnabled = updated.reconnectEnabled;
+        }
+        if (changes.applied("resume.graceMillis", resumeGraceMillis, updated.resumeGraceMillis)) {
+            resumeGraceMillis = updated.resumeGraceMillis;
+        }
+
+        changes.restartRequired("client.tunnelHost", tunnelHost, updated.tunnelHost);
+        changes.restartRequired("client.tunnelPort", tunnelPort, updated.tunnelPort);
+        changes.restartRequired("client.proxyPort", proxyPort, updated.proxyPort);
+        changes.restartRequired("client.targetHost", targetHost, updated.targetHost);
+        changes.restartRequired("client.targetPort", targetPort, updated.targetPort);
+        changes.restartRequired("http.upstream", httpUpstream, updated.httpUpstream);
+        changes.restartRequired("http.h2Connections", httpH2Connections, updated.httpH2Connections);
+        changes.restartRequiredSecret("client.sharedKey", sharedKey, updated.sharedKey);
+        changes.restartRequired("client.groupId", groupId, updated.groupId);
+        changes.restartRequired("client.connections", connections, updated.connections);
+        changes.restartRequired("client.protocol", protocol, updated.protocol);
+        changes.restartRequired("client.security", security, updated.security);
+        changes.restartRequired("client.hostnames", hostnames, updated.hostnames);
+        changes.restartRequired("quic.enabled", quicEnabled, updated.quicEnabled);
+        changes.restartRequired("quic.port", quicPort, updated.quicPort);
+        changes.restartRequired("quic.trustCertFile", quicTrustCertFile, updated.quicTrustCertFile);
+        changes.restartRequired("threadPool.queueCapacity", queueCapacity, updated.queueCapacity);
+        changes.restartRequired("threadPool.mode", threadPoolMode, updated.threadPoolMode);
+        changes.restartRequired("netty.soKeepalive", soKeepalive, updated.soKeepalive);
+        changes.restartRequired("netty.tcpNodelay", tcpNodelay, updated.tcpNodelay);
+        changes.restartRequired("netty.soRcvbuf", soRcvbuf, updated.soRcvbuf);
+        changes.restartRequired("netty.soSndbuf", soSndbuf, updated.soSndbuf);
+        changes.restartRequired("netty.writeBufferLowWaterMark", writeBufferLowWaterMark, updated.writeBufferLowWaterMark);
+        changes.restartRequired("netty.writeBufferHighWaterMark", writeBufferHighWaterMark, updated.writeBufferHighWaterMark);
+        changes.restartRequired("netty.allocator", allocator, updated.allocator);
+        changes.restartRequired("codec.offloadThreads", codecOffloadThreads, updated.codecOffloadThreads);
+        changes.restartRequired("reconnect.initialDelayMillis", reconnectInitialDelayMillis, updated.reconnectInitialDelayMillis);
+        changes.restartRequired("reconnect.maxDelayMillis", reconnectMaxDelayMillis, updated.reconnectMaxDelayMillis);
+        return changes;
+    }
+
+    /**
+     * Check every setting at startup so a bad value fails fast instead of surfacing under load
+     *
+     * @throws IllegalArgumentException listing all invalid settings
+     */
+    public void validate() {
+        List<String> errors = new ArrayList<>();
+        checkPort(errors, "client.tunnelPort", tunnelPort);
+        if (proxyPort != 0) {
+            // 0 asks the server to allocate a port from its proxyPorts range
+            checkPort(errors, "client.proxyPort", proxyPort);
+        }
+        checkPort(errors, "client.targetPort", targetPort);
+        if (connections < 1) {
+            errors.add("client.connections must be >= 1, got " + connections);
+        }
+        if (!PROTOCOL_TCP.equalsIgnoreCase(protocol) && !PROTOCOL_UDP.equalsIgnoreCase(protocol) && !PROTOCOL_HTTP.equalsIgnoreCase(protocol)) {
+            errors.add("client.protocol must be \"tcp\", \"udp\" or \"http\", got \"" + protocol + "\"");
+        }
+        if (!SECURITY_ENCRYPTED.equalsIgnoreCase(security) && !SECURITY_PLAIN.equalsIgnoreCase(security)) {
+            errors.add("client.security must be \"encrypted\" or \"plain\", got \"" + security + "\"");
+        } else if (isPlain() && quicEnabled) {
+            errors.add("client.security = \"plain\" is for TCP tunnels; QUIC connections are always encrypted");
+        }
+        for (String hostname : hostnames) {
+            if (!HOSTNAME_PATTERN.matcher(hostname).matches()) {
+                errors.add("client.hostnames entries must be hostnames, optionally starting with \"*.\", got \"" + hostname + "\"");
+            }
+        }
+        if (!hostnames.isEmpty() && isUdp()) {
+            errors.add("client.hostnames needs a TCP or HTTP proxy port; datagrams carry no Host header or SNI");
+        }
+        if (udpSessionIdleSeconds <= 0) {
+            errors.add("udp.sessionIdleSeconds must be > 0, got " + udpSessionIdleSeconds);
+        }
+        if (httpIdleTimeoutSeconds <= 0) {
+            errors.add("http.idleTimeoutSeconds must be > 0, got " + httpIdleTimeoutSeconds);
+        }
+        if (httpMaxHeaderBytes < 1024) {
+            errors.add("http.maxHeaderBytes must be >= 1024, got " + httpMaxHeaderBytes);
+        }
+        if (httpCacheMaxBytes < 0) {
+            errors.add("http.cacheMaxBytes must be >= 0 (0 disables the cache), got " + httpCacheMaxBytes);
+        }
+        if (!UPSTREAM_HTTP1.equalsIgnoreCase(httpUpstream) && !UPSTREAM_H2C.equalsIgnoreCase(httpUpstream)) {
+            errors.add("http.upstream must be \"http1\" or \"h2c\", got \"" + httpUpstream + "\"");
+        }
+        if (httpH2Connections < 1) {
+            errors.add("http.h2Connections must be >= 1, got " + httpH2Connections);
+        }
+        if (quicPort < 0 || quicPort > 65535) {
+            errors.add("quic.port must be between 0 and 65535 (0 uses client.tunnelPort), got " + quicPort);
+        }
+        if (corePoolSize < 1 || maxPoolSize < corePoolSize) {
+            errors.add("threadPool sizes must satisfy 1 <= corePoolSize <= maxPoolSize, got " + corePoolSize + "/" + maxPoolSize);
+        }
+        if (keepAliveTimeSeconds < 0) {
+            errors.add("threadPool.keepAliveTimeSeconds must be >= 0, got " + keepAliveTimeSeconds);
+        }
+        if (queueCapacity < 1) {
+            errors.add("threadPool.queueCapacity must be >= 1, got " + queueCapacity);
+        }
+        try {
+            TargetRequestPool.Mode.fromString(threadPoolMode);
+        } catch (IllegalArgumentException e) {
+            errors.add("threadPool.mode must be \"platform\" or \"virtual\", got \"" + threadPoolMode + "\"");
+        }
+        if (maxConcurrentRequests < 1) {
+            errors.add("threadPool.maxConcurrentRequests must be >= 1, got " + maxConcurrentRequests);
+        }
+        if (coalescingMaxWaitMillis <= 0) {
+            errors.add("coalescing.maxWaitMillis must be > 0, got " + coalescingMaxWaitMillis);
+        }
+        if (idleTimeoutSeconds < 0) {
+            errors.add("netty.idleTimeoutSeconds must be >= 0 (0 disables heartbeats), got " + idleTimeoutSeconds);
+        }
+        if (chunkSize <= 0) {
+            errors.add("streaming.chunkSize must be > 0, got " + chunkSize);
+        }
+        if (minChunkSize <= 0 || maxChunkSize < minChunkSize) {
+            errors.add("streaming chunk bounds must satisfy 0 < minChunkSize <= maxChunkSize, got " + minChunkSize + "/" + maxChunkSize);
+        }
+        if (targetFrameTimeMicros <= 0) {
+            errors.add("streaming.targetFrameTimeMicros must be > 0, got " + targetFrameTimeMicros);
+        }
+        if (maxBatchBytes <= 0) {
+            errors.add("batching.maxBatchBytes must be > 0, got " + maxBatchBytes);
+        }
+        if (maxBatchDelayMicros < 0) {
+            errors.add("batching.maxDelayMicros must be >= 0, got " + maxBatchDelayMicros);
+        }
+        if (schedulingQuantumBytes <= 0) {
+            errors.add("scheduling.quantumBytes must be > 0, got " + schedulingQuantumBytes);
+        }
+        if (interactiveWeight < 1) {
+            errors.add("scheduling.interactiveWeight must be >= 1, got " + interactiveWeight);
+        }
+        if (codecOffloadThreads < 0) {
+            errors.add("codec.offloadThreads must be >= 0, got " + codecOffloadThreads);
+        }
+        if (compressionThresholdBytes < 0) {
+            errors.add("compression.thresholdBytes must be >= 0, got " + compressionThresholdBytes);
+        }
+        if (compressionLevel < -1 || compressionLevel > 9) {
+            errors.add("compression.level must be between -1 and 9, got " + compressionLevel);
+        }
+        if (compressionDictionaryThresholdBytes < 0) {
+            errors.add("compression.dictionaryThresholdBytes must be >= 0, got " + compressionDictionaryThresholdBytes);
+        }
+        if (dedupStoreBytes < ChunkDedupHandler.MIN_STORE_BYTES || dedupStoreBytes > ChunkDedupHandler.MAX_STORE_BYTES) {
+            errors.add("dedup.storeBytes must be between " + ChunkDedupHandler.MIN_STORE_BYTES + " and " + ChunkDedupHandler.MAX_STORE_BYTES + ", got " + dedupStoreBytes);
+        }
+        if (memoryLimits.getGlobalBytes() < 0 || memoryLimits.getPerGroupBytes() < 0
+                || memoryLimits.getPerUserBytes() < 0 || memoryLimits.getPerStreamBytes() < 0) {
+            errors.add("memory limits must be >= 0 (0 means unlimited)");
+        }
+        if (maxFrameBytes <= Math.max(chunkSize, maxChunkSize)) {
+            errors.add("memory.maxFrameBytes must be larger than the streaming chunk size, got " + maxFrameBytes);
+        }
+        if (!LogLevels.isValid(logLevel)) {
+            errors.add("logging.level must be a logback level such as INFO or DEBUG, got \"" + logLevel + "\"");
+        }
+        createChannelTuning().validate(errors);
+        if (reconnectInitialDelayMillis <= 0 || reconnectMaxDelayMillis < reconnectInitialDelayMillis) {
+            errors.add("reconnect delays must satisfy 0 < initialDelayMillis <= maxDelayMillis, got "
+                + reconnectInitialDelayMillis + "/" + reconnectMaxDelayMillis);
+        }
+        if (resumeGraceMillis < 0) {
+            errors.add("resume.graceMillis must be >= 0, got " + resumeGraceMillis);
+        }
+
+        if (!errors.isEmpty()) {
+            throw new IllegalArgumentException("Invalid configuration: " + String.join("; ", errors));
+        }
+    }
+
     @Override
     public String toString() {
         return "ClientConfig{" +
@@ -204,13 +1257,67 @@ public class ClientConfig {
                 ", targetPort=" + targetPort +
                 ", sharedKey=" + (sharedKey != null ? "***" : "null") +
                 ", groupId='" + groupId + '\'' +
+                ", connections=" + connections +
+                ", protocol='" + protocol + '\'' +
+                ", security='" + security + '\'' +
+                ", hostnames=" + hostnames +
+                ", udpSessionIdleSeconds=" + udpSessionIdleSeconds +
+                ", httpIdleTimeoutSeconds=" + httpIdleTimeoutSeconds +
+                ", httpMaxHeaderBytes=" + httpMaxHeaderBytes +
+                ", httpCacheMaxBytes=" + httpCacheMaxBytes +
+                ", httpUpstream='" + httpUpstream + '\'' +
+                ", httpH2Connections=" + httpH2Connections +
+                ", quicEnabled=" + quicEnabled +
+                ", quicPort=" + quicPort +
+                ", quicTrustCertFile='" + quicTrustCertFile + '\'' +
                 ", corePoolSize=" + corePoolSize +
                 ", maxPoolSize=" + maxPoolSize +
                 ", keepAliveTimeSeconds=" + keepAliveTimeSeconds +
                 ", queueCapacity=" + queueCapacity +
+                ", threadPoolMode='" + threadPoolMode + '\'' +
+                ", maxConcurrentRequests=" + maxConcurrentRequests +
+                ", coalescingEnabled=" + coalescingEnabled +
+                ", coalescingMaxWaitMillis=" + coalescingMaxWaitMillis +
                 ", idleTimeoutSeconds=" + idleTimeoutSeconds +
                 ", soKeepalive=" + soKeepalive +
                 ", tcpNodelay=" + tcpNodelay +
+                ", soRcvbuf=" + soRcvbuf +
+                ", soSndbuf=" + soSndbuf +
+                ", writeBufferLowWaterMark=" + writeBufferLowWaterMark +
+                ", writeBufferHighWaterMark=" + writeBufferHighWaterMark +
+                ", allocator='" + allocator + '\'' +
+                ", chunkSize=" + chunkSize +
+                ", adaptiveChunkSize=" + adaptiveChunkSize +
+                ", minChunkSize=" + minChunkSize +
+                ", maxChunkSize=" + maxChunkSize +
+                ", targetFrameTimeMicros=" + targetFrameTimeMicros +
+                ", batchingEnabled=" + batchingEnabled +
+                ", maxBatchBytes=" + maxBatchBytes +
+                ", maxBatchDelayMicros=" + maxBatchDelayMicros +
+                ", schedulingEnabled=" + schedulingEnabled +
+                ", schedulingQuantumBytes=" + schedulingQuantumBytes +
+                ", interactiveWeight=" + interactiveWeight +
+                ", codecOffloadThreads=" + codecOffloadThreads +
+                ", reconnectEnabled=" + reconnectEnabled +
+                ", reconnectInitialDelayMillis=" + reconnectInitialDelayMillis +
+                ", reconnectMaxDelayMillis=" + reconnectMaxDelayMillis +
+                ", resumeGraceMillis=" + resumeGraceMillis +
+                ", compressionEnabled=" + compressionEnabled +
+                ", compressionThresholdBytes=" + compressionThresholdBytes +
+                ", compressionLevel=" + compressionLevel +
+                ", compressionDictionaryThresholdBytes=" + compressionDictionaryThresholdBytes +
+                ", dedupEnabled=" + dedupEnabled +
+                ", dedupStoreBytes=" + dedupStoreBytes +
+                ", dedupDirectory='" + dedupDirectory + '\'' +
+                ", memoryLimits=[" + memoryLimits + "]" +
+                ", maxFrameBytes=" + maxFrameBytes +
+                ", logLevel='" + logLevel + '\'' +
                 '}';
     }
+
+    private static void checkPort(List<String> errors, String name, int port) {
+        if (port < 1 || port > 65535) {
+            errors.add(name + " must be between 1 and 65535, got " + port);
+        }
+    }
 }
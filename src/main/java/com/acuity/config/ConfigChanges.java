@@ -0,0 +1,64 @@
+package com.acuity.config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Outcome of reloading a configuration: settings applied live, and changed settings that only
+ * take effect after a restart
+ */
+public class ConfigChanges {
+    private final List<String> applied = new ArrayList<>();
+    private final List<String> restartRequired = new ArrayList<>();
+
+    /**
+     * Record a live setting; returns whether it changed
+     */
+    boolean applied(String name, Object oldValue, Object newValue) {
+        if (Objects.equals(oldValue, newValue)) {
+            return false;
+        }
+        applied.add(name + ": " + oldValue + " -> " + newValue);
+        return true;
+    }
+
+    void restartRequired(String name, Object oldValue, Object newValue) {
+        if (!Objects.equals(oldValue, newValue)) {
+            restartRequired.add(name + ": " + oldValue + " -> " + newValue);
+        }
+    }
+
+    /**
+     * Like restartRequired, without putting the values in the report
+     */
+    void restartRequiredSecret(String name, Object oldValue, Object newValue) {
+        if (!Objects.equals(oldValue, newValue)) {
+            restartRequired.add(name + " changed");
+        }
+    }
+
+    public List<String> getApplied() {
+        return applied;
+    }
+
+    public List<String> getRestartRequired() {
+        return restartRequired;
+    }
+
+    public boolean isEmpty() {
+        return applied.isEmpty() && restartRequired.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        if (isEmpty()) {
+            return "no changes";
+        }
+        String result = "applied " + applied;
+        if (!restartRequired.isEmpty()) {
+            result += ", restart required for " + restartRequired;
+        }
+        return result;
+    }
+}
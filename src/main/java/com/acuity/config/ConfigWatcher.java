@@ -0,0 +1,102 @@
+package com.acuity.config;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.function.Consumer;
+
+/**
+ * Watches a TOML configuration file and hands each successfully loaded version to a listener.
+ * A file that fails to load is reported and the running configuration is kept.
+ */
+public class ConfigWatcher<T> implements Closeable {
+    // Editors often write a file in several steps; wait for them to settle before reading
+    private static final long SETTLE_MILLIS = 200;
+
+    public interface Loader<T> {
+        T load(String path) throws IOException;
+    }
+
+    private final Path file;
+    private final Loader<T> loader;
+    private final Consumer<T> listener;
+    private final String logPrefix;
+    private final WatchService watchService;
+
+    public ConfigWatcher(String path, Loader<T> loader, Consumer<T> listener, String logPrefix) throws IOException {
+        this.file = Paths.get(path).toAbsolutePath();
+        this.loader = loader;
+        this.listener = listener;
+        this.logPrefix = logPrefix;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        // Watch the directory so files replaced by rename (atomic saves) are still seen
+        file.getParent().register(watchService,
+            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+    }
+
+    /**
+     * Start watching on a daemon thread
+     */
+    public ConfigWatcher<T> start() {
+        Thread thread = new Thread(this::run, "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println(logPrefix + " Watching " + file + " for configuration changes");
+        return this;
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = containsFile(key);
+                key.reset();
+                if (!changed) {
+                    continue;
+                }
+
+                // Coalesce the burst of events from one save
+                Thread.sleep(SETTLE_MILLIS);
+                WatchKey more;
+                while ((more = watchService.poll()) != null) {
+                    more.pollEvents();
+                    more.reset();
+                }
+                reload();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Watcher closed
+        }
+    }
+
+    private boolean containsFile(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (context instanceof Path && file.getFileName().equals(context)) {
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    void reload() {
+        try {
+            listener.accept(loader.load(file.toString()));
+        } catch (Exception e) {
+            System.err.println(logPrefix + " Failed to reload " + file + ", keeping current configuration: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
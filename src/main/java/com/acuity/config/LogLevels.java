@@ -0,0 +1,41 @@
+package com.acuity.config;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Applies the configured log level to the com.acuity loggers at runtime
+ */
+public final class LogLevels {
+    private static final String ROOT_PACKAGE = "com.acuity";
+
+    private LogLevels() {
+    }
+
+    /**
+     * Set the level of com.acuity and every configured logger below it; empty leaves logback.xml in charge
+     */
+    public static void apply(String level) {
+        if (level == null || level.trim().isEmpty() || !(LoggerFactory.getILoggerFactory() instanceof LoggerContext)) {
+            return;
+        }
+        Level parsed = Level.toLevel(level.trim(), Level.INFO);
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        context.getLogger(ROOT_PACKAGE).setLevel(parsed);
+        for (Logger logger : context.getLoggerList()) {
+            // Loggers without their own level inherit from com.acuity
+            if (logger.getName().startsWith(ROOT_PACKAGE + ".") && logger.getLevel() != null) {
+                logger.setLevel(parsed);
+            }
+        }
+    }
+
+    static boolean isValid(String level) {
+        if (level == null || level.trim().isEmpty()) {
+            return true;
+        }
+        return Level.toLevel(level.trim(), null) != null;
+    }
+}
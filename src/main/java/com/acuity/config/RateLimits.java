@@ -0,0 +1,118 @@
+package com.acuity.config;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Bandwidth limits in bytes per second for each direction, per group, per proxy port within a
+ * group, and per user connection. A limit of 0 means unlimited.
+ */
+public class RateLimits {
+    public static final long UNLIMITED = 0;
+    public static final long DEFAULT_BURST_MILLIS = 100;
+
+    private final long perGroupBytesPerSecond;
+    private final long perPortBytesPerSecond;
+    private final long perUserBytesPerSecond;
+    private final long burstMillis;
+    private final Map<String, Long> groupOverrides;
+    private final Map<Integer, Long> portOverrides;
+    private final boolean unlimited;
+
+    public RateLimits(long perGroupBytesPerSecond, long perPortBytesPerSecond, long perUserBytesPerSecond, long burstMillis,
+                      Map<String, Long> groupOverrides, Map<Integer, Long> portOverrides) {
+        this.perGroupBytesPerSecond = perGroupBytesPerSecond;
+        this.perPortBytesPerSecond = perPortBytesPerSecond;
+        this.perUserBytesPerSecond = perUserBytesPerSecond;
+        this.burstMillis = burstMillis;
+        this.groupOverrides = Collections.unmodifiableMap(new HashMap<>(groupOverrides));
+        this.portOverrides = Collections.unmodifiableMap(new HashMap<>(portOverrides));
+        this.unlimited = perGroupBytesPerSecond == UNLIMITED && perPortBytesPerSecond == UNLIMITED && perUserBytesPerSecond == UNLIMITED
+            && groupOverrides.values().stream().allMatch(limit -> limit == UNLIMITED)
+            && portOverrides.values().stream().allMatch(limit -> limit == UNLIMITED);
+    }
+
+    public static RateLimits unlimited() {
+        return new RateLimits(UNLIMITED, UNLIMITED, UNLIMITED, DEFAULT_BURST_MILLIS, Collections.emptyMap(), Collections.emptyMap());
+    }
+
+    public long groupLimit(String groupId) {
+        return groupOverrides.getOrDefault(groupId, perGroupBytesPerSecond);
+    }
+
+    public long portLimit(int proxyPort) {
+        return portOverrides.getOrDefault(proxyPort, perPortBytesPerSecond);
+    }
+
+    public long userLimit() {
+        return perUserBytesPerSecond;
+    }
+
+    public long getBurstMillis() {
+        return burstMillis;
+    }
+
+    /**
+     * True when nothing is limited, so traffic can skip shaping entirely
+     */
+    public boolean isUnlimited() {
+        return unlimited;
+    }
+
+    /**
+     * Add a message to errors for each invalid setting
+     */
+    void validate(List<String> errors) {
+        if (perGroupBytesPerSecond < 0 || perPortBytesPerSecond < 0 || perUserBytesPerSecond < 0) {
+            errors.add("rateLimit limits must be >= 0 (0 means unlimited)");
+        }
+        if (burstMillis <= 0) {
+            errors.add("rateLimit.burstMillis must be > 0, got " + burstMillis);
+        }
+        for (Map.Entry<String, Long> entry : groupOverrides.entrySet()) {
+            if (entry.getValue() < 0) {
+                errors.add("rateLimit.groups." + entry.getKey() + " must be >= 0, got " + entry.getValue());
+            }
+        }
+        for (Map.Entry<Integer, Long> entry : portOverrides.entrySet()) {
+            if (entry.getValue() < 0) {
+                errors.add("rateLimit.ports." + entry.getKey() + " must be >= 0, got " + entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof RateLimits)) {
+            return false;
+        }
+        RateLimits other = (RateLimits) o;
+        return perGroupBytesPerSecond == other.perGroupBytesPerSecond
+            && perPortBytesPerSecond == other.perPortBytesPerSecond
+            && perUserBytesPerSecond == other.perUserBytesPerSecond
+            && burstMillis == other.burstMillis
+            && groupOverrides.equals(other.groupOverrides)
+            && portOverrides.equals(other.portOverrides);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(perGroupBytesPerSecond, perPortBytesPerSecond, perUserBytesPerSecond, burstMillis, groupOverrides, portOverrides);
+    }
+
+    @Override
+    public String toString() {
+        return "perGroup=" + perGroupBytesPerSecond +
+                ", perPort=" + perPortBytesPerSecond +
+                ", perUser=" + perUserBytesPerSecond +
+                ", burstMillis=" + burstMillis +
+                ", groups=" + groupOverrides +
+                ", ports=" + portOverrides;
+    }
+}
@@ -1,24 +1,90 @@
 package com.acuity.config;
 
+import com.acuity.common.AdaptiveChunkSizer;
+import com.acuity.common.ChunkDedupHandler;
+import com.acuity.common.MemoryBudget;
+import com.acuity.common.CompressionDictionary;
+import com.acuity.common.DataCompression;
+import com.acuity.common.FrameBatchingHandler;
+import com.acuity.common.StreamSchedulingHandler;
+import com.acuity.common.SymmetricDecryptionHandler;
+import com.acuity.common.SymmetricEncryptionHandler;
 import com.moandjiezana.toml.Toml;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
 
 /**
  * Configuration for the Acuity Tunnel Server loaded from TOML file
  */
 public class ServerConfig {
+    public static final String LOAD_BALANCING_ROUND_ROBIN = "round-robin";
+    public static final String LOAD_BALANCING_RANDOM = "random";
+    public static final String LOAD_BALANCING_HASH = "hash";
+
     private int port;
     private String sharedKey;
     private int bossGroupSize;
     private int workerGroupSize;
-    private long idleTimeoutSeconds;
+    private volatile long idleTimeoutSeconds;
     private int soBacklog;
     private boolean soKeepalive;
     private boolean tcpNodelay;
+    private int soRcvbuf;
+    private int soSndbuf;
+    private int writeBufferLowWaterMark;
+    private int writeBufferHighWaterMark;
+    private String allocator;
+    private volatile int chunkSize;
+    private volatile boolean adaptiveChunkSize;
+    private volatile int minChunkSize;
+    private volatile int maxChunkSize;
+    private volatile long targetFrameTimeMicros;
+    private volatile boolean batchingEnabled;
+    private volatile int maxBatchBytes;
+    private volatile long maxBatchDelayMicros;
+    private volatile boolean schedulingEnabled;
+    private volatile int schedulingQuantumBytes;
+    private volatile int interactiveWeight;
+    private int codecOffloadThreads;
+    private volatile long resumeGraceMillis;
+    private volatile String loadBalancing;
+    private volatile long udpSessionIdleSeconds;
+    private volatile long edgeCacheMemoryBytes;
+    private volatile long edgeCacheDiskBytes;
+    private String edgeCacheDirectory;
+    private volatile int proxyPortRangeStart;
+    private volatile int proxyPortRangeEnd;
+    private boolean quicEnabled;
+    private int quicPort;
+    private String quicCertFile;
+    private String quicKeyFile;
+    private volatile boolean compressionEnabled;
+    private volatile int compressionThresholdBytes;
+    private volatile int compressionLevel;
+    private volatile int compressionDictionaryThresholdBytes;
+    private volatile boolean compressionDictionaryEnabled;
+    private volatile int compressionDictionaryMaxBytes;
+    private volatile int compressionDictionarySampleBytes;
+    private volatile boolean dedupEnabled;
+    private volatile int dedupStoreBytes;
+    private volatile String dedupDirectory;
+    private volatile MemoryBudget.Limits memoryLimits;
+    private volatile int maxFrameBytes;
+    private volatile long spillThresholdBytes;
+    private volatile long spillMaxBytes;
+    private String spillDirectory;
+    private volatile String logLevel;
+    private volatile RateLimits rateLimits;
+    private volatile Map<String, String> groupSecurity;
 
     // Default values
     public ServerConfig() {
@@ -30,6 +96,53 @@ public class ServerConfig {
         this.soBacklog = 128;
         this.soKeepalive = true;
         this.tcpNodelay = true;
+        this.soRcvbuf = 0; // 0 keeps the OS default
+        this.soSndbuf = 0;
+        this.writeBufferLowWaterMark = ChannelTuning.DEFAULT_WRITE_BUFFER_LOW_WATER_MARK;
+        this.writeBufferHighWaterMark = ChannelTuning.DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK;
+        this.allocator = ChannelTuning.DEFAULT_ALLOCATOR;
+        this.chunkSize = AdaptiveChunkSizer.DEFAULT_CHUNK_SIZE;
+        this.adaptiveChunkSize = false;
+        this.minChunkSize = AdaptiveChunkSizer.DEFAULT_MIN_CHUNK_SIZE;
+        this.maxChunkSize = AdaptiveChunkSizer.DEFAULT_MAX_CHUNK_SIZE;
+        this.targetFrameTimeMicros = AdaptiveChunkSizer.DEFAULT_TARGET_FRAME_TIME_MICROS;
+        this.batchingEnabled = true;
+        this.maxBatchBytes = FrameBatchingHandler.DEFAULT_MAX_BATCH_BYTES;
+        this.maxBatchDelayMicros = FrameBatchingHandler.DEFAULT_MAX_DELAY_MICROS;
+        this.schedulingEnabled = true;
+        this.schedulingQuantumBytes = StreamSchedulingHandler.DEFAULT_QUANTUM_BYTES;
+        this.interactiveWeight = StreamSchedulingHandler.DEFAULT_INTERACTIVE_WEIGHT;
+        this.codecOffloadThreads = 0; // 0 means encrypt/compress on the I/O threads
+        this.resumeGraceMillis = 10_000;
+        this.loadBalancing = LOAD_BALANCING_ROUND_ROBIN;
+        this.udpSessionIdleSeconds = 60;
+        this.edgeCacheMemoryBytes = 0;
+        this.edgeCacheDiskBytes = 0;
+        this.edgeCacheDirectory = "";
+        this.proxyPortRangeStart = 0; // 0 disables allocation; clients must name their proxy port
+        this.proxyPortRangeEnd = 0;
+        this.quicEnabled = false;
+        this.quicPort = 0; // 0 listens on server.port over UDP
+        this.quicCertFile = ""; // empty uses a self-signed certificate
+        this.quicKeyFile = "";
+        this.compressionEnabled = true;
+        this.compressionThresholdBytes = SymmetricEncryptionHandler.DEFAULT_COMPRESSION_THRESHOLD;
+        this.compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        this.compressionDictionaryThresholdBytes = SymmetricEncryptionHandler.DEFAULT_DICTIONARY_THRESHOLD;
+        this.compressionDictionaryEnabled = true;
+        this.compressionDictionaryMaxBytes = 16 * 1024;
+        this.compressionDictionarySampleBytes = 256 * 1024;
+        this.dedupEnabled = false;
+        this.dedupStoreBytes = ChunkDedupHandler.DEFAULT_STORE_BYTES;
+        this.dedupDirectory = ""; // empty maps the chunk stores under java.io.tmpdir
+        this.memoryLimits = MemoryBudget.Limits.defaults();
+        this.maxFrameBytes = SymmetricDecryptionHandler.DEFAULT_MAX_FRAME_BYTES;
+        this.spillThresholdBytes = 0; // 0 keeps whole streams in memory
+        this.spillMaxBytes = 1024L * 1024 * 1024;
+        this.spillDirectory = ""; // empty puts the spill file in java.io.tmpdir
+        this.logLevel = ""; // empty keeps the levels from logback.xml
+        this.rateLimits = RateLimits.unlimited();
+        this.groupSecurity = Collections.emptyMap(); // every group is encrypted unless listed as plain
     }
 
     /**
@@ -67,11 +180,246 @@ public class ServerConfig {
             if (serverConfig.contains("tcpNodelay")) {
                 config.tcpNodelay = serverConfig.getBoolean("tcpNodelay");
             }
+            if (serverConfig.contains("soRcvbuf")) {
+                config.soRcvbuf = serverConfig.getLong("soRcvbuf").intValue();
+            }
+            if (serverConfig.contains("soSndbuf")) {
+                config.soSndbuf = serverConfig.getLong("soSndbuf").intValue();
+            }
+            if (serverConfig.contains("writeBufferLowWaterMark")) {
+                config.writeBufferLowWaterMark = serverConfig.getLong("writeBufferLowWaterMark").intValue();
+            }
+            if (serverConfig.contains("writeBufferHighWaterMark")) {
+                config.writeBufferHighWaterMark = serverConfig.getLong("writeBufferHighWaterMark").intValue();
+            }
+            if (serverConfig.contains("allocator")) {
+                config.allocator = serverConfig.getString("allocator");
+            }
+        }
+
+        if (toml.contains("streaming")) {
+            Toml streamingConfig = toml.getTable("streaming");
+            if (streamingConfig.contains("chunkSize")) {
+                config.chunkSize = streamingConfig.getLong("chunkSize").intValue();
+            }
+            if (streamingConfig.contains("adaptiveChunkSize")) {
+                config.adaptiveChunkSize = streamingConfig.getBoolean("adaptiveChunkSize");
+            }
+            if (streamingConfig.contains("minChunkSize")) {
+                config.minChunkSize = streamingConfig.getLong("minChunkSize").intValue();
+            }
+            if (streamingConfig.contains("maxChunkSize")) {
+                config.maxChunkSize = streamingConfig.getLong("maxChunkSize").intValue();
+            }
+            if (streamingConfig.contains("targetFrameTimeMicros")) {
+                config.targetFrameTimeMicros = streamingConfig.getLong("targetFrameTimeMicros");
+            }
+        }
+
+        if (toml.contains("batching")) {
+            Toml batchingConfig = toml.getTable("batching");
+            if (batchingConfig.contains("enabled")) {
+                config.batchingEnabled = batchingConfig.getBoolean("enabled");
+            }
+            if (batchingConfig.contains("maxBatchBytes")) {
+                config.maxBatchBytes = batchingConfig.getLong("maxBatchBytes").intValue();
+            }
+            if (batchingConfig.contains("maxDelayMicros")) {
+                config.maxBatchDelayMicros = batchingConfig.getLong("maxDelayMicros");
+            }
+        }
+
+        if (toml.contains("scheduling")) {
+            Toml schedulingConfig = toml.getTable("scheduling");
+            if (schedulingConfig.contains("enabled")) {
+                config.schedulingEnabled = schedulingConfig.getBoolean("enabled");
+            }
+            if (schedulingConfig.contains("quantumBytes")) {
+                config.schedulingQuantumBytes = schedulingConfig.getLong("quantumBytes").intValue();
+            }
+            if (schedulingConfig.contains("interactiveWeight")) {
+                config.interactiveWeight = schedulingConfig.getLong("interactiveWeight").intValue();
+            }
+        }
+
+        if (toml.contains("codec")) {
+            Toml codecConfig = toml.getTable("codec");
+            if (codecConfig.contains("offloadThreads")) {
+                config.codecOffloadThreads = codecConfig.getLong("offloadThreads").intValue();
+            }
+        }
+
+        if (toml.contains("resume")) {
+            Toml resumeConfig = toml.getTable("resume");
+            if (resumeConfig.contains("graceMillis")) {
+                config.resumeGraceMillis = resumeConfig.getLong("graceMillis");
+            }
+        }
+
+        if (toml.contains("loadBalancing")) {
+            Toml loadBalancingConfig = toml.getTable("loadBalancing");
+            if (loadBalancingConfig.contains("strategy")) {
+                config.loadBalancing = loadBalancingConfig.getString("strategy");
+            }
+        }
+
+        if (toml.contains("udp")) {
+            Toml udpConfig = toml.getTable("udp");
+            if (udpConfig.contains("sessionIdleSeconds")) {
+                config.udpSessionIdleSeconds = udpConfig.getLong("sessionIdleSeconds");
+            }
+        }
+
+        if (toml.contains("edgeCache")) {
+            Toml edgeCacheConfig = toml.getTable("edgeCache");
+            if (edgeCacheConfig.contains("memoryMaxBytes")) {
+                config.edgeCacheMemoryBytes = edgeCacheConfig.getLong("memoryMaxBytes");
+            }
+            if (edgeCacheConfig.contains("diskMaxBytes")) {
+                config.edgeCacheDiskBytes = edgeCacheConfig.getLong("diskMaxBytes");
+            }
+            if (edgeCacheConfig.contains("directory")) {
+                config.edgeCacheDirectory = edgeCacheConfig.getString("directory");
+            }
+        }
+
+        if (toml.contains("proxyPorts")) {
+            Toml proxyPortsConfig = toml.getTable("proxyPorts");
+            if (proxyPortsConfig.contains("rangeStart")) {
+                config.proxyPortRangeStart = proxyPortsConfig.getLong("rangeStart").intValue();
+            }
+            if (proxyPortsConfig.contains("rangeEnd")) {
+                config.proxyPortRangeEnd = proxyPortsConfig.getLong("rangeEnd").intValue();
+            }
+        }
+
+        if (toml.contains("quic")) {
+            Toml quicConfig = toml.getTable("quic");
+            if (quicConfig.contains("enabled")) {
+                config.quicEnabled = quicConfig.getBoolean("enabled");
+            }
+            if (quicConfig.contains("port")) {
+                config.quicPort = quicConfig.getLong("port").intValue();
+            }
+            if (quicConfig.contains("certFile")) {
+                config.quicCertFile = quicConfig.getString("certFile");
+            }
+            if (quicConfig.contains("keyFile")) {
+                config.quicKeyFile = quicConfig.getString("keyFile");
+            }
+        }
+
+        if (toml.contains("compression")) {
+            Toml compressionConfig = toml.getTable("compression");
+            if (compressionConfig.contains("enabled")) {
+                config.compressionEnabled = compressionConfig.getBoolean("enabled");
+            }
+            if (compressionConfig.contains("thresholdBytes")) {
+                config.compressionThresholdBytes = compressionConfig.getLong("thresholdBytes").intValue();
+            }
+            if (compressionConfig.contains("level")) {
+                config.compressionLevel = compressionConfig.getLong("level").intValue();
+            }
+            if (compressionConfig.contains("dictionaryThresholdBytes")) {
+                config.compressionDictionaryThresholdBytes = compressionConfig.getLong("dictionaryThresholdBytes").intValue();
+            }
+            if (compressionConfig.contains("dictionaryEnabled")) {
+                config.compressionDictionaryEnabled = compressionConfig.getBoolean("dictionaryEnabled");
+            }
+            if (compressionConfig.contains("dictionaryMaxBytes")) {
+                config.compressionDictionaryMaxBytes = compressionConfig.getLong("dictionaryMaxBytes").intValue();
+            }
+            if (compressionConfig.contains("dictionarySampleBytes")) {
+                config.compressionDictionarySampleBytes = compressionConfig.getLong("dictionarySampleBytes").intValue();
+            }
+        }
+
+        if (toml.contains("dedup")) {
+            Toml dedupConfig = toml.getTable("dedup");
+            if (dedupConfig.contains("enabled")) {
+                config.dedupEnabled = dedupConfig.getBoolean("enabled");
+            }
+            if (dedupConfig.contains("storeBytes")) {
+                config.dedupStoreBytes = dedupConfig.getLong("storeBytes").intValue();
+            }
+            if (dedupConfig.contains("directory")) {
+                config.dedupDirectory = dedupConfig.getString("directory");
+            }
+        }
+
+        if (toml.contains("memory")) {
+            Toml memoryConfig = toml.getTable("memory");
+            config.memoryLimits = new MemoryBudget.Limits(
+                memoryConfig.getLong("globalBytes", MemoryBudget.Limits.DEFAULT_GLOBAL_BYTES),
+                memoryConfig.getLong("perGroupBytes", MemoryBudget.Limits.UNLIMITED),
+                memoryConfig.getLong("perUserBytes", MemoryBudget.Limits.UNLIMITED),
+                memoryConfig.getLong("perStreamBytes", MemoryBudget.Limits.DEFAULT_PER_STREAM_BYTES));
+            if (memoryConfig.contains("maxFrameBytes")) {
+                config.maxFrameBytes = memoryConfig.getLong("maxFrameBytes").intValue();
+            }
+        }
+
+        if (toml.contains("spill")) {
+            Toml spillConfig = toml.getTable("spill");
+            if (spillConfig.contains("thresholdBytes")) {
+                config.spillThresholdBytes = spillConfig.getLong("thresholdBytes");
+            }
+            if (spillConfig.contains("maxBytes")) {
+                config.spillMaxBytes = spillConfig.getLong("maxBytes");
+            }
+            if (spillConfig.contains("directory")) {
+                config.spillDirectory = spillConfig.getString("directory");
+            }
+        }
+
+        if (toml.contains("rateLimit")) {
+            config.rateLimits = parseRateLimits(toml.getTable("rateLimit"));
+        }
+
+        if (toml.contains("security")) {
+            Toml securityConfig = toml.getTable("security");
+            if (securityConfig.contains("groups")) {
+                Map<String, String> groups = new HashMap<>();
+                for (Map.Entry<String, Object> entry : securityConfig.getTable("groups").toMap().entrySet()) {
+                    groups.put(entry.getKey().replace("\"", "").trim(), String.valueOf(entry.getValue()));
+                }
+                config.groupSecurity = Collections.unmodifiableMap(groups);
+            }
+        }
+
+        if (toml.contains("logging")) {
+            Toml loggingConfig = toml.getTable("logging");
+            if (loggingConfig.contains("level")) {
+                config.logLevel = loggingConfig.getString("level");
+            }
         }
 
         return config;
     }
 
+    private static RateLimits parseRateLimits(Toml rateLimitConfig) {
+        Map<String, Long> groups = new HashMap<>();
+        if (rateLimitConfig.contains("groups")) {
+            for (Map.Entry<String, Object> entry : rateLimitConfig.getTable("groups").toMap().entrySet()) {
+                groups.put(entry.getKey(), ((Number) entry.getValue()).longValue());
+            }
+        }
+        Map<Integer, Long> ports = new HashMap<>();
+        if (rateLimitConfig.contains("ports")) {
+            for (Map.Entry<String, Object> entry : rateLimitConfig.getTable("ports").toMap().entrySet()) {
+                // Numeric keys have to be quoted in TOML, and toml4j keeps the quotes
+                String port = entry.getKey().replace("\"", "").trim();
+                ports.put(Integer.parseInt(port), ((Number) entry.getValue()).longValue());
+            }
+        }
+        return new RateLimits(
+            rateLimitConfig.getLong("perGroupBytesPerSecond", RateLimits.UNLIMITED),
+            rateLimitConfig.getLong("perPortBytesPerSecond", RateLimits.UNLIMITED),
+            rateLimitConfig.getLong("perUserBytesPerSecond", RateLimits.UNLIMITED),
+            rateLimitConfig.getLong("burstMillis", RateLimits.DEFAULT_BURST_MILLIS),
+            groups, ports);
+    }
+
     // Getters
     public int getPort() {
         return port;
@@ -113,6 +461,702 @@ public class ServerConfig {
         return tcpNodelay;
     }
 
+    public int getSoRcvbuf() {
+        return soRcvbuf;
+    }
+
+    public void setSoRcvbuf(int soRcvbuf) {
+        this.soRcvbuf = soRcvbuf;
+    }
+
+    public int getSoSndbuf() {
+        return soSndbuf;
+    }
+
+    public void setSoSndbuf(int soSndbuf) {
+        this.soSndbuf = soSndbuf;
+    }
+
+    public int getWriteBufferLowWaterMark() {
+        return writeBufferLowWaterMark;
+    }
+
+    public int getWriteBufferHighWaterMark() {
+        return writeBufferHighWaterMark;
+    }
+
+    public String getAllocator() {
+        return allocator;
+    }
+
+    public void setAllocator(String allocator) {
+        this.allocator = allocator;
+    }
+
+    /**
+     * Build the socket and channel options described by the configuration
+     */
+    public ChannelTuning createChannelTuning() {
+        return new ChannelTuning(soKeepalive, tcpNodelay, soRcvbuf, soSndbuf, writeBufferLowWaterMark, writeBufferHighWaterMark, allocator);
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public boolean isAdaptiveChunkSize() {
+        return adaptiveChunkSize;
+    }
+
+    public void setAdaptiveChunkSize(boolean adaptiveChunkSize) {
+        this.adaptiveChunkSize = adaptiveChunkSize;
+    }
+
+    public int getMinChunkSize() {
+        return minChunkSize;
+    }
+
+    public int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    public long getTargetFrameTimeMicros() {
+        return targetFrameTimeMicros;
+    }
+
+    /**
+     * Build the chunk sizer template described by the [streaming] settings
+     */
+    public AdaptiveChunkSizer createChunkSizer() {
+        return new AdaptiveChunkSizer(chunkSize, adaptiveChunkSize, minChunkSize, maxChunkSize, targetFrameTimeMicros);
+    }
+
+    public boolean isBatchingEnabled() {
+        return batchingEnabled;
+    }
+
+    public void setBatchingEnabled(boolean batchingEnabled) {
+        this.batchingEnabled = batchingEnabled;
+    }
+
+    public int getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    public long getMaxBatchDelayMicros() {
+        return maxBatchDelayMicros;
+    }
+
+    /**
+     * Build the tunnel frame batcher described by the [batching] settings
+     */
+    public FrameBatchingHandler createFrameBatchingHandler() {
+        return new FrameBatchingHandler(maxBatchBytes, maxBatchDelayMicros);
+    }
+
+    public boolean isSchedulingEnabled() {
+        return schedulingEnabled;
+    }
+
+    public void setSchedulingEnabled(boolean schedulingEnabled) {
+        this.schedulingEnabled = schedulingEnabled;
+    }
+
+    public int getSchedulingQuantumBytes() {
+        return schedulingQuantumBytes;
+    }
+
+    public int getInteractiveWeight() {
+        return interactiveWeight;
+    }
+
+    /**
+     * Build the per-connection stream scheduler described by the [scheduling] settings, counting its queued bytes against the budget
+     */
+    public StreamSchedulingHandler createStreamSchedulingHandler(MemoryBudget memoryBudget) {
+        return new StreamSchedulingHandler(schedulingQuantumBytes, interactiveWeight, memoryBudget.open(memoryLimits, null, null));
+    }
+
+    public int getCodecOffloadThreads() {
+        return codecOffloadThreads;
+    }
+
+    public void setCodecOffloadThreads(int codecOffloadThreads) {
+        this.codecOffloadThreads = codecOffloadThreads;
+    }
+
+    public long getResumeGraceMillis() {
+        return resumeGraceMillis;
+    }
+
+    public void setResumeGraceMillis(long resumeGraceMillis) {
+        this.resumeGraceMillis = resumeGraceMillis;
+    }
+
+    /**
+     * How a proxy port picks the client for a new stream: round-robin, random, or hash of the stream key
+     */
+    public String getLoadBalancing() {
+        return loadBalancing;
+    }
+
+    public void setLoadBalancing(String loadBalancing) {
+        this.loadBalancing = loadBalancing;
+    }
+
+    public long getUdpSessionIdleSeconds() {
+        return udpSessionIdleSeconds;
+    }
+
+    public void setUdpSessionIdleSeconds(long udpSessionIdleSeconds) {
+        this.udpSessionIdleSeconds = udpSessionIdleSeconds;
+    }
+
+    /**
+     * Byte budget of the edge cache's in-memory tier; 0 keeps every entry on disk
+     */
+    public long getEdgeCacheMemoryBytes() {
+        return edgeCacheMemoryBytes;
+    }
+
+    public void setEdgeCacheMemoryBytes(long edgeCacheMemoryBytes) {
+        this.edgeCacheMemoryBytes = edgeCacheMemoryBytes;
+    }
+
+    /**
+     * Byte budget of the edge cache's disk tier; 0 keeps every entry in memory
+     */
+    public long getEdgeCacheDiskBytes() {
+        return edgeCacheDiskBytes;
+    }
+
+    public void setEdgeCacheDiskBytes(long edgeCacheDiskBytes) {
+        this.edgeCacheDiskBytes = edgeCacheDiskBytes;
+    }
+
+    /**
+     * True if HTTP proxy ports answer cacheable requests from the edge cache
+     */
+    public boolean isEdgeCacheEnabled() {
+        return edgeCacheMemoryBytes > 0 || edgeCacheDiskBytes > 0;
+    }
+
+    /**
+     * Directory of the disk tier; empty uses a directory under java.io.tmpdir
+     */
+    public String getEdgeCacheDirectory() {
+        return edgeCacheDirectory;
+    }
+
+    public void setEdgeCacheDirectory(String edgeCacheDirectory) {
+        this.edgeCacheDirectory = edgeCacheDirectory;
+    }
+
+    public int getProxyPortRangeStart() {
+        return proxyPortRangeStart;
+    }
+
+    public void setProxyPortRangeStart(int proxyPortRangeStart) {
+        this.proxyPortRangeStart = proxyPortRangeStart;
+    }
+
+    public int getProxyPortRangeEnd() {
+        return proxyPortRangeEnd;
+    }
+
+    public void setProxyPortRangeEnd(int proxyPortRangeEnd) {
+        this.proxyPortRangeEnd = proxyPortRangeEnd;
+    }
+
+    /**
+     * True if clients may ask for port 0 and be given a port from the range
+     */
+    public boolean isProxyPortAllocationEnabled() {
+        return proxyPortRangeStart > 0;
+    }
+
+    public boolean isQuicEnabled() {
+        return quicEnabled;
+    }
+
+    public void setQuicEnabled(boolean quicEnabled) {
+        this.quicEnabled = quicEnabled;
+    }
+
+    public int getQuicPort() {
+        return quicPort;
+    }
+
+    public void setQuicPort(int quicPort) {
+        this.quicPort = quicPort;
+    }
+
+    /**
+     * UDP port the QUIC listener binds; defaults to the tunnel port
+     */
+    public int getEffectiveQuicPort() {
+        return quicPort > 0 ? quicPort : port;
+    }
+
+    public String getQuicCertFile() {
+        return quicCertFile;
+    }
+
+    public void setQuicCertFile(String quicCertFile) {
+        this.quicCertFile = quicCertFile;
+    }
+
+    public String getQuicKeyFile() {
+        return quicKeyFile;
+    }
+
+    public void setQuicKeyFile(String quicKeyFile) {
+        this.quicKeyFile = quicKeyFile;
+    }
+
+    public void setIdleTimeoutSeconds(long idleTimeoutSeconds) {
+        this.idleTimeoutSeconds = idleTimeoutSeconds;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    public int getCompressionThresholdBytes() {
+        return compressionThresholdBytes;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public int getCompressionDictionaryThresholdBytes() {
+        return compressionDictionaryThresholdBytes;
+    }
+
+    /**
+     * True when the server trains a compression dictionary per group and hands it to the group's clients
+     */
+    public boolean isCompressionDictionaryEnabled() {
+        return compressionDictionaryEnabled;
+    }
+
+    public void setCompressionDictionaryEnabled(boolean compressionDictionaryEnabled) {
+        this.compressionDictionaryEnabled = compressionDictionaryEnabled;
+    }
+
+    public int getCompressionDictionaryMaxBytes() {
+        return compressionDictionaryMaxBytes;
+    }
+
+    public int getCompressionDictionarySampleBytes() {
+        return compressionDictionarySampleBytes;
+    }
+
+    public void setCompressionDictionarySampleBytes(int compressionDictionarySampleBytes) {
+        this.compressionDictionarySampleBytes = compressionDictionarySampleBytes;
+    }
+
+    public boolean isDedupEnabled() {
+        return dedupEnabled;
+    }
+
+    public void setDedupEnabled(boolean dedupEnabled) {
+        this.dedupEnabled = dedupEnabled;
+    }
+
+    /**
+     * Size of each chunk store of a tunnel connection, at most the size the client offers
+     */
+    public int getDedupStoreBytes() {
+        return dedupStoreBytes;
+    }
+
+    public void setDedupStoreBytes(int dedupStoreBytes) {
+        this.dedupStoreBytes = dedupStoreBytes;
+    }
+
+    /**
+     * Directory the chunk stores are mapped in; empty uses java.io.tmpdir
+     */
+    public String getDedupDirectory() {
+        return dedupDirectory;
+    }
+
+    public void setDedupDirectory(String dedupDirectory) {
+        this.dedupDirectory = dedupDirectory;
+    }
+
+    /**
+     * Limits on the bytes in-flight streams may hold in memory
+     */
+    public MemoryBudget.Limits getMemoryLimits() {
+        return memoryLimits;
+    }
+
+    public void setMemoryLimits(MemoryBudget.Limits memoryLimits) {
+        this.memoryLimits = memoryLimits;
+    }
+
+    /**
+     * Longest frame a peer may send, before or after decompression
+     */
+    public int getMaxFrameBytes() {
+        return maxFrameBytes;
+    }
+
+    public void setMaxFrameBytes(int maxFrameBytes) {
+        this.maxFrameBytes = maxFrameBytes;
+    }
+
+    /**
+     * Build the decryption handler of a tunnel connection, which refuses frames over memory.maxFrameBytes
+     */
+    public SymmetricDecryptionHandler createDecryptionHandler() {
+        return new SymmetricDecryptionHandler(maxFrameBytes);
+    }
+
+    /**
+     * Bytes of a stream kept in memory before the rest is spilled to disk; 0 never spills
+     */
+    public long getSpillThresholdBytes() {
+        return spillThresholdBytes;
+    }
+
+    public void setSpillThresholdBytes(long spillThresholdBytes) {
+        this.spillThresholdBytes = spillThresholdBytes;
+    }
+
+    /**
+     * Most bytes all streams together may keep in the spill file
+     */
+    public long getSpillMaxBytes() {
+        return spillMaxBytes;
+    }
+
+    public void setSpillMaxBytes(long spillMaxBytes) {
+        this.spillMaxBytes = spillMaxBytes;
+    }
+
+    /**
+     * Directory of the spill file; empty uses java.io.tmpdir
+     */
+    public String getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    public void setSpillDirectory(String spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    public String getLogLevel() {
+        return logLevel;
+    }
+
+    public void setLogLevel(String logLevel) {
+        this.logLevel = logLevel;
+    }
+
+    public RateLimits getRateLimits() {
+        return rateLimits;
+    }
+
+    public void setRateLimits(RateLimits rateLimits) {
+        this.rateLimits = rateLimits;
+    }
+
+    /**
+     * Security mode per group ("encrypted" or "plain"); unlisted groups are encrypted
+     */
+    public Map<String, String> getGroupSecurity() {
+        return groupSecurity;
+    }
+
+    public void setGroupSecurity(Map<String, String> groupSecurity) {
+        this.groupSecurity = Collections.unmodifiableMap(new HashMap<>(groupSecurity));
+    }
+
+    /**
+     * True if the group's tunnel connections may exchange plain frames
+     */
+    public boolean isPlainGroup(String groupId) {
+        return ClientConfig.SECURITY_PLAIN.equalsIgnoreCase(groupSecurity.get(groupId));
+    }
+
+    /**
+     * Push the process-wide settings (compression policy, log level) to the components that use them
+     */
+    public void applyGlobalSettings() {
+        SymmetricEncryptionHandler.configureCompression(compressionEnabled, compressionThresholdBytes, compressionDictionaryThresholdBytes);
+        DataCompression.setCompressionLevel(compressionLevel);
+        LogLevels.apply(logLevel);
+    }
+
+    /**
+     * Take over the settings of a reloaded configuration that can change while running.
+     * Chunk sizing, compression, log level, rate limits, the resume grace window, the load-balancing strategy, UDP session expiry and edge cache budgets apply at once (the caller
+     * pushes them to live channels and global settings); heartbeat, batching and scheduling settings apply
+     * to new connections. Everything else is only reported, since it needs a restart.
+     */
+    public ConfigChanges reloadFrom(ServerConfig updated) {
+        ConfigChanges changes = new ConfigChanges();
+        if (changes.applied("server.idleTimeoutSeconds (new connections)", idleTimeoutSeconds, updated.idleTimeoutSeconds)) {
+            idleTimeoutSeconds = updated.idleTimeoutSeconds;
+        }
+        if (changes.applied("streaming.chunkSize", chunkSize, updated.chunkSize)) {
+            chunkSize = updated.chunkSize;
+        }
+        if (changes.applied("streaming.adaptiveChunkSize", adaptiveChunkSize, updated.adaptiveChunkSize)) {
+            adaptiveChunkSize = updated.adaptiveChunkSize;
+        }
+        if (changes.applied("streaming.minChunkSize", minChunkSize, updated.minChunkSize)) {
+            minChunkSize = updated.minChunkSize;
+        }
+        if (changes.applied("streaming.maxChunkSize", maxChunkSize, updated.maxChunkSize)) {
+            maxChunkSize = updated.maxChunkSize;
+        }
+        if (changes.applied("streaming.targetFrameTimeMicros", targetFrameTimeMicros, updated.targetFrameTimeMicros)) {
+            targetFrameTimeMicros = updated.targetFrameTimeMicros;
+        }
+        if (changes.applied("batching.enabled (new connections)", batchingEnabled, updated.batchingEnabled)) {
+            batchingEnabled = updated.batchingEnabled;
+        }
+        if (changes.applied("batching.maxBatchBytes (new connections)", maxBatchBytes, updated.maxBatchBytes)) {
+            maxBatchBytes = updated.maxBatchBytes;
+        }
+        if (changes.applied("batching.maxDelayMicros (new connections)", maxBatchDelayMicros, updated.maxBatchDelayMicros)) {
+            maxBatchDelayMicros = updated.maxBatchDelayMicros;
+        }
+        if (changes.applied("scheduling.enabled (new connections)", schedulingEnabled, updated.schedulingEnabled)) {
+            schedulingEnabled = updated.schedulingEnabled;
+        }
+        if (changes.applied("scheduling.quantumBytes (new connections)", schedulingQuantumBytes, updated.schedulingQuantumBytes)) {
+            schedulingQuantumBytes = updated.schedulingQuantumBytes;
+        }
+        if (changes.applied("scheduling.interactiveWeight (new connections)", interactiveWeight, updated.interactiveWeight)) {
+            interactiveWeight = updated.interactiveWeight;
+        }
+        if (changes.applied("compression.enabled", compressionEnabled, updated.compressionEnabled)) {
+            compressionEnabled = updated.compressionEnabled;
+        }
+        if (changes.applied("compression.thresholdBytes", compressionThresholdBytes, updated.compressionThresholdBytes)) {
+            compressionThresholdBytes = updated.compressionThresholdBytes;
+        }
+        if (changes.applied("compression.level", compressionLevel, updated.compressionLevel)) {
+            compressionLevel = updated.compressionLevel;
+        }
+        if (changes.applied("compression.dictionaryThresholdBytes", compressionDictionaryThresholdBytes, updated.compressionDictionaryThresholdBytes)) {
+            compressionDictionaryThresholdBytes = updated.compressionDictionaryThresholdBytes;
+        }
+        if (changes.applied("compression.dictionaryEnabled", compressionDictionaryEnabled, updated.compressionDictionaryEnabled)) {
+            compressionDictionaryEnabled = updated.compressionDictionaryEnabled;
+        }
+        if (changes.applied("compression.dictionaryMaxBytes", compressionDictionaryMaxBytes, updated.compressionDictionaryMaxBytes)) {
+            compressionDictionaryMaxBytes = updated.compressionDictionaryMaxBytes;
+        }
+        if (changes.applied("compression.dictionarySampleBytes", compressionDictionarySampleBytes, updated.compressionDictionarySampleBytes)) {
+            compressionDictionarySampleBytes = updated.compressionDictionarySampleBytes;
+        }
+        if (changes.applied("dedup.enabled (new connections)", dedupEnabled, updated.dedupEnabled)) {
+            dedupEnabled = updated.dedupEnabled;
+        }
+        if (changes.applied("dedup.storeBytes (new connections)", dedupStoreBytes, updated.dedupStoreBytes)) {
+            dedupStoreBytes = updated.dedupStoreBytes;
+        }
+        if (changes.applied("dedup.directory (new connections)", dedupDirectory, updated.dedupDirectory)) {
+            dedupDirectory = updated.dedupDirectory;
+        }
+        if (changes.applied("memory (new streams)", memoryLimits, updated.memoryLimits)) {
+            memoryLimits = updated.memoryLimits;
+        }
+        if (changes.applied("memory.maxFrameBytes (new connections)", maxFrameBytes, updated.maxFrameBytes)) {
+            maxFrameBytes = updated.maxFrameBytes;
+        }
+        if (changes.applied("spill.thresholdBytes (new streams)", spillThresholdBytes, updated.spillThresholdBytes)) {
+            spillThresholdBytes = updated.spillThresholdBytes;
+        }
+        if (changes.applied("spill.maxBytes", spillMaxBytes, updated.spillMaxBytes)) {
+            spillMaxBytes = updated.spillMaxBytes;
+        }
+        if (changes.applied("logging.level", logLevel, updated.logLevel)) {
+            logLevel = updated.logLevel;
+        }
+        if (changes.applied("resume.graceMillis", resumeGraceMillis, updated.resumeGraceMillis)) {
+            resumeGraceMillis = updated.resumeGraceMillis;
+        }
+        if (changes.applied("loadBalancing.strategy (new streams)", loadBalancing, updated.loadBalancing)) {
+            loadBalancing = updated.loadBalancing;
+        }
+        if (changes.applied("udp.sessionIdleSeconds", udpSessionIdleSeconds, updated.udpSessionIdleSeconds)) {
+            udpSessionIdleSeconds = updated.udpSessionIdleSeconds;
+        }
+        if (changes.applied("edgeCache.memoryMaxBytes", edgeCacheMemoryBytes, updated.edgeCacheMemoryBytes)) {
+            edgeCacheMemoryBytes = updated.edgeCacheMemoryBytes;
+        }
+        if (changes.applied("edgeCache.diskMaxBytes", edgeCacheDiskBytes, updated.edgeCacheDiskBytes)) {
+            edgeCacheDiskBytes = updated.edgeCacheDiskBytes;
+        }
+        if (changes.applied("proxyPorts.rangeStart (new allocations)", proxyPortRangeStart, updated.proxyPortRangeStart)) {
+            proxyPortRangeStart = updated.proxyPortRangeStart;
+        }
+        if (changes.applied("proxyPorts.rangeEnd (new allocations)", proxyPortRangeEnd, updated.proxyPortRangeEnd)) {
+            proxyPortRangeEnd = updated.proxyPortRangeEnd;
+        }
+        if (changes.applied("rateLimit", rateLimits, updated.rateLimits)) {
+            rateLimits = updated.rateLimits;
+        }
+        if (changes.applied("security.groups (new connections)", groupSecurity, updated.groupSecurity)) {
+            groupSecurity = updated.groupSecurity;
+        }
+
+        changes.restartRequired("server.port", port, updated.port);
+        changes.restartRequiredSecret("server.sharedKey", sharedKey, updated.sharedKey);
+        changes.restartRequired("server.bossGroupSize", bossGroupSize, updated.bossGroupSize);
+        changes.restartRequired("server.workerGroupSize", workerGroupSize, updated.workerGroupSize);
+        changes.restartRequired("server.soBacklog", soBacklog, updated.soBacklog);
+        changes.restartRequired("server.soKeepalive", soKeepalive, updated.soKeepalive);
+        changes.restartRequired("server.tcpNodelay", tcpNodelay, updated.tcpNodelay);
+        changes.restartRequired("server.soRcvbuf", soRcvbuf, updated.soRcvbuf);
+        changes.restartRequired("server.soSndbuf", soSndbuf, updated.soSndbuf);
+        changes.restartRequired("server.writeBufferLowWaterMark", writeBufferLowWaterMark, updated.writeBufferLowWaterMark);
+        changes.restartRequired("server.writeBufferHighWaterMark", writeBufferHighWaterMark, updated.writeBufferHighWaterMark);
+        changes.restartRequired("server.allocator", allocator, updated.allocator);
+        changes.restartRequired("codec.offloadThreads", codecOffloadThreads, updated.codecOffloadThreads);
+        changes.restartRequired("quic.enabled", quicEnabled, updated.quicEnabled);
+        changes.restartRequired("quic.port", quicPort, updated.quicPort);
+        changes.restartRequired("quic.certFile", quicCertFile, updated.quicCertFile);
+        changes.restartRequired("quic.keyFile", quicKeyFile, updated.quicKeyFile);
+        changes.restartRequired("edgeCache.directory", edgeCacheDirectory, updated.edgeCacheDirectory);
+        changes.restartRequired("spill.directory", spillDirectory, updated.spillDirectory);
+        return changes;
+    }
+
+    /**
+     * Check every setting at startup so a bad value fails fast instead of surfacing under load
+     *
+     * @throws IllegalArgumentException listing all invalid settings
+     */
+    public void validate() {
+        List<String> errors = new ArrayList<>();
+        if (port < 1 || port > 65535) {
+            errors.add("server.port must be between 1 and 65535, got " + port);
+        }
+        if (bossGroupSize < 1) {
+            errors.add("server.bossGroupSize must be >= 1, got " + bossGroupSize);
+        }
+        if (workerGroupSize < 0) {
+            errors.add("server.workerGroupSize must be >= 0 (0 uses CPUs * 2), got " + workerGroupSize);
+        }
+        if (idleTimeoutSeconds < 0) {
+            errors.add("server.idleTimeoutSeconds must be >= 0 (0 disables heartbeats), got " + idleTimeoutSeconds);
+        }
+        if (soBacklog < 1) {
+            errors.add("server.soBacklog must be >= 1, got " + soBacklog);
+        }
+        if (chunkSize <= 0) {
+            errors.add("streaming.chunkSize must be > 0, got " + chunkSize);
+        }
+        if (minChunkSize <= 0 || maxChunkSize < minChunkSize) {
+            errors.add("streaming chunk bounds must satisfy 0 < minChunkSize <= maxChunkSize, got " + minChunkSize + "/" + maxChunkSize);
+        }
+        if (targetFrameTimeMicros <= 0) {
+            errors.add("streaming.targetFrameTimeMicros must be > 0, got " + targetFrameTimeMicros);
+        }
+        if (maxBatchBytes <= 0) {
+            errors.add("batching.maxBatchBytes must be > 0, got " + maxBatchBytes);
+        }
+        if (maxBatchDelayMicros < 0) {
+            errors.add("batching.maxDelayMicros must be >= 0, got " + maxBatchDelayMicros);
+        }
+        if (schedulingQuantumBytes <= 0) {
+            errors.add("scheduling.quantumBytes must be > 0, got " + schedulingQuantumBytes);
+        }
+        if (interactiveWeight < 1) {
+            errors.add("scheduling.interactiveWeight must be >= 1, got " + interactiveWeight);
+        }
+        if (codecOffloadThreads < 0) {
+            errors.add("codec.offloadThreads must be >= 0, got " + codecOffloadThreads);
+        }
+        if (compressionThresholdBytes < 0) {
+            errors.add("compression.thresholdBytes must be >= 0, got " + compressionThresholdBytes);
+        }
+        if (compressionLevel < -1 || compressionLevel > 9) {
+            errors.add("compression.level must be between -1 and 9, got " + compressionLevel);
+        }
+        if (compressionDictionaryThresholdBytes < 0) {
+            errors.add("compression.dictionaryThresholdBytes must be >= 0, got " + compressionDictionaryThresholdBytes);
+        }
+        if (compressionDictionaryMaxBytes < 256 || compressionDictionaryMaxBytes > CompressionDictionary.MAX_BYTES) {
+            errors.add("compression.dictionaryMaxBytes must be between 256 and " + CompressionDictionary.MAX_BYTES + ", got " + compressionDictionaryMaxBytes);
+        }
+        if (compressionDictionarySampleBytes < compressionDictionaryMaxBytes) {
+            errors.add("compression.dictionarySampleBytes must be >= compression.dictionaryMaxBytes, got " + compressionDictionarySampleBytes);
+        }
+        if (dedupStoreBytes < ChunkDedupHandler.MIN_STORE_BYTES || dedupStoreBytes > ChunkDedupHandler.MAX_STORE_BYTES) {
+            errors.add("dedup.storeBytes must be between " + ChunkDedupHandler.MIN_STORE_BYTES + " and " + ChunkDedupHandler.MAX_STORE_BYTES + ", got " + dedupStoreBytes);
+        }
+        if (memoryLimits.getGlobalBytes() < 0 || memoryLimits.getPerGroupBytes() < 0
+                || memoryLimits.getPerUserBytes() < 0 || memoryLimits.getPerStreamBytes() < 0) {
+            errors.add("memory limits must be >= 0 (0 means unlimited)");
+        }
+        if (maxFrameBytes <= Math.max(chunkSize, maxChunkSize)) {
+            errors.add("memory.maxFrameBytes must be larger than the streaming chunk size, got " + maxFrameBytes);
+        }
+        if (spillThresholdBytes < 0) {
+            errors.add("spill.thresholdBytes must be >= 0 (0 disables spilling), got " + spillThresholdBytes);
+        }
+        if (spillMaxBytes < 0) {
+            errors.add("spill.maxBytes must be >= 0, got " + spillMaxBytes);
+        }
+        if (!LogLevels.isValid(logLevel)) {
+            errors.add("logging.level must be a logback level such as INFO or DEBUG, got \"" + logLevel + "\"");
+        }
+        createChannelTuning().validate(errors);
+        rateLimits.validate(errors);
+        if (resumeGraceMillis < 0) {
+            errors.add("resume.graceMillis must be >= 0, got " + resumeGraceMillis);
+        }
+        if (!LOAD_BALANCING_ROUND_ROBIN.equals(loadBalancing) && !LOAD_BALANCING_RANDOM.equals(loadBalancing)
+                && !LOAD_BALANCING_HASH.equals(loadBalancing)) {
+            errors.add("loadBalancing.strategy must be \"round-robin\", \"random\" or \"hash\", got \"" + loadBalancing + "\"");
+        }
+        if (udpSessionIdleSeconds <= 0) {
+            errors.add("udp.sessionIdleSeconds must be > 0, got " + udpSessionIdleSeconds);
+        }
+        if (edgeCacheMemoryBytes < 0 || edgeCacheDiskBytes < 0) {
+            errors.add("edgeCache budgets must be >= 0 (both 0 disables the cache), got " + edgeCacheMemoryBytes + "/" + edgeCacheDiskBytes);
+        }
+        if (proxyPortRangeStart != 0 || proxyPortRangeEnd != 0) {
+            if (proxyPortRangeStart < 1 || proxyPortRangeEnd < proxyPortRangeStart || proxyPortRangeEnd > 65535) {
+                errors.add("proxyPorts range must satisfy 1 <= rangeStart <= rangeEnd <= 65535 (both 0 disables allocation), got "
+                        + proxyPortRangeStart + "-" + proxyPortRangeEnd);
+            }
+        }
+        if (quicPort < 0 || quicPort > 65535) {
+            errors.add("quic.port must be between 0 and 65535 (0 uses server.port), got " + quicPort);
+        }
+        if (quicCertFile.isEmpty() != quicKeyFile.isEmpty()) {
+            errors.add("quic.certFile and quic.keyFile must be set together");
+        }
+        for (Map.Entry<String, String> entry : groupSecurity.entrySet()) {
+            if (!ClientConfig.SECURITY_ENCRYPTED.equalsIgnoreCase(entry.getValue()) && !ClientConfig.SECURITY_PLAIN.equalsIgnoreCase(entry.getValue())) {
+                errors.add("security.groups." + entry.getKey() + " must be \"encrypted\" or \"plain\", got \"" + entry.getValue() + "\"");
+            }
+        }
+
+        if (!errors.isEmpty()) {
+            throw new IllegalArgumentException("Invalid configuration: " + String.join("; ", errors));
+        }
+    }
+
     @Override
     public String toString() {
         return "ServerConfig{" +
@@ -124,6 +1168,53 @@ public class ServerConfig {
                 ", soBacklog=" + soBacklog +
                 ", soKeepalive=" + soKeepalive +
                 ", tcpNodelay=" + tcpNodelay +
+                ", soRcvbuf=" + soRcvbuf +
+                ", soSndbuf=" + soSndbuf +
+                ", writeBufferLowWaterMark=" + writeBufferLowWaterMark +
+                ", writeBufferHighWaterMark=" + writeBufferHighWaterMark +
+                ", allocator='" + allocator + '\'' +
+                ", chunkSize=" + chunkSize +
+                ", adaptiveChunkSize=" + adaptiveChunkSize +
+                ", minChunkSize=" + minChunkSize +
+                ", maxChunkSize=" + maxChunkSize +
+                ", targetFrameTimeMicros=" + targetFrameTimeMicros +
+                ", batchingEnabled=" + batchingEnabled +
+                ", maxBatchBytes=" + maxBatchBytes +
+                ", maxBatchDelayMicros=" + maxBatchDelayMicros +
+                ", schedulingEnabled=" + schedulingEnabled +
+                ", schedulingQuantumBytes=" + schedulingQuantumBytes +
+                ", interactiveWeight=" + interactiveWeight +
+                ", codecOffloadThreads=" + codecOffloadThreads +
+                ", resumeGraceMillis=" + resumeGraceMillis +
+                ", loadBalancing='" + loadBalancing + '\'' +
+                ", udpSessionIdleSeconds=" + udpSessionIdleSeconds +
+                ", edgeCacheMemoryBytes=" + edgeCacheMemoryBytes +
+                ", edgeCacheDiskBytes=" + edgeCacheDiskBytes +
+                ", edgeCacheDirectory='" + edgeCacheDirectory + '\'' +
+                ", proxyPortRangeStart=" + proxyPortRangeStart +
+                ", proxyPortRangeEnd=" + proxyPortRangeEnd +
+                ", quicEnabled=" + quicEnabled +
+                ", quicPort=" + quicPort +
+                ", quicCertFile='" + quicCertFile + '\'' +
+                ", quicKeyFile='" + quicKeyFile + '\'' +
+                ", compressionEnabled=" + compressionEnabled +
+                ", compressionThresholdBytes=" + compressionThresholdBytes +
+                ", compressionLevel=" + compressionLevel +
+                ", compressionDictionaryThresholdBytes=" + compressionDictionaryThresholdBytes +
+                ", compressionDictionaryEnabled=" + compressionDictionaryEnabled +
+                ", compressionDictionaryMaxBytes=" + compressionDictionaryMaxBytes +
+                ", compressionDictionarySampleBytes=" + compressionDictionarySampleBytes +
+                ", dedupEnabled=" + dedupEnabled +
+                ", dedupStoreBytes=" + dedupStoreBytes +
+                ", dedupDirectory='" + dedupDirectory + '\'' +
+                ", memoryLimits=[" + memoryLimits + "]" +
+                ", maxFrameBytes=" + maxFrameBytes +
+                ", spillThresholdBytes=" + spillThresholdBytes +
+                ", spillMaxBytes=" + spillMaxBytes +
+                ", spillDirectory='" + spillDirectory + '\'' +
+                ", logLevel='" + logLevel + '\'' +
+                ", rateLimits=[" + rateLimits + "]" +
+                ", groupSecurity=" + groupSecurity +
                 '}';
     }
 }
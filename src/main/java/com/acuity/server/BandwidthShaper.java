@@ -0,0 +1,120 @@
+package com.acuity.server;
+
+import com.acuity.common.TokenBucket;
+import com.acuity.config.RateLimits;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hierarchical bandwidth shaping for one direction: group, then proxy port within the group, then
+ * user connection. A parent's rate is split evenly across its children that sent traffic recently,
+ * capped by each child's own limit, and every user paces against its own token bucket at that share.
+ * A heavy user therefore runs into debt on its own bucket and cannot delay the other users.
+ */
+public class BandwidthShaper {
+    // Traffic from users towards the tunnel, and responses from the tunnel back to users
+    public static final BandwidthShaper UPLOAD = new BandwidthShaper();
+    public static final BandwidthShaper DOWNLOAD = new BandwidthShaper();
+
+    // A child counts towards its parent's split while it sent traffic within this window
+    private static final long ACTIVE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long RECOUNT_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final Map<String, Node> groups = new ConcurrentHashMap<>();
+    // Map: groupId:proxyPort -> port node
+    private final Map<String, Node> ports = new ConcurrentHashMap<>();
+    // Map: userChannelId -> (groupId:proxyPort -> user node)
+    private final Map<String, Map<String, Node>> users = new ConcurrentHashMap<>();
+
+    /**
+     * Account for bytes sent by a user through the given groupId:proxyPort.
+     * Returns how many nanoseconds the caller should hold off before sending more, 0 if none.
+     */
+    public long reserve(RateLimits limits, String mapKey, String userChannelId, long bytes) {
+        if (limits.isUnlimited()) {
+            return 0;
+        }
+        int separator = mapKey.lastIndexOf(':');
+        String groupId = mapKey.substring(0, separator);
+        int proxyPort = Integer.parseInt(mapKey.substring(separator + 1));
+
+        Node group = groups.computeIfAbsent(groupId, k -> new Node(null));
+        Node port = ports.computeIfAbsent(mapKey, k -> new Node(group));
+        Node user = users.computeIfAbsent(userChannelId, k -> new ConcurrentHashMap<>())
+            .computeIfAbsent(mapKey, k -> new Node(port));
+
+        long now = System.nanoTime();
+        group.lastActiveNanos = now;
+        port.lastActiveNanos = now;
+        user.lastActiveNanos = now;
+
+        long groupRate = limitOrMax(limits.groupLimit(groupId));
+        long portRate = share(group, groupRate, limitOrMax(limits.portLimit(proxyPort)), now);
+        long userRate = share(port, portRate, limitOrMax(limits.userLimit()), now);
+        if (userRate == Long.MAX_VALUE) {
+            return 0;
+        }
+        long burstBytes = Math.max(1, userRate * limits.getBurstMillis() / 1000);
+        return user.bucket.reserve(bytes, userRate, burstBytes, now);
+    }
+
+    /**
+     * Forget a user connection's buckets once it closes
+     */
+    public void release(String userChannelId) {
+        Map<String, Node> nodes = users.remove(userChannelId);
+        if (nodes != null) {
+            for (Node node : nodes.values()) {
+                node.parent.children.remove(node);
+            }
+        }
+    }
+
+    private static long share(Node parent, long parentRate, long ownLimit, long now) {
+        if (parentRate == Long.MAX_VALUE) {
+            return ownLimit;
+        }
+        return Math.min(ownLimit, Math.max(1, parentRate / parent.activeChildren(now)));
+    }
+
+    private static long limitOrMax(long limit) {
+        return limit == RateLimits.UNLIMITED ? Long.MAX_VALUE : limit;
+    }
+
+    private static final class Node {
+        final Node parent;
+        final Set<Node> children = ConcurrentHashMap.newKeySet();
+        final TokenBucket bucket = new TokenBucket();
+        volatile long lastActiveNanos;
+        // Active children are recounted at most every RECOUNT_INTERVAL_NANOS
+        private volatile int activeChildren = 1;
+        private volatile long countedAtNanos;
+
+        Node(Node parent) {
+            this.parent = parent;
+            long now = System.nanoTime();
+            this.lastActiveNanos = now - ACTIVE_WINDOW_NANOS;
+            this.countedAtNanos = now - RECOUNT_INTERVAL_NANOS - 1;
+            if (parent != null) {
+                parent.children.add(this);
+            }
+        }
+
+        int activeChildren(long now) {
+            if (now - countedAtNanos > RECOUNT_INTERVAL_NANOS) {
+                int count = 0;
+                for (Node child : children) {
+                    if (now - child.lastActiveNanos < ACTIVE_WINDOW_NANOS) {
+                        count++;
+                    }
+                }
+                activeChildren = Math.max(1, count);
+                countedAtNanos = now;
+            }
+            return activeChildren;
+        }
+    }
+}
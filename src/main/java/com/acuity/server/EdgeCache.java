@@ -0,0 +1,444 @@
+package com.acuity.server;
+
+import com.acuity.common.HttpCachePolicy;
+import com.acuity.common.HttpMessageFramer;
+import com.acuity.config.ServerConfig;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.FileRegion;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCounted;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Edge cache of the tunnel server for HTTP proxy ports, following {@link HttpCachePolicy}. A stored
+ * response answers later requests without crossing the tunnel. Small responses live in a memory tier
+ * of direct buffers. Large ones, and memory entries pushed out by newer ones, go to a disk tier with
+ * one file per response, sent to users as a {@link FileRegion}. Each tier has its own byte budget and
+ * evicts its least recently used entries. Disk writes run on their own thread, so storing a response
+ * never holds up forwarding it.
+ */
+public class EdgeCache {
+    private static final EdgeCache SHARED = new EdgeCache();
+
+    // A single response may take at most this share of a tier's budget
+    private static final int MAX_ENTRY_SHARE = 8;
+    private static final String FILE_SUFFIX = ".http";
+
+    /**
+     * What to do with one request: answer it from the cache, or send it through the tunnel and pass
+     * the response to {@link #complete}
+     */
+    public static final class Lookup {
+        // Stored response answering the request right away, or null
+        final Hit fresh;
+        // Request to send through the tunnel; conditional when a stale entry is revalidated
+        final byte[] request;
+        private final HttpCachePolicy.Request cacheRequest;
+        // Entry being revalidated, retained until the response arrives
+        private Entry stale;
+
+        private Lookup(Hit fresh, byte[] request, HttpCachePolicy.Request cacheRequest, Entry stale) {
+            this.fresh = fresh;
+            this.request = request;
+            this.cacheRequest = cacheRequest;
+            this.stale = stale;
+        }
+
+        /**
+         * The response will never arrive
+         */
+        void release() {
+            if (stale != null) {
+                stale.release();
+                stale = null;
+            }
+        }
+    }
+
+    /**
+     * A stored response on its way to a user; holds its entry until {@link #release} once written
+     */
+    public static final class Hit {
+        private final Entry entry;
+        private final long now;
+
+        private Hit(Entry entry, long now) {
+            this.entry = entry;
+            this.now = now;
+        }
+
+        /**
+         * Status line and Age header
+         */
+        ByteBuf head() {
+            return Unpooled.wrappedBuffer(entry.statusLine, entry.stored.ageLine(now));
+        }
+
+        long bodyLength() {
+            return entry.length - entry.statusLine.length;
+        }
+
+        /**
+         * Headers and body after the status line
+         */
+        Object body() {
+            return body(0, bodyLength());
+        }
+
+        Object body(long offset, long length) {
+            long position = entry.statusLine.length + offset;
+            if (entry.memory != null) {
+                return entry.memory.retainedSlice((int) position, (int) length);
+            }
+            // Opened when written, and closed again once done
+            return new DefaultFileRegion(entry.file, position, length);
+        }
+
+        void release() {
+            entry.release();
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(64, 0.75f, true);
+    private final LinkedHashMap<String, Entry> disk = new LinkedHashMap<>(64, 0.75f, true);
+    private long memoryBytes;
+    private long diskBytes;
+    // key -> generation of its latest response, so a disk write finishing after a newer response is dropped
+    private final Map<String, Long> latest = new HashMap<>();
+    private long generation;
+
+    private final ExecutorService diskWriter = Executors.newSingleThreadExecutor(new DefaultThreadFactory("edge-cache-disk", true));
+    private final AtomicLong fileCounter = new AtomicLong();
+    private File directory;
+
+    private long hits;
+    private long revalidated;
+    private long misses;
+    private long bytesSaved;
+    private long lastLoggedLookups;
+
+    /**
+     * Edge cache of the tunnel server
+     */
+    public static EdgeCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Look a request up; null when the cache has no part in it
+     */
+    public Lookup lookup(ServerConfig config, byte[] request, String method) {
+        if (!config.isEdgeCacheEnabled()) {
+            return null;
+        }
+        String invalidated = HttpCachePolicy.Request.invalidatedKey(request, method);
+        if (invalidated != null) {
+            synchronized (this) {
+                remove(invalidated);
+            }
+            return null;
+        }
+        HttpCachePolicy.Request cacheRequest = HttpCachePolicy.Request.of(request, method);
+        if (cacheRequest == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            trimMemory(config);
+            trimDisk(config);
+            Entry entry = memory.get(cacheRequest.key);
+            if (entry == null) {
+                entry = disk.get(cacheRequest.key);
+            }
+            if (entry == null || cacheRequest.conditional || !entry.stored.matches(cacheRequest)) {
+                return new Lookup(null, request, cacheRequest, null);
+            }
+            if (entry.stored.isFresh(cacheRequest, now)) {
+                hits++;
+                bytesSaved += entry.length;
+                entry.retain();
+                return new Lookup(new Hit(entry, now), null, cacheRequest, null);
+            }
+            if (!entry.stored.canRevalidate()) {
+                return new Lookup(null, request, cacheRequest, null);
+            }
+            entry.retain();
+            return new Lookup(null, entry.stored.conditional(cacheRequest, request), cacheRequest, entry);
+        }
+    }
+
+    /**
+     * A looked-up request was answered through the tunnel: store the response if it may be.
+     *
+     * @return the stored response if it answers the request after a successful revalidation, otherwise
+     *         null and the response goes to the user as it is
+     */
+    public Hit complete(ServerConfig config, Lookup lookup, HttpMessageFramer.Message response) {
+        long now = System.currentTimeMillis();
+        String key = lookup.cacheRequest.key;
+        synchronized (this) {
+            Entry stale = lookup.stale;
+            lookup.stale = null;
+            if (stale != null && response.status == 304) {
+                revalidated++;
+                bytesSaved += Math.max(0, stale.length - response.bytes.length);
+                stale.stored.refresh(response, now);
+                return new Hit(stale, now);
+            }
+            if (stale != null) {
+                stale.release();
+            }
+            misses++;
+            HttpCachePolicy.Stored stored = HttpCachePolicy.Stored.of(lookup.cacheRequest, response, now);
+            // A newer response replaces the stored one, whether or not it may be stored itself
+            remove(key);
+            if (stored != null) {
+                store(config, key, stored, HttpCachePolicy.Stored.bytesOf(response));
+            }
+            return null;
+        }
+    }
+
+    private void store(ServerConfig config, String key, HttpCachePolicy.Stored stored, byte[] bytes) {
+        long entryGeneration = ++generation;
+        byte[] statusLine = new byte[stored.statusLineEnd];
+        System.arraycopy(bytes, 0, statusLine, 0, statusLine.length);
+        if (bytes.length <= config.getEdgeCacheMemoryBytes() / MAX_ENTRY_SHARE) {
+            ByteBuf buffer = PooledByteBufAllocator.DEFAULT.directBuffer(bytes.length);
+            buffer.writeBytes(bytes);
+            latest.put(key, entryGeneration);
+            Entry entry = new Entry(key, entryGeneration, stored, statusLine, bytes.length, buffer, null);
+            memory.put(key, entry);
+            memoryBytes += entry.length;
+            trimMemory(config);
+        } else if (bytes.length <= config.getEdgeCacheDiskBytes() / MAX_ENTRY_SHARE) {
+            latest.put(key, entryGeneration);
+            writeToDisk(config, key, entryGeneration, stored, statusLine, Unpooled.wrappedBuffer(bytes));
+        }
+    }
+
+    private void remove(String key) {
+        latest.remove(key);
+        Entry entry = memory.remove(key);
+        if (entry != null) {
+            memoryBytes -= entry.length;
+            entry.release();
+        }
+        entry = disk.remove(key);
+        if (entry != null) {
+            diskBytes -= entry.length;
+            entry.release();
+        }
+    }
+
+    // Move least recently used memory entries to disk, or drop them if they do not fit there
+    private void trimMemory(ServerConfig config) {
+        Iterator<Entry> eldest = memory.values().iterator();
+        while (memoryBytes > config.getEdgeCacheMemoryBytes() && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            eldest.remove();
+            memoryBytes -= entry.length;
+            if (entry.length <= config.getEdgeCacheDiskBytes() / MAX_ENTRY_SHARE) {
+                writeToDisk(config, entry.key, entry.generation, entry.stored, entry.statusLine, entry.memory.retainedDuplicate());
+            } else {
+                latest.remove(entry.key, entry.generation);
+            }
+            entry.release();
+        }
+    }
+
+    private void trimDisk(ServerConfig config) {
+        Iterator<Entry> eldest = disk.values().iterator();
+        while (diskBytes > config.getEdgeCacheDiskBytes() && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            eldest.remove();
+            diskBytes -= entry.length;
+            latest.remove(entry.key, entry.generation);
+            entry.release();
+        }
+    }
+
+    private void writeToDisk(ServerConfig config, String key, long entryGeneration, HttpCachePolicy.Stored stored, byte[] statusLine, ByteBuf content) {
+        File dir = directory(config);
+        diskWriter.execute(() -> {
+            File file = new File(dir, fileCounter.incrementAndGet() + FILE_SUFFIX);
+            int length = content.readableBytes();
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = content.nioBuffer();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                System.err.println("[TunnelServer] Edge cache cannot write " + file + ": " + e.getMessage());
+                file.delete();
+                return;
+            } finally {
+                content.release();
+            }
+            written(config, new Entry(key, entryGeneration, stored, statusLine, length, null, file));
+        });
+    }
+
+    private synchronized void written(ServerConfig config, Entry entry) {
+        Long current = latest.get(entry.key);
+        if (current == null || current != entry.generation) {
+            // Replaced or invalidated while it was being written
+            entry.release();
+            return;
+        }
+        Entry previous = disk.put(entry.key, entry);
+        if (previous != null) {
+            diskBytes -= previous.length;
+            previous.release();
+        }
+        diskBytes += entry.length;
+        trimDisk(config);
+    }
+
+    // The disk tier's directory, emptied of files left by an earlier run on first use
+    private synchronized File directory(ServerConfig config) {
+        if (directory == null) {
+            String configured = config.getEdgeCacheDirectory();
+            directory = configured == null || configured.isEmpty()
+                ? new File(System.getProperty("java.io.tmpdir"), "tunnel-edge-cache")
+                : new File(configured);
+            directory.mkdirs();
+            File[] leftovers = directory.listFiles((dir, name) -> name.endsWith(FILE_SUFFIX));
+            if (leftovers != null) {
+                for (File leftover : leftovers) {
+                    leftover.delete();
+                }
+            }
+        }
+        return directory;
+    }
+
+    /**
+     * Drop every entry
+     */
+    public synchronized void clear() {
+        // Disk writes still running find their key gone and drop their file
+        latest.clear();
+        for (Entry entry : memory.values()) {
+            entry.release();
+        }
+        for (Entry entry : disk.values()) {
+            entry.release();
+        }
+        memory.clear();
+        disk.clear();
+        memoryBytes = 0;
+        diskBytes = 0;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long revalidated() {
+        return revalidated;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized long bytesSaved() {
+        return bytesSaved;
+    }
+
+    public synchronized long memoryBytes() {
+        return memoryBytes;
+    }
+
+    public synchronized long diskBytes() {
+        return diskBytes;
+    }
+
+    /**
+     * Share of lookups answered without the response body crossing the tunnel
+     */
+    public synchronized double hitRatio() {
+        long lookups = hits + revalidated + misses;
+        return lookups == 0 ? 0 : (double) (hits + revalidated) / lookups;
+    }
+
+    /**
+     * Print the counters if there were lookups since the last time
+     */
+    public void logStats() {
+        synchronized (this) {
+            long lookups = hits + revalidated + misses;
+            if (lookups == lastLoggedLookups) {
+                return;
+            }
+            lastLoggedLookups = lookups;
+        }
+        System.out.println("[TunnelServer] Edge cache: " + this);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "hits=" + hits + ", revalidated=" + revalidated + ", misses=" + misses +
+            ", hitRatio=" + String.format("%.2f", hitRatio()) + ", bytesSaved=" + bytesSaved +
+            ", memory=" + memory.size() + " entries/" + memoryBytes + " bytes" +
+            ", disk=" + disk.size() + " entries/" + diskBytes + " bytes";
+    }
+
+    /**
+     * One stored response, without its Age header, in memory or in a file. The cache holds one
+     * reference and every hit another; the buffer is freed or the file deleted when the last goes.
+     */
+    private static final class Entry extends AbstractReferenceCounted {
+        final String key;
+        final long generation;
+        final HttpCachePolicy.Stored stored;
+        final byte[] statusLine;
+        final int length;
+        final ByteBuf memory;
+        final File file;
+
+        Entry(String key, long generation, HttpCachePolicy.Stored stored, byte[] statusLine, int length, ByteBuf memory, File file) {
+            this.key = key;
+            this.generation = generation;
+            this.stored = stored;
+            this.statusLine = statusLine;
+            this.length = length;
+            this.memory = memory;
+            this.file = file;
+        }
+
+        @Override
+        protected void deallocate() {
+            if (memory != null) {
+                memory.release();
+            }
+            if (file != null) {
+                file.delete();
+            }
+        }
+
+        @Override
+        public ReferenceCounted touch(Object hint) {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.acuity.server;
+
+import com.acuity.common.CompressionDictionary;
+import com.acuity.config.ServerConfig;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compression dictionaries of the tunnel server, one per group. Frames of a group's tunnel connections
+ * are sampled until {@code [compression] dictionarySampleBytes} are collected, and a dictionary is
+ * trained from them off the event loops. It replaces the group's current one only if it compresses
+ * samples held back from training clearly better, and is then sent to every connection of the group
+ * as a DICTIONARY message. The server compresses with it once the client echoes DICTIONARY, so each
+ * side knows every dictionary the other compresses with before the first frame arrives.
+ */
+final class GroupDictionaries {
+    private static final GroupDictionaries SHARED = new GroupDictionaries();
+
+    // Frames outside this range are left out of the samples: too short to matter, or bulk data
+    private static final int MIN_SAMPLE_FRAME_BYTES = 16;
+    private static final int MAX_SAMPLE_FRAME_BYTES = 16 * 1024;
+    // Every fourth sample is held back to judge a dictionary on traffic it was not built from
+    private static final int HOLDOUT_EVERY = 4;
+    // A new dictionary must make the held-back samples this much smaller than the current one does
+    private static final double MIN_IMPROVEMENT = 0.05;
+    // Sampling pauses this long after each training round
+    private static final long RETRAIN_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final ExecutorService trainer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "dictionary-trainer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Tunnel connection -> group it is registered for
+    private final Map<Channel, Group> members = new ConcurrentHashMap<>();
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    // Versions are unique across groups, so logs on both sides name one dictionary
+    private final AtomicInteger versions = new AtomicInteger();
+
+    /**
+     * Dictionaries of the tunnel server
+     */
+    static GroupDictionaries shared() {
+        return SHARED;
+    }
+
+    /**
+     * Sample a tunnel connection registered for a group, and send it the group's dictionary if there is one
+     */
+    void attach(Channel channel, String groupId, ServerConfig config) {
+        if (!config.isCompressionDictionaryEnabled()) {
+            return;
+        }
+        Group group = groups.computeIfAbsent(groupId, Group::new);
+        if (members.put(channel, group) == null) {
+            channel.closeFuture().addListener(future -> members.remove(channel));
+        }
+        CompressionDictionary.sample(channel, frame -> group.sample(frame, config));
+        CompressionDictionary current = group.current;
+        if (current != null) {
+            offer(channel, current);
+        }
+    }
+
+    /**
+     * The client of a connection installed a dictionary; frames to it are compressed with the dictionary
+     * from now on, unless a newer one has been sent since
+     */
+    void acknowledged(Channel channel, int version) {
+        Group group = members.get(channel);
+        CompressionDictionary current = group != null ? group.current : null;
+        if (current != null && current.getVersion() == version) {
+            CompressionDictionary.use(channel, current);
+        }
+    }
+
+    private static void offer(Channel channel, CompressionDictionary dictionary) {
+        // The client may compress with it as soon as it arrives
+        CompressionDictionary.install(channel, dictionary);
+        channel.writeAndFlush(new TunnelMessage(null, TunnelAction.DICTIONARY.toString(String.valueOf(dictionary.getVersion())),
+            dictionary.getBytes()).toByteBuf(channel.alloc()));
+    }
+
+    /**
+     * Samples and dictionary of one group
+     */
+    private final class Group {
+        final String groupId;
+        volatile CompressionDictionary current;
+        // Frames are ignored until then: while a round is being trained, and for a while after
+        private volatile long resumeAt;
+        // Frames sampled in this round; guarded by this
+        private List<byte[]> samples = new ArrayList<>();
+        private long sampledBytes;
+
+        Group(String groupId) {
+            this.groupId = groupId;
+        }
+
+        void sample(ByteBuf frame, ServerConfig config) {
+            int length = frame.readableBytes();
+            if (length < MIN_SAMPLE_FRAME_BYTES || length > MAX_SAMPLE_FRAME_BYTES
+                || System.currentTimeMillis() < resumeAt || !config.isCompressionDictionaryEnabled()) {
+                return;
+            }
+            List<byte[]> round;
+            synchronized (this) {
+                if (System.currentTimeMillis() < resumeAt) {
+                    return;
+                }
+                byte[] bytes = new byte[length];
+                frame.getBytes(frame.readerIndex(), bytes);
+                samples.add(bytes);
+                sampledBytes += length;
+                if (sampledBytes < config.getCompressionDictionarySampleBytes()) {
+                    return;
+                }
+                round = samples;
+                samples = new ArrayList<>();
+                sampledBytes = 0;
+                resumeAt = Long.MAX_VALUE;
+            }
+            trainer.execute(() -> train(round, config));
+        }
+
+        private void train(List<byte[]> round, ServerConfig config) {
+            try {
+                List<byte[]> training = new ArrayList<>();
+                List<byte[]> heldBack = new ArrayList<>();
+                for (int i = 0; i < round.size(); i++) {
+                    (i % HOLDOUT_EVERY == HOLDOUT_EVERY - 1 ? heldBack : training).add(round.get(i));
+                }
+                byte[] bytes = CompressionDictionary.train(training, config.getCompressionDictionaryMaxBytes());
+                if (bytes == null) {
+                    return;
+                }
+                CompressionDictionary previous = current;
+                long before = CompressionDictionary.compressedSize(heldBack, previous != null ? previous.getBytes() : null);
+                long after = CompressionDictionary.compressedSize(heldBack, bytes);
+                if (after > before * (1 - MIN_IMPROVEMENT)) {
+                    return;
+                }
+                CompressionDictionary dictionary = new CompressionDictionary(versions.incrementAndGet(), bytes);
+                current = dictionary;
+                System.out.println("[TunnelServer] Compression dictionary v" + dictionary.getVersion() + " for group " + groupId + ": " +
+                    bytes.length + " bytes, held-back samples " + before + " -> " + after + " bytes compressed");
+                for (Map.Entry<Channel, Group> member : members.entrySet()) {
+                    if (member.getValue() == this && member.getKey().isActive()) {
+                        offer(member.getKey(), dictionary);
+                    }
+                }
+            } catch (RuntimeException e) {
+                System.err.println("[TunnelServer] Training a compression dictionary for group " + groupId + " failed: " + e.getMessage());
+            } finally {
+                resumeAt = System.currentTimeMillis() + RETRAIN_INTERVAL_MILLIS;
+            }
+        }
+    }
+}
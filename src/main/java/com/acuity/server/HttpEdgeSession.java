@@ -0,0 +1,170 @@
+package com.acuity.server;
+
+import com.acuity.common.HttpMessageFramer;
+import com.acuity.config.ServerConfig;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Edge caching for one user connection on an HTTP proxy port. The user's bytes are cut into requests
+ * here: requests the {@link EdgeCache} can answer never enter the tunnel, and the rest go through as
+ * one stream each. Responses coming back are cut the same way, so each is paired with its request and
+ * stored if it may be, and answers from the cache wait for the responses due before them.
+ * Confined to the user channel's event loop.
+ */
+final class HttpEdgeSession {
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+
+    /**
+     * A request waiting for its turn to be answered, in the order the user sent them
+     */
+    private static final class Pending {
+        // Set when the request went through the tunnel and the cache has a part in its response
+        final EdgeCache.Lookup lookup;
+        // Set when the cache answers the request
+        final EdgeCache.Hit hit;
+
+        Pending(EdgeCache.Lookup lookup, EdgeCache.Hit hit) {
+            this.lookup = lookup;
+            this.hit = hit;
+        }
+    }
+
+    private final UserClientHandler handler;
+    private final ChannelHandlerContext ctx;
+    private final ServerConfig config;
+    private final HttpMessageFramer requests = HttpMessageFramer.requests(MAX_HEADER_BYTES);
+    private final HttpMessageFramer responses = HttpMessageFramer.responses(MAX_HEADER_BYTES);
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    private boolean closed;
+
+    HttpEdgeSession(UserClientHandler handler, ChannelHandlerContext ctx, ServerConfig config) {
+        this.handler = handler;
+        this.ctx = ctx;
+        this.config = config;
+    }
+
+    /**
+     * Bytes from the user; takes over the buffer
+     */
+    void requestBytes(ByteBuf data) {
+        if (closed) {
+            data.release();
+            return;
+        }
+        if (requests.isPassthrough()) {
+            handler.dispatch(ctx, data);
+            return;
+        }
+        try {
+            requests.feed(data);
+        } finally {
+            data.release();
+        }
+        nextRequests();
+    }
+
+    private void nextRequests() {
+        try {
+            HttpMessageFramer.Message request;
+            while ((request = requests.next()) != null) {
+                if (requests.isPassthrough()) {
+                    handler.dispatch(ctx, Unpooled.wrappedBuffer(request.bytes));
+                    continue;
+                }
+                EdgeCache.Lookup lookup = EdgeCache.shared().lookup(config, request.bytes, request.method);
+                if (lookup != null && lookup.fresh != null) {
+                    if (pending.isEmpty()) {
+                        handler.serve(ctx, lookup.fresh);
+                    } else {
+                        pending.add(new Pending(null, lookup.fresh));
+                    }
+                    continue;
+                }
+                responses.expectResponseTo(request.method);
+                pending.add(new Pending(lookup, null));
+                handler.dispatch(ctx, Unpooled.wrappedBuffer(lookup != null ? lookup.request : request.bytes));
+            }
+        } catch (IOException e) {
+            // Not HTTP after all: the rest of the connection goes through unparsed
+            System.out.println("[TunnelServer] [Channel: " + ctx.channel().id().asShortText() + "] " + e.getMessage() + ", relaying unparsed");
+            requests.passthrough();
+            nextRequests();
+        }
+    }
+
+    /**
+     * A response message from the proxy client
+     */
+    void responseBytes(byte[] data, Channel tunnelChannel) {
+        if (closed) {
+            return;
+        }
+        if (responses.isPassthrough()) {
+            handler.write(ctx, data, tunnelChannel);
+            return;
+        }
+        responses.feed(data);
+        try {
+            HttpMessageFramer.Message response;
+            while ((response = responses.next()) != null) {
+                respond(response, tunnelChannel);
+            }
+        } catch (IOException e) {
+            System.out.println("[TunnelServer] [Channel: " + ctx.channel().id().asShortText() + "] Proxy client sent " + e.getMessage() + ", relaying unparsed");
+            responses.passthrough();
+            responseBytes(new byte[0], tunnelChannel);
+        }
+    }
+
+    private void respond(HttpMessageFramer.Message response, Channel tunnelChannel) {
+        if (response.status == 0 || response.isInterim()) {
+            // Raw bytes, or e.g. 100 Continue ahead of the final response
+            if (response.bytes.length > 0) {
+                handler.write(ctx, response.bytes, tunnelChannel);
+            }
+            return;
+        }
+        Pending answered = pending.poll();
+        EdgeCache.Hit revalidated = answered != null && answered.lookup != null
+            ? EdgeCache.shared().complete(config, answered.lookup, response)
+            : null;
+        if (revalidated != null) {
+            handler.serve(ctx, revalidated);
+        } else {
+            handler.write(ctx, response.bytes, tunnelChannel);
+        }
+        if (responses.isPassthrough()) {
+            // Upgraded: the rest of the user's bytes go through unparsed
+            requests.passthrough();
+            nextRequests();
+        }
+        // Answers from the cache queued behind this response are due now
+        while (!pending.isEmpty() && pending.peek().hit != null) {
+            handler.serve(ctx, pending.poll().hit);
+        }
+    }
+
+    /**
+     * The user connection closed
+     */
+    void release() {
+        closed = true;
+        requests.release();
+        responses.release();
+        Pending waiting;
+        while ((waiting = pending.poll()) != null) {
+            if (waiting.hit != null) {
+                waiting.hit.release();
+            }
+            if (waiting.lookup != null) {
+                waiting.lookup.release();
+            }
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package com.acuity.server;
 
+import com.acuity.common.MemoryBudget;
+import com.acuity.config.ServerConfig;
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 
@@ -7,20 +10,40 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Handler for proxy client connections with streaming support across multiple channels
+ * Handler for frames coming back from proxy (tunnel) clients with streaming support across multiple channels.
+ * Reassembles FORWARD and STREAM_* responses and writes them to the user channel they belong to;
+ * DATAGRAM frames go straight back to their UDP session.
  */
 public class ProxyClientHandler extends ServerHandler {
-    // Streaming configuration
-    private static final int CHUNK_SIZE = 8192; // 8KB chunks
-
     // Track streaming sessions: userChannelId:streamId -> StreamingSession for stream multiplexing
     private static final Map<String, StreamingSession> streamingSessions = new ConcurrentHashMap<>();
+    // Streams refused for lack of memory; their remaining frames are dropped quietly
+    private static final Set<String> refusedStreams = ConcurrentHashMap.newKeySet();
+
+    // Bytes held by responses being reassembled, shared by all proxy clients
+    private static final MemoryBudget memoryBudget = new MemoryBudget("TunnelServer");
+
+    // Largest buffer the JVM reliably allocates
+    private static final int MAX_ARRAY_BYTES = Integer.MAX_VALUE - 8;
+
+    // Progress is logged roughly every ten configured chunks
+    private final long progressLogInterval;
 
     public ProxyClientHandler(Map<Integer, List<TunnelServerApp>> proxyClientInstances) {
-        super(proxyClientInstances, null, null);
+        this(proxyClientInstances, new ServerConfig());
+    }
+
+    public ProxyClientHandler(Map<Integer, List<TunnelServerApp>> proxyClientInstances, ServerConfig config) {
+        this(proxyClientInstances, null, null, config);
+    }
+
+    protected ProxyClientHandler(Map<Integer, List<TunnelServerApp>> proxyClientInstances, Map<Integer, TunnelServerApp> userClientInstances, Map<Integer, TunnelServerApp> serverInstances, ServerConfig config) {
+        super(proxyClientInstances, userClientInstances, serverInstances, config);
+        this.progressLogInterval = config.getChunkSize() * 10L;
     }
 
     @Override
@@ -48,9 +71,20 @@ public class ProxyClientHandler extends ServerHandler {
             }
         }
         for (String key : sessionsToRemove) {
-            streamingSessions.remove(key);
+            StreamingSession session = streamingSessions.remove(key);
+            if (session != null) {
+                session.discard();
+            }
             System.out.println("[TunnelServer] Cleaned up streaming session: " + key);
         }
+        refusedStreams.removeIf(key -> key.startsWith(userChannelId + ":"));
+    }
+
+    /**
+     * The server's accountant for memory held by in-flight streams
+     */
+    public static MemoryBudget memoryBudget() {
+        return memoryBudget;
     }
 
     /**
@@ -76,6 +110,14 @@ public class ProxyClientHandler extends ServerHandler {
             handleStreamEnd(ctx, tunnelMessage, proxyChannelId, userChannelId, streamId, streamKey);
         } else if (action == TunnelAction.FORWARD) {
             handleForwardAction(ctx, tunnelMessage, proxyChannelId);
+        } else if (action == TunnelAction.DATAGRAM) {
+            // Datagrams are whole in one frame, so they skip the streaming sessions
+            UdpProxyHandler.deliver(userChannelId, tunnelMessage.getData());
+        } else if (action == TunnelAction.ERROR && userChannelId != null) {
+            // The proxy client could not take the user's request, e.g. for lack of memory
+            System.out.println("[TunnelServer] [Channel: " + proxyChannelId + "] Proxy client refused stream " + streamKey + ": " +
+                new String(tunnelMessage.getData(), StandardCharsets.UTF_8));
+            closeUser(userChannelId);
         } else {
             super.handleTunnelMessage(ctx, tunnelMessage, proxyChannelId);
         }
@@ -87,18 +129,59 @@ public class ProxyClientHandler extends ServerHandler {
     private void handleStreamStart(ChannelHandlerContext ctx, TunnelMessage tunnelMessage, String proxyChannelId,
                                    String userChannelId, String streamId, String streamKey) {
         byte[] data = tunnelMessage.getData();
-        long totalSize = Long.parseLong(new String(data, StandardCharsets.UTF_8));
+        long totalSize;
+        try {
+            totalSize = Long.parseLong(new String(data, StandardCharsets.UTF_8));
+        } catch (NumberFormatException e) {
+            totalSize = -1;
+        }
 
         System.out.println("[TunnelServer] [Channel: " + proxyChannelId + "] Stream START: streamKey=" + streamKey + ", totalSize=" + totalSize + " bytes");
 
         ChannelHandlerContext userCtx = userClientContexts.get(userChannelId);
         if (userCtx == null || !userCtx.channel().isActive()) {
             System.err.println("[TunnelServer] [Channel: " + proxyChannelId + "] ERROR: User channel " + userChannelId + " is not active");
+            // Its chunks and end still arrive; drop them quietly
+            refusedStreams.add(streamKey);
             return;
         }
 
-        StreamingSession session = new StreamingSession(streamKey, totalSize);
-        streamingSessions.put(streamKey, session);
+        // The announced size comes from the peer, so it is reserved against the budget before anything is allocated
+        String mapKey = TunnelServerHandler.registrationKey(proxyChannelId);
+        String groupId = mapKey != null ? mapKey.substring(0, mapKey.lastIndexOf(':')) : "default";
+        MemoryBudget.Lease lease = memoryBudget.open(config.getMemoryLimits(), groupId, userChannelId);
+        // Past the spill threshold the rest goes to the spill arena, so only the threshold is held in memory
+        long spillThreshold = config.getSpillThresholdBytes();
+        long heapSize = spillThreshold > 0 ? Math.min(totalSize, spillThreshold) : totalSize;
+        if (totalSize < 0 || heapSize > MAX_ARRAY_BYTES || !lease.reserve(heapSize)) {
+            refuseStream(proxyChannelId, userChannelId, streamKey, "announced " + totalSize + " bytes");
+            return;
+        }
+        StreamingSession previous = streamingSessions.put(streamKey, new StreamingSession(streamKey, totalSize, heapSize, lease, spillThreshold, config));
+        if (previous != null) {
+            previous.discard();
+        }
+    }
+
+    /**
+     * Drop a stream that does not fit in the memory budget and disconnect its user, who would never get the whole response
+     */
+    private void refuseStream(String proxyChannelId, String userChannelId, String streamKey, String reason) {
+        StreamingSession session = streamingSessions.remove(streamKey);
+        if (session != null) {
+            session.discard();
+        }
+        refusedStreams.add(streamKey);
+        System.out.println("[TunnelServer] [Channel: " + proxyChannelId + "] Stream " + streamKey + " refused, over the memory budget (" +
+            reason + "): " + memoryBudget);
+        closeUser(userChannelId);
+    }
+
+    private void closeUser(String userChannelId) {
+        ChannelHandlerContext userCtx = userClientContexts.get(userChannelId);
+        if (userCtx != null) {
+            userCtx.close();
+        }
     }
 
     /**
@@ -106,16 +189,23 @@ public class ProxyClientHandler extends ServerHandler {
      */
     private void handleStreamData(ChannelHandlerContext ctx, TunnelMessage tunnelMessage, String proxyChannelId,
                                   String userChannelId, String streamId, String streamKey) {
-        byte[] chunk = tunnelMessage.getData();
+        // Copied once, from the frame straight into the stream's buffer or the spill file
+        ByteBuf chunk = tunnelMessage.getPayload();
         StreamingSession session = streamingSessions.get(streamKey);
 
         if (session == null) {
-            System.err.println("[TunnelServer] [Channel: " + proxyChannelId + "] ERROR: No session for stream " + streamKey);
+            if (!refusedStreams.contains(streamKey)) {
+                System.err.println("[TunnelServer] [Channel: " + proxyChannelId + "] ERROR: No session for stream " + streamKey);
+            }
             return;
         }
 
-        session.addChunk(chunk);
-        if (session.getAccumulatedSize() % (CHUNK_SIZE * 10) == 0) {
+        if (!session.addChunk(chunk)) {
+            refuseStream(proxyChannelId, userChannelId, streamKey, session.isSpilled() ? "spill arena full" : "more data than announced");
+            return;
+        }
+        long accumulated = session.getAccumulatedSize();
+        if (accumulated / progressLogInterval != (accumulated - chunk.readableBytes()) / progressLogInterval) {
             System.out.println("[TunnelServer] [Channel: " + proxyChannelId + "] Stream " + streamId + " DATA: accumulated=" +
                 session.getAccumulatedSize() + "/" + session.getTotalSize());
         }
@@ -129,15 +219,18 @@ public class ProxyClientHandler extends ServerHandler {
         StreamingSession session = streamingSessions.remove(streamKey);
 
         if (session == null) {
-            System.err.println("[TunnelServer] [Channel: " + proxyChannelId + "] ERROR: No session for stream " + streamKey);
+            if (!refusedStreams.remove(streamKey)) {
+                System.err.println("[TunnelServer] [Channel: " + proxyChannelId + "] ERROR: No session for stream " + streamKey);
+            }
             return;
         }
 
         byte[] completeData = session.getCompleteData();
         System.out.println("[TunnelServer] [Channel: " + proxyChannelId + "] Stream " + streamId + " END: totalData=" +
-            completeData.length + " bytes");
+            session.getAccumulatedSize() + " bytes" + (session.isSpilled() ? " (" + session.spilled.length() + " spilled)" : ""));
 
-        forwardDataToUserClient(ctx, userChannelId, completeData, proxyChannelId);
+        // The response stays on the budget, and spilled blocks stay taken, until the user channel has written it
+        forwardDataToUserClient(ctx, userChannelId, streamId, completeData, session.spilled, session::discard, proxyChannelId);
     }
 
     /**
@@ -152,24 +245,47 @@ public class ProxyClientHandler extends ServerHandler {
             return;
         }
 
-        forwardDataToUserClient(ctx, userChannelId, data, proxyChannelId);
+        forwardDataToUserClient(ctx, userChannelId, tunnelMessage.getStreamId(), data, null, () -> { }, proxyChannelId);
     }
 
     /**
-     * Forward data to user client channel
+     * Forward data to user client channel and mark the stream answered. Spilled data, if any, follows
+     * the data. Release runs once everything is written to the user, or dropped.
+     * The response may arrive on a different tunnel connection than the request, e.g. after a reconnect.
      */
-    private void forwardDataToUserClient(ChannelHandlerContext ctx, String userChannelId, byte[] data, String proxyChannelId) {
+    private void forwardDataToUserClient(ChannelHandlerContext ctx, String userChannelId, String streamId, byte[] data,
+                                         SpillBuffer spilled, Runnable release, String proxyChannelId) {
         ChannelHandlerContext userCtx = userClientContexts.get(userChannelId);
         if (userCtx == null || !userCtx.channel().isActive()) {
             System.out.println("[TunnelServer] [Channel: " + proxyChannelId + "] User channel not active: " + userChannelId);
+            release.run();
+            return;
+        }
+        if (streamId != null && userCtx.handler() instanceof UserClientHandler) {
+            ((UserClientHandler) userCtx.handler()).streamCompleted(streamId);
+        }
+
+        if (spilled != null) {
+            if (userCtx.handler() instanceof UserClientHandler) {
+                ((UserClientHandler) userCtx.handler()).deliver(userCtx, data, spilled, ctx.channel(), release);
+            } else {
+                userCtx.writeAndFlush(Unpooled.wrappedBuffer(spilled.toByteArray(data))).addListener(written -> release.run());
+            }
             return;
         }
 
         if (data == null || data.length == 0) {
+            release.run();
             return;
         }
 
-        userCtx.writeAndFlush(Unpooled.copiedBuffer(data));
+        if (userCtx.handler() instanceof UserClientHandler) {
+            // Paced by the user's download budget
+            ((UserClientHandler) userCtx.handler()).deliver(userCtx, data, ctx.channel(), release);
+        } else {
+            // The data array is owned by this message, so hand it to the user channel without copying
+            userCtx.writeAndFlush(Unpooled.wrappedBuffer(data)).addListener(written -> release.run());
+        }
     }
 
     /**
@@ -179,15 +295,59 @@ public class ProxyClientHandler extends ServerHandler {
         private final String streamKey;
         private final long totalSize;
         private final ByteArrayBuilder buffer;
-
-        public StreamingSession(String streamKey, long totalSize) {
+        // Covers the buffer's capacity
+        private final MemoryBudget.Lease lease;
+        // Bytes past spillThreshold go to the spill arena; 0 keeps everything in memory
+        private final long spillThreshold;
+        private final ServerConfig config;
+        private SpillBuffer spilled;
+
+        public StreamingSession(String streamKey, long totalSize, long heapSize, MemoryBudget.Lease lease, long spillThreshold, ServerConfig config) {
             this.streamKey = streamKey;
             this.totalSize = totalSize;
-            this.buffer = new ByteArrayBuilder((int) Math.min(totalSize, Integer.MAX_VALUE));
+            this.lease = lease;
+            this.spillThreshold = spillThreshold;
+            this.config = config;
+            this.buffer = new ByteArrayBuilder((int) heapSize);
         }
 
-        public void addChunk(byte[] chunk) {
+        /**
+         * Append a chunk; false if the buffer would have to grow past the stream's memory budget,
+         * or the spill arena is full
+         */
+        public boolean addChunk(ByteBuf chunk) {
+            int length = chunk.readableBytes();
+            if (spilled == null && spillThreshold > 0 && (long) buffer.size() + length > spillThreshold) {
+                // Everything from here on is spilled, so the stream's bytes stay in order
+                spilled = new SpillBuffer(SpillArena.shared(), config);
+            }
+            if (spilled != null) {
+                return spilled.append(chunk);
+            }
+            long needed = (long) buffer.size() + length;
+            if (needed > buffer.capacity()) {
+                long grown = Math.min(Math.max(needed, buffer.capacity() * 2L), MAX_ARRAY_BYTES);
+                if (needed > MAX_ARRAY_BYTES || !lease.reserve(grown - buffer.capacity())) {
+                    return false;
+                }
+                buffer.grow((int) grown);
+            }
             buffer.append(chunk);
+            return true;
+        }
+
+        public boolean isSpilled() {
+            return spilled != null;
+        }
+
+        /**
+         * Give back the memory and any spilled data, once the stream is written or dropped
+         */
+        public void discard() {
+            lease.close();
+            if (spilled != null) {
+                spilled.release();
+            }
         }
 
         public byte[] getCompleteData() {
@@ -199,7 +359,7 @@ public class ProxyClientHandler extends ServerHandler {
         }
 
         public long getAccumulatedSize() {
-            return buffer.size();
+            return buffer.size() + (spilled != null ? spilled.length() : 0);
         }
     }
 
@@ -215,17 +375,30 @@ public class ProxyClientHandler extends ServerHandler {
             this.size = 0;
         }
 
-        public void append(byte[] data) {
-            if (size + data.length > buffer.length) {
-                byte[] newBuffer = new byte[Math.max(buffer.length * 2, size + data.length)];
-                System.arraycopy(buffer, 0, newBuffer, 0, size);
-                buffer = newBuffer;
+        public void append(ByteBuf data) {
+            int length = data.readableBytes();
+            if (size + length > buffer.length) {
+                grow(Math.max(buffer.length * 2, size + length));
             }
-            System.arraycopy(data, 0, buffer, size, data.length);
-            size += data.length;
+            data.getBytes(data.readerIndex(), buffer, size, length);
+            size += length;
+        }
+
+        public void grow(int capacity) {
+            byte[] newBuffer = new byte[capacity];
+            System.arraycopy(buffer, 0, newBuffer, 0, size);
+            buffer = newBuffer;
+        }
+
+        public int capacity() {
+            return buffer.length;
         }
 
         public byte[] toByteArray() {
+            if (size == buffer.length) {
+                // Filled exactly as announced; hand over the buffer instead of copying it
+                return buffer;
+            }
             byte[] result = new byte[size];
             System.arraycopy(buffer, 0, result, 0, size);
             return result;
@@ -0,0 +1,430 @@
+package com.acuity.server;
+
+import com.acuity.config.ServerConfig;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Routing state of every proxy port: which logical proxy clients serve it, in which groups, over which
+ * tunnel connections, and which hostnames route to which group when several services share the port. Each port's state is one immutable {@link PortRoute} that is replaced atomically
+ * on every change, so picking a tunnel connection for a stream reads a single snapshot without locking.
+ * Ports can also be allocated from a range for clients that ask for port 0.
+ */
+public class ProxyPortRegistry {
+    private static final ProxyPortRegistry SHARED = new ProxyPortRegistry();
+
+    // proxyPort -> current routing snapshot
+    private final Map<Integer, PortRoute> routes = new ConcurrentHashMap<>();
+    // tunnel channel id -> what it registered, for cleanup on disconnect
+    private final Map<String, Registration> registrations = new ConcurrentHashMap<>();
+    // clientId -> port allocated to it, so every striped connection of the client gets the same port
+    private final Map<String, Integer> allocatedPorts = new ConcurrentHashMap<>();
+    // Serializes allocation so two clients are never handed the same free port
+    private final Object allocationLock = new Object();
+    // How ports pick among their clients; replaced on configuration reload
+    private volatile String loadBalancing = ServerConfig.LOAD_BALANCING_ROUND_ROBIN;
+
+    /**
+     * Registry of the tunnel server
+     */
+    public static ProxyPortRegistry shared() {
+        return SHARED;
+    }
+
+    /**
+     * Current routing snapshot of a port, or null if no client has registered it
+     */
+    public PortRoute route(int proxyPort) {
+        return routes.get(proxyPort);
+    }
+
+    /**
+     * Switch the strategy used for streams that start from now on
+     */
+    public void setLoadBalancing(String loadBalancing) {
+        this.loadBalancing = loadBalancing;
+    }
+
+    public String getLoadBalancing() {
+        return loadBalancing;
+    }
+
+    /**
+     * Position of the first client to try for a stream among a port's clients: the next in turn, a
+     * random one, or one fixed by the stream key so the same key always lands on the same client
+     * while the clients stay the same
+     *
+     * @param key stream or session key; without one, hash falls back to round-robin
+     */
+    public int pick(PortRoute route, String key, int clientCount) {
+        String strategy = loadBalancing;
+        if (ServerConfig.LOAD_BALANCING_RANDOM.equals(strategy)) {
+            return ThreadLocalRandom.current().nextInt(clientCount);
+        }
+        if (ServerConfig.LOAD_BALANCING_HASH.equals(strategy) && key != null) {
+            // Spread the hash so the client does not follow the stripe picked from the same key
+            return Math.floorMod(Integer.reverse(key.hashCode() * 0x9E3779B9), clientCount);
+        }
+        return Math.floorMod(route.nextIndex(), clientCount);
+    }
+
+    /**
+     * Snapshots of every registered port
+     */
+    public Collection<PortRoute> routes() {
+        return routes.values();
+    }
+
+    /**
+     * Register a tunnel connection of a logical client for a port and group
+     *
+     * @return true if this registration bound the port, so its listener has to be started
+     * @throws IllegalArgumentException if the port already serves the other protocol
+     */
+    public boolean register(String channelId, int proxyPort, String groupId, int targetPort, String clientId, String protocol) {
+        return register(channelId, proxyPort, groupId, targetPort, clientId, protocol, Collections.emptyList());
+    }
+
+    /**
+     * Register a tunnel connection of a logical client that serves the given hostnames on a shared port.
+     * Hostnames are lower case; "*.example.com" covers every name below example.com.
+     *
+     * @return true if this registration bound the port, so its listener has to be started
+     * @throws IllegalArgumentException if the port already serves the other protocol, or a hostname
+     *                                  already routes to another group
+     */
+    public boolean register(String channelId, int proxyPort, String groupId, int targetPort, String clientId, String protocol,
+                            List<String> hostnames) {
+        boolean[] bound = {false};
+        routes.compute(proxyPort, (port, current) -> {
+            if (current == null) {
+                bound[0] = true;
+                current = new PortRoute(port, protocol);
+            } else if (!current.protocol.equals(protocol)) {
+                throw new IllegalArgumentException("Proxy port " + port + " already serves " + current.protocol + ", cannot add a " + protocol + " client");
+            }
+            return current.withConnection(groupId, targetPort, clientId, channelId, hostnames);
+        });
+        registrations.put(channelId, new Registration(proxyPort, groupId, clientId));
+        return bound[0];
+    }
+
+    /**
+     * Remove a tunnel connection; returns its registration, or null if it was not registered
+     */
+    public Registration unregister(String channelId) {
+        Registration registration = registrations.remove(channelId);
+        if (registration != null) {
+            routes.computeIfPresent(registration.proxyPort, (port, current) -> current.withoutConnection(registration, channelId));
+        }
+        return registration;
+    }
+
+    /**
+     * Registration of a tunnel connection, or null if it is not registered
+     */
+    public Registration registration(String channelId) {
+        return registrations.get(channelId);
+    }
+
+    /**
+     * Drop a port whose clients have all left
+     *
+     * @return true if the port was idle and is now unbound
+     */
+    public boolean unbindIfIdle(int proxyPort) {
+        boolean[] unbound = {false};
+        routes.computeIfPresent(proxyPort, (port, current) -> {
+            if (!current.isIdle()) {
+                return current;
+            }
+            unbound[0] = true;
+            return null;
+        });
+        if (unbound[0]) {
+            allocatedPorts.values().removeIf(port -> port == proxyPort);
+        }
+        return unbound[0];
+    }
+
+    /**
+     * Pick a free port from [rangeStart, rangeEnd] for a client that asked for port 0. A client that
+     * already holds a port gets the same one back.
+     *
+     * @return the port, or -1 if the range is exhausted
+     */
+    public int allocate(String clientId, String protocol, int rangeStart, int rangeEnd) {
+        synchronized (allocationLock) {
+            Integer existing = allocatedPorts.get(clientId);
+            if (existing != null) {
+                return existing;
+            }
+            for (int port = rangeStart; port <= rangeEnd && port > 0; port++) {
+                if (routes.containsKey(port) || allocatedPorts.containsValue(port) || !isFree(port, protocol)) {
+                    continue;
+                }
+                allocatedPorts.put(clientId, port);
+                return port;
+            }
+            return -1;
+        }
+    }
+
+    private static boolean isFree(int port, String protocol) {
+        // Another process may hold it; probing keeps the listener from failing to bind later
+        try {
+            if ("udp".equals(protocol)) {
+                new DatagramSocket(port).close();
+            } else {
+                new ServerSocket(port).close();
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Immutable routing state of one proxy port
+     */
+    public static final class PortRoute {
+        private final int proxyPort;
+        private final String protocol;
+        // groupId -> target port the group's clients forward to
+        private final Map<String, Integer> targetPorts;
+        // groupId -> logical clients of the group, in registration order
+        private final Map<String, List<String>> groupClients;
+        // Every logical client of the port across groups, for round-robin
+        private final List<String> clients;
+        // clientId -> tunnel channels striped for the client
+        private final Map<String, List<String>> connections;
+        // clientId -> hostnames the client serves, for clients that named any
+        private final Map<String, List<String>> clientHosts;
+        // Compiled from clientHosts: hostname -> groupId, and domain -> groupId for "*.domain" wildcards
+        private final Map<String, String> exactHosts = new HashMap<>();
+        private final Map<String, String> wildcardHosts = new HashMap<>();
+        // Clients of groups without hostnames, which get users whose hostname no group claims
+        private final List<String> defaultClients = new ArrayList<>();
+        // Round-robin position, carried over from snapshot to snapshot
+        private final AtomicInteger counter;
+
+        private PortRoute(int proxyPort, String protocol) {
+            this(proxyPort, protocol, Collections.emptyMap(), Collections.emptyMap(), Collections.emptyList(), Collections.emptyMap(),
+                Collections.emptyMap(), new AtomicInteger());
+        }
+
+        private PortRoute(int proxyPort, String protocol, Map<String, Integer> targetPorts, Map<String, List<String>> groupClients,
+                          List<String> clients, Map<String, List<String>> connections, Map<String, List<String>> clientHosts,
+                          AtomicInteger counter) {
+            this.proxyPort = proxyPort;
+            this.protocol = protocol;
+            this.targetPorts = targetPorts;
+            this.groupClients = groupClients;
+            this.clients = clients;
+            this.connections = connections;
+            this.clientHosts = clientHosts;
+            this.counter = counter;
+
+            Map<String, String> clientGroups = new HashMap<>();
+            Set<String> namedGroups = new HashSet<>();
+            for (Map.Entry<String, List<String>> group : groupClients.entrySet()) {
+                for (String client : group.getValue()) {
+                    clientGroups.put(client, group.getKey());
+                    for (String hostname : clientHosts.getOrDefault(client, Collections.emptyList())) {
+                        namedGroups.add(group.getKey());
+                        if (hostname.startsWith("*.")) {
+                            wildcardHosts.put(hostname.substring(2), group.getKey());
+                        } else {
+                            exactHosts.put(hostname, group.getKey());
+                        }
+                    }
+                }
+            }
+            for (String client : clients) {
+                if (!namedGroups.contains(clientGroups.get(client))) {
+                    defaultClients.add(client);
+                }
+            }
+        }
+
+        PortRoute withConnection(String groupId, int targetPort, String clientId, String channelId, List<String> hostnames) {
+            for (String hostname : hostnames) {
+                String owner = hostname.startsWith("*.") ? wildcardHosts.get(hostname.substring(2)) : exactHosts.get(hostname);
+                if (owner != null && !owner.equals(groupId)) {
+                    throw new IllegalArgumentException("Hostname " + hostname + " on proxy port " + proxyPort + " already routes to group " + owner);
+                }
+            }
+            Map<String, List<String>> newClientHosts = clientHosts;
+            if (!hostnames.isEmpty()) {
+                newClientHosts = new HashMap<>(clientHosts);
+                newClientHosts.put(clientId, Collections.unmodifiableList(new ArrayList<>(hostnames)));
+                newClientHosts = Collections.unmodifiableMap(newClientHosts);
+            }
+            Map<String, Integer> newTargetPorts = new HashMap<>(targetPorts);
+            if (targetPort > 0) {
+                newTargetPorts.put(groupId, targetPort);
+            }
+            Map<String, List<String>> newGroupClients = new HashMap<>(groupClients);
+            newGroupClients.put(groupId, appendIfAbsent(groupClients.get(groupId), clientId));
+            Map<String, List<String>> newConnections = new HashMap<>(connections);
+            newConnections.put(clientId, appendIfAbsent(connections.get(clientId), channelId));
+            return new PortRoute(proxyPort, protocol, Collections.unmodifiableMap(newTargetPorts), Collections.unmodifiableMap(newGroupClients),
+                appendIfAbsent(clients, clientId), Collections.unmodifiableMap(newConnections), newClientHosts, counter);
+        }
+
+        PortRoute withoutConnection(Registration registration, String channelId) {
+            List<String> remaining = remove(connections.get(registration.clientId), channelId);
+            Map<String, List<String>> newConnections = new HashMap<>(connections);
+            if (!remaining.isEmpty()) {
+                newConnections.put(registration.clientId, remaining);
+                return new PortRoute(proxyPort, protocol, targetPorts, groupClients, clients, Collections.unmodifiableMap(newConnections),
+                    clientHosts, counter);
+            }
+
+            // The client's last connection: the client leaves its group, and the group the port once it is empty
+            newConnections.remove(registration.clientId);
+            Map<String, List<String>> newClientHosts = new HashMap<>(clientHosts);
+            newClientHosts.remove(registration.clientId);
+            Map<String, Integer> newTargetPorts = new HashMap<>(targetPorts);
+            Map<String, List<String>> newGroupClients = new HashMap<>(groupClients);
+            List<String> groupRemaining = remove(groupClients.get(registration.groupId), registration.clientId);
+            if (groupRemaining.isEmpty()) {
+                newGroupClients.remove(registration.groupId);
+                newTargetPorts.remove(registration.groupId);
+            } else {
+                newGroupClients.put(registration.groupId, groupRemaining);
+            }
+            return new PortRoute(proxyPort, protocol, Collections.unmodifiableMap(newTargetPorts), Collections.unmodifiableMap(newGroupClients),
+                remove(clients, registration.clientId), Collections.unmodifiableMap(newConnections),
+                Collections.unmodifiableMap(newClientHosts), counter);
+        }
+
+        private static List<String> appendIfAbsent(List<String> list, String value) {
+            if (list != null && list.contains(value)) {
+                return list;
+            }
+            List<String> copy = list != null ? new ArrayList<>(list) : new ArrayList<>();
+            copy.add(value);
+            return Collections.unmodifiableList(copy);
+        }
+
+        private static List<String> remove(List<String> list, String value) {
+            if (list == null) {
+                return Collections.emptyList();
+            }
+            List<String> copy = new ArrayList<>(list);
+            copy.remove(value);
+            return Collections.unmodifiableList(copy);
+        }
+
+        public int getProxyPort() {
+            return proxyPort;
+        }
+
+        public String getProtocol() {
+            return protocol;
+        }
+
+        /**
+         * True once every client has left; the port is unbound if none comes back within the resume window
+         */
+        public boolean isIdle() {
+            return clients.isEmpty();
+        }
+
+        public Integer getTargetPort(String groupId) {
+            return targetPorts.get(groupId);
+        }
+
+        public List<String> getClients() {
+            return clients;
+        }
+
+        public List<String> getClients(String groupId) {
+            return groupClients.getOrDefault(groupId, Collections.emptyList());
+        }
+
+        /**
+         * True if some group of the port named hostnames, so users are routed by Host header or TLS SNI
+         */
+        public boolean hasHostnames() {
+            return !exactHosts.isEmpty() || !wildcardHosts.isEmpty();
+        }
+
+        /**
+         * Clients serving a hostname: the group claiming the name exactly, else the group with the
+         * longest matching wildcard, else the groups that named no hostnames. One hash lookup per
+         * label, however many services share the port.
+         *
+         * @param host lower-case hostname, or null or empty when the user sent none
+         */
+        public List<String> getClientsForHost(String host) {
+            if (host == null || host.isEmpty()) {
+                return defaultClients;
+            }
+            String groupId = exactHosts.get(host);
+            for (int dot = host.indexOf('.'); groupId == null && dot >= 0; dot = host.indexOf('.', dot + 1)) {
+                groupId = wildcardHosts.get(host.substring(dot + 1));
+            }
+            return groupId != null ? getClients(groupId) : defaultClients;
+        }
+
+        public List<String> getConnections(String clientId) {
+            return connections.getOrDefault(clientId, Collections.emptyList());
+        }
+
+        /**
+         * Next position for round-robin across the port's clients
+         */
+        public int nextIndex() {
+            return counter.getAndIncrement();
+        }
+    }
+
+    /**
+     * Which port, group and logical client a tunnel connection was registered for
+     */
+    public static final class Registration {
+        private final int proxyPort;
+        private final String groupId;
+        private final String clientId;
+
+        Registration(int proxyPort, String groupId, String clientId) {
+            this.proxyPort = proxyPort;
+            this.groupId = groupId;
+            this.clientId = clientId;
+        }
+
+        public int getProxyPort() {
+            return proxyPort;
+        }
+
+        public String getGroupId() {
+            return groupId;
+        }
+
+        public String getClientId() {
+            return clientId;
+        }
+
+        /**
+         * groupId:proxyPort, the key rate limits and logs use for the registration
+         */
+        public String getMapKey() {
+            return groupId + ":" + proxyPort;
+        }
+    }
+}
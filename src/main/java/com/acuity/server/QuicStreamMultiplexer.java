@@ -0,0 +1,134 @@
+package com.acuity.server;
+
+import com.acuity.common.StreamSchedulingHandler;
+import com.acuity.common.StreamSchedulingHandler.StreamFrame;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.incubator.codec.quic.QuicStreamChannel;
+import io.netty.incubator.codec.quic.QuicStreamType;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.PromiseNotifier;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sits on the control stream of a QUIC tunnel connection, where TCP connections have their stream scheduler.
+ * Frames of each tunnel stream (tagged by {@link StreamSchedulingHandler#frame}) are written to a QUIC stream
+ * opened for that tunnel stream, so a lost packet only delays the stream it belongs to; control messages
+ * stay on the control stream. The proxy client answers on the same QUIC stream.
+ * The connection is closed with its control stream.
+ */
+public class QuicStreamMultiplexer extends ChannelDuplexHandler {
+    // Sets up the pipeline of each QUIC stream opened for a tunnel stream
+    private final ChannelHandler streamInitializer;
+
+    // QUIC streams of this connection by tunnel stream key (event loop only)
+    private final Map<String, Future<QuicStreamChannel>> streams = new HashMap<>();
+    // Streams written to since the last flush
+    private final Set<QuicStreamChannel> unflushed = new LinkedHashSet<>();
+
+    public QuicStreamMultiplexer(ChannelHandler streamInitializer) {
+        this.streamInitializer = streamInitializer;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        StreamSchedulingHandler.enableStreamFrames(ctx.channel());
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        if (!(msg instanceof StreamFrame)) {
+            ctx.write(msg, promise);
+            return;
+        }
+
+        StreamFrame frame = (StreamFrame) msg;
+        String streamKey = frame.streamKey();
+        ByteBuf content = frame.content();
+        Future<QuicStreamChannel> stream = streams.get(streamKey);
+        if (stream == null) {
+            stream = openStream(ctx, streamKey);
+        }
+
+        if (stream.isSuccess()) {
+            QuicStreamChannel channel = stream.getNow();
+            channel.write(content).addListener(new PromiseNotifier<Void, ChannelFuture>(promise));
+            unflushed.add(channel);
+        } else {
+            // Still opening; listeners run in order, so the stream's frames keep their order
+            stream.addListener((Future<QuicStreamChannel> opened) -> {
+                if (opened.isSuccess()) {
+                    opened.getNow().writeAndFlush(content).addListener(new PromiseNotifier<Void, ChannelFuture>(promise));
+                } else {
+                    content.release();
+                    promise.tryFailure(opened.cause());
+                }
+            });
+        }
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) {
+        for (QuicStreamChannel channel : unflushed) {
+            channel.flush();
+        }
+        unflushed.clear();
+        ctx.flush();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        ((QuicStreamChannel) ctx.channel()).parent().close();
+        super.channelInactive(ctx);
+    }
+
+    private Future<QuicStreamChannel> openStream(ChannelHandlerContext ctx, String streamKey) {
+        Future<QuicStreamChannel> stream = ((QuicStreamChannel) ctx.channel()).parent()
+            .createStream(QuicStreamType.BIDIRECTIONAL, streamInitializer);
+        streams.put(streamKey, stream);
+        stream.addListener((Future<QuicStreamChannel> opened) -> {
+            if (opened.isSuccess()) {
+                opened.getNow().closeFuture().addListener(closed -> streams.remove(streamKey, stream));
+            } else {
+                streams.remove(streamKey, stream);
+                System.err.println("[TunnelServer] [Channel: " + ctx.channel().id().asShortText() + "] Could not open QUIC stream for " +
+                    streamKey + ": " + opened.cause().getMessage());
+            }
+        });
+        return stream;
+    }
+
+    /**
+     * Inbound handler on a QUIC stream opened for a tunnel stream. Closes the stream once the proxy client's
+     * response is complete, or once it has been idle, e.g. a UDP session that went quiet.
+     */
+    public static class StreamCloser extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            TunnelAction action = TunnelMessage.peekAction((ByteBuf) msg);
+            ctx.fireChannelRead(msg);
+            if (action == TunnelAction.FORWARD || action == TunnelAction.STREAM_END || action == TunnelAction.ERROR) {
+                ctx.close();
+            }
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+            if (evt instanceof IdleStateEvent) {
+                ctx.close();
+                return;
+            }
+            ctx.fireUserEventTriggered(evt);
+        }
+    }
+}
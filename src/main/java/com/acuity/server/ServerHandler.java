@@ -1,12 +1,14 @@
 package com.acuity.server;
 
+import com.acuity.config.ServerConfig;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.timeout.IdleState;
 import io.netty.handler.timeout.IdleStateEvent;
-import io.netty.util.CharsetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import java.util.Map;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
@@ -15,6 +17,8 @@ import java.util.concurrent.ConcurrentHashMap;
  * Base handler for tunnel server with shared functionality
  */
 public class ServerHandler extends ChannelInboundHandlerAdapter {
+    private static final Logger logger = LoggerFactory.getLogger(ServerHandler.class);
+
     // Static maps shared across all handlers
     protected static final Map<String, Channel> pipedChannels = new ConcurrentHashMap<>();
     protected static final Map<String, ChannelHandlerContext> proxyClientContexts = new ConcurrentHashMap<>();
@@ -23,30 +27,40 @@ public class ServerHandler extends ChannelInboundHandlerAdapter {
     protected final Map<Integer, List<TunnelServerApp>> proxyClientInstances;
     protected final Map<Integer, TunnelServerApp> userClientInstances;
     protected final Map<Integer, TunnelServerApp> serverInstances;
+    protected final ServerConfig config;
+
+    // Set when a heartbeat PING is outstanding; a second reader-idle period without traffic closes the channel
+    private boolean awaitingPong;
 
     public ServerHandler(Map<Integer, List<TunnelServerApp>> proxyClientInstances, Map<Integer, TunnelServerApp> userClientInstances, Map<Integer, TunnelServerApp> serverInstances) {
+        this(proxyClientInstances, userClientInstances, serverInstances, new ServerConfig());
+    }
+
+    public ServerHandler(Map<Integer, List<TunnelServerApp>> proxyClientInstances, Map<Integer, TunnelServerApp> userClientInstances, Map<Integer, TunnelServerApp> serverInstances, ServerConfig config) {
         this.proxyClientInstances = proxyClientInstances;
         this.userClientInstances = userClientInstances;
         this.serverInstances = serverInstances;
+        this.config = config;
     }
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
         ByteBuf byteBuf = (ByteBuf) msg;
         String channelId = ctx.channel().id().asShortText();
+        awaitingPong = false;
 
         try {
-            // Read all bytes from the ByteBuf
-            byte[] bytes = new byte[byteBuf.readableBytes()];
-            byteBuf.readBytes(bytes);
-
-            // Deserialize TunnelMessage
-            TunnelMessage tunnelMessage = TunnelMessage.fromBytes(bytes);
-
-            System.out.println("[TunnelServer] [Channel: " + channelId + "] Server received TunnelMessage: " + tunnelMessage);
+            // Deserialize TunnelMessage straight from the decrypted frame
+            TunnelMessage tunnelMessage = TunnelMessage.fromByteBuf(byteBuf);
+            // Every frame passes here, so it is only logged at debug level
+            logger.debug("[TunnelServer] [Channel: {}] Server received TunnelMessage: {}", channelId, tunnelMessage);
 
             // Handle the tunnel message
-            handleTunnelMessage(ctx, tunnelMessage, channelId);
+            try {
+                handleTunnelMessage(ctx, tunnelMessage, channelId);
+            } finally {
+                tunnelMessage.release();
+            }
 
         } catch (IllegalArgumentException e) {
             // If deserialization fails, log the error
@@ -72,6 +86,9 @@ public class ServerHandler extends ChannelInboundHandlerAdapter {
             case PING:
                 handlePingAction(ctx, tunnelMessage, channelId);
                 break;
+            case PONG:
+                // Heartbeat answered; any read already cleared awaitingPong
+                break;
             case EXIT:
                 handleExitAction(ctx, tunnelMessage, channelId);
                 break;
@@ -83,7 +100,7 @@ public class ServerHandler extends ChannelInboundHandlerAdapter {
     protected void handleForwardAction(ChannelHandlerContext ctx, TunnelMessage tunnelMessage, String channelId) {
         // Default implementation - subclasses should override
         System.out.println("[TunnelServer] [Channel: " + channelId + "] Handling FORWARD action with data length: " +
-            (tunnelMessage.getData() != null ? tunnelMessage.getData().length : 0));
+            tunnelMessage.getDataLength());
     }
 
     protected void handlePingAction(ChannelHandlerContext ctx, TunnelMessage tunnelMessage, String channelId) {
@@ -94,7 +111,7 @@ public class ServerHandler extends ChannelInboundHandlerAdapter {
             TunnelAction.PONG,
             new byte[0]
         );
-        ctx.writeAndFlush(Unpooled.copiedBuffer(pong.toBytes()));
+        ctx.writeAndFlush(pong.toByteBuf(ctx.alloc()));
     }
 
     protected void handleExitAction(ChannelHandlerContext ctx, TunnelMessage tunnelMessage, String channelId) {
@@ -128,8 +145,16 @@ public class ServerHandler extends ChannelInboundHandlerAdapter {
             String channelId = ctx.channel().id().asShortText();
             System.out.println("[TunnelServer] [Channel: " + channelId + "] Idle detected: " + event.state());
 
-            // Send PING to keep connection alive
-            ctx.writeAndFlush(Unpooled.copiedBuffer("PING\n", CharsetUtil.UTF_8));
+            if (event.state() == IdleState.READER_IDLE && awaitingPong) {
+                // The peer missed a heartbeat; close so its streams are rerouted and the client reconnects
+                System.out.println("[TunnelServer] [Channel: " + channelId + "] No heartbeat from peer, closing connection");
+                ctx.close();
+                return;
+            }
+
+            // Send PING frame to keep connection alive
+            awaitingPong = true;
+            ctx.writeAndFlush(new TunnelMessage(null, TunnelAction.PING, new byte[0]).toByteBuf(ctx.alloc()));
         }
         super.userEventTriggered(ctx, evt);
     }
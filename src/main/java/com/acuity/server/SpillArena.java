@@ -0,0 +1,242 @@
+package com.acuity.server;
+
+import com.acuity.config.ServerConfig;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.FileRegion;
+import io.netty.util.AbstractReferenceCounted;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Disk space for stream data that does not fit in memory, shared by every stream of the server.
+ *
+ * One file, unlinked once opened, is cut into fixed-size blocks. Blocks are written through memory-mapped
+ * segments of the file and sent to users as {@link FileRegion}s over the same file channel, so spilled bytes
+ * go from the page cache to the socket without being copied into the heap. Freed blocks are reused lowest
+ * first, which keeps the file as short as the peak it has seen. Thread-safe.
+ */
+public class SpillArena {
+    private static final SpillArena SHARED = new SpillArena();
+
+    static final int BLOCK_BYTES = 64 * 1024;
+    // Blocks are mapped this many at a time, as the file grows
+    private static final int BLOCKS_PER_SEGMENT = 1024;
+    private static final long SEGMENT_BYTES = (long) BLOCK_BYTES * BLOCKS_PER_SEGMENT;
+
+    private FileChannel channel;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    // Set bits are blocks in use; clear bits below the mapped length form the free list
+    private final BitSet used = new BitSet();
+    private int usedBlocks;
+    private int peakBlocks;
+    private long refused;
+    private long lastLoggedRefused;
+    private int lastLoggedPeak;
+
+    /**
+     * Spill arena of the tunnel server
+     */
+    public static SpillArena shared() {
+        return SHARED;
+    }
+
+    /**
+     * A free block, or -1 if the arena is at spill.maxBytes or its file cannot be opened
+     */
+    synchronized int allocate(ServerConfig config) {
+        int block = used.nextClearBit(0);
+        if ((long) (block + 1) * BLOCK_BYTES > config.getSpillMaxBytes()) {
+            refused++;
+            return -1;
+        }
+        try {
+            int segment = block / BLOCKS_PER_SEGMENT;
+            while (segments.size() <= segment) {
+                segments.add(channel(config).map(FileChannel.MapMode.READ_WRITE, segments.size() * SEGMENT_BYTES, SEGMENT_BYTES));
+            }
+        } catch (IOException e) {
+            System.err.println("[TunnelServer] Cannot grow the spill file: " + e.getMessage());
+            refused++;
+            return -1;
+        }
+        used.set(block);
+        usedBlocks++;
+        peakBlocks = Math.max(peakBlocks, usedBlocks);
+        return block;
+    }
+
+    synchronized void free(int[] blocks, int count) {
+        for (int i = 0; i < count; i++) {
+            used.clear(blocks[i]);
+        }
+        usedBlocks -= count;
+    }
+
+    /**
+     * Copy bytes into a block. Blocks are owned by one stream, so writes to different blocks need no lock.
+     */
+    void write(int block, int offset, ByteBuf src, int srcIndex, int length) {
+        ByteBuffer view = segment(block).duplicate();
+        int position = blockOffset(block) + offset;
+        view.position(position).limit(position + length);
+        src.getBytes(srcIndex, view);
+    }
+
+    void read(int block, int offset, byte[] dst, int dstOffset, int length) {
+        ByteBuffer view = segment(block).duplicate();
+        view.position(blockOffset(block) + offset);
+        view.get(dst, dstOffset, length);
+    }
+
+    /**
+     * File region over bytes of the arena; it only reads the shared file channel and leaves it open
+     */
+    FileRegion region(long position, long count) {
+        return new Region(fileChannel(), position, count);
+    }
+
+    static long position(int block) {
+        return (long) block * BLOCK_BYTES;
+    }
+
+    private synchronized MappedByteBuffer segment(int block) {
+        return segments.get(block / BLOCKS_PER_SEGMENT);
+    }
+
+    private synchronized FileChannel fileChannel() {
+        return channel;
+    }
+
+    private static int blockOffset(int block) {
+        return (block % BLOCKS_PER_SEGMENT) * BLOCK_BYTES;
+    }
+
+    // The spill file, created on first use and unlinked right away so nothing is left behind after a crash
+    private FileChannel channel(ServerConfig config) throws IOException {
+        if (channel == null) {
+            String configured = config.getSpillDirectory();
+            Path directory = configured == null || configured.isEmpty()
+                ? new File(System.getProperty("java.io.tmpdir")).toPath()
+                : new File(configured).toPath();
+            Files.createDirectories(directory);
+            Path file = Files.createTempFile(directory, "tunnel-spill-", ".arena");
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            Files.delete(file);
+        }
+        return channel;
+    }
+
+    public synchronized long usedBytes() {
+        return (long) usedBlocks * BLOCK_BYTES;
+    }
+
+    public synchronized long peakBytes() {
+        return (long) peakBlocks * BLOCK_BYTES;
+    }
+
+    /**
+     * Log usage if a new peak was reached or blocks were refused since the last time
+     */
+    synchronized void logStats() {
+        if (peakBlocks == lastLoggedPeak && refused == lastLoggedRefused) {
+            return;
+        }
+        lastLoggedPeak = peakBlocks;
+        lastLoggedRefused = refused;
+        System.out.println("[TunnelServer] Spill arena: " + this);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "used=" + usedBytes() + ", peak=" + peakBytes() +
+            ", mapped=" + segments.size() * SEGMENT_BYTES + ", refused=" + refused;
+    }
+
+    /**
+     * A FileRegion over the shared spill file. Unlike DefaultFileRegion it does not close the file once written.
+     */
+    private static final class Region extends AbstractReferenceCounted implements FileRegion {
+        private final FileChannel file;
+        private final long position;
+        private final long count;
+        private long transferred;
+
+        Region(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.count = count;
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        @Deprecated
+        public long transfered() {
+            return transferred;
+        }
+
+        @Override
+        public long transferred() {
+            return transferred;
+        }
+
+        @Override
+        public long count() {
+            return count;
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel target, long position) throws IOException {
+            long remaining = count - position;
+            if (remaining <= 0) {
+                return 0;
+            }
+            long written = file.transferTo(this.position + position, remaining, target);
+            if (written > 0) {
+                transferred += written;
+            }
+            return written;
+        }
+
+        @Override
+        public FileRegion retain() {
+            super.retain();
+            return this;
+        }
+
+        @Override
+        public FileRegion retain(int increment) {
+            super.retain(increment);
+            return this;
+        }
+
+        @Override
+        public FileRegion touch() {
+            return this;
+        }
+
+        @Override
+        public FileRegion touch(Object hint) {
+            return this;
+        }
+
+        @Override
+        protected void deallocate() {
+            // The blocks belong to their SpillBuffer, which frees them once all its regions are written
+        }
+    }
+}
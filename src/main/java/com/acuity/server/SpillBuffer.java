@@ -0,0 +1,132 @@
+package com.acuity.server;
+
+import com.acuity.config.ServerConfig;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.FileRegion;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The part of one stream's data kept in the {@link SpillArena} instead of the heap. Appends fill blocks
+ * taken from the arena one at a time; the blocks go back to the arena on {@link #release}, after which
+ * appends fail.
+ */
+final class SpillBuffer {
+    private final SpillArena arena;
+    private final ServerConfig config;
+    private int[] blocks = new int[16];
+    private int blockCount;
+    private long length;
+    private boolean released;
+
+    SpillBuffer(SpillArena arena, ServerConfig config) {
+        this.arena = arena;
+        this.config = config;
+    }
+
+    /**
+     * Append bytes; false if the arena ran out of blocks, in which case part of them may have been written
+     */
+    boolean append(byte[] src) {
+        return append(Unpooled.wrappedBuffer(src));
+    }
+
+    /**
+     * Append the readable bytes of a buffer, leaving its reader index where it is
+     */
+    synchronized boolean append(ByteBuf src) {
+        if (released) {
+            return false;
+        }
+        int start = src.readerIndex();
+        int total = src.readableBytes();
+        int offset = 0;
+        while (offset < total) {
+            int used = (int) (length % SpillArena.BLOCK_BYTES);
+            if (used == 0) {
+                int block = arena.allocate(config);
+                if (block < 0) {
+                    return false;
+                }
+                if (blockCount == blocks.length) {
+                    blocks = Arrays.copyOf(blocks, blockCount * 2);
+                }
+                blocks[blockCount++] = block;
+            }
+            int n = Math.min(total - offset, SpillArena.BLOCK_BYTES - used);
+            arena.write(blocks[blockCount - 1], used, src, start + offset, n);
+            offset += n;
+            length += n;
+        }
+        return true;
+    }
+
+    long length() {
+        return length;
+    }
+
+    /**
+     * The spilled bytes as runs of adjacent blocks, in stream order
+     */
+    List<Extent> extents() {
+        List<Extent> extents = new ArrayList<>();
+        int first = 0;
+        for (int i = 1; i <= blockCount; i++) {
+            if (i == blockCount || blocks[i] != blocks[i - 1] + 1) {
+                long start = (long) first * SpillArena.BLOCK_BYTES;
+                long end = Math.min(length, (long) i * SpillArena.BLOCK_BYTES);
+                extents.add(new Extent(SpillArena.position(blocks[first]), end - start));
+                first = i;
+            }
+        }
+        return extents;
+    }
+
+    /**
+     * Copy the spilled bytes after the given head into one array, for consumers that need the whole response in memory
+     */
+    byte[] toByteArray(byte[] head) {
+        byte[] data = Arrays.copyOf(head, Math.toIntExact(head.length + length));
+        int offset = head.length;
+        for (int i = 0; i < blockCount; i++) {
+            int n = (int) Math.min(SpillArena.BLOCK_BYTES, length - (long) i * SpillArena.BLOCK_BYTES);
+            arena.read(blocks[i], 0, data, offset, n);
+            offset += n;
+        }
+        return data;
+    }
+
+    /**
+     * Return the blocks to the arena; regions of this buffer must not be written after this
+     */
+    synchronized void release() {
+        if (!released) {
+            released = true;
+            arena.free(blocks, blockCount);
+        }
+    }
+
+    /**
+     * Adjacent spilled bytes in the arena file
+     */
+    final class Extent {
+        private final long position;
+        private final long length;
+
+        private Extent(long position, long length) {
+            this.position = position;
+            this.length = length;
+        }
+
+        long length() {
+            return length;
+        }
+
+        FileRegion region(long offset, long count) {
+            return arena.region(position + offset, count);
+        }
+    }
+}
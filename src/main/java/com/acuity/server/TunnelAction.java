@@ -7,10 +7,10 @@ public enum TunnelAction {
     /** Forward data from one channel to another */
     FORWARD,
 
-    /** Add a new proxy server (format: ADDPROXY:port) */
+    /** Add a new proxy server (format: ADDPROXY:port[:groupId[:targetPort[:clientId[:protocol[:security[:hostnames]]]]]]); port 0 asks for an allocated port */
     ADDPROXY,
 
-    /** Response message from server to client */
+    /** Response message from server to client (RESPONSE:port when the server allocated the proxy port) */
     RESPONSE,
 
     /** Error message */
@@ -25,6 +25,9 @@ public enum TunnelAction {
     /** End streaming session */
     STREAM_END,
 
+    /** One datagram of a UDP proxy session, never chunked */
+    DATAGRAM,
+
     /** Ping to keep connection alive */
     PING,
 
@@ -32,11 +35,17 @@ public enum TunnelAction {
     PONG,
 
     /** Exit/close connection */
-    EXIT;
+    EXIT,
+
+    /** Compression dictionary of the client's group (DICTIONARY:version, the dictionary as data); echoed without data once installed */
+    DICTIONARY,
+
+    /** Chunk deduplication offer from the client (DEDUP:storeBytes); the server answers with the store size both sides use */
+    DEDUP;
 
     /**
      * Parse action string to enum
-     * Handles special case for ADDPROXY:port format
+     * Handles special case for ADDPROXY:port and RESPONSE:port formats
      */
     public static TunnelAction fromString(String action) {
         if (action == null || action.isEmpty()) {
@@ -49,6 +58,15 @@ public enum TunnelAction {
         if (actionUpper.startsWith("ADDPROXY:")) {
             return ADDPROXY;
         }
+        if (actionUpper.startsWith("RESPONSE:")) {
+            return RESPONSE;
+        }
+        if (actionUpper.startsWith("DICTIONARY:")) {
+            return DICTIONARY;
+        }
+        if (actionUpper.startsWith("DEDUP:")) {
+            return DEDUP;
+        }
 
         try {
             return TunnelAction.valueOf(actionUpper);
@@ -59,11 +77,11 @@ public enum TunnelAction {
 
     /**
      * Convert enum to string representation
-     * For ADDPROXY, use the provided port parameter
+     * For ADDPROXY and RESPONSE, use the provided port parameter; for DICTIONARY, the version; for DEDUP, the store size
      */
     public String toString(String... params) {
-        if (this == ADDPROXY && params.length > 0) {
-            return "ADDPROXY:" + params[0];
+        if ((this == ADDPROXY || this == RESPONSE || this == DICTIONARY || this == DEDUP) && params.length > 0) {
+            return name() + ":" + params[0];
         }
         return this.name();
     }
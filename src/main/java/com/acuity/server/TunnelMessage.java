@@ -1,17 +1,33 @@
 package com.acuity.server;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
 import java.nio.charset.StandardCharsets;
-import java.util.Base64;
 
 /**
- * Message class for tunnel communication
+ * Message class for tunnel communication.
+ * A message read from a frame keeps its data as a retained slice of that frame, so it must be released
+ * with {@link #release()} once handled; its data is only copied into an array if {@link #getData()} asks for it.
  */
 public class TunnelMessage {
+    // Wire format version, written as the first header byte
+    private static final byte FORMAT_VERSION = 1;
+
+    // version + three 2-byte string lengths + 4-byte data length
+    private static final int FIXED_HEADER_LENGTH = 1 + 2 + 2 + 2 + 4;
+
     private final String userChannelId;
     private final String streamId; // Stream ID for multiplexing multiple streams per user
     private final TunnelAction action;
     private final String rawAction; // For special cases like ADDPROXY:port
-    private final byte[] data;
+    private byte[] data;
+    // Slice of the frame the message was read from, or null for a message built around an array
+    private final ByteBuf payload;
 
     public TunnelMessage(String userChannelId, TunnelAction action, byte[] data) {
         this(userChannelId, "0", action, data);
@@ -23,6 +39,7 @@ public class TunnelMessage {
         this.action = action;
         this.rawAction = action != null ? action.toString() : null;
         this.data = data;
+        this.payload = null;
     }
 
     public TunnelMessage(String userChannelId, String actionString, byte[] data) {
@@ -35,6 +52,15 @@ public class TunnelMessage {
         this.rawAction = actionString;
         this.action = TunnelAction.fromString(actionString);
         this.data = data;
+        this.payload = null;
+    }
+
+    private TunnelMessage(String userChannelId, String streamId, String actionString, ByteBuf payload) {
+        this.userChannelId = userChannelId;
+        this.streamId = streamId != null ? streamId : "0";
+        this.rawAction = actionString;
+        this.action = TunnelAction.fromString(actionString);
+        this.payload = payload;
     }
 
     public String getUserChannelId() {
@@ -53,10 +79,43 @@ public class TunnelMessage {
         return rawAction;
     }
 
+    /**
+     * The data as an array; a message read from a frame copies it out on the first call
+     */
     public byte[] getData() {
+        if (data == null && payload != null) {
+            data = ByteBufUtil.getBytes(payload);
+        }
         return data;
     }
 
+    /**
+     * The data without copying it. For a message read from a frame this is a slice of the frame, valid until
+     * {@link #release()}; retain it to keep it longer.
+     */
+    public ByteBuf getPayload() {
+        if (payload != null) {
+            return payload;
+        }
+        return data != null && data.length > 0 ? Unpooled.wrappedBuffer(data) : Unpooled.EMPTY_BUFFER;
+    }
+
+    public int getDataLength() {
+        if (payload != null) {
+            return payload.readableBytes();
+        }
+        return data != null ? data.length : 0;
+    }
+
+    /**
+     * Release the frame a message read by {@link #fromByteBuf} holds; does nothing for other messages
+     */
+    public void release() {
+        if (payload != null) {
+            payload.release();
+        }
+    }
+
     /**
      * Get composite key for stream tracking: userChannelId:streamId
      */
@@ -66,36 +125,171 @@ public class TunnelMessage {
 
     /**
      * Serialize the TunnelMessage to a byte array for transmission
-     * Format: userChannelId|streamId|action|base64Data
+     * Format: see {@link #encode(ByteBufAllocator, String, String, String, ByteBuf)}
      */
     public byte[] toBytes() {
-        String encodedData = data != null ? Base64.getEncoder().encodeToString(data) : "";
-        String serialized = String.format("%s|%s|%s|%s",
-            userChannelId != null ? userChannelId : "",
-            streamId != null ? streamId : "0",
-            rawAction != null ? rawAction : "",
-            encodedData);
-        return serialized.getBytes(StandardCharsets.UTF_8);
+        ByteBuf frame = toByteBuf(UnpooledByteBufAllocator.DEFAULT);
+        try {
+            return ByteBufUtil.getBytes(frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Serialize the TunnelMessage into a frame ready to be written to a tunnel channel.
+     * The data is wrapped, not copied.
+     */
+    public ByteBuf toByteBuf(ByteBufAllocator alloc) {
+        ByteBuf data = payload != null ? payload.retainedDuplicate() : getPayload();
+        return encode(alloc, userChannelId, streamId, rawAction, data);
+    }
+
+    /**
+     * Build a tunnel frame around a payload without copying it.
+     * The header is written into a pooled direct buffer and combined with the payload in a
+     * composite buffer, so callers can pass retained slices of a larger buffer as chunks.
+     * Ownership of the payload passes to the returned buffer.
+     *
+     * Format: [1 byte version][userChannelId][streamId][action][4 bytes data length][data]
+     * where each string field is a 2 byte length followed by its UTF-8 bytes
+     */
+    public static ByteBuf encode(ByteBufAllocator alloc, String userChannelId, String streamId, String rawAction, ByteBuf payload) {
+        String resolvedStreamId = streamId != null ? streamId : "0";
+        int headerLength = FIXED_HEADER_LENGTH + utf8Length(userChannelId) + utf8Length(resolvedStreamId) + utf8Length(rawAction);
+
+        ByteBuf header = alloc.directBuffer(headerLength);
+        header.writeByte(FORMAT_VERSION);
+        writeString(header, userChannelId);
+        writeString(header, resolvedStreamId);
+        writeString(header, rawAction);
+        header.writeInt(payload.readableBytes());
+
+        if (!payload.isReadable()) {
+            payload.release();
+            return header;
+        }
+
+        CompositeByteBuf frame = alloc.compositeDirectBuffer(2);
+        frame.addComponents(true, header, payload);
+        return frame;
     }
 
     /**
      * Deserialize a TunnelMessage from a byte array
-     * Format: userChannelId|streamId|action|base64Data
      */
     public static TunnelMessage fromBytes(byte[] bytes) {
-        String serialized = new String(bytes, StandardCharsets.UTF_8);
-        String[] parts = serialized.split("\\|", 4);
+        return fromByteBuf(Unpooled.wrappedBuffer(bytes));
+    }
 
-        if (parts.length < 3) {
+    /**
+     * Deserialize a TunnelMessage from the readable bytes of a frame.
+     * The data stays in the frame as a retained slice, so the caller still releases the buffer, and
+     * releases the message once done with it.
+     */
+    public static TunnelMessage fromByteBuf(ByteBuf buf) {
+        if (buf.readableBytes() < FIXED_HEADER_LENGTH || buf.readByte() != FORMAT_VERSION) {
             throw new IllegalArgumentException("Invalid TunnelMessage format");
         }
 
-        String userChannelId = parts[0].isEmpty() ? null : parts[0];
-        String streamId = (parts.length > 1 && !parts[1].isEmpty()) ? parts[1] : "0";
-        String actionString = parts[2].isEmpty() ? null : parts[2];
-        byte[] data = (parts.length > 3 && !parts[3].isEmpty()) ? Base64.getDecoder().decode(parts[3]) : new byte[0];
+        String userChannelId = readString(buf);
+        String streamId = readString(buf);
+        String actionString = readString(buf);
+
+        if (buf.readableBytes() < 4) {
+            throw new IllegalArgumentException("Invalid TunnelMessage format");
+        }
+        int dataLength = buf.readInt();
+        if (dataLength < 0 || dataLength > buf.readableBytes()) {
+            throw new IllegalArgumentException("Invalid TunnelMessage data length: " + dataLength);
+        }
+        return new TunnelMessage(userChannelId, streamId, actionString, buf.readRetainedSlice(dataLength));
+    }
 
-        return new TunnelMessage(userChannelId, streamId, actionString, data);
+    /**
+     * Action of a serialized frame, read without consuming it; null if the frame is malformed
+     */
+    public static TunnelAction peekAction(ByteBuf frame) {
+        ByteBuf view = frame.duplicate();
+        if (view.readableBytes() < FIXED_HEADER_LENGTH || view.readByte() != FORMAT_VERSION) {
+            return null;
+        }
+        try {
+            readString(view);
+            readString(view);
+            return TunnelAction.fromString(readString(view));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stream key (userChannelId:streamId) of a serialized frame, read without consuming it; null if the frame is malformed
+     */
+    public static String peekStreamKey(ByteBuf frame) {
+        ByteBuf view = frame.duplicate();
+        if (view.readableBytes() < FIXED_HEADER_LENGTH || view.readByte() != FORMAT_VERSION) {
+            return null;
+        }
+        try {
+            String userChannelId = readString(view);
+            String streamId = readString(view);
+            return userChannelId + ":" + (streamId != null ? streamId : "0");
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Length of a serialized frame's header, up to and including the data length; -1 if the frame is malformed
+     */
+    public static int peekHeaderLength(ByteBuf frame) {
+        ByteBuf view = frame.duplicate();
+        if (view.readableBytes() < FIXED_HEADER_LENGTH || view.readByte() != FORMAT_VERSION) {
+            return -1;
+        }
+        try {
+            readString(view);
+            readString(view);
+            readString(view);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+        if (view.readableBytes() < 4 || view.getInt(view.readerIndex()) != view.readableBytes() - 4) {
+            return -1;
+        }
+        return view.readerIndex() + 4 - frame.readerIndex();
+    }
+
+    private static int utf8Length(String value) {
+        return value != null ? ByteBufUtil.utf8Bytes(value) : 0;
+    }
+
+    private static void writeString(ByteBuf buf, String value) {
+        int length = utf8Length(value);
+        if (length > 0xFFFF) {
+            throw new IllegalArgumentException("TunnelMessage header field too long: " + length + " bytes");
+        }
+        buf.writeShort(length);
+        if (length > 0) {
+            ByteBufUtil.writeUtf8(buf, value);
+        }
+    }
+
+    private static String readString(ByteBuf buf) {
+        if (buf.readableBytes() < 2) {
+            throw new IllegalArgumentException("Invalid TunnelMessage format");
+        }
+        int length = buf.readUnsignedShort();
+        if (length > buf.readableBytes()) {
+            throw new IllegalArgumentException("Invalid TunnelMessage header field length: " + length);
+        }
+        if (length == 0) {
+            return null;
+        }
+        String value = buf.toString(buf.readerIndex(), length, StandardCharsets.UTF_8);
+        buf.skipBytes(length);
+        return value;
     }
 
     @Override
@@ -104,7 +298,7 @@ public class TunnelMessage {
                 "userChannelId='" + userChannelId + '\'' +
                 ", streamId='" + streamId + '\'' +
                 ", action=" + action +
-                ", data.length=" + (data != null ? data.length : 0) +
+                ", data.length=" + getDataLength() +
                 '}';
     }
 }
@@ -1,22 +1,42 @@
 package com.acuity.server;
 
-import com.acuity.common.SymmetricDecryptionHandler;
+import com.acuity.common.AdaptiveChunkSizer;
+import com.acuity.common.ChunkDedupHandler;
+import com.acuity.common.QuicTransport;
 import com.acuity.common.SymmetricEncryption;
 import com.acuity.common.SymmetricEncryptionHandler;
+import com.acuity.config.ConfigChanges;
+import com.acuity.config.ConfigWatcher;
 import com.acuity.config.ServerConfig;
+import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.incubator.codec.quic.QuicChannel;
+import io.netty.incubator.codec.quic.QuicStreamChannel;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutorGroup;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -26,27 +46,37 @@ public class TunnelServerApp {
     public enum ClientType {
         SERVER,
         PROXY,
+        UDP_PROXY,
         USER
     }
 
-    private static final Map<Integer, List<TunnelServerApp>> proxyClientInstances = new HashMap<>();
-    private static final Map<Integer, TunnelServerApp> userClientInstances = new HashMap<>();
-    private static final Map<Integer, TunnelServerApp> serverInstances = new HashMap<>();
+    // Written by the tunnel connections that register and release proxy ports, so these must be concurrent
+    private static final Map<Integer, List<TunnelServerApp>> proxyClientInstances = new ConcurrentHashMap<>();
+    private static final Map<Integer, TunnelServerApp> userClientInstances = new ConcurrentHashMap<>();
+    private static final Map<Integer, TunnelServerApp> serverInstances = new ConcurrentHashMap<>();
 
     private final int port;
     private final ClientType clientType;
     private final String sharedKey;
+    private final ServerConfig config;
+    private volatile Channel boundChannel;
+    private volatile boolean stopped;
 
     public TunnelServerApp(int port, ClientType clientType) {
-        this(port, clientType, null);
+        this(port, clientType, (String) null);
     }
 
     public TunnelServerApp(int port, ClientType clientType, String sharedKey) {
+        this(port, clientType, configWithKey(sharedKey));
+    }
+
+    public TunnelServerApp(int port, ClientType clientType, ServerConfig config) {
         this.port = port;
         this.clientType = clientType;
-        this.sharedKey = sharedKey;
-        if (clientType == ClientType.PROXY) {
-            proxyClientInstances.computeIfAbsent(port, k -> new ArrayList<>()).add(this);
+        this.config = config;
+        this.sharedKey = config.getSharedKey();
+        if (clientType == ClientType.PROXY || clientType == ClientType.UDP_PROXY) {
+            proxyClientInstances.computeIfAbsent(port, k -> new CopyOnWriteArrayList<>()).add(this);
         } else if (clientType == ClientType.USER) {
             userClientInstances.put(port, this);
         } else {
@@ -54,6 +84,16 @@ public class TunnelServerApp {
         }
     }
 
+    private static ServerConfig configWithKey(String sharedKey) {
+        ServerConfig config = new ServerConfig();
+        config.setSharedKey(sharedKey);
+        return config;
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
+
     public static TunnelServerApp getProxyClientInstance(int port) {
         List<TunnelServerApp> apps = proxyClientInstances.get(port);
         return (apps != null && !apps.isEmpty()) ? apps.get(0) : null;
@@ -87,9 +127,55 @@ public class TunnelServerApp {
         return new HashMap<>(serverInstances);
     }
 
+    /**
+     * Unbind this listener; start() returns once the channel is closed
+     */
+    public void stop() {
+        stopped = true;
+        if (clientType == ClientType.PROXY || clientType == ClientType.UDP_PROXY) {
+            List<TunnelServerApp> apps = proxyClientInstances.get(port);
+            if (apps != null) {
+                apps.remove(this);
+                proxyClientInstances.remove(port, Collections.emptyList());
+            }
+        }
+        Channel channel = boundChannel;
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Stop every proxy listener bound to a port whose clients have all left
+     */
+    public static void stopProxyPort(int port) {
+        for (TunnelServerApp app : getProxyClientInstances(port)) {
+            app.stop();
+        }
+    }
+
+    private void bound(Channel channel) {
+        boundChannel = channel;
+        if (stopped) {
+            // stop() raced with the bind
+            channel.close();
+        }
+    }
+
     public void start() throws InterruptedException {
-        EventLoopGroup bossGroup = new NioEventLoopGroup();
-        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        if (clientType == ClientType.UDP_PROXY) {
+            startDatagram();
+            return;
+        }
+        config.validate();
+        config.applyGlobalSettings();
+        ProxyPortRegistry.shared().setLoadBalancing(config.getLoadBalancing());
+        EventLoopGroup bossGroup = new NioEventLoopGroup(config.getBossGroupSize());
+        EventLoopGroup workerGroup = new NioEventLoopGroup(config.getWorkerGroupSize()); // 0 means CPUs * 2
+        // Optional pool for GZIP/AES so large frames don't stall the I/O threads; each channel stays on one executor
+        EventExecutorGroup codecGroup = clientType == ClientType.SERVER && config.getCodecOffloadThreads() > 0
+                ? new DefaultEventExecutorGroup(config.getCodecOffloadThreads(), new DefaultThreadFactory("tunnel-codec"))
+                : null;
 
         try {
             // Initialize symmetric encryption key
@@ -107,28 +193,49 @@ public class TunnelServerApp {
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel ch) throws Exception {
-                            // Add encryption/decryption handlers
-                            ch.pipeline().addLast(new SymmetricEncryptionHandler());
-                            ch.pipeline().addLast(new SymmetricDecryptionHandler());
-
-                            ch.pipeline()
-                                    .addLast(new IdleStateHandler(60, 60, 0, TimeUnit.SECONDS));
+                            if (clientType == ClientType.SERVER) {
+                                // Tunnel connections carry encrypted TunnelMessage frames
+                                ch.pipeline().addLast(codecGroup, "encrypt", new SymmetricEncryptionHandler());
+                                ch.pipeline().addLast(codecGroup, "decrypt", config.createDecryptionHandler());
+                                if (config.isBatchingEnabled()) {
+                                    ch.pipeline().addLast(config.createFrameBatchingHandler());
+                                }
+                                if (config.isDedupEnabled()) {
+                                    ch.pipeline().addLast(new ChunkDedupHandler(config.getDedupDirectory(), TunnelMessage::peekHeaderLength, TunnelMessage::peekStreamKey));
+                                }
+                                if (config.isSchedulingEnabled()) {
+                                    ch.pipeline().addLast(config.createStreamSchedulingHandler(ProxyClientHandler.memoryBudget()));
+                                }
 
-                            if (clientType == ClientType.PROXY) {
-                                ch.pipeline().addLast(new ProxyClientHandler(proxyClientInstances));
-                            } else if (clientType == ClientType.USER) {
-                                ch.pipeline().addLast(new UserClientHandler(userClientInstances));
+                                if (config.getIdleTimeoutSeconds() > 0) {
+                                    ch.pipeline().addLast(new IdleStateHandler(config.getIdleTimeoutSeconds(), config.getIdleTimeoutSeconds(), 0, TimeUnit.SECONDS));
+                                }
+                                ch.pipeline().addLast(new TunnelServerHandler(proxyClientInstances, userClientInstances, serverInstances, config));
                             } else {
-                                ch.pipeline().addLast(new TunnelServerHandler(proxyClientInstances, userClientInstances, serverInstances));
+                                // Proxy ports carry the user's raw TCP bytes, which are multiplexed onto the tunnel
+                                ch.pipeline().addLast(new UserClientHandler(userClientInstances, config, port));
                             }
                         }
                     })
-                    .option(ChannelOption.SO_BACKLOG, 128)
-                    .childOption(ChannelOption.SO_KEEPALIVE, true)
-                    .childOption(ChannelOption.TCP_NODELAY, true);
+                    .option(ChannelOption.SO_BACKLOG, config.getSoBacklog());
+            config.createChannelTuning().applyToChildren(bootstrap);
 
             ChannelFuture future = bootstrap.bind(port).sync();
-            System.out.println("[TunnelServer] Tunnel Server started on port " + port + " with symmetric encryption");
+            bound(future.channel());
+            if (clientType == ClientType.SERVER) {
+                System.out.println("[TunnelServer] Tunnel Server started on port " + port + " with symmetric encryption" +
+                        (codecGroup != null ? " (" + config.getCodecOffloadThreads() + " codec threads)" : ""));
+            } else {
+                System.out.println("[TunnelServer] Proxy port " + port + " started");
+            }
+            Channel quicChannel = clientType == ClientType.SERVER && config.isQuicEnabled() ? bindQuic(workerGroup, codecGroup) : null;
+            if (clientType == ClientType.SERVER) {
+                // Quiet unless HTTP proxy ports looked something up in the edge cache since the last time
+                workerGroup.scheduleAtFixedRate(EdgeCache.shared()::logStats, 60, 60, TimeUnit.SECONDS);
+                // Quiet while no stream holds memory and nothing was refused
+                workerGroup.scheduleAtFixedRate(ProxyClientHandler.memoryBudget()::logStats, 60, 60, TimeUnit.SECONDS);
+                workerGroup.scheduleAtFixedRate(SpillArena.shared()::logStats, 60, 60, TimeUnit.SECONDS);
+            }
 
             try {
                 future.channel().closeFuture().sync();
@@ -136,6 +243,9 @@ public class TunnelServerApp {
                 System.out.println("[TunnelServer] Server interrupted, shutting down gracefully");
                 future.channel().close();
             }
+            if (quicChannel != null) {
+                quicChannel.close();
+            }
         } catch (InterruptedException e) {
             System.out.println("[TunnelServer] Interrupted during startup");
             Thread.currentThread().interrupt();
@@ -144,7 +254,134 @@ public class TunnelServerApp {
         } finally {
             bossGroup.shutdownGracefully();
             workerGroup.shutdownGracefully();
+            if (codecGroup != null) {
+                codecGroup.shutdownGracefully();
+            }
+            if (clientType == ClientType.SERVER) {
+                EdgeCache.shared().clear();
+            }
+        }
+    }
+
+    /**
+     * Bind the QUIC listener next to the TCP one. A client's first stream is its control stream and gets the
+     * usual tunnel pipeline; the streams the server opens for each tunnel stream carry that stream's frames.
+     */
+    private Channel bindQuic(EventLoopGroup group, EventExecutorGroup codecGroup) throws Exception {
+        int quicPort = config.getEffectiveQuicPort();
+        long heartbeatSeconds = config.getIdleTimeoutSeconds();
+        ChannelHandler dataStreamInitializer = new ChannelInitializer<QuicStreamChannel>() {
+            @Override
+            protected void initChannel(QuicStreamChannel ch) {
+                ch.pipeline().addLast(codecGroup, "encrypt", new SymmetricEncryptionHandler());
+                ch.pipeline().addLast(codecGroup, "decrypt", config.createDecryptionHandler());
+                // A stream left open (e.g. by a quiet UDP session) is closed; late responses fall back to the control stream
+                ch.pipeline().addLast(new IdleStateHandler(0, 0, config.getUdpSessionIdleSeconds(), TimeUnit.SECONDS));
+                ch.pipeline().addLast(new QuicStreamMultiplexer.StreamCloser());
+                ch.pipeline().addLast(new TunnelServerHandler(proxyClientInstances, userClientInstances, serverInstances, config));
+            }
+        };
+        ChannelHandler controlStreamInitializer = new ChannelInitializer<QuicStreamChannel>() {
+            @Override
+            protected void initChannel(QuicStreamChannel ch) {
+                ch.pipeline().addLast(codecGroup, "encrypt", new SymmetricEncryptionHandler());
+                ch.pipeline().addLast(codecGroup, "decrypt", config.createDecryptionHandler());
+                // Per-stream QUIC streams take the place of the stream scheduler and frame batching
+                ch.pipeline().addLast(new QuicStreamMultiplexer(dataStreamInitializer));
+                if (heartbeatSeconds > 0) {
+                    ch.pipeline().addLast(new IdleStateHandler(heartbeatSeconds, heartbeatSeconds, 0, TimeUnit.SECONDS));
+                }
+                ch.pipeline().addLast(new TunnelServerHandler(proxyClientInstances, userClientInstances, serverInstances, config));
+            }
+        };
+        ChannelHandler codec = QuicTransport.serverCodecBuilder(config.getQuicCertFile(), config.getQuicKeyFile(), heartbeatSeconds)
+                .handler(new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void channelActive(ChannelHandlerContext ctx) {
+                        System.out.println("[TunnelServer] QUIC connection from " + ((QuicChannel) ctx.channel()).remoteAddress());
+                    }
+
+                    @Override
+                    public boolean isSharable() {
+                        return true;
+                    }
+                })
+                .streamHandler(controlStreamInitializer)
+                .build();
+
+        Bootstrap bootstrap = new Bootstrap();
+        bootstrap.group(group)
+                .channel(NioDatagramChannel.class)
+                .handler(codec);
+        if (config.getSoRcvbuf() > 0) {
+            bootstrap.option(ChannelOption.SO_RCVBUF, config.getSoRcvbuf());
+        }
+        if (config.getSoSndbuf() > 0) {
+            bootstrap.option(ChannelOption.SO_SNDBUF, config.getSoSndbuf());
         }
+        Channel channel = bootstrap.bind(quicPort).sync().channel();
+        System.out.println("[TunnelServer] QUIC tunnel transport started on UDP port " + quicPort);
+        return channel;
+    }
+
+    /**
+     * Bind a UDP proxy port. One datagram channel serves every source address, so a single event loop is enough.
+     */
+    private void startDatagram() throws InterruptedException {
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        try {
+            Bootstrap bootstrap = new Bootstrap();
+            bootstrap.group(group)
+                    .channel(NioDatagramChannel.class)
+                    // Room for the largest datagram; the default 2KB buffer would truncate bigger ones
+                    .option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(UdpProxyHandler.MAX_DATAGRAM_BYTES))
+                    .handler(new UdpProxyHandler(config, port));
+            if (config.getSoRcvbuf() > 0) {
+                bootstrap.option(ChannelOption.SO_RCVBUF, config.getSoRcvbuf());
+            }
+            if (config.getSoSndbuf() > 0) {
+                bootstrap.option(ChannelOption.SO_SNDBUF, config.getSoSndbuf());
+            }
+
+            ChannelFuture future = bootstrap.bind(port).sync();
+            bound(future.channel());
+            System.out.println("[TunnelServer] UDP proxy port " + port + " started");
+
+            try {
+                future.channel().closeFuture().sync();
+            } catch (InterruptedException e) {
+                System.out.println("[TunnelServer] Server interrupted, shutting down gracefully");
+                future.channel().close();
+            }
+        } catch (InterruptedException e) {
+            System.out.println("[TunnelServer] Interrupted during startup");
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    /**
+     * Apply a reloaded configuration to the running server. Chunk sizing, compression, log level and
+     * the resume window change immediately; settings that need a restart are reported and left as they are.
+     */
+    public void reloadConfig(ServerConfig updated) {
+        try {
+            updated.validate();
+        } catch (IllegalArgumentException e) {
+            System.err.println("[TunnelServer] Ignoring reloaded configuration: " + e.getMessage());
+            return;
+        }
+        ConfigChanges changes = config.reloadFrom(updated);
+        config.applyGlobalSettings();
+        ProxyPortRegistry.shared().setLoadBalancing(config.getLoadBalancing());
+        AdaptiveChunkSizer chunkSizer = config.createChunkSizer();
+        for (ChannelHandlerContext ctx : ServerHandler.getProxyClientContexts().values()) {
+            AdaptiveChunkSizer.reconfigure(ctx.channel(), chunkSizer);
+        }
+        System.out.println("[TunnelServer] Configuration reloaded: " + changes);
     }
 
     public static void main(String[] args) throws InterruptedException {
@@ -184,7 +421,22 @@ public class TunnelServerApp {
             throw new RuntimeException("Failed to initialize encryption key", e);
         }
 
+        try {
+            config.validate();
+        } catch (IllegalArgumentException e) {
+            System.err.println("[TunnelServer] " + e.getMessage());
+            System.exit(1);
+        }
+
         System.out.println("[TunnelServer] " + config);
-        new TunnelServerApp(config.getPort(), ClientType.SERVER, config.getSharedKey()).start();
+        TunnelServerApp app = new TunnelServerApp(config.getPort(), ClientType.SERVER, config);
+        if (args.length > 0 && args[0].endsWith(".toml")) {
+            try {
+                new ConfigWatcher<>(args[0], ServerConfig::loadFromFile, app::reloadConfig, "[TunnelServer]").start();
+            } catch (IOException e) {
+                System.err.println("[TunnelServer] Configuration changes will not be picked up: " + e.getMessage());
+            }
+        }
+        app.start();
     }
 }
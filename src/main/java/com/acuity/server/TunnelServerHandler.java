@@ -1,34 +1,44 @@
 package com.acuity.server;
 
-import io.netty.buffer.Unpooled;
+import com.acuity.common.ChunkDedupHandler;
+import com.acuity.common.SymmetricDecryptionHandler;
+import com.acuity.common.SymmetricEncryptionHandler;
+import com.acuity.config.ServerConfig;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.util.CharsetUtil;
+import io.netty.util.concurrent.GlobalEventExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Map;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Handler for tunnel server connections (main server on port 7000)
+ * Handler for tunnel server connections (main server on port 7000).
+ * Registers tunnel clients for proxy ports and handles the responses they send back.
  */
-public class TunnelServerHandler extends ServerHandler {
+public class TunnelServerHandler extends ProxyClientHandler {
     private static final Logger logger = LoggerFactory.getLogger(TunnelServerHandler.class);
 
-    // Map: groupId:proxyPort -> targetPort
-    private static final Map<String, Integer> proxyTargetPortMap = new ConcurrentHashMap<>();
+    // Routing state of every proxy port, read lock-free by the proxy listeners
+    private static final ProxyPortRegistry registry = ProxyPortRegistry.shared();
 
-    // Map: groupId:proxyPort -> List of proxy client channels (for load balancing)
-    private static final Map<String, List<String>> proxyClientChannelsMap = new ConcurrentHashMap<>();
+    // Map: clientId -> when its last connection dropped; a reconnect with the same clientId within the grace window resumes it
+    private static final Map<String, Long> detachedClients = new ConcurrentHashMap<>();
 
-    // Load balancing round-robin counter per group:port
-    private static final Map<String, AtomicInteger> loadBalanceCounter = new ConcurrentHashMap<>();
+    // Detached client ids are forgotten after this long, whatever the configured grace window
+    private static final long DETACHED_CLIENT_RETENTION_MILLIS = 10 * 60 * 1000;
 
     public TunnelServerHandler(Map<Integer, List<TunnelServerApp>> proxyClientInstances, Map<Integer, TunnelServerApp> userClientInstances, Map<Integer, TunnelServerApp> serverInstances) {
-        super(proxyClientInstances, userClientInstances, serverInstances);
+        this(proxyClientInstances, userClientInstances, serverInstances, new ServerConfig());
+    }
+
+    public TunnelServerHandler(Map<Integer, List<TunnelServerApp>> proxyClientInstances, Map<Integer, TunnelServerApp> userClientInstances, Map<Integer, TunnelServerApp> serverInstances, ServerConfig config) {
+        super(proxyClientInstances, userClientInstances, serverInstances, config);
     }
 
     @Override
@@ -37,6 +47,13 @@ public class TunnelServerHandler extends ServerHandler {
         logger.info("[TunnelServer] [Channel: {}] Tunnel server client connected: {}", serverChannelId, ctx.channel().remoteAddress());
     }
 
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        String serverChannelId = ctx.channel().id().asShortText();
+        release(serverChannelId, config.getResumeGraceMillis());
+        super.channelInactive(ctx);
+    }
+
     @Override
     protected void handleTunnelMessage(ChannelHandlerContext ctx, TunnelMessage tunnelMessage, String serverChannelId) {
         TunnelAction action = tunnelMessage.getAction();
@@ -59,62 +76,143 @@ public class TunnelServerHandler extends ServerHandler {
                 if (parts.length > 2 && !parts[2].trim().isEmpty()) {
                     targetPort = Integer.parseInt(parts[2].trim());
                 }
+                // Connections sharing a clientId are stripes of one logical client
+                String clientId = (parts.length > 3 && !parts[3].trim().isEmpty()) ? parts[3].trim() : serverChannelId;
+                String protocol = (parts.length > 4 && !parts[4].trim().isEmpty()) ? parts[4].trim().toLowerCase() : "tcp";
+                if (!protocol.equals("tcp") && !protocol.equals("udp") && !protocol.equals("http")) {
+                    sendError(ctx, tunnelMessage, serverChannelId, "Unsupported proxy protocol in ADDPROXY payload: " + tunnelMessage.getRawAction());
+                    return;
+                }
+                // Plain frames are only exchanged when the client asks for them and the group is configured as trusted
+                boolean plain = parts.length > 5 && parts[5].trim().equalsIgnoreCase("plain");
+                if (plain && !config.isPlainGroup(groupId)) {
+                    sendError(ctx, tunnelMessage, serverChannelId, "Group " + groupId + " requires encryption; set security.groups." + groupId + " = \"plain\" on the server to allow plain frames");
+                    return;
+                }
+                // Hostnames let many services share the port; users are routed by Host header or TLS SNI
+                List<String> hostnames = new ArrayList<>();
+                if (parts.length > 6) {
+                    for (String hostname : parts[6].split(",")) {
+                        if (!hostname.trim().isEmpty()) {
+                            hostnames.add(hostname.trim().toLowerCase());
+                        }
+                    }
+                }
+                if (!hostnames.isEmpty() && protocol.equals("udp")) {
+                    sendError(ctx, tunnelMessage, serverChannelId, "Hostnames cannot be routed on a UDP proxy port");
+                    return;
+                }
+                // Port 0 asks for a port from the configured range; stripes of one client share the port
+                boolean allocated = proxyPort == 0;
+                if (allocated) {
+                    if (!config.isProxyPortAllocationEnabled()) {
+                        sendError(ctx, tunnelMessage, serverChannelId, "Proxy port 0 needs a proxyPorts range on the server");
+                        return;
+                    }
+                    proxyPort = registry.allocate(clientId, protocol, config.getProxyPortRangeStart(), config.getProxyPortRangeEnd());
+                    if (proxyPort < 0) {
+                        sendError(ctx, tunnelMessage, serverChannelId, "No free proxy port in range " + config.getProxyPortRangeStart() + "-" + config.getProxyPortRangeEnd());
+                        return;
+                    }
+                }
 
-                // Store proxy->target mapping for group (if provided)
-                String mapKey = groupId + ":" + proxyPort;
+                // Add this connection to its logical client, and the client to this group:port combination
+                proxyClientContexts.put(serverChannelId, ctx);
+                boolean bound;
+                try {
+                    bound = registry.register(serverChannelId, proxyPort, groupId, targetPort, clientId, protocol, hostnames);
+                } catch (IllegalArgumentException e) {
+                    proxyClientContexts.remove(serverChannelId);
+                    sendError(ctx, tunnelMessage, serverChannelId, e.getMessage());
+                    return;
+                }
                 if (targetPort > 0) {
-                    proxyTargetPortMap.put(mapKey, targetPort);
                     logger.info("[TunnelServer] [Channel: {}] Registered mapping: groupId={}, proxyPort={}, targetPort={}", serverChannelId, groupId, proxyPort, targetPort);
                 }
+                Long detachedAt = detachedClients.remove(clientId);
+                boolean resumed = detachedAt != null && System.currentTimeMillis() - detachedAt <= config.getResumeGraceMillis();
 
-                // Add this proxy client to the list of clients for this group:port combination
-                proxyClientChannelsMap.computeIfAbsent(mapKey, k -> new CopyOnWriteArrayList<>())
-                    .add(serverChannelId);
-
-                // Initialize load balance counter if not exists
-                loadBalanceCounter.computeIfAbsent(mapKey, k -> new AtomicInteger(0));
-
-                int clientCount = proxyClientChannelsMap.get(mapKey).size();
-                logger.info("[TunnelServer] [Channel: {}] Added proxy client to group. Total clients for {}:{}: {}",
-                    serverChannelId, groupId, proxyPort, clientCount);
+                ProxyPortRegistry.PortRoute route = registry.route(proxyPort);
+                int clientCount = route != null ? route.getClients(groupId).size() : 1;
+                int connectionCount = route != null ? route.getConnections(clientId).size() : 1;
+                logger.info("[TunnelServer] [Channel: {}] Added proxy client {} (connection #{}) to group. Total clients for {}:{}: {}",
+                    serverChannelId, clientId, connectionCount, groupId, proxyPort, clientCount);
 
-                // Start proxy server only if not already running for this port
-                List<TunnelServerApp> appsOnPort = proxyClientInstances.get(proxyPort);
-                boolean proxyAlreadyRunning = appsOnPort != null && !appsOnPort.isEmpty();
-
-                if (!proxyAlreadyRunning) {
-                    TunnelServerApp newApp = new TunnelServerApp(proxyPort, TunnelServerApp.ClientType.PROXY);
+                // Start the listener only for the registration that bound the port
+                if (bound) {
+                    int listenPort = proxyPort;
+                    TunnelServerApp.ClientType listenerType = protocol.equals("udp") ? TunnelServerApp.ClientType.UDP_PROXY : TunnelServerApp.ClientType.PROXY;
+                    TunnelServerApp newApp = new TunnelServerApp(listenPort, listenerType, config);
                     new Thread(() -> {
                         try {
                             newApp.start();
                         } catch (InterruptedException e) {
-                            logger.error("[TunnelServer] Failed to start proxy server on port {}", proxyPort, e);
+                            logger.error("[TunnelServer] Failed to start proxy server on port {}", listenPort, e);
                         }
                     }).start();
                 }
 
-                String response = clientCount == 1
-                    ? "Proxy server started on port " + proxyPort + " (groupId=" + groupId + ", client #1)"
-                    : "Proxy client #" + clientCount + " added to group " + groupId + " on port " + proxyPort;
+                String response;
+                if (resumed) {
+                    response = "Proxy client " + clientId + " resumed on port " + proxyPort + " after " + (System.currentTimeMillis() - detachedAt) + "ms";
+                } else if (connectionCount > 1) {
+                    response = "Connection #" + connectionCount + " joined proxy client " + clientId + " on port " + proxyPort;
+                } else if (clientCount == 1) {
+                    response = "Proxy server started on port " + proxyPort + " (groupId=" + groupId + ", protocol=" + protocol + ", client #1)";
+                } else {
+                    response = "Proxy client #" + clientCount + " added to group " + groupId + " on port " + proxyPort;
+                }
+
+                if (!hostnames.isEmpty()) {
+                    response += " for " + String.join(", ", hostnames);
+                }
+                if (plain) {
+                    // The client switches to plain frames once it reads the response
+                    SymmetricDecryptionHandler.acceptPlain(ctx.channel());
+                    response += " with plain frames";
+                }
 
                 // Send response back
+                // An allocated port is named in the action so the client can ask for it again on reconnect
                 TunnelMessage responseMsg = new TunnelMessage(
                     tunnelMessage.getUserChannelId(),
-                    TunnelAction.RESPONSE,
+                    allocated ? TunnelAction.RESPONSE.toString(String.valueOf(proxyPort)) : TunnelAction.RESPONSE.toString(),
                     response.getBytes(CharsetUtil.UTF_8)
                 );
-                ctx.writeAndFlush(Unpooled.copiedBuffer(responseMsg.toBytes()));
+                ctx.writeAndFlush(responseMsg.toByteBuf(ctx.alloc()));
+                if (plain) {
+                    SymmetricEncryptionHandler.sendPlain(ctx.channel());
+                } else {
+                    // Plain frames are never compressed, so only encrypted connections get the group's dictionary
+                    GroupDictionaries.shared().attach(ctx.channel(), groupId, config);
+                }
 
                 logger.info("[TunnelServer] [Channel: {}] {}", serverChannelId, response);
             } catch (NumberFormatException e) {
-                String errorMsg = "Invalid ADDPROXY payload: " + tunnelMessage.getRawAction();
-                TunnelMessage errorResponse = new TunnelMessage(
-                    tunnelMessage.getUserChannelId(),
-                    TunnelAction.ERROR,
-                    errorMsg.getBytes(CharsetUtil.UTF_8)
-                );
-                ctx.writeAndFlush(Unpooled.copiedBuffer(errorResponse.toBytes()));
-                logger.error("[TunnelServer] [Channel: {}] {}", serverChannelId, errorMsg);
+                sendError(ctx, tunnelMessage, serverChannelId, "Invalid ADDPROXY payload: " + tunnelMessage.getRawAction());
+            }
+        } else if (action == TunnelAction.DICTIONARY) {
+            // The client installed a dictionary we sent
+            String rawAction = tunnelMessage.getRawAction();
+            try {
+                GroupDictionaries.shared().acknowledged(ctx.channel(), Integer.parseInt(rawAction.substring(rawAction.indexOf(':') + 1)));
+            } catch (NumberFormatException e) {
+                logger.warn("[TunnelServer] [Channel: {}] Invalid DICTIONARY action: {}", serverChannelId, rawAction);
+            }
+        } else if (action == TunnelAction.DEDUP) {
+            // The client offers chunk deduplication; both sides use the smaller store
+            String rawAction = tunnelMessage.getRawAction();
+            try {
+                int storeBytes = Math.min(Integer.parseInt(rawAction.substring(rawAction.indexOf(':') + 1)), config.getDedupStoreBytes());
+                if (storeBytes < ChunkDedupHandler.MIN_STORE_BYTES || !ChunkDedupHandler.start(ctx.channel(), storeBytes)) {
+                    logger.info("[TunnelServer] [Channel: {}] Declined dedup offer {}", serverChannelId, rawAction);
+                    return;
+                }
+                // Small control frames are never encoded, so the client reads this before our first encoded frame
+                ctx.writeAndFlush(new TunnelMessage(null, TunnelAction.DEDUP.toString(String.valueOf(storeBytes)), new byte[0]).toByteBuf(ctx.alloc()));
+                logger.info("[TunnelServer] [Channel: {}] Deduplicating frames with {} byte chunk stores", serverChannelId, storeBytes);
+            } catch (NumberFormatException e) {
+                logger.warn("[TunnelServer] [Channel: {}] Invalid DEDUP action: {}", serverChannelId, rawAction);
             }
         } else {
             // Delegate to parent for standard actions (FORWARD, PING, EXIT, etc.)
@@ -122,58 +220,200 @@ public class TunnelServerHandler extends ServerHandler {
         }
     }
 
+    private static void sendError(ChannelHandlerContext ctx, TunnelMessage tunnelMessage, String serverChannelId, String errorMsg) {
+        TunnelMessage errorResponse = new TunnelMessage(
+            tunnelMessage.getUserChannelId(),
+            TunnelAction.ERROR,
+            errorMsg.getBytes(CharsetUtil.UTF_8)
+        );
+        ctx.writeAndFlush(errorResponse.toByteBuf(ctx.alloc()));
+        logger.error("[TunnelServer] [Channel: {}] {}", serverChannelId, errorMsg);
+    }
+
     public static Integer getTargetPortForProxy(String groupId, int proxyPort) {
         String resolvedGroupId = (groupId == null || groupId.isEmpty()) ? "default" : groupId;
-        return proxyTargetPortMap.get(resolvedGroupId + ":" + proxyPort);
+        ProxyPortRegistry.PortRoute route = registry.route(proxyPort);
+        return route != null ? route.getTargetPort(resolvedGroupId) : null;
     }
 
     /**
-     * Get all proxy client channels for a specific group and proxy port
+     * Get all logical proxy clients (by clientId) for a specific group and proxy port
      */
     public static List<String> getProxyClientChannels(String groupId, int proxyPort) {
         String resolvedGroupId = (groupId == null || groupId.isEmpty()) ? "default" : groupId;
-        String mapKey = resolvedGroupId + ":" + proxyPort;
-        return proxyClientChannelsMap.getOrDefault(mapKey, new CopyOnWriteArrayList<>());
+        ProxyPortRegistry.PortRoute route = registry.route(proxyPort);
+        return route != null ? route.getClients(resolvedGroupId) : Collections.emptyList();
+    }
+
+    /**
+     * Get the tunnel channels striped for a logical proxy client
+     */
+    public static List<String> getClientConnections(String clientId) {
+        for (ProxyPortRegistry.PortRoute route : registry.routes()) {
+            List<String> connections = route.getConnections(clientId);
+            if (!connections.isEmpty()) {
+                return connections;
+            }
+        }
+        return Collections.emptyList();
     }
 
     /**
-     * Get the next proxy client channel using round-robin load balancing
+     * Get a channel of the next proxy client, picked by the configured load-balancing strategy
      */
     public static String getNextProxyClientChannel(String groupId, int proxyPort) {
         String resolvedGroupId = (groupId == null || groupId.isEmpty()) ? "default" : groupId;
-        String mapKey = resolvedGroupId + ":" + proxyPort;
+        ProxyPortRegistry.PortRoute route = registry.route(proxyPort);
+        if (route == null) {
+            return null;
+        }
+        List<String> clients = route.getClients(resolvedGroupId);
+        if (clients.isEmpty()) {
+            return null;
+        }
+
+        List<String> connections = route.getConnections(clients.get(registry.pick(route, null, clients.size())));
+        return connections.isEmpty() ? null : connections.get(0);
+    }
+
+    /**
+     * Pick the tunnel channel that carries a stream arriving on a proxy port.
+     * Proxy clients are chosen by the configured load-balancing strategy; within a client the stream is pinned to one of its
+     * striped connections by stream key, so all frames of a stream stay in order on one connection.
+     */
+    public static ChannelHandlerContext selectTunnelContext(int proxyPort, String streamKey) {
+        return selectTunnelContext(proxyPort, null, streamKey);
+    }
 
-        List<String> channels = proxyClientChannelsMap.get(mapKey);
-        if (channels == null || channels.isEmpty()) {
+    /**
+     * Pick the tunnel channel for a stream on a port shared by hostname; only clients serving the
+     * user's hostname are considered
+     *
+     * @param host hostname the user asked for, "" if it sent none, or null to consider every client
+     */
+    public static ChannelHandlerContext selectTunnelContext(int proxyPort, String host, String streamKey) {
+        ProxyPortRegistry.PortRoute route = registry.route(proxyPort);
+        if (route == null || route.isIdle()) {
             return null;
         }
 
-        // Round-robin selection
-        AtomicInteger counter = loadBalanceCounter.get(mapKey);
-        if (counter == null) {
-            counter = new AtomicInteger(0);
-            loadBalanceCounter.put(mapKey, counter);
+        List<String> clients = host != null ? route.getClientsForHost(host) : route.getClients();
+        if (clients.isEmpty()) {
+            return null;
         }
+        int first = registry.pick(route, streamKey, clients.size());
+        for (int i = 0; i < clients.size(); i++) {
+            List<String> connections = route.getConnections(clients.get((first + i) % clients.size()));
+            if (connections.isEmpty()) {
+                continue;
+            }
+            int stripe = Math.floorMod(streamKey.hashCode(), connections.size());
+            for (int j = 0; j < connections.size(); j++) {
+                ChannelHandlerContext ctx = proxyClientContexts.get(connections.get((stripe + j) % connections.size()));
+                if (ctx != null && ctx.channel().isActive()) {
+                    return ctx;
+                }
+            }
+        }
+        return null;
+    }
 
-        int index = counter.getAndIncrement() % channels.size();
-        return channels.get(index);
+    /**
+     * True if the clients of a proxy port speak HTTP/1.1 and keep per-user-connection state, so each
+     * user connection has to stay with one logical client
+     */
+    public static boolean isHttpPort(int proxyPort) {
+        ProxyPortRegistry.PortRoute route = registry.route(proxyPort);
+        return route != null && "http".equals(route.getProtocol());
+    }
+
+    /**
+     * True if groups on a proxy port named hostnames, so each user connection is routed by the
+     * Host header or TLS SNI it opens with
+     */
+    public static boolean isVirtualHostPort(int proxyPort) {
+        ProxyPortRegistry.PortRoute route = registry.route(proxyPort);
+        return route != null && route.hasHostnames();
     }
 
     /**
-     * Remove proxy client channel when it disconnects
+     * True if some client of a proxy port serves the hostname, directly or as the port's default
+     */
+    static boolean servesHost(int proxyPort, String host) {
+        ProxyPortRegistry.PortRoute route = registry.route(proxyPort);
+        return route != null && !route.getClientsForHost(host).isEmpty();
+    }
+
+    /**
+     * Logical client a tunnel channel belongs to, or null if it is not registered
+     */
+    static String clientIdOf(String channelId) {
+        ProxyPortRegistry.Registration registration = registry.registration(channelId);
+        return registration != null ? registration.getClientId() : null;
+    }
+
+    /**
+     * Pick a live connection of one logical client of a proxy port, striped by key
+     */
+    public static ChannelHandlerContext selectClientContext(int proxyPort, String clientId, String key) {
+        ProxyPortRegistry.PortRoute route = registry.route(proxyPort);
+        List<String> connections = route != null ? route.getConnections(clientId) : Collections.emptyList();
+        int stripe = Math.floorMod(key.hashCode(), Math.max(1, connections.size()));
+        for (int j = 0; j < connections.size(); j++) {
+            ChannelHandlerContext ctx = proxyClientContexts.get(connections.get((stripe + j) % connections.size()));
+            if (ctx != null && ctx.channel().isActive()) {
+                return ctx;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remove proxy client channel when it disconnects; a port left without clients is unbound right away
      */
     public static void removeProxyClientChannel(String groupId, int proxyPort, String channelId) {
         String resolvedGroupId = (groupId == null || groupId.isEmpty()) ? "default" : groupId;
-        String mapKey = resolvedGroupId + ":" + proxyPort;
-        List<String> channels = proxyClientChannelsMap.get(mapKey);
-        if (channels != null) {
-            channels.remove(channelId);
-            logger.info("[TunnelServer] Removed proxy client {} from group {}. Remaining clients: {}",
-                channelId, mapKey, channels.size());
-            if (channels.isEmpty()) {
-                proxyClientChannelsMap.remove(mapKey);
-                loadBalanceCounter.remove(mapKey);
-            }
+        ProxyPortRegistry.Registration registration = registry.registration(channelId);
+        if (registration != null && registration.getMapKey().equals(resolvedGroupId + ":" + proxyPort)) {
+            release(channelId, 0);
+        }
+    }
+
+    /**
+     * groupId:proxyPort a tunnel channel is registered for, or null if it is not registered
+     */
+    static String registrationKey(String channelId) {
+        ProxyPortRegistry.Registration registration = registry.registration(channelId);
+        return registration != null ? registration.getMapKey() : null;
+    }
+
+    private static void release(String channelId, long graceMillis) {
+        ProxyPortRegistry.Registration registration = registry.unregister(channelId);
+        if (registration == null) {
+            return;
+        }
+        int proxyPort = registration.getProxyPort();
+        ProxyPortRegistry.PortRoute route = registry.route(proxyPort);
+        int remainingConnections = route != null ? route.getConnections(registration.getClientId()).size() : 0;
+        logger.info("[TunnelServer] Removed connection {} of proxy client {}. Remaining connections: {}",
+            channelId, registration.getClientId(), remainingConnections);
+        if (remainingConnections > 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        detachedClients.values().removeIf(detachedAt -> now - detachedAt > DETACHED_CLIENT_RETENTION_MILLIS);
+        detachedClients.put(registration.getClientId(), now);
+        logger.info("[TunnelServer] Removed proxy client {} from group {}. Remaining clients: {}",
+            registration.getClientId(), registration.getMapKey(), route != null ? route.getClients(registration.getGroupId()).size() : 0);
+
+        if (route != null && route.isIdle()) {
+            // Keep the port through the resume window so a reconnecting client finds its users still attached
+            GlobalEventExecutor.INSTANCE.schedule(() -> {
+                if (registry.unbindIfIdle(proxyPort)) {
+                    logger.info("[TunnelServer] Last client of proxy port {} left, unbinding it", proxyPort);
+                    TunnelServerApp.stopProxyPort(proxyPort);
+                }
+            }, graceMillis, TimeUnit.MILLISECONDS);
         }
     }
 }
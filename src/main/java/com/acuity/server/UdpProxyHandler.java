@@ -0,0 +1,149 @@
+package com.acuity.server;
+
+import com.acuity.common.StreamSchedulingHandler;
+import com.acuity.common.StreamSchedulingHandler.Priority;
+import com.acuity.config.ServerConfig;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Handler for a UDP proxy port. Each datagram source address is a lightweight session whose
+ * datagrams travel over the tunnel as single DATAGRAM frames, with no chunking or reassembly.
+ * Sessions expire after the configured idle time without traffic in either direction.
+ */
+public class UdpProxyHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+    // Sessions of all UDP proxy ports: sessionId -> session, for routing datagrams coming back from proxy clients
+    private static final Map<String, UdpSession> sessions = new ConcurrentHashMap<>();
+
+    // Largest UDP payload, so every datagram fits in one read and one DATAGRAM frame
+    public static final int MAX_DATAGRAM_BYTES = 65535;
+
+    private static final AtomicLong sessionCounter = new AtomicLong();
+
+    // Idle sessions are looked for at this interval
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    private final ServerConfig config;
+    private final int proxyPort;
+
+    // Sessions of this port by source address (event loop only)
+    private final Map<InetSocketAddress, UdpSession> sessionsBySender = new HashMap<>();
+    private ScheduledFuture<?> sweeper;
+
+    public UdpProxyHandler(ServerConfig config, int proxyPort) {
+        this.config = config;
+        this.proxyPort = proxyPort;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) {
+        sweeper = ctx.executor().scheduleAtFixedRate(this::expireIdleSessions,
+            SWEEP_INTERVAL_MILLIS, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        ctx.fireChannelActive();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        if (sweeper != null) {
+            sweeper.cancel(false);
+        }
+        for (UdpSession session : sessionsBySender.values()) {
+            sessions.remove(session.sessionId);
+        }
+        sessionsBySender.clear();
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
+        InetSocketAddress sender = packet.sender();
+        UdpSession session = sessionsBySender.get(sender);
+        if (session == null) {
+            session = new UdpSession("udp-" + proxyPort + "-" + sessionCounter.incrementAndGet(), sender, ctx.channel());
+            sessionsBySender.put(sender, session);
+            sessions.put(session.sessionId, session);
+            System.out.println("[TunnelServer] [UDP " + proxyPort + "] Session " + session.sessionId + " opened for " + sender);
+        }
+        session.lastActiveNanos = System.nanoTime();
+
+        // A session stays on one tunnel connection while it is up, like the streams of a TCP user
+        ChannelHandlerContext tunnelCtx = session.tunnelCtx;
+        if (tunnelCtx == null || !tunnelCtx.channel().isActive()) {
+            tunnelCtx = TunnelServerHandler.selectTunnelContext(proxyPort, session.sessionId);
+            session.tunnelCtx = tunnelCtx;
+        }
+        if (tunnelCtx == null) {
+            System.out.println("[TunnelServer] [UDP " + proxyPort + "] No proxy channels available, dropping datagram from " + sender);
+            return;
+        }
+
+        tunnelCtx.writeAndFlush(StreamSchedulingHandler.frame(tunnelCtx.channel(), session.sessionId + ":0", Priority.INTERACTIVE,
+            TunnelMessage.encode(tunnelCtx.alloc(), session.sessionId, "0", TunnelAction.DATAGRAM.toString(), packet.content().retain())));
+    }
+
+    /**
+     * Send a datagram that came back through the tunnel to the source address of its session
+     */
+    public static void deliver(String sessionId, byte[] data) {
+        UdpSession session = sessions.get(sessionId);
+        if (session == null) {
+            System.out.println("[TunnelServer] UDP session " + sessionId + " expired, dropping datagram");
+            return;
+        }
+        session.lastActiveNanos = System.nanoTime();
+        session.channel.writeAndFlush(new DatagramPacket(Unpooled.wrappedBuffer(data), session.sender));
+    }
+
+    private void expireIdleSessions() {
+        long idleNanos = TimeUnit.SECONDS.toNanos(config.getUdpSessionIdleSeconds());
+        long now = System.nanoTime();
+        Iterator<UdpSession> it = sessionsBySender.values().iterator();
+        while (it.hasNext()) {
+            UdpSession session = it.next();
+            if (now - session.lastActiveNanos > idleNanos) {
+                it.remove();
+                sessions.remove(session.sessionId);
+                System.out.println("[TunnelServer] [UDP " + proxyPort + "] Session " + session.sessionId + " expired");
+            }
+        }
+    }
+
+    /**
+     * Number of open UDP sessions across all ports
+     */
+    public static int getSessionCount() {
+        return sessions.size();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        // A datagram socket stays up after a send error (e.g. ICMP port unreachable)
+        System.err.println("[TunnelServer] [UDP " + proxyPort + "] " + cause.getMessage());
+    }
+
+    private static final class UdpSession {
+        final String sessionId;
+        final InetSocketAddress sender;
+        final Channel channel;
+        ChannelHandlerContext tunnelCtx;
+        volatile long lastActiveNanos;
+
+        UdpSession(String sessionId, InetSocketAddress sender, Channel channel) {
+            this.sessionId = sessionId;
+            this.sender = sender;
+            this.channel = channel;
+        }
+    }
+}
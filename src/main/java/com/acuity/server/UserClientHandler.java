@@ -1,30 +1,87 @@
 package com.acuity.server;
 
+import com.acuity.common.AdaptiveChunkSizer;
+import com.acuity.common.StreamSchedulingHandler;
+import com.acuity.common.StreamSchedulingHandler.Priority;
+import com.acuity.config.RateLimits;
+import com.acuity.config.ServerConfig;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.util.CharsetUtil;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Handler for user client connections with streaming data support across multiple proxy channels
  */
 public class UserClientHandler extends ServerHandler {
-    // Streaming configuration
-    private static final int CHUNK_SIZE = 8192; // 8KB chunks for streaming
-
     // Stream ID counter per user channel for generating unique stream IDs
     private static final Map<String, AtomicInteger> streamIdCounters = new ConcurrentHashMap<>();
 
     // Load balancing counter for distributing streams across proxy clients
     private static final AtomicInteger proxyRoundRobinCounter = new AtomicInteger(0);
 
+    // Rate-limited responses are written to the user in slices of this size as budget allows
+    private static final int SHAPED_SLICE_BYTES = 64 * 1024;
+
+    // How long a user over the memory budget is not read before it is checked again
+    private static final long MEMORY_PAUSE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    // Answer to a plain HTTP user asking for a hostname no proxy client of a shared port serves
+    private static final String MISDIRECTED_RESPONSE = "HTTP/1.1 421 Misdirected Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+
+    // Chunk sizing settings; each proxy channel gets its own sizer built from this template
+    private final AdaptiveChunkSizer chunkSizerTemplate;
+
+    // Proxy port this handler serves, or -1 to use any proxy channel
+    private final int proxyPort;
+
+    // Tunnel channels carrying this user's streams, watched so in-flight streams are noticed when one closes
+    private final Map<Channel, ChannelFutureListener> tunnelCloseListeners = new HashMap<>();
+
+    // Streams still waiting for a response: streamId -> tunnel channel the request went out on.
+    // Responses may come back on any of the client's connections, so this is updated from other event loops.
+    private final Map<String, Channel> pendingStreams = new ConcurrentHashMap<>();
+
+    // Ports shared by hostname: the user's first bytes, held until they name the host
+    private ByteBuf sniffed;
+    // Hostname the user asked for on a port shared by hostname, "" if none; null routes to any client
+    private String virtualHost;
+    // HTTP ports only: the logical proxy client holding this user's session, which every stream goes to
+    private String pinnedClientId;
+    // HTTP ports with the edge cache enabled: frames requests and responses so the cache can answer some
+    private HttpEdgeSession edgeSession;
+    // Tunnel channel of the latest stream, whose group's rate limits apply to answers from the edge cache
+    private Channel lastTunnelChannel;
+
+    // Rate-limited response slices scheduled but not yet written; later responses queue behind them
+    private final AtomicInteger pacedWrites = new AtomicInteger();
+    // When the last paced slice is due, so slices of later responses never overtake it (user event loop only)
+    private long lastPacedWriteNanos;
+
     public UserClientHandler(Map<Integer, TunnelServerApp> userClientInstances) {
-        super(null, userClientInstances, null);
+        this(userClientInstances, new ServerConfig());
+    }
+
+    public UserClientHandler(Map<Integer, TunnelServerApp> userClientInstances, ServerConfig config) {
+        this(userClientInstances, config, -1);
+    }
+
+    public UserClientHandler(Map<Integer, TunnelServerApp> userClientInstances, ServerConfig config, int proxyPort) {
+        super(null, userClientInstances, null, config);
+        this.chunkSizerTemplate = config.createChunkSizer();
+        this.proxyPort = proxyPort;
     }
 
     @Override
@@ -32,6 +89,12 @@ public class UserClientHandler extends ServerHandler {
         String channelId = ctx.channel().id().asShortText();
         userClientContexts.put(channelId, ctx);
         streamIdCounters.put(channelId, new AtomicInteger(1)); // Start stream IDs from 1
+        if (proxyPort > 0 && config.isEdgeCacheEnabled() && TunnelServerHandler.isHttpPort(proxyPort)) {
+            edgeSession = new HttpEdgeSession(this, ctx, config);
+        }
+        if (proxyPort > 0 && TunnelServerHandler.isVirtualHostPort(proxyPort)) {
+            sniffed = ctx.alloc().buffer();
+        }
         System.out.println("[TunnelServer] [Channel: " + channelId + "] User client connected: " + ctx.channel().remoteAddress());
     }
 
@@ -44,6 +107,29 @@ public class UserClientHandler extends ServerHandler {
 
         // Remove stream ID counter
         streamIdCounters.remove(userChannelId);
+        BandwidthShaper.UPLOAD.release(userChannelId);
+        BandwidthShaper.DOWNLOAD.release(userChannelId);
+
+        for (Map.Entry<Channel, ChannelFutureListener> entry : tunnelCloseListeners.entrySet()) {
+            entry.getKey().closeFuture().removeListener(entry.getValue());
+        }
+        tunnelCloseListeners.clear();
+        pendingStreams.clear();
+        if (edgeSession != null) {
+            edgeSession.release();
+        }
+        if (sniffed != null) {
+            sniffed.release();
+            sniffed = null;
+        }
+
+        if (pinnedClientId != null) {
+            // Let the proxy client close the target connection it kept open for this user
+            ChannelHandlerContext proxyCtx = TunnelServerHandler.selectClientContext(proxyPort, pinnedClientId, userChannelId);
+            if (proxyCtx != null) {
+                proxyCtx.writeAndFlush(new TunnelMessage(userChannelId, TunnelAction.EXIT, new byte[0]).toByteBuf(proxyCtx.alloc()));
+            }
+        }
 
         // Call parent cleanup (removes from userClientContexts)
         super.channelInactive(ctx);
@@ -53,20 +139,55 @@ public class UserClientHandler extends ServerHandler {
 
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
-        ByteBuf byteBuf = (ByteBuf) msg;
-        byte[] data = new byte[byteBuf.readableBytes()];
-        byteBuf.readBytes(data);
-        String userChannelId = ctx.channel().id().asShortText();
-
-        // Get all available proxy client contexts
-        List<String> proxyChannelIds = new ArrayList<>(proxyClientContexts.keySet());
-
-        if (proxyChannelIds.isEmpty()) {
-            System.out.println("[TunnelServer] [Channel: " + userChannelId + "] No proxy channels available");
-            ctx.writeAndFlush(Unpooled.copiedBuffer("Error: No proxy channels available\n", CharsetUtil.UTF_8));
-            byteBuf.release();
+        ByteBuf data = (ByteBuf) msg;
+        if (sniffed != null) {
+            data = routeByHost(ctx, data);
+            if (data == null) {
+                return;
+            }
+        }
+        if (edgeSession != null) {
+            // Only requests the edge cache cannot answer are dispatched
+            edgeSession.requestBytes(data);
             return;
         }
+        dispatch(ctx, data);
+    }
+
+    /**
+     * Hold the user's bytes until they name a hostname, then pick the group serving it. Returns the
+     * bytes held so far once the host is known, or null while more are needed or the user was turned away.
+     */
+    private ByteBuf routeByHost(ChannelHandlerContext ctx, ByteBuf data) {
+        sniffed.writeBytes(data);
+        data.release();
+        String host = VirtualHostSniffer.sniff(sniffed);
+        if (host == null) {
+            return null;
+        }
+        ByteBuf held = sniffed;
+        sniffed = null;
+        String userChannelId = ctx.channel().id().asShortText();
+        if (!TunnelServerHandler.servesHost(proxyPort, host)) {
+            System.out.println("[TunnelServer] [Channel: " + userChannelId + "] No proxy client serves host '" + host + "' on port " + proxyPort + ", closing");
+            if (VirtualHostSniffer.isTls(held)) {
+                ctx.close();
+            } else {
+                ctx.writeAndFlush(Unpooled.copiedBuffer(MISDIRECTED_RESPONSE, CharsetUtil.US_ASCII)).addListener(ChannelFutureListener.CLOSE);
+            }
+            held.release();
+            return null;
+        }
+        virtualHost = host;
+        System.out.println("[TunnelServer] [Channel: " + userChannelId + "] Routing host '" + host + "' on port " + proxyPort);
+        return held;
+    }
+
+    /**
+     * Send bytes from the user to a proxy client as a new stream; takes over the buffer
+     */
+    void dispatch(ChannelHandlerContext ctx, ByteBuf data) {
+        String userChannelId = ctx.channel().id().asShortText();
 
         // Generate a new stream ID for this transfer
         AtomicInteger counter = streamIdCounters.get(userChannelId);
@@ -76,78 +197,342 @@ public class UserClientHandler extends ServerHandler {
         }
         String streamId = String.valueOf(counter.getAndIncrement());
 
-        // Select proxy channel using round-robin load balancing
-        int selectedIndex = Math.abs(proxyRoundRobinCounter.getAndIncrement()) % proxyChannelIds.size();
-        String selectedProxyChannelId = proxyChannelIds.get(selectedIndex);
-        ChannelHandlerContext proxyCtx = proxyClientContexts.get(selectedProxyChannelId);
+        ChannelHandlerContext proxyCtx;
+        if (proxyPort > 0 && TunnelServerHandler.isHttpPort(proxyPort)) {
+            // The client frames HTTP messages per user connection, so all streams go to the same client
+            proxyCtx = pinnedClientId == null
+                ? TunnelServerHandler.selectTunnelContext(proxyPort, virtualHost, userChannelId)
+                : TunnelServerHandler.selectClientContext(proxyPort, pinnedClientId, userChannelId);
+            if (proxyCtx == null) {
+                System.out.println("[TunnelServer] [Channel: " + userChannelId + "] Proxy client of this HTTP connection is gone, closing it");
+                data.release();
+                ctx.close();
+                return;
+            }
+            if (pinnedClientId == null) {
+                pinnedClientId = TunnelServerHandler.clientIdOf(proxyCtx.channel().id().asShortText());
+            }
+        } else if (proxyPort > 0) {
+            // Spread across the port's proxy clients by the load-balancing strategy, pinned to one of the client's striped connections
+            proxyCtx = TunnelServerHandler.selectTunnelContext(proxyPort, virtualHost, userChannelId + ":" + streamId);
+            if (proxyCtx == null) {
+                System.out.println("[TunnelServer] [Channel: " + userChannelId + "] No proxy channels available for port " + proxyPort);
+                ctx.writeAndFlush(Unpooled.copiedBuffer("Error: No proxy channels available\n", CharsetUtil.UTF_8));
+                data.release();
+                return;
+            }
+        } else {
+            // Get all available proxy client contexts
+            List<String> proxyChannelIds = new ArrayList<>(proxyClientContexts.keySet());
+
+            if (proxyChannelIds.isEmpty()) {
+                System.out.println("[TunnelServer] [Channel: " + userChannelId + "] No proxy channels available");
+                ctx.writeAndFlush(Unpooled.copiedBuffer("Error: No proxy channels available\n", CharsetUtil.UTF_8));
+                data.release();
+                return;
+            }
 
-        // Validate selected proxy
-        if (proxyCtx == null || !proxyCtx.channel().isActive()) {
-            System.out.println("[TunnelServer] [Channel: " + userChannelId + "] Selected proxy channel " + selectedProxyChannelId + " is not active");
-            proxyClientContexts.remove(selectedProxyChannelId);
-            ctx.writeAndFlush(Unpooled.copiedBuffer("Error: Proxy channel not available\n", CharsetUtil.UTF_8));
-            byteBuf.release();
+            // Select proxy channel using round-robin load balancing
+            int selectedIndex = Math.abs(proxyRoundRobinCounter.getAndIncrement()) % proxyChannelIds.size();
+            String selectedProxyChannelId = proxyChannelIds.get(selectedIndex);
+            proxyCtx = proxyClientContexts.get(selectedProxyChannelId);
+
+            // Validate selected proxy
+            if (proxyCtx == null || !proxyCtx.channel().isActive()) {
+                System.out.println("[TunnelServer] [Channel: " + userChannelId + "] Selected proxy channel " + selectedProxyChannelId + " is not active");
+                proxyClientContexts.remove(selectedProxyChannelId);
+                ctx.writeAndFlush(Unpooled.copiedBuffer("Error: Proxy channel not available\n", CharsetUtil.UTF_8));
+                data.release();
+                return;
+            }
+        }
+
+        System.out.println("[TunnelServer] [Channel: " + userChannelId + "] Stream " + streamId + " -> Proxy: " + proxyCtx.channel().id().asShortText() + " (load balanced)");
+
+        // If this tunnel channel drops, the response can still arrive once the proxy client reconnects
+        pendingStreams.put(streamId, proxyCtx.channel());
+        lastTunnelChannel = proxyCtx.channel();
+        tunnelCloseListeners.computeIfAbsent(proxyCtx.channel(), tunnelChannel -> {
+            ChannelFutureListener listener = future -> ctx.executor().execute(() -> tunnelClosed(ctx, tunnelChannel));
+            tunnelChannel.closeFuture().addListener(listener);
+            return listener;
+        });
+
+        int dataLength = data.readableBytes();
+        try {
+            // Stream the data in chunks if it's large
+            streamDataToProxy(userChannelId, streamId, data, proxyCtx);
+        } finally {
+            // Chunks hold their own references to the buffer
+            data.release();
+        }
+
+        String key = shapingKey(proxyCtx.channel());
+        long delayNanos = BandwidthShaper.UPLOAD.reserve(config.getRateLimits(), key, userChannelId, dataLength);
+        if (ProxyClientHandler.memoryBudget().isExhausted(config.getMemoryLimits(), key.substring(0, key.lastIndexOf(':')), userChannelId)) {
+            // Buffered data of this user, its group or the whole server is at the memory budget; take no more until it drains
+            delayNanos = Math.max(delayNanos, MEMORY_PAUSE_NANOS);
+        }
+        if (delayNanos > 0) {
+            pauseReading(ctx, delayNanos);
+        }
+    }
+
+    /**
+     * Stop reading from a user that is over its upload budget until the budget recovers.
+     * The excess stays in the user's socket buffer and TCP window instead of queueing in the tunnel.
+     */
+    private void pauseReading(ChannelHandlerContext ctx, long delayNanos) {
+        if (!ctx.channel().config().isAutoRead()) {
+            // Already paused; the extra debt is in the bucket and lengthens the next pause
             return;
         }
+        ctx.channel().config().setAutoRead(false);
+        ctx.executor().schedule(() -> {
+            ctx.channel().config().setAutoRead(true);
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
 
-        System.out.println("[TunnelServer] [Channel: " + userChannelId + "] Stream " + streamId + " -> Proxy: " + selectedProxyChannelId + " (load balanced)");
+    /**
+     * A response from a proxy client for this user; release runs once it is written, or handed to the edge session
+     */
+    void deliver(ChannelHandlerContext ctx, byte[] data, Channel tunnelChannel, Runnable release) {
+        if (edgeSession != null) {
+            // Paired with its request on the user's event loop, where the edge session lives
+            ctx.executor().execute(() -> {
+                edgeSession.responseBytes(data, tunnelChannel);
+                release.run();
+            });
+            return;
+        }
+        write(ctx, data, tunnelChannel, release);
+    }
 
-        // Stream the data in chunks if it's large
-        streamDataToProxy(userChannelId, streamId, data, proxyCtx);
+    /**
+     * A response from a proxy client that was partly spilled to disk: data in memory, then the spilled bytes.
+     * The spilled bytes go out as file regions, so they are not read back into the heap. Release runs once
+     * the last of them is written, and frees the spilled blocks.
+     */
+    void deliver(ChannelHandlerContext ctx, byte[] data, SpillBuffer spilled, Channel tunnelChannel, Runnable release) {
+        if (edgeSession != null) {
+            // The edge cache parses and stores whole responses
+            deliver(ctx, spilled.toByteArray(data), tunnelChannel, release);
+            return;
+        }
+        List<SpillBuffer.Extent> extents = spilled.extents();
+        if (config.getRateLimits().isUnlimited() && pacedWrites.get() == 0) {
+            ctx.write(Unpooled.wrappedBuffer(data));
+            for (SpillBuffer.Extent extent : extents) {
+                ctx.write(extent.region(0, extent.length()));
+            }
+            ctx.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(written -> release.run());
+            return;
+        }
+        String key = shapingKey(tunnelChannel);
+        ByteBuf head = Unpooled.wrappedBuffer(data);
+        writePaced(ctx, key, data.length, (offset, length) -> head.retainedSlice((int) offset, length),
+            extents.isEmpty() ? () -> { head.release(); release.run(); } : head::release);
+        for (int i = 0; i < extents.size(); i++) {
+            SpillBuffer.Extent extent = extents.get(i);
+            // Slices are written in order, so everything is written once the last one is
+            writePaced(ctx, key, extent.length(), extent::region, i == extents.size() - 1 ? release : () -> { });
+        }
+    }
+
+    void write(ChannelHandlerContext ctx, byte[] data, Channel tunnelChannel) {
+        write(ctx, data, tunnelChannel, () -> { });
+    }
+
+    /**
+     * Write a response to the user, paced by the user's download budget; release runs once it is written.
+     * Responses arrive whole, so over budget they are split into slices written as budget becomes available.
+     */
+    void write(ChannelHandlerContext ctx, byte[] data, Channel tunnelChannel, Runnable release) {
+        if (config.getRateLimits().isUnlimited() && pacedWrites.get() == 0) {
+            // The data array is owned by this message, so hand it to the user channel without copying
+            ctx.writeAndFlush(Unpooled.wrappedBuffer(data)).addListener(written -> release.run());
+            return;
+        }
+        ByteBuf response = Unpooled.wrappedBuffer(data);
+        writePaced(ctx, shapingKey(tunnelChannel), data.length, (offset, length) -> response.retainedSlice((int) offset, length), () -> {
+            response.release();
+            release.run();
+        });
+    }
+
+    /**
+     * Write a response from the edge cache to the user. Bytes stored on disk go out as a file region,
+     * so they are never copied into user space.
+     */
+    void serve(ChannelHandlerContext ctx, EdgeCache.Hit hit) {
+        if (config.getRateLimits().isUnlimited() && pacedWrites.get() == 0) {
+            ctx.write(hit.head());
+            ctx.writeAndFlush(hit.body()).addListener(written -> hit.release());
+            return;
+        }
+        String key = shapingKey(lastTunnelChannel);
+        ByteBuf head = hit.head();
+        writePaced(ctx, key, head.readableBytes(), (offset, length) -> head.retainedSlice((int) offset, length), head::release);
+        writePaced(ctx, key, hit.bodyLength(), hit::body, hit::release);
+    }
+
+    /**
+     * Cuts a response into the slices paced writes send
+     */
+    private interface Slicer {
+        Object slice(long offset, int length);
+    }
+
+    /**
+     * Write slices of a response as the user's download budget allows; release runs once the last is written
+     */
+    private void writePaced(ChannelHandlerContext ctx, String key, long length, Slicer slicer, Runnable release) {
+        RateLimits limits = config.getRateLimits();
+        String userChannelId = ctx.channel().id().asShortText();
+        ctx.executor().execute(() -> {
+            if (!ctx.channel().isActive()) {
+                // channelInactive already released the user's shaping state; reserving would bring it back for good
+                release.run();
+                return;
+            }
+            long now = System.nanoTime();
+            for (long offset = 0; offset < length; offset += SHAPED_SLICE_BYTES) {
+                int sliceLength = (int) Math.min(SHAPED_SLICE_BYTES, length - offset);
+                boolean last = offset + sliceLength >= length;
+                long dueNanos = Math.max(now + BandwidthShaper.DOWNLOAD.reserve(limits, key, userChannelId, sliceLength), lastPacedWriteNanos);
+                Object slice = slicer.slice(offset, sliceLength);
+                if (dueNanos <= now && pacedWrites.get() == 0) {
+                    writeSlice(ctx, slice, last ? release : null);
+                    continue;
+                }
+                lastPacedWriteNanos = dueNanos;
+                pacedWrites.incrementAndGet();
+                ctx.executor().schedule(() -> {
+                    pacedWrites.decrementAndGet();
+                    writeSlice(ctx, slice, last ? release : null);
+                }, dueNanos - now, TimeUnit.NANOSECONDS);
+            }
+            if (length == 0) {
+                release.run();
+            }
+        });
+    }
+
+    private static void writeSlice(ChannelHandlerContext ctx, Object slice, Runnable release) {
+        ChannelFuture written = ctx.writeAndFlush(slice);
+        if (release != null) {
+            written.addListener(future -> release.run());
+        }
+    }
+
+    /**
+     * groupId:proxyPort whose rate limits apply to traffic through a tunnel channel
+     */
+    private String shapingKey(Channel tunnelChannel) {
+        String mapKey = tunnelChannel != null ? TunnelServerHandler.registrationKey(tunnelChannel.id().asShortText()) : null;
+        return mapKey != null ? mapKey : "default:" + proxyPort;
+    }
+
+    /**
+     * Called when the response for a stream has been delivered to this user
+     */
+    void streamCompleted(String streamId) {
+        pendingStreams.remove(streamId);
+    }
+
+    /**
+     * A tunnel channel carrying this user's streams closed. Streams still waiting for a response get
+     * the resume grace window for the proxy client to reconnect and answer; the user is disconnected
+     * only if some of them are still unanswered when it runs out.
+     */
+    private void tunnelClosed(ChannelHandlerContext ctx, Channel tunnelChannel) {
+        tunnelCloseListeners.remove(tunnelChannel);
+        String userChannelId = ctx.channel().id().asShortText();
+        List<String> orphaned = new ArrayList<>();
+        for (Map.Entry<String, Channel> entry : pendingStreams.entrySet()) {
+            if (entry.getValue() == tunnelChannel) {
+                orphaned.add(entry.getKey());
+            }
+        }
+        if (orphaned.isEmpty() || !ctx.channel().isActive()) {
+            return;
+        }
+
+        long graceMillis = config.getResumeGraceMillis();
+        if (graceMillis <= 0) {
+            System.out.println("[TunnelServer] [Channel: " + userChannelId + "] Tunnel channel " + tunnelChannel.id().asShortText() + " closed, disconnecting user");
+            ctx.close();
+            return;
+        }
 
-        byteBuf.release();
+        System.out.println("[TunnelServer] [Channel: " + userChannelId + "] Tunnel channel " + tunnelChannel.id().asShortText() + " closed with " +
+            orphaned.size() + " stream(s) in flight, waiting up to " + graceMillis + "ms for the proxy client to resume");
+        ctx.executor().schedule(() -> {
+            for (String streamId : orphaned) {
+                if (pendingStreams.get(streamId) == tunnelChannel) {
+                    System.out.println("[TunnelServer] [Channel: " + userChannelId + "] Stream " + streamId + " was not resumed, disconnecting user");
+                    ctx.close();
+                    return;
+                }
+            }
+        }, graceMillis, TimeUnit.MILLISECONDS);
     }
 
     /**
      * Stream data from user client to proxy client in chunks across multiple proxy channels
-     * Supports concurrent streams by using streamId in message protocol
+     * Supports concurrent streams by using streamId in message protocol.
+     * Chunks are retained slices of the received buffer, so no payload bytes are copied here.
      */
-    private void streamDataToProxy(String userChannelId, String streamId, byte[] data, ChannelHandlerContext proxyCtx) {
+    private void streamDataToProxy(String userChannelId, String streamId, ByteBuf data, ChannelHandlerContext proxyCtx) {
         // Validate proxy is still active before starting stream
         if (proxyCtx == null || !proxyCtx.channel().isActive()) {
             System.out.println("[TunnelServer] [Channel: " + userChannelId + "] Proxy channel became inactive before stream " + streamId + " start");
             return;
         }
 
-        if (data.length <= CHUNK_SIZE) {
+        ByteBufAllocator alloc = proxyCtx.alloc();
+        int dataLength = data.readableBytes();
+        String streamKey = userChannelId + ":" + streamId;
+        AdaptiveChunkSizer chunkSizer = AdaptiveChunkSizer.forChannel(proxyCtx.channel(), chunkSizerTemplate);
+        int chunkSize = chunkSizer.nextChunkSize(proxyCtx.channel());
+
+        if (dataLength <= chunkSize) {
             // Small data: send as single FORWARD message
-            System.out.println("[TunnelServer] [Channel: " + userChannelId + "] Stream " + streamId + " - Sending small message (" + data.length + " bytes) to proxy");
-            TunnelMessage tunnelMessage = new TunnelMessage(userChannelId, streamId, TunnelAction.FORWARD, data);
-            byte[] serializedMessage = tunnelMessage.toBytes();
+            System.out.println("[TunnelServer] [Channel: " + userChannelId + "] Stream " + streamId + " - Sending small message (" + dataLength + " bytes) to proxy");
 
             try {
-                proxyCtx.write(Unpooled.copiedBuffer(serializedMessage));
-                proxyCtx.flush();
+                // Scheduled ahead of the chunks of bulk streams on the same tunnel channel
+                proxyCtx.writeAndFlush(StreamSchedulingHandler.frame(proxyCtx.channel(), streamKey, Priority.INTERACTIVE,
+                    TunnelMessage.encode(alloc, userChannelId, streamId, TunnelAction.FORWARD.toString(), data.retainedSlice())));
             } catch (Exception e) {
                 System.err.println("[TunnelServer] [Channel: " + userChannelId + "] Stream " + streamId + " - Error sending to proxy: " + e.getMessage());
             }
         } else {
             // Large data: stream in chunks
-            System.out.println("[TunnelServer] [Channel: " + userChannelId + "] Stream " + streamId + " - Streaming large message (" + data.length + " bytes) in " + CHUNK_SIZE + " byte chunks");
-
-            // Send STREAM_START message with streamId
-            TunnelMessage startMessage = new TunnelMessage(userChannelId, streamId, TunnelAction.STREAM_START,
-                String.valueOf(data.length).getBytes(CharsetUtil.UTF_8));
+            System.out.println("[TunnelServer] [Channel: " + userChannelId + "] Stream " + streamId + " - Streaming large message (" + dataLength + " bytes) in " + chunkSize + " byte chunks");
 
+            chunkSizer.streamStarted();
+            boolean finishTracked = false;
             try {
-                proxyCtx.write(Unpooled.copiedBuffer(startMessage.toBytes()));
+                // Send STREAM_START message with streamId
+                proxyCtx.write(StreamSchedulingHandler.frame(proxyCtx.channel(), streamKey, Priority.BULK,
+                    TunnelMessage.encode(alloc, userChannelId, streamId, TunnelAction.STREAM_START.toString(),
+                        ByteBufUtil.writeAscii(alloc, String.valueOf(dataLength)))));
 
                 // Send data in chunks
                 int offset = 0;
                 int chunkNumber = 1;
-                while (offset < data.length) {
+                while (offset < dataLength) {
                     // Check if proxy is still active during streaming
                     if (!proxyCtx.channel().isActive()) {
                         System.err.println("[TunnelServer] [Channel: " + userChannelId + "] Stream " + streamId + " - Proxy became inactive at chunk " + chunkNumber);
                         return;
                     }
 
-                    int chunkLength = Math.min(CHUNK_SIZE, data.length - offset);
-                    byte[] chunk = new byte[chunkLength];
-                    System.arraycopy(data, offset, chunk, 0, chunkLength);
-
-                    TunnelMessage chunkMessage = new TunnelMessage(userChannelId, streamId, TunnelAction.STREAM_DATA, chunk);
-                    proxyCtx.write(Unpooled.copiedBuffer(chunkMessage.toBytes()));
+                    int chunkLength = Math.min(chunkSize, dataLength - offset);
+                    ByteBuf chunk = data.retainedSlice(data.readerIndex() + offset, chunkLength);
+                    chunkSizer.track(proxyCtx.write(StreamSchedulingHandler.frame(proxyCtx.channel(), streamKey, Priority.BULK,
+                        TunnelMessage.encode(alloc, userChannelId, streamId, TunnelAction.STREAM_DATA.toString(), chunk))), chunkLength);
 
                     if (chunkNumber % 10 == 0) { // Log every 10 chunks to reduce spam
                         System.out.println("[TunnelServer] [Channel: " + userChannelId + "] Stream " + streamId + " - Chunk " + chunkNumber +
@@ -156,17 +541,23 @@ public class UserClientHandler extends ServerHandler {
 
                     offset += chunkLength;
                     chunkNumber++;
+                    chunkSize = chunkSizer.nextChunkSize(proxyCtx.channel());
                 }
 
                 // Send STREAM_END message with streamId
-                TunnelMessage endMessage = new TunnelMessage(userChannelId, streamId, TunnelAction.STREAM_END, new byte[0]);
-                proxyCtx.write(Unpooled.copiedBuffer(endMessage.toBytes()));
+                chunkSizer.finishWhenWritten(proxyCtx.write(StreamSchedulingHandler.frame(proxyCtx.channel(), streamKey, Priority.BULK,
+                    TunnelMessage.encode(alloc, userChannelId, streamId, TunnelAction.STREAM_END.toString(), Unpooled.EMPTY_BUFFER))));
+                finishTracked = true;
                 proxyCtx.flush();
 
                 System.out.println("[TunnelServer] [Channel: " + userChannelId + "] Stream " + streamId + " - Completed: " +
                     (chunkNumber - 1) + " chunks sent");
             } catch (Exception e) {
                 System.err.println("[TunnelServer] [Channel: " + userChannelId + "] Stream " + streamId + " - Error during streaming: " + e.getMessage());
+            } finally {
+                if (!finishTracked) {
+                    chunkSizer.streamFinished();
+                }
             }
         }
     }
@@ -0,0 +1,139 @@
+package com.acuity.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Reads the hostname a user connection asks for from the bytes it opens with: the server_name of a
+ * TLS ClientHello, or the Host header of an HTTP request. Nothing is decrypted or consumed, so the
+ * bytes go on to the proxy client unchanged once the host is known.
+ */
+final class VirtualHostSniffer {
+    // One TLS record; an HTTP request head that has not named its host by then is routed without one
+    static final int MAX_SNIFF_BYTES = 5 + 16 * 1024;
+
+    private static final int TLS_HANDSHAKE = 22;
+    private static final int CLIENT_HELLO = 1;
+    private static final int SERVER_NAME_EXTENSION = 0;
+
+    private VirtualHostSniffer() {
+    }
+
+    /**
+     * True if the bytes open a TLS handshake
+     */
+    static boolean isTls(ByteBuf buffer) {
+        return buffer.isReadable() && buffer.getUnsignedByte(buffer.readerIndex()) == TLS_HANDSHAKE;
+    }
+
+    /**
+     * Hostname the user asked for, in lower case without port; "" if the bytes name none, or null if
+     * more bytes are needed to tell
+     */
+    static String sniff(ByteBuf buffer) {
+        if (!buffer.isReadable()) {
+            return null;
+        }
+        String host;
+        try {
+            host = isTls(buffer) ? serverName(buffer) : hostHeader(buffer);
+        } catch (IndexOutOfBoundsException e) {
+            // Lengths pointing past the record: not a ClientHello this parser understands
+            return "";
+        }
+        if (host == null && buffer.readableBytes() >= MAX_SNIFF_BYTES) {
+            return "";
+        }
+        return host;
+    }
+
+    private static String serverName(ByteBuf buffer) {
+        int start = buffer.readerIndex();
+        if (buffer.readableBytes() < 5) {
+            return null;
+        }
+        int recordEnd = start + 5 + buffer.getUnsignedShort(start + 3);
+        if (buffer.writerIndex() < recordEnd) {
+            return null;
+        }
+        int p = start + 5;
+        if (buffer.getUnsignedByte(p) != CLIENT_HELLO) {
+            return "";
+        }
+        // Handshake header, client version and random
+        p += 4 + 2 + 32;
+        p += 1 + buffer.getUnsignedByte(p);   // session id
+        p += 2 + buffer.getUnsignedShort(p);  // cipher suites
+        p += 1 + buffer.getUnsignedByte(p);   // compression methods
+        if (p + 2 > recordEnd) {
+            return "";
+        }
+        int extensionsEnd = Math.min(recordEnd, p + 2 + buffer.getUnsignedShort(p));
+        p += 2;
+        while (p + 4 <= extensionsEnd) {
+            int type = buffer.getUnsignedShort(p);
+            int length = buffer.getUnsignedShort(p + 2);
+            p += 4;
+            if (type == SERVER_NAME_EXTENSION) {
+                // Server name list length, then entries of name type and length-prefixed name; 0 is host_name
+                int entry = p + 2;
+                if (entry + 3 > p + length || buffer.getUnsignedByte(entry) != 0) {
+                    return "";
+                }
+                int nameLength = buffer.getUnsignedShort(entry + 1);
+                if (entry + 3 + nameLength > p + length) {
+                    return "";
+                }
+                return normalize(buffer.toString(entry + 3, nameLength, CharsetUtil.US_ASCII));
+            }
+            p += length;
+        }
+        return "";
+    }
+
+    private static String hostHeader(ByteBuf buffer) {
+        int start = buffer.readerIndex();
+        int end = buffer.writerIndex();
+        // A request line starts with a method token; anything else is not HTTP
+        for (int i = start; ; i++) {
+            if (i == end) {
+                return null;
+            }
+            byte b = buffer.getByte(i);
+            if (b == ' ' && i > start) {
+                break;
+            }
+            if (b < 'A' || b > 'Z') {
+                return "";
+            }
+        }
+        int headEnd = -1;
+        for (int i = start + 3; i < end; i++) {
+            if (buffer.getByte(i) == '\n' && buffer.getByte(i - 1) == '\r' && buffer.getByte(i - 2) == '\n' && buffer.getByte(i - 3) == '\r') {
+                headEnd = i;
+                break;
+            }
+        }
+        if (headEnd < 0) {
+            return null;
+        }
+        String head = buffer.toString(start, headEnd - start, CharsetUtil.ISO_8859_1);
+        for (String line : head.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon == 4 && line.regionMatches(true, 0, "host", 0, 4)) {
+                return normalize(line.substring(colon + 1).trim());
+            }
+        }
+        return "";
+    }
+
+    // Lower case, without port or the trailing dot of a fully qualified name
+    private static String normalize(String host) {
+        host = host.toLowerCase();
+        int colon = host.lastIndexOf(':');
+        if (colon >= 0 && host.indexOf(']', colon) < 0) {
+            host = host.substring(0, colon);
+        }
+        return host.endsWith(".") ? host.substring(0, host.length() - 1) : host;
+    }
+}
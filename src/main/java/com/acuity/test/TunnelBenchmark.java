@@ -0,0 +1,389 @@
+package com.acuity.test;
+
+import com.acuity.common.FrameBatchingHandler;
+import com.acuity.common.StreamSchedulingHandler;
+import com.acuity.common.StreamSchedulingHandler.Priority;
+import com.acuity.common.SymmetricDecryptionHandler;
+import com.acuity.common.SymmetricEncryption;
+import com.acuity.common.SymmetricEncryptionHandler;
+import com.acuity.server.TunnelAction;
+import com.acuity.server.TunnelMessage;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.EventExecutorGroup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Load harness for the tunnel frame path.
+ *
+ * Pushes a payload through STREAM_DATA framing, compression, encryption, decryption and
+ * decompression at several chunk sizes and reports frames/s and MB/s. The network is not
+ * involved, so the numbers isolate the per-frame CPU overhead that chunk size amortizes.
+ * A second pass sends small FORWARD responses from many concurrent streams over a loopback
+ * connection, with and without frame batching. A third pass measures the latency of small
+ * interactive responses while bulk streams share the same connection, with and without stream scheduling.
+ *
+ * Usage: java com.acuity.test.TunnelBenchmark [payloadMB] [rounds] [codecThreads]
+ * codecThreads > 0 runs the loopback codec on a separate executor group, as [codec] offloadThreads does.
+ */
+public class TunnelBenchmark {
+    private static final String BENCHMARK_KEY = "Hu5SNsC4RUrRO06vtNWkRwVDeR2phas3Pih7D+uJ/V4=";
+    private static final int[] CHUNK_SIZES = {4 * 1024, 8 * 1024, 16 * 1024, 32 * 1024, 64 * 1024, 128 * 1024, 256 * 1024};
+    private static final int[] CONCURRENT_STREAMS = {1, 10, 100, 500};
+    private static final int RESPONSE_SIZE = 512;
+    private static final int BURST_MESSAGES = 100_000;
+    private static final int BULK_STREAM_BYTES = 8 * 1024 * 1024;
+    private static final int BULK_CHUNK_SIZE = 64 * 1024;
+    private static final int INTERACTIVE_MESSAGES = 200;
+    private static final long INTERACTIVE_INTERVAL_MICROS = 2000;
+
+    public static void main(String[] args) {
+        int payloadMb = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int codecThreads = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+
+        SymmetricEncryption.setSecretKeyFromBase64(BENCHMARK_KEY);
+
+        byte[] text = textPayload(payloadMb * 1024 * 1024);
+        byte[] random = randomPayload(payloadMb * 1024 * 1024);
+
+        // Warm up the JIT and the buffer pools on every size before measuring
+        for (int chunkSize : CHUNK_SIZES) {
+            runStream(text, chunkSize);
+            runStream(random, chunkSize);
+        }
+
+        System.out.println("[TunnelBenchmark] payload=" + payloadMb + "MB, rounds=" + rounds);
+        System.out.println(String.format("%-10s %-12s %12s %10s", "chunk", "payload", "frames/s", "MB/s"));
+        for (int chunkSize : CHUNK_SIZES) {
+            report(chunkSize, "text", text, rounds);
+            report(chunkSize, "random", random, rounds);
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-10s %-12s %12s", "streams", "batching", "messages/s"));
+        for (int streams : CONCURRENT_STREAMS) {
+            reportLoopback(streams, false, rounds, codecThreads);
+            reportLoopback(streams, true, rounds, codecThreads);
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-12s %12s %12s %12s", "scheduling", "p50 ms", "p99 ms", "max ms"));
+        reportMixed(false, codecThreads);
+        reportMixed(true, codecThreads);
+    }
+
+    private static void reportMixed(boolean scheduling, int codecThreads) {
+        try {
+            // First run warms up the connection path
+            runMixed(scheduling, codecThreads);
+            long[] latencies = runMixed(scheduling, codecThreads);
+            Arrays.sort(latencies);
+            System.out.println(String.format("%-12s %12.2f %12.2f %12.2f", scheduling ? "on" : "off",
+                latencies[latencies.length / 2] / 1e6, latencies[latencies.length * 99 / 100] / 1e6, latencies[latencies.length - 1] / 1e6));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Send small responses at a steady pace while bulk streams are written back to back on the same
+     * loopback tunnel connection, the way streamDataToServer writes them, and return each small response's latency in nanos
+     */
+    static long[] runMixed(boolean scheduling, int codecThreads) throws InterruptedException {
+        // Separate loops, so receiving the bulk data does not delay the sender's event loop
+        EventLoopGroup serverGroup = new NioEventLoopGroup(1);
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        EventExecutorGroup codecGroup = codecThreads > 0 ? new DefaultEventExecutorGroup(codecThreads) : null;
+        long[] latencies = new long[INTERACTIVE_MESSAGES];
+        CountDownLatch done = new CountDownLatch(INTERACTIVE_MESSAGES);
+        AtomicBoolean stop = new AtomicBoolean();
+        try {
+            Channel server = new ServerBootstrap()
+                .group(serverGroup)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(codecGroup, "decrypt", new SymmetricDecryptionHandler());
+                        ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                                ByteBuf plaintext = (ByteBuf) msg;
+                                try {
+                                    TunnelMessage message = TunnelMessage.fromByteBuf(plaintext);
+                                    if (message.getAction() == TunnelAction.FORWARD) {
+                                        ByteBuf data = message.getPayload();
+                                        latencies[data.getInt(data.readerIndex())] = System.nanoTime() - data.getLong(data.readerIndex() + 4);
+                                        done.countDown();
+                                    }
+                                    message.release();
+                                } finally {
+                                    plaintext.release();
+                                }
+                            }
+                        });
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+
+            Channel client = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(codecGroup, "encrypt", new SymmetricEncryptionHandler());
+                        ch.pipeline().addLast(new FrameBatchingHandler());
+                        if (scheduling) {
+                            ch.pipeline().addLast(new StreamSchedulingHandler());
+                        }
+                    }
+                })
+                .connect(server.localAddress()).sync().channel();
+
+            byte[] bulk = randomPayload(BULK_STREAM_BYTES);
+            Thread bulkWriter = new Thread(() -> {
+                ByteBuf source = Unpooled.wrappedBuffer(bulk);
+                ChannelFuture previousEnd = null;
+                for (int stream = 1; !stop.get(); stream++) {
+                    String streamKey = "bulk:" + stream;
+                    ChannelFuture end = null;
+                    for (int offset = 0; offset < bulk.length; offset += BULK_CHUNK_SIZE) {
+                        ByteBuf frame = TunnelMessage.encode(client.alloc(), "bulk", String.valueOf(stream),
+                            TunnelAction.STREAM_DATA.toString(), source.retainedSlice(offset, Math.min(BULK_CHUNK_SIZE, bulk.length - offset)));
+                        end = client.write(StreamSchedulingHandler.frame(client, streamKey, Priority.BULK, frame));
+                    }
+                    client.flush();
+                    // Keep one stream queued behind the one in flight, like a busy responder
+                    if (previousEnd != null) {
+                        previousEnd.syncUninterruptibly();
+                    }
+                    previousEnd = end;
+                }
+                source.release();
+            });
+            bulkWriter.start();
+
+            for (int i = 0; i < INTERACTIVE_MESSAGES; i++) {
+                TimeUnit.MICROSECONDS.sleep(INTERACTIVE_INTERVAL_MICROS);
+                byte[] data = ByteBuffer.allocate(RESPONSE_SIZE).putInt(i).putLong(System.nanoTime()).array();
+                ByteBuf frame = new TunnelMessage("user" + i, String.valueOf(i), TunnelAction.FORWARD, data).toByteBuf(client.alloc());
+                client.writeAndFlush(StreamSchedulingHandler.frame(client, "user" + i + ":" + i, Priority.INTERACTIVE, frame));
+            }
+            if (!done.await(5, TimeUnit.MINUTES)) {
+                throw new IllegalStateException("Benchmark lost messages: " + (INTERACTIVE_MESSAGES - done.getCount()) + "/" + INTERACTIVE_MESSAGES);
+            }
+            stop.set(true);
+            bulkWriter.join();
+
+            client.close().sync();
+            server.close().sync();
+            return latencies;
+        } finally {
+            group.shutdownGracefully(100, 1000, TimeUnit.MILLISECONDS).sync();
+            serverGroup.shutdownGracefully(100, 1000, TimeUnit.MILLISECONDS).sync();
+            if (codecGroup != null) {
+                codecGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+            }
+        }
+    }
+
+    private static void report(int chunkSize, String label, byte[] payload, int rounds) {
+        long bestNanos = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; round++) {
+            bestNanos = Math.min(bestNanos, runStream(payload, chunkSize));
+        }
+
+        int frames = (payload.length + chunkSize - 1) / chunkSize;
+        double seconds = bestNanos / 1_000_000_000.0;
+        System.out.println(String.format("%-10s %-12s %12.0f %10.1f",
+            (chunkSize / 1024) + "KB", label, frames / seconds, payload.length / (1024.0 * 1024.0) / seconds));
+    }
+
+    private static void reportLoopback(int streams, boolean batching, int rounds, int codecThreads) {
+        try {
+            // First round warms up the connection path
+            long bestNanos = Long.MAX_VALUE;
+            for (int round = 0; round <= rounds; round++) {
+                long elapsed = runLoopback(streams, batching, codecThreads);
+                if (round > 0) {
+                    bestNanos = Math.min(bestNanos, elapsed);
+                }
+            }
+            System.out.println(String.format("%-10d %-12s %12.0f",
+                streams, batching ? "on" : "off", BURST_MESSAGES / (bestNanos / 1_000_000_000.0)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Send BURST_MESSAGES small FORWARD responses over a loopback tunnel connection from the given number
+     * of concurrent writer threads, the way TunnelControlHandler's executor replies, and return the elapsed nanos
+     */
+    static long runLoopback(int streams, boolean batching, int codecThreads) throws InterruptedException {
+        EventLoopGroup group = new NioEventLoopGroup(2);
+        EventExecutorGroup codecGroup = codecThreads > 0 ? new DefaultEventExecutorGroup(codecThreads) : null;
+        CountDownLatch done = new CountDownLatch(BURST_MESSAGES);
+        try {
+            Channel server = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(codecGroup, "decrypt", new SymmetricDecryptionHandler());
+                        ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                                ReferenceCountUtil.release(msg);
+                                done.countDown();
+                            }
+                        });
+                    }
+                })
+                .bind("127.0.0.1", 0).sync().channel();
+
+            Channel client = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(codecGroup, "encrypt", new SymmetricEncryptionHandler());
+                        if (batching) {
+                            ch.pipeline().addLast(new FrameBatchingHandler());
+                        }
+                    }
+                })
+                .connect(server.localAddress()).sync().channel();
+
+            byte[] response = textPayload(RESPONSE_SIZE);
+            int perStream = BURST_MESSAGES / streams;
+            ExecutorService writers = Executors.newFixedThreadPool(Math.min(streams, 16));
+            long start = System.nanoTime();
+            for (int stream = 0; stream < streams; stream++) {
+                String userChannelId = "user" + stream;
+                int count = stream == 0 ? BURST_MESSAGES - perStream * (streams - 1) : perStream;
+                writers.execute(() -> {
+                    for (int i = 0; i < count; i++) {
+                        ChannelFuture write = client.writeAndFlush(
+                            new TunnelMessage(userChannelId, TunnelAction.FORWARD, response).toByteBuf(client.alloc()));
+                        // Bound the outbound backlog like a real responder would
+                        if (i % 256 == 255) {
+                            write.syncUninterruptibly();
+                        }
+                    }
+                });
+            }
+            if (!done.await(5, TimeUnit.MINUTES)) {
+                throw new IllegalStateException("Benchmark lost messages: " + (BURST_MESSAGES - done.getCount()) + "/" + BURST_MESSAGES);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            writers.shutdown();
+            client.close().sync();
+            server.close().sync();
+            return elapsed;
+        } finally {
+            // Channel teardown hops between the loops and the codec executors, so keep both alive until the loops are done
+            group.shutdownGracefully(100, 1000, TimeUnit.MILLISECONDS).sync();
+            if (codecGroup != null) {
+                codecGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+            }
+        }
+    }
+
+    /**
+     * Send one payload as a chunked stream through both codec directions and return the elapsed nanos
+     */
+    static long runStream(byte[] payload, int chunkSize) {
+        EmbeddedChannel sender = new EmbeddedChannel(new SymmetricEncryptionHandler());
+        EmbeddedChannel receiver = new EmbeddedChannel(new SymmetricDecryptionHandler());
+        ByteBuf source = Unpooled.wrappedBuffer(payload);
+
+        long start = System.nanoTime();
+        long received = 0;
+        for (int offset = 0; offset < payload.length; offset += chunkSize) {
+            int length = Math.min(chunkSize, payload.length - offset);
+            sender.writeOutbound(TunnelMessage.encode(sender.alloc(), "bench", "1",
+                TunnelAction.STREAM_DATA.toString(), source.retainedSlice(offset, length)));
+
+            ByteBuf encrypted;
+            while ((encrypted = sender.readOutbound()) != null) {
+                receiver.writeInbound(encrypted);
+            }
+
+            ByteBuf plaintext;
+            while ((plaintext = receiver.readInbound()) != null) {
+                TunnelMessage message = TunnelMessage.fromByteBuf(plaintext);
+                received += message.getDataLength();
+                message.release();
+                plaintext.release();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        source.release();
+        sender.finishAndReleaseAll();
+        receiver.finishAndReleaseAll();
+
+        if (received != payload.length) {
+            throw new IllegalStateException("Benchmark lost data: " + received + "/" + payload.length);
+        }
+        return elapsed;
+    }
+
+    /**
+     * Repetitive, JSON-like payload that compresses well
+     */
+    static byte[] textPayload(int size) {
+        byte[] pattern = "{\"id\":12345,\"name\":\"acuity\",\"status\":\"ok\",\"items\":[1,2,3]}\n".getBytes();
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = pattern[i % pattern.length];
+        }
+        return data;
+    }
+
+    /**
+     * Incompressible payload
+     */
+    static byte[] randomPayload(int size) {
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+}
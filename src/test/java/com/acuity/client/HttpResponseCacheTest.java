@@ -0,0 +1,104 @@
+package com.acuity.client;
+
+import com.acuity.common.HttpMessageFramer;
+import com.acuity.config.ClientConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for storing, serving and revalidating responses in the proxy client's HTTP cache
+ */
+public class HttpResponseCacheTest {
+    private static final byte[] GET = bytes("GET /logo.png HTTP/1.1\r\nHost: example.com\r\n\r\n");
+
+    private ClientConfig config;
+    private HttpResponseCache cache;
+
+    @Before
+    public void setUp() {
+        config = new ClientConfig();
+        config.setHttpCacheMaxBytes(64 * 1024);
+        cache = new HttpResponseCache(config);
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static HttpMessageFramer.Message response(int status, String head, String body) {
+        return new HttpMessageFramer.Message(bytes("HTTP/1.1 " + status + " X\r\n" + head + "Content-Length: " + body.length() + "\r\n\r\n" + body),
+            null, status, false);
+    }
+
+    @Test
+    public void testFreshResponseIsServedWithAge() {
+        HttpResponseCache.Lookup miss = cache.lookup(GET, "GET");
+        assertNull(miss.fresh);
+        cache.complete(miss, response(200, "Cache-Control: max-age=60\r\nAge: 5\r\n", "image"));
+
+        HttpResponseCache.Lookup hit = cache.lookup(GET, "GET");
+        assertNotNull(hit.fresh);
+        String served = new String(hit.fresh, StandardCharsets.ISO_8859_1);
+        assertTrue(served, served.startsWith("HTTP/1.1 200 X\r\nAge: 5\r\n"));
+        assertTrue(served.endsWith("\r\n\r\nimage"));
+        assertEquals(1, cache.hits());
+        assertEquals(hit.fresh.length, cache.bytesSaved());
+    }
+
+    @Test
+    public void testStaleEntryIsRevalidatedWithItsETag() {
+        cache.complete(cache.lookup(GET, "GET"), response(200, "Cache-Control: no-cache\r\nETag: \"v1\"\r\n", "image"));
+
+        HttpResponseCache.Lookup stale = cache.lookup(GET, "GET");
+        assertNull(stale.fresh);
+        assertTrue(new String(stale.request, StandardCharsets.ISO_8859_1).contains("If-None-Match: \"v1\"\r\n\r\n"));
+
+        byte[] answer = cache.complete(stale, new HttpMessageFramer.Message(bytes("HTTP/1.1 304 Not Modified\r\n\r\n"), null, 304, false));
+        assertTrue(new String(answer, StandardCharsets.ISO_8859_1).endsWith("image"));
+        assertEquals(1, cache.revalidated());
+    }
+
+    @Test
+    public void testVaryAndNoStoreAreHonoured() {
+        byte[] gzip = bytes("GET /logo.png HTTP/1.1\r\nHost: example.com\r\nAccept-Encoding: gzip\r\n\r\n");
+        cache.complete(cache.lookup(gzip, "GET"), response(200, "Cache-Control: max-age=60\r\nVary: Accept-Encoding\r\n", "zipped"));
+        assertNotNull(cache.lookup(gzip, "GET").fresh);
+        assertNull(cache.lookup(GET, "GET").fresh);
+
+        byte[] other = bytes("GET /private HTTP/1.1\r\nHost: example.com\r\n\r\n");
+        cache.complete(cache.lookup(other, "GET"), response(200, "Cache-Control: no-store, max-age=60\r\n", "secret"));
+        assertNull(cache.lookup(other, "GET").fresh);
+    }
+
+    @Test
+    public void testUnsafeMethodInvalidatesEntry() {
+        cache.complete(cache.lookup(GET, "GET"), response(200, "Cache-Control: max-age=60\r\n", "image"));
+        assertNull(cache.lookup(bytes("DELETE /logo.png HTTP/1.1\r\nHost: example.com\r\n\r\n"), "DELETE"));
+        assertNull(cache.lookup(GET, "GET").fresh);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntryIsEvicted() {
+        HttpMessageFramer.Message response = response(200, "Cache-Control: max-age=60\r\n", "image");
+        // Room for eight entries, the most a single entry may take a share of
+        config.setHttpCacheMaxBytes(response.bytes.length * 8L);
+        for (int i = 0; i < 8; i++) {
+            byte[] get = bytes("GET /" + i + " HTTP/1.1\r\nHost: h\r\n\r\n");
+            cache.complete(cache.lookup(get, "GET"), response);
+        }
+        assertNotNull(cache.lookup(bytes("GET /0 HTTP/1.1\r\nHost: h\r\n\r\n"), "GET").fresh);
+
+        cache.complete(cache.lookup(bytes("GET /8 HTTP/1.1\r\nHost: h\r\n\r\n"), "GET"), response);
+        assertNull(cache.lookup(bytes("GET /1 HTTP/1.1\r\nHost: h\r\n\r\n"), "GET").fresh);
+        assertNotNull(cache.lookup(bytes("GET /0 HTTP/1.1\r\nHost: h\r\n\r\n"), "GET").fresh);
+        assertNotNull(cache.lookup(bytes("GET /8 HTTP/1.1\r\nHost: h\r\n\r\n"), "GET").fresh);
+        assertEquals(response.bytes.length * 8L, cache.usedBytes());
+    }
+}
@@ -0,0 +1,42 @@
+package com.acuity.client;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for reconnect delays
+ */
+public class ReconnectBackoffTest {
+
+    @Test
+    public void testDelayDoublesWithinJitterRange() {
+        ReconnectBackoff backoff = new ReconnectBackoff(100, 10_000);
+        for (long ceiling = 100; ceiling <= 1600; ceiling *= 2) {
+            long delay = backoff.nextDelayMillis();
+            assertTrue("delay " + delay + " outside [" + ceiling / 2 + ", " + ceiling + "]",
+                delay >= ceiling / 2 && delay <= ceiling);
+        }
+    }
+
+    @Test
+    public void testDelayIsCappedAtMaximum() {
+        ReconnectBackoff backoff = new ReconnectBackoff(100, 1000);
+        for (int i = 0; i < 100; i++) {
+            long delay = backoff.nextDelayMillis();
+            assertTrue(delay <= 1000);
+        }
+        assertTrue(backoff.nextDelayMillis() >= 500);
+    }
+
+    @Test
+    public void testResetStartsOver() {
+        ReconnectBackoff backoff = new ReconnectBackoff(100, 10_000);
+        backoff.nextDelayMillis();
+        backoff.nextDelayMillis();
+        backoff.reset();
+        assertEquals(0, backoff.getAttempt());
+        assertTrue(backoff.nextDelayMillis() <= 100);
+    }
+}
@@ -0,0 +1,139 @@
+package com.acuity.client;
+
+import com.acuity.config.ClientConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for sharing one target request among identical concurrent requests
+ */
+public class RequestCoalescerTest {
+    private static final byte[] GET = bytes("GET /popular HTTP/1.1\r\nHost: example.com\r\n\r\n");
+    private static final byte[] RESPONSE = bytes("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok");
+
+    private ClientConfig config;
+    private TargetRequestPool pool;
+    private ScheduledExecutorService timer;
+    private final AtomicInteger targetRequests = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<byte[]> responses = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() {
+        config = new ClientConfig();
+        pool = TargetRequestPool.platform(4, 20, 60, 100);
+        timer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+        timer.shutdownNow();
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    // A target that answers once released; the first answer is the given one, later ones are RESPONSE
+    private Function<byte[], byte[]> blockingTarget(byte[] firstResponse) {
+        return request -> {
+            int n = targetRequests.incrementAndGet();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return n == 1 ? firstResponse : RESPONSE;
+        };
+    }
+
+    private void awaitResponses(int count) throws InterruptedException {
+        for (int i = 0; i < 250 && responses.size() < count; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(count, responses.size());
+    }
+
+    @Test
+    public void testIdenticalRequestsShareOneTargetRequest() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer(config, pool, blockingTarget(RESPONSE));
+        for (int i = 0; i < 10; i++) {
+            coalescer.execute(GET, timer, responses::add, () -> { });
+        }
+        release.countDown();
+        awaitResponses(10);
+        assertEquals(1, targetRequests.get());
+        assertEquals(9, coalescer.coalesced());
+        for (byte[] response : responses) {
+            assertEquals(new String(RESPONSE, StandardCharsets.ISO_8859_1), new String(response, StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    @Test
+    public void testFollowersFallBackWhenLeaderFails() throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer(config, pool, blockingTarget(new byte[0]));
+        for (int i = 0; i < 3; i++) {
+            coalescer.execute(GET, timer, responses::add, () -> { });
+        }
+        release.countDown();
+        awaitResponses(3);
+        assertEquals(3, targetRequests.get());
+        assertEquals(2, coalescer.fallbacks());
+    }
+
+    @Test
+    public void testFollowersStopWaitingAfterMaxWait() throws Exception {
+        config.setCoalescingMaxWaitMillis(100);
+        RequestCoalescer coalescer = new RequestCoalescer(config, pool, blockingTarget(RESPONSE));
+        coalescer.execute(GET, timer, responses::add, () -> { });
+        coalescer.execute(GET, timer, responses::add, () -> { });
+        Thread.sleep(300);
+        assertEquals(2, targetRequests.get());
+        release.countDown();
+        awaitResponses(2);
+        assertEquals(1, coalescer.fallbacks());
+    }
+
+    @Test
+    public void testRefusedLeaderRefusesItsFollowersToo() throws Exception {
+        pool.shutdown();
+        pool = TargetRequestPool.platform(1, 1, 60, 1);
+        RequestCoalescer coalescer = new RequestCoalescer(config, pool, blockingTarget(RESPONSE));
+        AtomicInteger refused = new AtomicInteger();
+        // One request runs and one waits in the queue; the leader of the GETs finds the pool full
+        coalescer.execute(bytes("POST /a HTTP/1.1\r\n\r\n"), timer, responses::add, refused::incrementAndGet);
+        coalescer.execute(bytes("POST /b HTTP/1.1\r\n\r\n"), timer, responses::add, refused::incrementAndGet);
+        coalescer.execute(GET, timer, responses::add, refused::incrementAndGet);
+        coalescer.execute(GET, timer, responses::add, refused::incrementAndGet);
+        assertEquals(2, refused.get());
+        release.countDown();
+        awaitResponses(2);
+    }
+
+    @Test
+    public void testOnlyBodilessGetAndHeadAreCoalesced() {
+        assertTrue(RequestCoalescer.isCoalescable(GET));
+        assertTrue(RequestCoalescer.isCoalescable(bytes("HEAD / HTTP/1.1\r\nHost: h\r\n\r\n")));
+        assertFalse(RequestCoalescer.isCoalescable(bytes("POST / HTTP/1.1\r\nHost: h\r\nContent-Length: 1\r\n\r\nx")));
+        assertFalse(RequestCoalescer.isCoalescable(bytes("GET / HTTP/1.1\r\nHost: h\r\nContent-Length: 1\r\n\r\nx")));
+        // Pipelined requests arrive as one stream and are left alone
+        assertFalse(RequestCoalescer.isCoalescable(bytes("GET /a HTTP/1.1\r\n\r\nGET /b HTTP/1.1\r\n\r\n")));
+        assertFalse(RequestCoalescer.isCoalescable(bytes("SSH-2.0-OpenSSH\r\n")));
+    }
+}
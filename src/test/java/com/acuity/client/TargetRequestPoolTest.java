@@ -0,0 +1,104 @@
+package com.acuity.client;
+
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Unit tests for the target request pool
+ */
+public class TargetRequestPoolTest {
+
+    @Test
+    public void testVirtualModeLimitsConcurrencyWithoutBlockingSubmitter() throws Exception {
+        TargetRequestPool pool = TargetRequestPool.virtual(2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(6);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 6; i++) {
+            pool.submit(() -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                done.countDown();
+            });
+        }
+        // Submitting must return at once even though only two requests can run
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+
+        Thread.sleep(200);
+        assertEquals(2, running.get());
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(2, maxRunning.get());
+        pool.shutdown();
+    }
+
+    @Test
+    public void testSaturatedPlatformPoolRejectsInsteadOfRunningOnTheCaller() throws Exception {
+        TargetRequestPool pool = TargetRequestPool.platform(1, 1, 60, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        Runnable blocked = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+        pool.submit(blocked);
+        pool.submit(blocked);
+        try {
+            pool.submit(() -> fail("ran on the submitting thread"));
+            fail("expected the saturated pool to reject");
+        } catch (RejectedExecutionException expected) {
+            // The caller answers the request itself
+        }
+        release.countDown();
+        pool.shutdown();
+    }
+
+    @Test
+    public void testVirtualModeFallbackKeepsThreadsWithinTheLimit() throws Exception {
+        assumeTrue("virtual threads are available", Runtime.version().feature() < 21);
+        TargetRequestPool pool = TargetRequestPool.virtual(2);
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        CountDownLatch done = new CountDownLatch(20);
+        for (int i = 0; i < 20; i++) {
+            pool.submit(() -> {
+                threads.add(Thread.currentThread());
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(2, threads.size());
+        pool.shutdown();
+    }
+
+    @Test
+    public void testModeParsing() {
+        assertEquals(TargetRequestPool.Mode.PLATFORM, TargetRequestPool.Mode.fromString(null));
+        assertEquals(TargetRequestPool.Mode.VIRTUAL, TargetRequestPool.Mode.fromString(" virtual "));
+    }
+}
@@ -0,0 +1,46 @@
+package com.acuity.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for chunk size selection
+ */
+public class AdaptiveChunkSizerTest {
+
+    @Test
+    public void testFixedModeIgnoresMeasurements() {
+        AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(8192);
+        sizer.onChunkWritten(1024 * 1024, 0, 1000);
+        assertEquals(8192, sizer.nextChunkSize(null));
+    }
+
+    @Test
+    public void testAdaptiveGrowsWithDrainRateAndSharesBudget() {
+        // 1ms frame budget
+        AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(8192, true, 4096, 256 * 1024, 1000);
+        assertEquals(8192, sizer.nextChunkSize(null));
+
+        // 64KB drained in 1ms -> 64KB per frame
+        sizer.onChunkWritten(64 * 1024, 0, 1_000_000);
+        assertEquals(64 * 1024, sizer.nextChunkSize(null));
+
+        sizer.streamStarted();
+        sizer.streamStarted();
+        assertEquals(32 * 1024, sizer.nextChunkSize(null));
+        sizer.streamFinished();
+        sizer.streamFinished();
+    }
+
+    @Test
+    public void testAdaptiveIsClamped() {
+        AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(8192, true, 4096, 256 * 1024, 1000);
+        sizer.onChunkWritten(100 * 1024 * 1024, 0, 1_000_000);
+        assertEquals(256 * 1024, sizer.nextChunkSize(null));
+
+        AdaptiveChunkSizer slow = new AdaptiveChunkSizer(8192, true, 4096, 256 * 1024, 1000);
+        slow.onChunkWritten(100, 0, 1_000_000);
+        assertEquals(4096, slow.nextChunkSize(null));
+    }
+}
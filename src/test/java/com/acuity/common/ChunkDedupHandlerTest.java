@@ -0,0 +1,150 @@
+package com.acuity.common;
+
+import com.acuity.server.TunnelAction;
+import com.acuity.server.TunnelMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for deduplicating tunnel frames between two channels with mirrored chunk stores
+ */
+public class ChunkDedupHandlerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private EmbeddedChannel sender;
+    private EmbeddedChannel receiver;
+    // Bytes that crossed the wire between the two channels
+    private long wireBytes;
+
+    @Before
+    public void setUp() {
+        sender = new EmbeddedChannel(handler());
+        receiver = new EmbeddedChannel(handler());
+    }
+
+    @After
+    public void tearDown() {
+        sender.finishAndReleaseAll();
+        receiver.finishAndReleaseAll();
+    }
+
+    private ChunkDedupHandler handler() {
+        return new ChunkDedupHandler(folder.getRoot().getPath(), TunnelMessage::peekHeaderLength, TunnelMessage::peekStreamKey);
+    }
+
+    private void start(int storeBytes) {
+        assertTrue(ChunkDedupHandler.start(sender, storeBytes));
+        assertTrue(ChunkDedupHandler.start(receiver, storeBytes));
+    }
+
+    /**
+     * Send the content on a stream in frames of random sizes, and return what the receiver rebuilt
+     */
+    private byte[] transfer(String userChannelId, byte[] content, Random random) {
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        int pos = 0;
+        while (pos < content.length) {
+            int length = Math.min(content.length - pos, 1024 + random.nextInt(16 * 1024));
+            ByteBuf payload = Unpooled.wrappedBuffer(content, pos, length);
+            sender.writeOutbound(TunnelMessage.encode(sender.alloc(), userChannelId, "1", TunnelAction.STREAM_DATA.toString(), payload));
+            ByteBuf frame = sender.readOutbound();
+            wireBytes += frame.readableBytes();
+            receiver.writeInbound(frame);
+            ByteBuf rebuilt = receiver.readInbound();
+            try {
+                TunnelMessage message = TunnelMessage.fromByteBuf(rebuilt);
+                assertEquals(userChannelId, message.getUserChannelId());
+                received.write(message.getData(), 0, message.getData().length);
+                message.release();
+            } finally {
+                rebuilt.release();
+            }
+            pos += length;
+        }
+        return received.toByteArray();
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testRepeatedTransferShrinksByOrdersOfMagnitude() {
+        start(16 * 1024 * 1024);
+        Random random = new Random(1);
+        byte[] artifact = randomBytes(random, 4 * 1024 * 1024);
+
+        assertArrayEquals(artifact, transfer("u1", artifact, random));
+        assertTrue("first transfer " + wireBytes + " bytes", wireBytes > artifact.length);
+
+        // Split into different frames, on another stream
+        wireBytes = 0;
+        assertArrayEquals(artifact, transfer("u2", artifact, random));
+        assertTrue("repeated transfer " + wireBytes + " bytes", wireBytes < artifact.length / 100);
+    }
+
+    @Test
+    public void testEditedContentOnlySendsTheChanges() {
+        start(16 * 1024 * 1024);
+        Random random = new Random(2);
+        byte[] original = randomBytes(random, 2 * 1024 * 1024);
+        transfer("u1", original, random);
+
+        byte[] edited = original.clone();
+        // Insert and overwrite a few bytes in the middle, shifting everything after them
+        byte[] inserted = new byte[edited.length + 100];
+        System.arraycopy(edited, 0, inserted, 0, 1_000_000);
+        System.arraycopy(randomBytes(random, 100), 0, inserted, 1_000_000, 100);
+        System.arraycopy(edited, 1_000_000, inserted, 1_000_100, edited.length - 1_000_000);
+        inserted[1_500_000] ^= 0x55;
+
+        wireBytes = 0;
+        assertArrayEquals(inserted, transfer("u2", inserted, random));
+        assertTrue("edited transfer " + wireBytes + " bytes", wireBytes < 256 * 1024);
+    }
+
+    @Test
+    public void testEvictedChunksAreResentNotCorrupted() {
+        start(1024 * 1024);
+        Random random = new Random(3);
+        byte[] first = randomBytes(random, 768 * 1024);
+        transfer("u1", first, random);
+        // Pushes most of the first transfer out of the stores
+        transfer("u2", randomBytes(random, 2 * 1024 * 1024), random);
+
+        wireBytes = 0;
+        assertArrayEquals(first, transfer("u3", first, random));
+        assertTrue("transfer after eviction " + wireBytes + " bytes", wireBytes > first.length / 2);
+    }
+
+    @Test
+    public void testFramesPassThroughUntilStarted() {
+        byte[] data = randomBytes(new Random(4), 8 * 1024);
+        ByteBuf frame = new TunnelMessage("u1", TunnelAction.FORWARD, data).toByteBuf(sender.alloc());
+        byte[] expected = ByteBufUtil.getBytes(frame);
+        sender.writeOutbound(frame);
+        ByteBuf written = sender.readOutbound();
+        try {
+            assertArrayEquals(expected, ByteBufUtil.getBytes(written));
+        } finally {
+            written.release();
+        }
+    }
+}
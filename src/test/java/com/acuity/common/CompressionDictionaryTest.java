@@ -0,0 +1,86 @@
+package com.acuity.common;
+
+import com.acuity.server.TunnelAction;
+import com.acuity.server.TunnelMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for training compression dictionaries and compressing frames with them
+ */
+public class CompressionDictionaryTest {
+    private static final String SHARED_KEY = "Hu5SNsC4RUrRO06vtNWkRwVDeR2phas3Pih7D+uJ/V4=";
+
+    @BeforeClass
+    public static void setUpKey() {
+        SymmetricEncryption.setSecretKeyFromBase64(SHARED_KEY);
+    }
+
+    // Small JSON responses that differ in their values only
+    private static List<byte[]> responses(int count, int seed) {
+        List<byte[]> responses = new ArrayList<>();
+        for (int i = seed; i < seed + count; i++) {
+            responses.add(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nCache-Control: no-store\r\n\r\n" +
+                "{\"orderId\":" + i * 7919 + ",\"status\":\"" + (i % 3 == 0 ? "shipped" : "pending") + "\",\"customer\":{\"id\":" + i +
+                ",\"tier\":\"gold\"},\"items\":[{\"sku\":\"A-" + i % 17 + "\",\"quantity\":" + i % 5 + "}]}").getBytes(StandardCharsets.UTF_8));
+        }
+        return responses;
+    }
+
+    @Test
+    public void testTrainedDictionaryShrinksSmallFrames() {
+        byte[] dictionary = CompressionDictionary.train(responses(500, 0), 4096);
+        assertNotNull(dictionary);
+        assertTrue(dictionary.length <= 4096);
+
+        List<byte[]> unseen = responses(100, 1000);
+        long plain = CompressionDictionary.compressedSize(unseen, null);
+        long withDictionary = CompressionDictionary.compressedSize(unseen, dictionary);
+        assertTrue("deflate " + plain + " bytes, with dictionary " + withDictionary, withDictionary < plain / 2);
+    }
+
+    @Test
+    public void testNothingRecurringTrainsNoDictionary() {
+        List<byte[]> samples = new ArrayList<>();
+        samples.add("one sample alone".getBytes(StandardCharsets.UTF_8));
+        assertNull(CompressionDictionary.train(samples, 4096));
+    }
+
+    @Test
+    public void testFramesRoundTripWithTheInstalledDictionary() {
+        CompressionDictionary first = new CompressionDictionary(1, CompressionDictionary.train(responses(200, 0), 4096));
+        CompressionDictionary second = new CompressionDictionary(2, CompressionDictionary.train(responses(200, 200), 4096));
+        EmbeddedChannel sender = new EmbeddedChannel(new SymmetricEncryptionHandler());
+        EmbeddedChannel receiver = new EmbeddedChannel(new SymmetricDecryptionHandler());
+        CompressionDictionary.install(receiver, first);
+        CompressionDictionary.use(sender, first);
+        byte[] data = responses(1, 5000).get(0);
+
+        sender.writeOutbound(new TunnelMessage("u1", TunnelAction.FORWARD, data).toByteBuf(sender.alloc()));
+        ByteBuf frame = sender.readOutbound();
+        assertEquals(SymmetricEncryptionHandler.FLAG_DICTIONARY, frame.getByte(0));
+        // Frames compressed with the previous dictionary still decode once a new one is installed
+        CompressionDictionary.install(receiver, second);
+        receiver.writeInbound(frame);
+
+        ByteBuf plaintext = receiver.readInbound();
+        try {
+            TunnelMessage message = TunnelMessage.fromByteBuf(plaintext);
+            assertEquals(new String(data, StandardCharsets.UTF_8), new String(message.getData(), StandardCharsets.UTF_8));
+            message.release();
+        } finally {
+            plaintext.release();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.acuity.common;
+
+import com.acuity.server.TunnelAction;
+import com.acuity.server.TunnelMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for coalescing tunnel frames into encrypted super-frames
+ */
+public class FrameBatchingHandlerTest {
+    private static final String SHARED_KEY = "Hu5SNsC4RUrRO06vtNWkRwVDeR2phas3Pih7D+uJ/V4=";
+
+    @BeforeClass
+    public static void setUpKey() {
+        SymmetricEncryption.setSecretKeyFromBase64(SHARED_KEY);
+    }
+
+    @Test
+    public void testFramesInOneTickShareOneSuperFrame() {
+        EmbeddedChannel sender = new EmbeddedChannel(new SymmetricEncryptionHandler(), new FrameBatchingHandler());
+        EmbeddedChannel receiver = new EmbeddedChannel(new SymmetricDecryptionHandler());
+
+        List<ChannelFuture> writes = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            byte[] data = ("response-" + i).getBytes(StandardCharsets.UTF_8);
+            writes.add(sender.writeAndFlush(new TunnelMessage("u" + i, TunnelAction.FORWARD, data).toByteBuf(sender.alloc())));
+        }
+        // Nothing leaves until the end of the tick
+        assertNull(sender.readOutbound());
+        sender.runPendingTasks();
+
+        ByteBuf superFrame = sender.readOutbound();
+        assertNull(sender.readOutbound());
+        for (ChannelFuture write : writes) {
+            assertTrue(write.isSuccess());
+        }
+
+        receiver.writeInbound(superFrame);
+        for (int i = 0; i < 100; i++) {
+            ByteBuf plaintext = receiver.readInbound();
+            try {
+                TunnelMessage message = TunnelMessage.fromByteBuf(plaintext);
+                assertEquals("u" + i, message.getUserChannelId());
+                assertEquals("response-" + i, new String(message.getData(), StandardCharsets.UTF_8));
+                message.release();
+            } finally {
+                plaintext.release();
+            }
+        }
+        assertNull(receiver.readInbound());
+
+        sender.finishAndReleaseAll();
+        receiver.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testBatchIsCutAtMaxBytesAndOrderIsKept() {
+        EmbeddedChannel sender = new EmbeddedChannel(new SymmetricEncryptionHandler(), new FrameBatchingHandler(4096, 0));
+        EmbeddedChannel receiver = new EmbeddedChannel(new SymmetricDecryptionHandler());
+
+        for (int i = 0; i < 10; i++) {
+            // Frame 5 is larger than a batch and passes through on its own
+            byte[] data = new byte[i == 5 ? 8192 : 1000];
+            data[0] = (byte) i;
+            sender.write(new TunnelMessage("u1", TunnelAction.STREAM_DATA, data).toByteBuf(sender.alloc()));
+        }
+        sender.flush();
+        sender.runPendingTasks();
+
+        int superFrames = 0;
+        ByteBuf encrypted;
+        while ((encrypted = sender.readOutbound()) != null) {
+            superFrames++;
+            receiver.writeInbound(encrypted);
+        }
+        assertTrue(superFrames > 1);
+
+        for (int i = 0; i < 10; i++) {
+            ByteBuf plaintext = receiver.readInbound();
+            try {
+                TunnelMessage message = TunnelMessage.fromByteBuf(plaintext);
+                assertEquals(i, message.getData()[0]);
+                message.release();
+            } finally {
+                plaintext.release();
+            }
+        }
+
+        sender.finishAndReleaseAll();
+        receiver.finishAndReleaseAll();
+    }
+}
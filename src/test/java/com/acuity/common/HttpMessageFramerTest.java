@@ -0,0 +1,102 @@
+package com.acuity.common;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for finding HTTP/1.1 message boundaries in a byte stream
+ */
+public class HttpMessageFramerTest {
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String text(HttpMessageFramer.Message message) {
+        return new String(message.bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    public void testPipelinedRequestsAreSplit() throws IOException {
+        HttpMessageFramer framer = HttpMessageFramer.requests(8192);
+        String get = "GET /a HTTP/1.1\r\nHost: x\r\n\r\n";
+        String post = "POST /b HTTP/1.1\r\nHost: x\r\nContent-Length: 5\r\n\r\nhello";
+        framer.feed(bytes(get + post));
+
+        HttpMessageFramer.Message first = framer.next();
+        assertEquals(get, text(first));
+        assertEquals("GET", first.method);
+        assertEquals(post, text(framer.next()));
+        assertNull(framer.next());
+    }
+
+    @Test
+    public void testBodyCompletesAcrossFeeds() throws IOException {
+        HttpMessageFramer framer = HttpMessageFramer.requests(8192);
+        framer.feed(bytes("PUT /c HTTP/1.1\r\nContent-Len"));
+        assertNull(framer.next());
+        framer.feed(bytes("gth: 4\r\n\r\nab"));
+        assertNull(framer.next());
+        framer.feed(bytes("cd"));
+        assertEquals("PUT /c HTTP/1.1\r\nContent-Length: 4\r\n\r\nabcd", text(framer.next()));
+    }
+
+    @Test
+    public void testChunkedResponseEndsAtLastChunk() throws IOException {
+        HttpMessageFramer framer = HttpMessageFramer.responses(8192);
+        framer.expectResponseTo("GET");
+        framer.expectResponseTo("GET");
+        String chunked = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n6;ext=1\r\n world\r\n0\r\nX-Trailer: y\r\n\r\n";
+        String next = "HTTP/1.1 204 No Content\r\n\r\n";
+        framer.feed(bytes(chunked.substring(0, 60)));
+        assertNull(framer.next());
+        framer.feed(bytes(chunked.substring(60) + next));
+
+        assertEquals(chunked, text(framer.next()));
+        HttpMessageFramer.Message noContent = framer.next();
+        assertEquals(next, text(noContent));
+        assertEquals(204, noContent.status);
+    }
+
+    @Test
+    public void testHeadResponseHasNoBody() throws IOException {
+        HttpMessageFramer framer = HttpMessageFramer.responses(8192);
+        framer.expectResponseTo("HEAD");
+        framer.feed(bytes("HTTP/1.1 200 OK\r\nContent-Length: 100\r\n\r\n"));
+        assertEquals(200, framer.next().status);
+    }
+
+    @Test
+    public void testResponseWithoutLengthEndsWithConnection() throws IOException {
+        HttpMessageFramer framer = HttpMessageFramer.responses(8192);
+        framer.expectResponseTo("GET");
+        framer.feed(bytes("HTTP/1.0 200 OK\r\n\r\nuntil close"));
+        assertNull(framer.next());
+        HttpMessageFramer.Message message = framer.finish();
+        assertEquals("HTTP/1.0 200 OK\r\n\r\nuntil close", text(message));
+        assertTrue(message.close);
+    }
+
+    @Test
+    public void testUpgradeSwitchesToPassthrough() throws IOException {
+        HttpMessageFramer framer = HttpMessageFramer.responses(8192);
+        framer.expectResponseTo("GET");
+        framer.feed(bytes("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\n\r\n\u0081\u0002hi"));
+        assertEquals(101, framer.next().status);
+        assertTrue(framer.isPassthrough());
+        assertEquals("\u0081\u0002hi", text(framer.next()));
+    }
+
+    @Test(expected = IOException.class)
+    public void testNonHttpBytesAreRejected() throws IOException {
+        HttpMessageFramer framer = HttpMessageFramer.requests(8192);
+        framer.feed(bytes("PING\r\n\r\n"));
+        framer.next();
+    }
+}
@@ -0,0 +1,79 @@
+package com.acuity.common;
+
+import com.acuity.common.MemoryBudget.Limits;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for accounting in-flight bytes against per-stream, per-user, per-group and global limits
+ */
+public class MemoryBudgetTest {
+    private final MemoryBudget budget = new MemoryBudget("test");
+
+    @Test
+    public void testStreamOverItsLimitIsRefused() {
+        MemoryBudget.Lease lease = budget.open(new Limits(0, 0, 0, 1000), "g", "u1");
+        assertTrue(lease.reserve(600));
+        assertFalse(lease.reserve(600));
+        assertEquals(600, lease.bytes());
+        assertEquals(600, budget.used());
+        assertEquals(1, budget.refused());
+    }
+
+    @Test
+    public void testUserLimitSpansItsStreams() {
+        Limits limits = new Limits(0, 0, 1000, 0);
+        MemoryBudget.Lease first = budget.open(limits, "g", "u1");
+        MemoryBudget.Lease second = budget.open(limits, "g", "u1");
+        MemoryBudget.Lease otherUser = budget.open(limits, "g", "u2");
+        assertTrue(first.reserve(700));
+        assertFalse(second.reserve(400));
+        assertTrue(otherUser.reserve(400));
+        assertFalse(budget.isExhausted(limits, "g", "u1"));
+
+        first.close();
+        assertTrue(second.reserve(400));
+        assertEquals(0, budget.usedByUser("nobody"));
+        assertEquals(800, budget.usedByGroup("g"));
+    }
+
+    @Test
+    public void testRefusedReservationTakesNothingAtAnyLevel() {
+        Limits limits = new Limits(1000, 0, 0, 0);
+        MemoryBudget.Lease held = budget.open(limits, "g1", "u1");
+        assertTrue(held.reserve(900));
+        MemoryBudget.Lease refused = budget.open(limits, "g2", "u2");
+        assertFalse(refused.reserve(200));
+        assertEquals(900, budget.used());
+        assertEquals(0, budget.usedByGroup("g2"));
+        assertEquals(0, budget.usedByUser("u2"));
+    }
+
+    @Test
+    public void testChargedBytesCountButAreNeverRefused() {
+        Limits limits = new Limits(1000, 0, 0, 0);
+        MemoryBudget.Lease queued = budget.open(limits, null, null);
+        queued.charge(1500);
+        assertEquals(1500, budget.used());
+        assertTrue(budget.isExhausted(limits, "g", "u1"));
+        assertFalse(budget.open(limits, "g", "u1").reserve(1));
+
+        queued.release(1000);
+        assertFalse(budget.isExhausted(limits, "g", "u1"));
+        queued.close();
+        assertEquals(0, budget.used());
+    }
+
+    @Test
+    public void testClosedLeaseRefusesMore() {
+        MemoryBudget.Lease lease = budget.open(Limits.unlimited(), "g", "u1");
+        assertTrue(lease.reserve(100));
+        lease.close();
+        assertFalse(lease.reserve(1));
+        assertEquals(0, budget.used());
+        assertEquals(0, budget.usedByGroup("g"));
+    }
+}
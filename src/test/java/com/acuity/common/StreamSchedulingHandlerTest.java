@@ -0,0 +1,99 @@
+package com.acuity.common;
+
+import com.acuity.common.StreamSchedulingHandler.Priority;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Unit tests for deficit round-robin scheduling of stream frames
+ */
+public class StreamSchedulingHandlerTest {
+    private static final int CHUNK = 16 * 1024;
+
+    @Test
+    public void testInteractiveFrameIsNotQueuedBehindBulkStream() {
+        EmbeddedChannel channel = new EmbeddedChannel(new StreamSchedulingHandler());
+        for (int i = 0; i < 8; i++) {
+            channel.write(StreamSchedulingHandler.frame(channel, "u1:1", Priority.BULK, frame('b', i, CHUNK)));
+        }
+        channel.writeAndFlush(StreamSchedulingHandler.frame(channel, "u2:1", Priority.INTERACTIVE, frame('i', 0, 512)));
+        channel.runPendingTasks();
+
+        List<String> order = readAll(channel);
+        assertEquals(9, order.size());
+        // The bulk stream gets one quantum, then the interactive stream goes out
+        assertEquals("i0", order.get(1));
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testFramesOfAStreamKeepTheirOrder() {
+        EmbeddedChannel channel = new EmbeddedChannel(new StreamSchedulingHandler());
+        for (int i = 0; i < 4; i++) {
+            channel.write(StreamSchedulingHandler.frame(channel, "u1:1", Priority.BULK, frame('a', i, CHUNK)));
+            channel.write(StreamSchedulingHandler.frame(channel, "u1:2", Priority.BULK, frame('b', i, CHUNK)));
+        }
+        channel.flush();
+        channel.runPendingTasks();
+
+        List<String> order = readAll(channel);
+        List<String> first = new ArrayList<>();
+        List<String> second = new ArrayList<>();
+        for (String frame : order) {
+            (frame.startsWith("a") ? first : second).add(frame);
+        }
+        assertEquals(List.of("a0", "a1", "a2", "a3"), first);
+        assertEquals(List.of("b0", "b1", "b2", "b3"), second);
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testFramesPassThroughWithoutScheduler() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        ByteBuf frame = frame('a', 0, 16);
+        assertSame(frame, StreamSchedulingHandler.frame(channel, "u1:1", Priority.BULK, frame));
+        frame.release();
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testQueuedBytesCountAgainstMemoryBudget() {
+        MemoryBudget budget = new MemoryBudget("test");
+        EmbeddedChannel channel = new EmbeddedChannel(new StreamSchedulingHandler(CHUNK, 1, budget.open(MemoryBudget.Limits.unlimited(), null, null)));
+        for (int i = 0; i < 4; i++) {
+            channel.write(StreamSchedulingHandler.frame(channel, "u1:1", Priority.BULK, frame('a', i, CHUNK)));
+        }
+        assertEquals(4 * CHUNK, budget.used());
+
+        channel.flush();
+        readAll(channel);
+        assertEquals(0, budget.used());
+        channel.finishAndReleaseAll();
+    }
+
+    private static ByteBuf frame(char stream, int index, int size) {
+        ByteBuf frame = Unpooled.buffer(size);
+        frame.writeByte(stream);
+        frame.writeByte(index);
+        frame.writerIndex(size);
+        return frame;
+    }
+
+    private static List<String> readAll(EmbeddedChannel channel) {
+        List<String> order = new ArrayList<>();
+        ByteBuf frame;
+        while ((frame = channel.readOutbound()) != null) {
+            order.add((char) frame.getByte(0) + String.valueOf(frame.getByte(1)));
+            frame.release();
+        }
+        return order;
+    }
+}
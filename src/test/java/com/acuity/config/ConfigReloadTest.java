@@ -0,0 +1,64 @@
+package com.acuity.config;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for applying a reloaded configuration
+ */
+public class ConfigReloadTest {
+
+    @Test
+    public void testLiveSettingsAreApplied() {
+        ClientConfig config = new ClientConfig();
+        ClientConfig updated = new ClientConfig();
+        updated.setMaxConcurrentRequests(config.getMaxConcurrentRequests() * 2);
+        updated.setLogLevel("DEBUG");
+        updated.setResumeGraceMillis(30_000);
+
+        ConfigChanges changes = config.reloadFrom(updated);
+
+        assertEquals(updated.getMaxConcurrentRequests(), config.getMaxConcurrentRequests());
+        assertEquals("DEBUG", config.getLogLevel());
+        assertEquals(30_000, config.getResumeGraceMillis());
+        assertEquals(3, changes.getApplied().size());
+        assertTrue(changes.getRestartRequired().isEmpty());
+    }
+
+    @Test
+    public void testLoadBalancingStrategyIsAppliedLive() throws Exception {
+        ServerConfig config = new ServerConfig();
+        ServerConfig updated = ServerConfig.loadFromFile(ConfigValidationTest.write("[loadBalancing]\nstrategy = \"hash\"\n"));
+
+        ConfigChanges changes = config.reloadFrom(updated);
+
+        assertEquals(ServerConfig.LOAD_BALANCING_HASH, config.getLoadBalancing());
+        assertEquals(1, changes.getApplied().size());
+        assertTrue(changes.getRestartRequired().isEmpty());
+    }
+
+    @Test
+    public void testRestartOnlySettingsAreReportedNotApplied() {
+        ServerConfig config = new ServerConfig();
+        ServerConfig updated = new ServerConfig();
+        updated.setPort(config.getPort() + 1);
+        updated.setSharedKey("new-key");
+        updated.setResumeGraceMillis(0);
+
+        ConfigChanges changes = config.reloadFrom(updated);
+
+        assertEquals(updated.getPort() - 1, config.getPort());
+        assertEquals(0, config.getResumeGraceMillis());
+        assertEquals(2, changes.getRestartRequired().size());
+        // Keys are reported as changed without their values
+        assertFalse(changes.toString().contains("new-key"));
+    }
+
+    @Test
+    public void testUnchangedConfigurationReportsNoChanges() {
+        assertTrue(new ClientConfig().reloadFrom(new ClientConfig()).isEmpty());
+    }
+}
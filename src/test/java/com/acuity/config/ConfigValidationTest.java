@@ -0,0 +1,67 @@
+package com.acuity.config;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for loading and validating tuning settings
+ */
+public class ConfigValidationTest {
+
+    @Test
+    public void testDefaultsAreValid() {
+        new ClientConfig().validate();
+        new ServerConfig().validate();
+    }
+
+    @Test
+    public void testTuningSettingsAreLoaded() throws Exception {
+        ClientConfig config = ClientConfig.loadFromFile(write(
+            "[netty]\nidleTimeoutSeconds = 15\nsoRcvbuf = 1048576\nallocator = \"unpooled\"\n"));
+        config.validate();
+        assertEquals(15, config.getIdleTimeoutSeconds());
+        assertEquals(1048576, config.getSoRcvbuf());
+        assertEquals("unpooled", config.getAllocator());
+    }
+
+    @Test
+    public void testRateLimitsAreLoaded() throws Exception {
+        ServerConfig config = ServerConfig.loadFromFile(write(
+            "[rateLimit]\nperUserBytesPerSecond = 1000\n[rateLimit.groups]\nteamA = 5000\n[rateLimit.ports]\n\"8080\" = 2000\n"));
+        config.validate();
+        assertEquals(1000, config.getRateLimits().userLimit());
+        assertEquals(5000, config.getRateLimits().groupLimit("teamA"));
+        assertEquals(0, config.getRateLimits().groupLimit("default"));
+        assertEquals(2000, config.getRateLimits().portLimit(8080));
+    }
+
+    @Test
+    public void testInvalidSettingsAreAllReported() throws Exception {
+        ServerConfig config = ServerConfig.loadFromFile(write(
+            "[server]\nsoBacklog = 0\nwriteBufferLowWaterMark = 65536\nwriteBufferHighWaterMark = 1024\nallocator = \"arena\"\n"
+                + "[loadBalancing]\nstrategy = \"least-loaded\"\n"));
+        try {
+            config.validate();
+            fail("expected validation to fail");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("soBacklog"));
+            assertTrue(e.getMessage(), e.getMessage().contains("water marks"));
+            assertTrue(e.getMessage(), e.getMessage().contains("allocator"));
+            assertTrue(e.getMessage(), e.getMessage().contains("loadBalancing.strategy"));
+        }
+    }
+
+    static String write(String toml) throws Exception {
+        File file = File.createTempFile("acuity-config", ".toml");
+        file.deleteOnExit();
+        Files.write(file.toPath(), toml.getBytes(StandardCharsets.UTF_8));
+        return file.getPath();
+    }
+}
@@ -0,0 +1,58 @@
+package com.acuity.server;
+
+import com.acuity.config.RateLimits;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for hierarchical token-bucket shaping
+ */
+public class BandwidthShaperTest {
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void testUnlimitedNeverDelays() {
+        BandwidthShaper shaper = new BandwidthShaper();
+        assertEquals(0, shaper.reserve(RateLimits.unlimited(), "default:8080", "user1", 100 * MB));
+    }
+
+    @Test
+    public void testUserLimitPacesBeyondBurst() {
+        BandwidthShaper shaper = new BandwidthShaper();
+        RateLimits limits = new RateLimits(0, 0, MB, 100, Collections.emptyMap(), Collections.emptyMap());
+
+        // The first 100ms worth fits the burst, one more second of traffic has to wait about a second
+        assertEquals(0, shaper.reserve(limits, "default:8080", "user1", MB / 10));
+        long delayNanos = shaper.reserve(limits, "default:8080", "user1", MB);
+        assertTrue("delay " + delayNanos, Math.abs(delayNanos - TimeUnit.SECONDS.toNanos(1)) < TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void testActiveUsersShareThePortLimit() {
+        BandwidthShaper shaper = new BandwidthShaper();
+        RateLimits limits = new RateLimits(0, 0, 0, 100, Collections.emptyMap(), Collections.singletonMap(8080, 2 * MB));
+
+        shaper.reserve(limits, "default:8080", "heavy", 1);
+        shaper.reserve(limits, "default:8080", "light", 1);
+        sleepPastRecount();
+
+        // Each of the two active users paces at half the port's 2MB/s
+        long heavyDelay = shaper.reserve(limits, "default:8080", "heavy", 2 * MB);
+        long lightDelay = shaper.reserve(limits, "default:8080", "light", MB / 20);
+        assertTrue("heavy delay " + heavyDelay, heavyDelay > TimeUnit.MILLISECONDS.toNanos(1800));
+        assertEquals(0, lightDelay);
+    }
+
+    private static void sleepPastRecount() {
+        try {
+            Thread.sleep(60);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
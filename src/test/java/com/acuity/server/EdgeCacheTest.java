@@ -0,0 +1,108 @@
+package com.acuity.server;
+
+import com.acuity.common.HttpMessageFramer;
+import com.acuity.config.ServerConfig;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.FileRegion;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for the memory and disk tiers of the server's edge cache
+ */
+public class EdgeCacheTest {
+    private static final byte[] GET = bytes("GET /logo.png HTTP/1.1\r\nHost: example.com\r\n\r\n");
+
+    private ServerConfig config;
+    private EdgeCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        config = new ServerConfig();
+        config.setEdgeCacheMemoryBytes(64 * 1024);
+        config.setEdgeCacheDiskBytes(1024 * 1024);
+        config.setEdgeCacheDirectory(Files.createTempDirectory("edge-cache-test").toString());
+        cache = new EdgeCache();
+    }
+
+    @After
+    public void tearDown() {
+        cache.clear();
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static HttpMessageFramer.Message response(int status, String head, String body) {
+        return new HttpMessageFramer.Message(bytes("HTTP/1.1 " + status + " X\r\n" + head + "Content-Length: " + body.length() + "\r\n\r\n" + body),
+            null, status, false);
+    }
+
+    private static String text(ByteBuf buffer) {
+        String text = buffer.toString(StandardCharsets.ISO_8859_1);
+        buffer.release();
+        return text;
+    }
+
+    @Test
+    public void testSmallResponseIsServedFromMemory() {
+        EdgeCache.Lookup miss = cache.lookup(config, GET, "GET");
+        assertNull(miss.fresh);
+        assertNull(cache.complete(config, miss, response(200, "Cache-Control: max-age=60\r\n", "image")));
+
+        EdgeCache.Hit hit = cache.lookup(config, GET, "GET").fresh;
+        assertNotNull(hit);
+        assertTrue(text(hit.head()).startsWith("HTTP/1.1 200 X\r\nAge: 0\r\n"));
+        Object body = hit.body();
+        assertTrue(body instanceof ByteBuf);
+        assertTrue(text((ByteBuf) body).endsWith("\r\n\r\nimage"));
+        hit.release();
+        assertEquals(1, cache.hits());
+        assertEquals(0, cache.diskBytes());
+    }
+
+    @Test
+    public void testLargeResponseIsServedFromDisk() throws Exception {
+        String body = "x".repeat(16 * 1024);
+        cache.complete(config, cache.lookup(config, GET, "GET"), response(200, "Cache-Control: max-age=60\r\n", body));
+        assertEquals(0, cache.memoryBytes());
+        // Written by the disk thread
+        for (int i = 0; i < 100 && cache.diskBytes() == 0; i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(cache.diskBytes() > body.length());
+
+        EdgeCache.Hit hit = cache.lookup(config, GET, "GET").fresh;
+        assertNotNull(hit);
+        Object region = hit.body();
+        assertTrue(region instanceof FileRegion);
+        assertEquals(hit.bodyLength(), ((FileRegion) region).count());
+        ((FileRegion) region).release();
+        hit.release();
+    }
+
+    @Test
+    public void testNotModifiedIsAnsweredWithStoredResponse() {
+        cache.complete(config, cache.lookup(config, GET, "GET"), response(200, "Cache-Control: no-cache\r\nETag: \"v1\"\r\n", "image"));
+
+        EdgeCache.Lookup stale = cache.lookup(config, GET, "GET");
+        assertNull(stale.fresh);
+        assertTrue(new String(stale.request, StandardCharsets.ISO_8859_1).contains("If-None-Match: \"v1\"\r\n\r\n"));
+
+        EdgeCache.Hit revalidated = cache.complete(config, stale, response(304, "", ""));
+        assertNotNull(revalidated);
+        assertTrue(text((ByteBuf) revalidated.body()).endsWith("image"));
+        revalidated.release();
+        assertEquals(1, cache.revalidated());
+    }
+}
@@ -0,0 +1,144 @@
+package com.acuity.server;
+
+import com.acuity.config.ServerConfig;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for proxy port routing snapshots and port allocation
+ */
+public class ProxyPortRegistryTest {
+
+    @Test
+    public void testFirstRegistrationBindsThePort() {
+        ProxyPortRegistry registry = new ProxyPortRegistry();
+        assertTrue(registry.register("ch1", 18080, "default", 80, "clientA", "tcp"));
+        assertFalse(registry.register("ch2", 18080, "default", 80, "clientA", "tcp"));
+        assertFalse(registry.register("ch3", 18080, "other", 81, "clientB", "tcp"));
+
+        ProxyPortRegistry.PortRoute route = registry.route(18080);
+        assertEquals(Arrays.asList("clientA", "clientB"), route.getClients());
+        assertEquals(Arrays.asList("ch1", "ch2"), route.getConnections("clientA"));
+        assertEquals(Integer.valueOf(81), route.getTargetPort("other"));
+        assertEquals("default:18080", registry.registration("ch1").getMapKey());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPortServesOneProtocol() {
+        ProxyPortRegistry registry = new ProxyPortRegistry();
+        registry.register("ch1", 18081, "default", 53, "clientA", "udp");
+        registry.register("ch2", 18081, "default", 80, "clientB", "tcp");
+    }
+
+    @Test
+    public void testSnapshotsAreNotChangedByLaterRegistrations() {
+        ProxyPortRegistry registry = new ProxyPortRegistry();
+        registry.register("ch1", 18082, "default", 80, "clientA", "tcp");
+        ProxyPortRegistry.PortRoute before = registry.route(18082);
+        registry.register("ch2", 18082, "default", 80, "clientB", "tcp");
+
+        assertEquals(Collections.singletonList("clientA"), before.getClients());
+        assertEquals(2, registry.route(18082).getClients().size());
+    }
+
+    @Test
+    public void testPortIsUnboundOnlyOnceIdle() {
+        ProxyPortRegistry registry = new ProxyPortRegistry();
+        registry.register("ch1", 18083, "default", 80, "clientA", "tcp");
+        registry.register("ch2", 18083, "default", 80, "clientA", "tcp");
+
+        registry.unregister("ch1");
+        assertFalse(registry.unbindIfIdle(18083));
+        registry.unregister("ch2");
+        assertTrue(registry.route(18083).isIdle());
+        assertTrue(registry.unbindIfIdle(18083));
+        assertNull(registry.route(18083));
+        assertNull(registry.registration("ch2"));
+    }
+
+    @Test
+    public void testAllocationReusesThePortOfTheSameClient() {
+        ProxyPortRegistry registry = new ProxyPortRegistry();
+        int first = registry.allocate("clientA", "tcp", 18090, 18099);
+        assertTrue(first >= 18090 && first <= 18099);
+        assertEquals(first, registry.allocate("clientA", "tcp", 18090, 18099));
+
+        int second = registry.allocate("clientB", "tcp", 18090, 18099);
+        assertNotEquals(first, second);
+
+        registry.register("ch1", first, "default", 80, "clientA", "tcp");
+        registry.unregister("ch1");
+        registry.unbindIfIdle(first);
+        assertNotEquals(-1, registry.allocate("clientC", "tcp", first, first));
+    }
+
+    @Test
+    public void testAllocationFailsWhenTheRangeIsExhausted() {
+        ProxyPortRegistry registry = new ProxyPortRegistry();
+        int port = registry.allocate("clientA", "tcp", 18100, 18100);
+        assertEquals(18100, port);
+        assertEquals(-1, registry.allocate("clientB", "tcp", 18100, 18100));
+    }
+
+    @Test
+    public void testHostnamesRouteToTheirGroup() {
+        ProxyPortRegistry registry = new ProxyPortRegistry();
+        registry.register("ch1", 18084, "api", 80, "clientA", "http", Collections.singletonList("api.example.com"));
+        registry.register("ch2", 18084, "apps", 80, "clientB", "http", Collections.singletonList("*.apps.example.com"));
+        registry.register("ch3", 18084, "fallback", 80, "clientC", "http");
+
+        ProxyPortRegistry.PortRoute route = registry.route(18084);
+        assertTrue(route.hasHostnames());
+        assertEquals(Collections.singletonList("clientA"), route.getClientsForHost("api.example.com"));
+        assertEquals(Collections.singletonList("clientB"), route.getClientsForHost("shop.apps.example.com"));
+        assertEquals(Collections.singletonList("clientB"), route.getClientsForHost("a.b.apps.example.com"));
+        // The wildcard covers names below the domain only; unclaimed names go to groups without hostnames
+        assertEquals(Collections.singletonList("clientC"), route.getClientsForHost("apps.example.com"));
+        assertEquals(Collections.singletonList("clientC"), route.getClientsForHost(""));
+
+        registry.unregister("ch2");
+        assertEquals(Collections.singletonList("clientC"), registry.route(18084).getClientsForHost("shop.apps.example.com"));
+    }
+
+    @Test
+    public void testStrategyPicksTheFirstClientToTry() {
+        ProxyPortRegistry registry = new ProxyPortRegistry();
+        registry.register("ch1", 18086, "default", 80, "clientA", "tcp");
+        registry.register("ch2", 18086, "default", 80, "clientB", "tcp");
+        registry.register("ch3", 18086, "default", 80, "clientC", "tcp");
+        ProxyPortRegistry.PortRoute route = registry.route(18086);
+
+        assertEquals(0, registry.pick(route, "u1:1", 3));
+        assertEquals(1, registry.pick(route, "u1:1", 3));
+
+        // Switching the strategy takes effect for the next pick
+        registry.setLoadBalancing(ServerConfig.LOAD_BALANCING_HASH);
+        int hashed = registry.pick(route, "session-1", 3);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(hashed, registry.pick(route, "session-1", 3));
+        }
+        // Without a key there is nothing to hash, so the turn goes on
+        assertEquals(2, registry.pick(route, null, 3));
+
+        registry.setLoadBalancing(ServerConfig.LOAD_BALANCING_RANDOM);
+        for (int i = 0; i < 10; i++) {
+            int picked = registry.pick(route, "u1:1", 3);
+            assertTrue(picked >= 0 && picked < 3);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testHostnameBelongsToOneGroup() {
+        ProxyPortRegistry registry = new ProxyPortRegistry();
+        registry.register("ch1", 18085, "blue", 80, "clientA", "tcp", Collections.singletonList("www.example.com"));
+        registry.register("ch2", 18085, "green", 80, "clientB", "tcp", Collections.singletonList("www.example.com"));
+    }
+}
@@ -0,0 +1,104 @@
+package com.acuity.server;
+
+import com.acuity.config.ServerConfig;
+import io.netty.channel.FileRegion;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for stream data spilled to the shared spill file and read back as file regions
+ */
+public class SpillBufferTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ServerConfig config;
+    private SpillArena arena;
+
+    @Before
+    public void setUp() {
+        config = new ServerConfig();
+        config.setSpillDirectory(folder.getRoot().getPath());
+        config.setSpillMaxBytes(1024 * 1024);
+        arena = new SpillArena();
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * What the user would receive: the head, then every extent sent as a file region
+     */
+    private static byte[] sent(byte[] head, SpillBuffer buffer) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(head);
+        WritableByteChannel target = Channels.newChannel(out);
+        for (SpillBuffer.Extent extent : buffer.extents()) {
+            FileRegion region = extent.region(0, extent.length());
+            while (region.transferred() < region.count()) {
+                region.transferTo(target, region.transferred());
+            }
+            region.release();
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testSpilledBytesAreSentBackInOrder() throws IOException {
+        Random random = new Random(1);
+        byte[] head = randomBytes(random, 1000);
+        byte[] rest = randomBytes(random, 300 * 1024 + 17);
+        SpillBuffer buffer = new SpillBuffer(arena, config);
+        // Chunks of odd sizes straddle the block boundaries
+        for (int offset = 0; offset < rest.length; offset += 7919) {
+            assertTrue(buffer.append(Arrays.copyOfRange(rest, offset, Math.min(rest.length, offset + 7919))));
+        }
+        assertEquals(rest.length, buffer.length());
+
+        byte[] expected = new byte[head.length + rest.length];
+        System.arraycopy(head, 0, expected, 0, head.length);
+        System.arraycopy(rest, 0, expected, head.length, rest.length);
+        assertArrayEquals(expected, sent(head, buffer));
+        assertArrayEquals(expected, buffer.toByteArray(head));
+
+        buffer.release();
+        assertEquals(0, arena.usedBytes());
+    }
+
+    @Test
+    public void testFullArenaRefusesAndFreedBlocksAreReused() throws IOException {
+        Random random = new Random(2);
+        SpillBuffer first = new SpillBuffer(arena, config);
+        assertTrue(first.append(randomBytes(random, 1024 * 1024)));
+        SpillBuffer second = new SpillBuffer(arena, config);
+        assertFalse(second.append(randomBytes(random, 1)));
+        second.release();
+
+        first.release();
+        byte[] data = randomBytes(random, 512 * 1024);
+        SpillBuffer third = new SpillBuffer(arena, config);
+        assertTrue(third.append(data));
+        // Reuses the lowest blocks, so the data is one extent at the start of the file
+        assertEquals(1, third.extents().size());
+        assertArrayEquals(data, sent(new byte[0], third));
+        third.release();
+        assertFalse(third.append(data));
+    }
+}
@@ -0,0 +1,214 @@
+package com.acuity.server;
+
+import com.acuity.common.SymmetricDecryptionHandler;
+import com.acuity.common.SymmetricEncryption;
+import com.acuity.common.SymmetricEncryptionHandler;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.TooLongFrameException;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for the binary TunnelMessage frame and the encrypted codec around it
+ */
+public class TunnelMessageTest {
+    private static final String SHARED_KEY = "Hu5SNsC4RUrRO06vtNWkRwVDeR2phas3Pih7D+uJ/V4=";
+
+    @BeforeClass
+    public static void setUpKey() {
+        SymmetricEncryption.setSecretKeyFromBase64(SHARED_KEY);
+    }
+
+    @Test
+    public void testBytesRoundTrip() {
+        byte[] data = "hello tunnel".getBytes(StandardCharsets.UTF_8);
+        TunnelMessage decoded = TunnelMessage.fromBytes(new TunnelMessage("abc123", "7", TunnelAction.FORWARD, data).toBytes());
+
+        assertEquals("abc123", decoded.getUserChannelId());
+        assertEquals("7", decoded.getStreamId());
+        assertEquals(TunnelAction.FORWARD, decoded.getAction());
+        assertArrayEquals(data, decoded.getData());
+    }
+
+    @Test
+    public void testNullFieldsAndRawAction() {
+        TunnelMessage decoded = TunnelMessage.fromBytes(new TunnelMessage(null, "ADDPROXY:8080:group:80", new byte[0]).toBytes());
+
+        assertNull(decoded.getUserChannelId());
+        assertEquals("0", decoded.getStreamId());
+        assertEquals(TunnelAction.ADDPROXY, decoded.getAction());
+        assertEquals("ADDPROXY:8080:group:80", decoded.getRawAction());
+        assertEquals(0, decoded.getData().length);
+    }
+
+    @Test
+    public void testEncodeSliceDoesNotCopyPayload() {
+        ByteBuf source = Unpooled.wrappedBuffer("0123456789".getBytes(StandardCharsets.UTF_8));
+        ByteBuf frame = TunnelMessage.encode(PooledByteBufAllocator.DEFAULT, "u1", "2",
+            TunnelAction.STREAM_DATA.toString(), source.retainedSlice(2, 4));
+        try {
+            // Writes to the source are visible through the frame until it is encoded
+            source.setByte(2, 'x');
+            TunnelMessage decoded = TunnelMessage.fromByteBuf(frame);
+            assertEquals("x345", new String(decoded.getData(), StandardCharsets.UTF_8));
+            decoded.release();
+        } finally {
+            frame.release();
+            source.release();
+        }
+        assertEquals(0, source.refCnt());
+    }
+
+    @Test
+    public void testPeekActionDoesNotConsumeFrame() {
+        ByteBuf frame = new TunnelMessage("u1", "3", TunnelAction.STREAM_END, new byte[0]).toByteBuf(Unpooled.buffer().alloc());
+        try {
+            int readable = frame.readableBytes();
+            assertEquals(TunnelAction.STREAM_END, TunnelMessage.peekAction(frame));
+            assertEquals(readable, frame.readableBytes());
+            assertNull(TunnelMessage.peekAction(Unpooled.wrappedBuffer(new byte[] {1, 2})));
+        } finally {
+            frame.release();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsTruncatedFrame() {
+        byte[] bytes = new TunnelMessage("abc123", "1", TunnelAction.FORWARD, new byte[16]).toBytes();
+        TunnelMessage.fromBytes(Arrays.copyOf(bytes, bytes.length - 4));
+    }
+
+    @Test
+    public void testDecodedPayloadIsASliceOfTheFrame() {
+        byte[] data = "0123456789".getBytes(StandardCharsets.UTF_8);
+        ByteBuf frame = Unpooled.copiedBuffer(new TunnelMessage("u1", "2", TunnelAction.STREAM_DATA, data).toBytes());
+        TunnelMessage decoded = TunnelMessage.fromByteBuf(frame);
+        frame.release();
+        // The message keeps the frame alive, and its payload reads the frame's bytes in place
+        assertEquals(1, frame.refCnt());
+        ByteBuf payload = decoded.getPayload();
+        assertEquals(data.length, decoded.getDataLength());
+        frame.setByte(frame.capacity() - 1, 'x');
+        assertEquals('x', payload.getByte(payload.readerIndex() + data.length - 1));
+
+        decoded.release();
+        assertEquals(0, frame.refCnt());
+    }
+
+    @Test
+    public void testEncryptedCodecRoundTrip() {
+        byte[] compressible = new byte[64 * 1024];
+        Arrays.fill(compressible, (byte) 'a');
+        byte[] small = "ping".getBytes(StandardCharsets.UTF_8);
+
+        EmbeddedChannel sender = new EmbeddedChannel(new SymmetricEncryptionHandler());
+        EmbeddedChannel receiver = new EmbeddedChannel(new SymmetricDecryptionHandler());
+
+        for (byte[] payload : Arrays.asList(compressible, small)) {
+            sender.writeOutbound(new TunnelMessage("u1", "1", TunnelAction.FORWARD, payload).toByteBuf(sender.alloc()));
+            ByteBuf encrypted = sender.readOutbound();
+            receiver.writeInbound(encrypted);
+
+            ByteBuf plaintext = receiver.readInbound();
+            try {
+                TunnelMessage message = TunnelMessage.fromByteBuf(plaintext);
+                assertArrayEquals(payload, message.getData());
+                message.release();
+            } finally {
+                plaintext.release();
+            }
+        }
+
+        sender.finishAndReleaseAll();
+        receiver.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testPlainCodecRoundTrip() {
+        byte[] payload = new byte[64 * 1024];
+        Arrays.fill(payload, (byte) 'a');
+
+        EmbeddedChannel sender = new EmbeddedChannel(new SymmetricEncryptionHandler());
+        EmbeddedChannel receiver = new EmbeddedChannel(new SymmetricDecryptionHandler());
+        SymmetricEncryptionHandler.sendPlain(sender);
+        SymmetricDecryptionHandler.acceptPlain(receiver);
+
+        sender.writeOutbound(new TunnelMessage("u1", "1", TunnelAction.FORWARD, payload).toByteBuf(sender.alloc()));
+        ByteBuf frame = sender.readOutbound();
+        // Neither compressed nor encrypted: header plus the message as it was
+        assertEquals(SymmetricEncryptionHandler.FLAG_PLAIN, frame.getByte(frame.readerIndex()));
+        receiver.writeInbound(frame);
+
+        ByteBuf plaintext = receiver.readInbound();
+        try {
+            TunnelMessage message = TunnelMessage.fromByteBuf(plaintext);
+            assertArrayEquals(payload, message.getData());
+            message.release();
+        } finally {
+            plaintext.release();
+        }
+
+        sender.finishAndReleaseAll();
+        receiver.finishAndReleaseAll();
+    }
+
+    @Test(expected = DecoderException.class)
+    public void testPlainFrameRejectedWhereEncryptionIsRequired() {
+        EmbeddedChannel sender = new EmbeddedChannel(new SymmetricEncryptionHandler());
+        SymmetricEncryptionHandler.sendPlain(sender);
+        sender.writeOutbound(new TunnelMessage("u1", "1", TunnelAction.FORWARD, new byte[16]).toByteBuf(sender.alloc()));
+
+        new EmbeddedChannel(new SymmetricDecryptionHandler()).writeInbound((ByteBuf) sender.readOutbound());
+    }
+
+    @Test
+    public void testOversizedFrameLengthClosesTheChannel() {
+        EmbeddedChannel receiver = new EmbeddedChannel(new SymmetricDecryptionHandler(1024));
+        // Only the header arrives; the announced length alone is refused
+        ByteBuf header = Unpooled.buffer().writeByte(0).writeInt(Integer.MAX_VALUE - 1);
+        try {
+            receiver.writeInbound(header);
+            fail("expected the frame to be refused");
+        } catch (DecoderException e) {
+            assertTrue(e instanceof TooLongFrameException);
+        }
+        assertFalse(receiver.isOpen());
+    }
+
+    @Test(expected = CorruptedFrameException.class)
+    public void testNegativeFrameLengthIsRefused() {
+        new EmbeddedChannel(new SymmetricDecryptionHandler()).writeInbound(Unpooled.buffer().writeByte(0).writeInt(-1));
+    }
+
+    @Test
+    public void testFrameInflatingPastTheMaximumIsDropped() {
+        byte[] compressible = new byte[64 * 1024];
+        Arrays.fill(compressible, (byte) 'a');
+        EmbeddedChannel sender = new EmbeddedChannel(new SymmetricEncryptionHandler());
+        EmbeddedChannel receiver = new EmbeddedChannel(new SymmetricDecryptionHandler(16 * 1024));
+
+        sender.writeOutbound(new TunnelMessage("u1", "1", TunnelAction.FORWARD, compressible).toByteBuf(sender.alloc()));
+        ByteBuf encrypted = sender.readOutbound();
+        assertTrue(encrypted.readableBytes() < 16 * 1024);
+        receiver.writeInbound(encrypted);
+        assertNull(receiver.readInbound());
+
+        sender.finishAndReleaseAll();
+        receiver.finishAndReleaseAll();
+    }
+}
@@ -0,0 +1,58 @@
+package com.acuity.server;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Unit tests for reading the requested hostname from TLS and HTTP openings
+ */
+public class VirtualHostSnifferTest {
+
+    private static ByteBuf text(String text) {
+        return Unpooled.copiedBuffer(text, StandardCharsets.ISO_8859_1);
+    }
+
+    private static ByteBuf clientHello(String host) throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, null, null);
+        SSLEngine engine = context.createSSLEngine(host, 443);
+        engine.setUseClientMode(true);
+        ByteBuffer out = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+        engine.beginHandshake();
+        engine.wrap(ByteBuffer.allocate(0), out);
+        out.flip();
+        return Unpooled.wrappedBuffer(out);
+    }
+
+    @Test
+    public void testServerNameIsReadFromClientHello() throws Exception {
+        ByteBuf hello = clientHello("Shop.Example.com");
+        assertEquals("shop.example.com", VirtualHostSniffer.sniff(hello));
+
+        // Split across reads, the record is incomplete until its last byte
+        assertNull(VirtualHostSniffer.sniff(hello.slice(0, hello.readableBytes() - 1)));
+    }
+
+    @Test
+    public void testHostHeaderIsRead() {
+        assertEquals("api.example.com", VirtualHostSniffer.sniff(text("GET / HTTP/1.1\r\nHOST: API.example.com:8443\r\n\r\n")));
+        assertEquals("[::1]", VirtualHostSniffer.sniff(text("GET / HTTP/1.1\r\nHost: [::1]\r\n\r\n")));
+        assertNull(VirtualHostSniffer.sniff(text("GET / HTTP/1.1\r\nHost: api.exa")));
+        assertEquals("", VirtualHostSniffer.sniff(text("GET / HTTP/1.0\r\n\r\n")));
+    }
+
+    @Test
+    public void testOtherProtocolsNameNoHost() {
+        assertEquals("", VirtualHostSniffer.sniff(text("SSH-2.0-OpenSSH_9.6\r\n")));
+        assertEquals("", VirtualHostSniffer.sniff(Unpooled.wrappedBuffer(new byte[]{22, 3, 1, 0, 4, 2, 0, 0, 0})));
+    }
+}
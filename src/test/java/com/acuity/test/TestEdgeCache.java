@@ -0,0 +1,211 @@
+package com.acuity.test;
+
+import com.acuity.client.TunnelClientApp;
+import com.acuity.config.ClientConfig;
+import com.acuity.config.ServerConfig;
+import com.acuity.server.TunnelServerApp;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Integration test for the server's edge cache: repeated requests for cacheable resources on an
+ * HTTP proxy port are answered by the tunnel server, from memory or from disk, without crossing
+ * the tunnel again.
+ */
+public class TestEdgeCache {
+    private static final int TUNNEL_SERVER_PORT = 7008;
+    private static final int HTTP_PROXY_PORT = 8089;
+    private static final int HTTP_TARGET_PORT = 9008;
+    private static final String TUNNEL_HOST = "127.0.0.1";
+    private static final long STARTUP_DELAY_MS = 2000;
+    // Over an eighth of the memory budget, so it is stored on disk
+    private static final int LARGE_BODY_BYTES = 256 * 1024;
+
+    private static final String SHARED_KEY_PASSWORD = "Hu5SNsC4RUrRO06vtNWkRwVDeR2phas3Pih7D+uJ/V4=";
+
+    private static final Map<String, AtomicInteger> targetRequests = new ConcurrentHashMap<>();
+    private static HttpServer httpTarget;
+    private static Thread tunnelServerThread;
+    private static Thread tunnelClientThread;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        httpTarget = HttpServer.create(new InetSocketAddress(TUNNEL_HOST, HTTP_TARGET_PORT), 0);
+        httpTarget.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            targetRequests.computeIfAbsent(path, k -> new AtomicInteger()).incrementAndGet();
+            byte[] body = path.startsWith("/large")
+                ? "L".repeat(LARGE_BODY_BYTES).getBytes(StandardCharsets.UTF_8)
+                : ("path=" + path).getBytes(StandardCharsets.UTF_8);
+            if (!path.startsWith("/uncached")) {
+                exchange.getResponseHeaders().set("Cache-Control", "max-age=60");
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        httpTarget.start();
+
+        ServerConfig serverConfig = new ServerConfig();
+        serverConfig.setSharedKey(SHARED_KEY_PASSWORD);
+        serverConfig.setEdgeCacheMemoryBytes(1024 * 1024);
+        serverConfig.setEdgeCacheDiskBytes(8 * 1024 * 1024);
+        serverConfig.setEdgeCacheDirectory(Files.createTempDirectory("edge-cache").toString());
+        tunnelServerThread = new Thread(() -> {
+            try {
+                new TunnelServerApp(TUNNEL_SERVER_PORT, TunnelServerApp.ClientType.SERVER, serverConfig).start();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        tunnelServerThread.setDaemon(true);
+        tunnelServerThread.start();
+        Thread.sleep(STARTUP_DELAY_MS);
+
+        ClientConfig config = new ClientConfig();
+        config.setTunnelHost(TUNNEL_HOST);
+        config.setTunnelPort(TUNNEL_SERVER_PORT);
+        config.setProxyPort(HTTP_PROXY_PORT);
+        config.setTargetHost(TUNNEL_HOST);
+        config.setTargetPort(HTTP_TARGET_PORT);
+        config.setSharedKey(SHARED_KEY_PASSWORD);
+        config.setProtocol(ClientConfig.PROTOCOL_HTTP);
+        tunnelClientThread = new Thread(() -> {
+            try {
+                new TunnelClientApp(config).start();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        tunnelClientThread.setDaemon(true);
+        tunnelClientThread.start();
+        Thread.sleep(STARTUP_DELAY_MS);
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws InterruptedException {
+        tunnelClientThread.interrupt();
+        tunnelClientThread.join(3000);
+        tunnelServerThread.interrupt();
+        tunnelServerThread.join(3000);
+        httpTarget.stop(0);
+    }
+
+    private static int targetRequests(String path) {
+        AtomicInteger count = targetRequests.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    @Test
+    public void testRepeatedRequestsAreAnsweredFromMemory() throws IOException {
+        // Separate user connections share the cache
+        for (int i = 0; i < 3; i++) {
+            try (Socket socket = new Socket(TUNNEL_HOST, HTTP_PROXY_PORT)) {
+                socket.setSoTimeout(10000);
+                socket.getOutputStream().write(request("/small"));
+                assertEquals("path=/small", readResponseBody(socket.getInputStream()));
+            }
+        }
+        assertEquals(1, targetRequests("/small"));
+    }
+
+    @Test
+    public void testLargeResponseIsAnsweredFromDisk() throws Exception {
+        try (Socket socket = new Socket(TUNNEL_HOST, HTTP_PROXY_PORT)) {
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write(request("/large"));
+            assertEquals(LARGE_BODY_BYTES, readResponseBody(socket.getInputStream()).length());
+        }
+        // Stored by the server's disk thread after the response went out
+        Thread.sleep(500);
+        for (int i = 0; i < 2; i++) {
+            try (Socket socket = new Socket(TUNNEL_HOST, HTTP_PROXY_PORT)) {
+                socket.setSoTimeout(10000);
+                socket.getOutputStream().write(request("/large"));
+                assertEquals(LARGE_BODY_BYTES, readResponseBody(socket.getInputStream()).length());
+            }
+        }
+        assertEquals(1, targetRequests("/large"));
+    }
+
+    @Test
+    public void testPipelinedHitsKeepRequestOrder() throws IOException {
+        try (Socket socket = new Socket(TUNNEL_HOST, HTTP_PROXY_PORT)) {
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write(request("/ordered"));
+            assertEquals("path=/ordered", readResponseBody(socket.getInputStream()));
+
+            // The hit must wait for the response to the uncached request sent before it
+            ByteArrayOutputStream pipelined = new ByteArrayOutputStream();
+            pipelined.write(request("/uncached"));
+            pipelined.write(request("/ordered"));
+            socket.getOutputStream().write(pipelined.toByteArray());
+            assertEquals("path=/uncached", readResponseBody(socket.getInputStream()));
+            assertEquals("path=/ordered", readResponseBody(socket.getInputStream()));
+        }
+        assertEquals(1, targetRequests("/ordered"));
+    }
+
+    private static byte[] request(String path) {
+        return ("GET " + path + " HTTP/1.1\r\nHost: " + TUNNEL_HOST + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Read one response, framed by Content-Length or chunked encoding, and return its body
+     */
+    private static String readResponseBody(InputStream in) throws IOException {
+        int contentLength = -1;
+        boolean chunked = false;
+        String line = readLine(in);
+        assertTrue(line, line.startsWith("HTTP/1.1 200"));
+        while (!(line = readLine(in)).isEmpty()) {
+            String lower = line.toLowerCase();
+            if (lower.startsWith("content-length:")) {
+                contentLength = Integer.parseInt(lower.substring(15).trim());
+            } else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) {
+                chunked = true;
+            }
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (chunked) {
+            int size;
+            while ((size = Integer.parseInt(readLine(in).trim(), 16)) > 0) {
+                body.write(in.readNBytes(size));
+                readLine(in);
+            }
+            readLine(in);
+        } else {
+            body.write(in.readNBytes(contentLength));
+        }
+        return body.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+}
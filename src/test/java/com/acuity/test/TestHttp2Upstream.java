@@ -0,0 +1,231 @@
+package com.acuity.test;
+
+import com.acuity.client.TunnelClientApp;
+import com.acuity.config.ClientConfig;
+import com.acuity.server.TunnelServerApp;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Integration test for an HTTP proxy port whose client talks to an h2c target: requests of many
+ * user connections share the client's few HTTP/2 connections, and a slow response does not hold up
+ * the requests sent after it at the target, while the user still gets responses in request order.
+ */
+public class TestHttp2Upstream {
+    private static final int TUNNEL_SERVER_PORT = 7009;
+    private static final int HTTP_PROXY_PORT = 8090;
+    private static final int H2C_TARGET_PORT = 9009;
+    private static final String TUNNEL_HOST = "127.0.0.1";
+    private static final long STARTUP_DELAY_MS = 2000;
+    private static final int H2_CONNECTIONS = 2;
+    private static final long SLOW_RESPONSE_MS = 1000;
+
+    private static final String SHARED_KEY_PASSWORD = "Hu5SNsC4RUrRO06vtNWkRwVDeR2phas3Pih7D+uJ/V4=";
+
+    private static final AtomicInteger targetConnections = new AtomicInteger();
+    private static final AtomicInteger targetRequests = new AtomicInteger();
+    private static EventLoopGroup targetGroup;
+    private static Channel h2cTarget;
+    private static Thread tunnelServerThread;
+    private static Thread tunnelClientThread;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        targetGroup = new NioEventLoopGroup(1);
+        h2cTarget = new ServerBootstrap()
+            .group(targetGroup)
+            .channel(NioServerSocketChannel.class)
+            .childHandler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) {
+                    targetConnections.incrementAndGet();
+                    ch.pipeline().addLast(Http2FrameCodecBuilder.forServer().build());
+                    ch.pipeline().addLast(new Http2MultiplexHandler(new ChannelInitializer<Http2StreamChannel>() {
+                        @Override
+                        protected void initChannel(Http2StreamChannel stream) {
+                            stream.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(true));
+                            stream.pipeline().addLast(new HttpObjectAggregator(1024 * 1024));
+                            stream.pipeline().addLast(new PathEchoHandler());
+                        }
+                    }));
+                }
+            })
+            .bind(TUNNEL_HOST, H2C_TARGET_PORT).sync().channel();
+
+        tunnelServerThread = new Thread(() -> {
+            try {
+                new TunnelServerApp(TUNNEL_SERVER_PORT, TunnelServerApp.ClientType.SERVER, SHARED_KEY_PASSWORD).start();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        tunnelServerThread.setDaemon(true);
+        tunnelServerThread.start();
+        Thread.sleep(STARTUP_DELAY_MS);
+
+        ClientConfig config = new ClientConfig();
+        config.setTunnelHost(TUNNEL_HOST);
+        config.setTunnelPort(TUNNEL_SERVER_PORT);
+        config.setProxyPort(HTTP_PROXY_PORT);
+        config.setTargetHost(TUNNEL_HOST);
+        config.setTargetPort(H2C_TARGET_PORT);
+        config.setSharedKey(SHARED_KEY_PASSWORD);
+        config.setProtocol(ClientConfig.PROTOCOL_HTTP);
+        config.setHttpUpstream(ClientConfig.UPSTREAM_H2C);
+        config.setHttpH2Connections(H2_CONNECTIONS);
+        tunnelClientThread = new Thread(() -> {
+            try {
+                new TunnelClientApp(config).start();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        tunnelClientThread.setDaemon(true);
+        tunnelClientThread.start();
+        Thread.sleep(STARTUP_DELAY_MS);
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws InterruptedException {
+        tunnelClientThread.interrupt();
+        tunnelClientThread.join(3000);
+        tunnelServerThread.interrupt();
+        tunnelServerThread.join(3000);
+        h2cTarget.close().sync();
+        targetGroup.shutdownGracefully();
+    }
+
+    /**
+     * Answers with the request path; paths under /slow are answered after a delay
+     */
+    private static final class PathEchoHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            targetRequests.incrementAndGet();
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                Unpooled.copiedBuffer("path=" + request.uri(), StandardCharsets.UTF_8));
+            response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+            if (request.uri().startsWith("/slow")) {
+                ctx.executor().schedule(() -> ctx.writeAndFlush(response), SLOW_RESPONSE_MS, TimeUnit.MILLISECONDS);
+            } else {
+                ctx.writeAndFlush(response);
+            }
+        }
+    }
+
+    @Test
+    public void testUserConnectionsShareFewTargetConnections() throws IOException {
+        for (int user = 0; user < 5; user++) {
+            try (Socket socket = new Socket(TUNNEL_HOST, HTTP_PROXY_PORT)) {
+                socket.setSoTimeout(10000);
+                for (int i = 0; i < 3; i++) {
+                    socket.getOutputStream().write(request("/user" + user + "/item" + i));
+                    assertEquals("path=/user" + user + "/item" + i, readResponseBody(socket.getInputStream()));
+                }
+            }
+        }
+        assertTrue("target connections: " + targetConnections.get(), targetConnections.get() <= H2_CONNECTIONS);
+    }
+
+    @Test
+    public void testSlowResponseDoesNotHoldUpLaterRequests() throws IOException {
+        try (Socket socket = new Socket(TUNNEL_HOST, HTTP_PROXY_PORT)) {
+            socket.setSoTimeout(10000);
+            int before = targetRequests.get();
+            ByteArrayOutputStream pipelined = new ByteArrayOutputStream();
+            pipelined.write(request("/slow"));
+            for (int i = 0; i < 3; i++) {
+                pipelined.write(request("/fast" + i));
+            }
+            socket.getOutputStream().write(pipelined.toByteArray());
+            long start = System.currentTimeMillis();
+
+            assertEquals("path=/slow", readResponseBody(socket.getInputStream()));
+            // The fast requests reached the target while the slow one was still running
+            assertEquals(4, targetRequests.get() - before);
+            for (int i = 0; i < 3; i++) {
+                assertEquals("path=/fast" + i, readResponseBody(socket.getInputStream()));
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue("responses took " + elapsed + "ms", elapsed < SLOW_RESPONSE_MS + 1500);
+        }
+    }
+
+    private static byte[] request(String path) {
+        return ("GET " + path + " HTTP/1.1\r\nHost: " + TUNNEL_HOST + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Read one response, framed by Content-Length or chunked encoding, and return its body
+     */
+    private static String readResponseBody(InputStream in) throws IOException {
+        int contentLength = -1;
+        boolean chunked = false;
+        String line = readLine(in);
+        assertTrue(line, line.startsWith("HTTP/1.1 200"));
+        while (!(line = readLine(in)).isEmpty()) {
+            String lower = line.toLowerCase();
+            if (lower.startsWith("content-length:")) {
+                contentLength = Integer.parseInt(lower.substring(15).trim());
+            } else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) {
+                chunked = true;
+            }
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (chunked) {
+            int size;
+            while ((size = Integer.parseInt(readLine(in).trim(), 16)) > 0) {
+                body.write(in.readNBytes(size));
+                readLine(in);
+            }
+            readLine(in);
+        } else {
+            body.write(in.readNBytes(contentLength));
+        }
+        return body.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,216 @@
+package com.acuity.test;
+
+import com.acuity.client.TunnelClientApp;
+import com.acuity.config.ClientConfig;
+import com.acuity.server.TunnelServerApp;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Integration test for an HTTP proxy port: requests of one user connection share a kept-alive
+ * target connection, pipelined requests are answered in order, and responses come back as soon
+ * as they are complete rather than when the target closes the connection. The client's response
+ * cache answers repeated requests for cacheable resources.
+ */
+public class TestHttpProxyPort {
+    private static final int TUNNEL_SERVER_PORT = 7007;
+    private static final int HTTP_PROXY_PORT = 8088;
+    private static final int HTTP_TARGET_PORT = 9007;
+    private static final String TUNNEL_HOST = "127.0.0.1";
+    private static final long STARTUP_DELAY_MS = 2000;
+
+    private static final String SHARED_KEY_PASSWORD = "Hu5SNsC4RUrRO06vtNWkRwVDeR2phas3Pih7D+uJ/V4=";
+
+    private static final Set<InetSocketAddress> targetConnections = ConcurrentHashMap.newKeySet();
+    private static final AtomicInteger cacheableRequests = new AtomicInteger();
+    private static final AtomicInteger notModifiedResponses = new AtomicInteger();
+    private static HttpServer httpTarget;
+    private static Thread tunnelServerThread;
+    private static Thread tunnelClientThread;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        httpTarget = HttpServer.create(new InetSocketAddress(TUNNEL_HOST, HTTP_TARGET_PORT), 0);
+        httpTarget.createContext("/", exchange -> {
+            targetConnections.add(exchange.getRemoteAddress());
+            byte[] body = ("path=" + exchange.getRequestURI().getPath()).getBytes(StandardCharsets.UTF_8);
+            if (exchange.getRequestURI().getPath().startsWith("/cached")) {
+                cacheableRequests.incrementAndGet();
+                exchange.getResponseHeaders().set("Cache-Control", "max-age=60");
+            } else if (exchange.getRequestURI().getPath().startsWith("/validated")) {
+                exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+                exchange.getResponseHeaders().set("ETag", "\"v1\"");
+                if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    notModifiedResponses.incrementAndGet();
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+            }
+            if (exchange.getRequestURI().getPath().startsWith("/chunked")) {
+                // Length 0 makes the server send a chunked body
+                exchange.sendResponseHeaders(200, 0);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    for (int i = 0; i < 50; i++) {
+                        out.write(body);
+                    }
+                }
+            } else {
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        httpTarget.start();
+
+        tunnelServerThread = new Thread(() -> {
+            try {
+                new TunnelServerApp(TUNNEL_SERVER_PORT, TunnelServerApp.ClientType.SERVER, SHARED_KEY_PASSWORD).start();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        tunnelServerThread.setDaemon(true);
+        tunnelServerThread.start();
+        Thread.sleep(STARTUP_DELAY_MS);
+
+        ClientConfig config = new ClientConfig();
+        config.setTunnelHost(TUNNEL_HOST);
+        config.setTunnelPort(TUNNEL_SERVER_PORT);
+        config.setProxyPort(HTTP_PROXY_PORT);
+        config.setTargetHost(TUNNEL_HOST);
+        config.setTargetPort(HTTP_TARGET_PORT);
+        config.setSharedKey(SHARED_KEY_PASSWORD);
+        config.setProtocol(ClientConfig.PROTOCOL_HTTP);
+        config.setHttpCacheMaxBytes(1024 * 1024);
+        tunnelClientThread = new Thread(() -> {
+            try {
+                new TunnelClientApp(config).start();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        tunnelClientThread.setDaemon(true);
+        tunnelClientThread.start();
+        Thread.sleep(STARTUP_DELAY_MS);
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws InterruptedException {
+        tunnelClientThread.interrupt();
+        tunnelClientThread.join(3000);
+        tunnelServerThread.interrupt();
+        tunnelServerThread.join(3000);
+        httpTarget.stop(0);
+    }
+
+    @Test
+    public void testKeepAliveRequestsShareOneTargetConnection() throws IOException {
+        targetConnections.clear();
+        long start = System.currentTimeMillis();
+        try (Socket socket = new Socket(TUNNEL_HOST, HTTP_PROXY_PORT)) {
+            socket.setSoTimeout(10000);
+            for (int i = 0; i < 5; i++) {
+                socket.getOutputStream().write(request("/item" + i));
+                assertEquals("path=/item" + i, readResponseBody(socket.getInputStream()));
+            }
+        }
+        // Read-until-close would wait out the target's keep-alive for every request
+        assertTrue("requests took " + (System.currentTimeMillis() - start) + "ms", System.currentTimeMillis() - start < 5000);
+        assertEquals(1, targetConnections.size());
+    }
+
+    @Test
+    public void testPipelinedResponsesKeepRequestOrder() throws IOException {
+        try (Socket socket = new Socket(TUNNEL_HOST, HTTP_PROXY_PORT)) {
+            socket.setSoTimeout(10000);
+            ByteArrayOutputStream pipelined = new ByteArrayOutputStream();
+            pipelined.write(request("/chunked"));
+            pipelined.write(request("/small"));
+            socket.getOutputStream().write(pipelined.toByteArray());
+
+            String chunked = readResponseBody(socket.getInputStream());
+            assertEquals(50 * "path=/chunked".length(), chunked.length());
+            assertEquals("path=/small", readResponseBody(socket.getInputStream()));
+        }
+    }
+
+    @Test
+    public void testCacheAnswersRepeatedRequests() throws IOException {
+        try (Socket socket = new Socket(TUNNEL_HOST, HTTP_PROXY_PORT)) {
+            socket.setSoTimeout(10000);
+            for (int i = 0; i < 3; i++) {
+                socket.getOutputStream().write(request("/cached"));
+                assertEquals("path=/cached", readResponseBody(socket.getInputStream()));
+                socket.getOutputStream().write(request("/validated"));
+                assertEquals("path=/validated", readResponseBody(socket.getInputStream()));
+            }
+        }
+        // Fresh for a minute, so only the first request reaches the target
+        assertEquals(1, cacheableRequests.get());
+        // Must be revalidated every time; the target confirms with 304 and the cache supplies the body
+        assertEquals(2, notModifiedResponses.get());
+    }
+
+    private static byte[] request(String path) {
+        return ("GET " + path + " HTTP/1.1\r\nHost: " + TUNNEL_HOST + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Read one response, framed by Content-Length or chunked encoding, and return its body
+     */
+    private static String readResponseBody(InputStream in) throws IOException {
+        int contentLength = -1;
+        boolean chunked = false;
+        String line = readLine(in);
+        assertTrue(line, line.startsWith("HTTP/1.1 200"));
+        while (!(line = readLine(in)).isEmpty()) {
+            String lower = line.toLowerCase();
+            if (lower.startsWith("content-length:")) {
+                contentLength = Integer.parseInt(lower.substring(15).trim());
+            } else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) {
+                chunked = true;
+            }
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (chunked) {
+            int size;
+            while ((size = Integer.parseInt(readLine(in).trim(), 16)) > 0) {
+                body.write(in.readNBytes(size));
+                readLine(in);
+            }
+            readLine(in);
+        } else {
+            body.write(in.readNBytes(contentLength));
+        }
+        return body.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+}
@@ -195,7 +195,7 @@ public class TestMultiClientProxyPort {
         testTcpServerThread.start();
     }
 
-    @Test
+    @Test(timeout = 120000)
     public void testSend20MBDataWithTwoClientsOnSameProxyPort() throws IOException, InterruptedException {
         System.out.println("\n=== TEST: Send 20MB Data With 2 Tunnel Clients (Same GroupId, Different Proxy Ports) ===");
 
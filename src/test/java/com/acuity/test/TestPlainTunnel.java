@@ -0,0 +1,117 @@
+package com.acuity.test;
+
+import com.acuity.client.TunnelClientApp;
+import com.acuity.config.ClientConfig;
+import com.acuity.config.ServerConfig;
+import com.acuity.server.TunnelServerApp;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Integration test for plain mode: a client of a group the server lists as plain exchanges unencrypted
+ * frames, while a client asking for plain frames in an encrypted group is refused its proxy port
+ */
+public class TestPlainTunnel {
+    private static final int TUNNEL_SERVER_PORT = 7006;
+    private static final int PLAIN_PROXY_PORT = 8086;
+    private static final int REFUSED_PROXY_PORT = 8087;
+    private static final int TEST_TCP_SERVER_PORT = 9006;
+    private static final String TUNNEL_HOST = "127.0.0.1";
+    private static final long STARTUP_DELAY_MS = 2000;
+
+    private static final String SHARED_KEY_PASSWORD = "Hu5SNsC4RUrRO06vtNWkRwVDeR2phas3Pih7D+uJ/V4=";
+
+    private static Thread tunnelServerThread;
+    private static Thread plainClientThread;
+    private static Thread refusedClientThread;
+    private static Thread testTcpServerThread;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        testTcpServerThread = new Thread(() -> {
+            try {
+                new TestTcpServer(TEST_TCP_SERVER_PORT).start();
+            } catch (IOException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        testTcpServerThread.setDaemon(true);
+        testTcpServerThread.start();
+
+        ServerConfig serverConfig = new ServerConfig();
+        serverConfig.setPort(TUNNEL_SERVER_PORT);
+        serverConfig.setSharedKey(SHARED_KEY_PASSWORD);
+        serverConfig.setGroupSecurity(Collections.singletonMap("dc-internal", ClientConfig.SECURITY_PLAIN));
+        tunnelServerThread = new Thread(() -> {
+            try {
+                new TunnelServerApp(TUNNEL_SERVER_PORT, TunnelServerApp.ClientType.SERVER, serverConfig).start();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        tunnelServerThread.setDaemon(true);
+        tunnelServerThread.start();
+        Thread.sleep(STARTUP_DELAY_MS);
+
+        plainClientThread = startPlainClient(PLAIN_PROXY_PORT, "dc-internal");
+        refusedClientThread = startPlainClient(REFUSED_PROXY_PORT, "public");
+        Thread.sleep(STARTUP_DELAY_MS);
+    }
+
+    private static Thread startPlainClient(int proxyPort, String groupId) {
+        ClientConfig config = new ClientConfig();
+        config.setTunnelHost(TUNNEL_HOST);
+        config.setTunnelPort(TUNNEL_SERVER_PORT);
+        config.setProxyPort(proxyPort);
+        config.setTargetHost(TUNNEL_HOST);
+        config.setTargetPort(TEST_TCP_SERVER_PORT);
+        config.setSharedKey(SHARED_KEY_PASSWORD);
+        config.setGroupId(groupId);
+        config.setSecurity(ClientConfig.SECURITY_PLAIN);
+        Thread thread = new Thread(() -> {
+            try {
+                new TunnelClientApp(config).start();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws InterruptedException {
+        for (Thread thread : new Thread[] {plainClientThread, refusedClientThread, tunnelServerThread, testTcpServerThread}) {
+            thread.interrupt();
+            thread.join(3000);
+        }
+    }
+
+    @Test
+    public void testPlainGroupRelaysTraffic() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            try (Socket socket = new Socket(TUNNEL_HOST, PLAIN_PROXY_PORT)) {
+                socket.setSoTimeout(10000);
+                new PrintWriter(socket.getOutputStream(), true).println("PING");
+                assertEquals("PONG", new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine());
+            }
+        }
+    }
+
+    @Test(expected = ConnectException.class)
+    public void testPlainRequestForEncryptedGroupIsRefused() throws IOException {
+        new Socket(TUNNEL_HOST, REFUSED_PROXY_PORT).close();
+    }
+}
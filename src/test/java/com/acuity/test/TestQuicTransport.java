@@ -0,0 +1,220 @@
+package com.acuity.test;
+
+import com.acuity.client.TunnelClientApp;
+import com.acuity.config.ClientConfig;
+import com.acuity.config.ServerConfig;
+import com.acuity.server.TunnelServerApp;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Integration test for the QUIC tunnel transport: the client reaches the server's QUIC listener through
+ * a relay that drops a share of the packets in both directions, and concurrent requests still complete
+ */
+public class TestQuicTransport {
+    private static final int TUNNEL_SERVER_PORT = 7005;
+    private static final int QUIC_SERVER_PORT = 7015;
+    private static final int LOSSY_RELAY_PORT = 7025;
+    private static final int PROXY_PORT = 8085;
+    private static final int TARGET_PORT = 9005;
+    private static final String TUNNEL_HOST = "127.0.0.1";
+    private static final long STARTUP_DELAY_MS = 3000;
+    private static final double DROP_RATE = 0.05;
+
+    private static final String SHARED_KEY_PASSWORD = "Hu5SNsC4RUrRO06vtNWkRwVDeR2phas3Pih7D+uJ/V4=";
+
+    private static Thread tunnelServerThread;
+    private static Thread tunnelClientThread;
+    private static ServerSocket targetSocket;
+    private static DatagramSocket relaySocket;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        startSizedResponseTarget();
+        startLossyRelay();
+
+        ServerConfig serverConfig = new ServerConfig();
+        serverConfig.setPort(TUNNEL_SERVER_PORT);
+        serverConfig.setSharedKey(SHARED_KEY_PASSWORD);
+        serverConfig.setQuicEnabled(true);
+        serverConfig.setQuicPort(QUIC_SERVER_PORT);
+        tunnelServerThread = new Thread(() -> {
+            try {
+                new TunnelServerApp(TUNNEL_SERVER_PORT, TunnelServerApp.ClientType.SERVER, serverConfig).start();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        tunnelServerThread.setDaemon(true);
+        tunnelServerThread.start();
+        Thread.sleep(STARTUP_DELAY_MS);
+
+        ClientConfig clientConfig = new ClientConfig();
+        clientConfig.setTunnelHost(TUNNEL_HOST);
+        clientConfig.setTunnelPort(TUNNEL_SERVER_PORT);
+        clientConfig.setProxyPort(PROXY_PORT);
+        clientConfig.setTargetHost(TUNNEL_HOST);
+        clientConfig.setTargetPort(TARGET_PORT);
+        clientConfig.setSharedKey(SHARED_KEY_PASSWORD);
+        clientConfig.setQuicEnabled(true);
+        clientConfig.setQuicPort(LOSSY_RELAY_PORT);
+        tunnelClientThread = new Thread(() -> {
+            try {
+                new TunnelClientApp(clientConfig).start();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        tunnelClientThread.setDaemon(true);
+        tunnelClientThread.start();
+        Thread.sleep(STARTUP_DELAY_MS);
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        relaySocket.close();
+        targetSocket.close();
+        tunnelClientThread.interrupt();
+        tunnelClientThread.join(3000);
+        tunnelServerThread.interrupt();
+        tunnelServerThread.join(3000);
+    }
+
+    /**
+     * Target that reads a request "SIZE n" up to end of input and answers with n patterned bytes
+     */
+    private static void startSizedResponseTarget() throws IOException {
+        targetSocket = new ServerSocket(TARGET_PORT, 50, InetAddress.getByName(TUNNEL_HOST));
+        Thread acceptThread = new Thread(() -> {
+            while (!targetSocket.isClosed()) {
+                try {
+                    Socket socket = targetSocket.accept();
+                    new Thread(() -> serveSizedResponse(socket)).start();
+                } catch (IOException e) {
+                    // Socket closed at teardown
+                }
+            }
+        });
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    private static void serveSizedResponse(Socket socket) {
+        try (Socket s = socket) {
+            String request = new String(readAll(s.getInputStream()), StandardCharsets.UTF_8).trim();
+            OutputStream out = s.getOutputStream();
+            out.write(pattern(Integer.parseInt(request.substring("SIZE ".length()))));
+            out.flush();
+        } catch (IOException | RuntimeException e) {
+            // The request is answered with nothing, which fails the test that sent it
+        }
+    }
+
+    /**
+     * Relay between the client and the server's QUIC port that drops DROP_RATE of the datagrams each way
+     */
+    private static void startLossyRelay() throws IOException {
+        relaySocket = new DatagramSocket(LOSSY_RELAY_PORT, InetAddress.getByName(TUNNEL_HOST));
+        SocketAddress server = new InetSocketAddress(TUNNEL_HOST, QUIC_SERVER_PORT);
+        Thread relayThread = new Thread(() -> {
+            Random random = new Random(42);
+            byte[] buffer = new byte[65535];
+            SocketAddress client = null;
+            while (!relaySocket.isClosed()) {
+                try {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    relaySocket.receive(packet);
+                    boolean fromServer = packet.getSocketAddress().equals(server);
+                    if (!fromServer) {
+                        client = packet.getSocketAddress();
+                    }
+                    if (random.nextDouble() < DROP_RATE || (fromServer && client == null)) {
+                        continue;
+                    }
+                    relaySocket.send(new DatagramPacket(packet.getData(), packet.getLength(), fromServer ? client : server));
+                } catch (IOException e) {
+                    // Socket closed at teardown
+                }
+            }
+        });
+        relayThread.setDaemon(true);
+        relayThread.start();
+    }
+
+    @Test
+    public void testRequestsCompleteOverLossyLink() throws Exception {
+        assertArrayEquals(pattern(100), request(100));
+    }
+
+    @Test
+    public void testConcurrentMultiChunkResponsesCompleteOverLossyLink() throws Exception {
+        // Responses larger than a chunk, so every stream spans many packets and some of them are lost
+        int[] sizes = {64 * 1024, 256 * 1024, 512, 128 * 1024, 1024, 300 * 1024, 32 * 1024, 200};
+        ExecutorService executor = Executors.newFixedThreadPool(sizes.length);
+        try {
+            List<Future<byte[]>> responses = new ArrayList<>();
+            for (int size : sizes) {
+                responses.add(executor.submit(() -> request(size)));
+            }
+            for (int i = 0; i < sizes.length; i++) {
+                assertArrayEquals("response of " + sizes[i] + " bytes", pattern(sizes[i]), responses.get(i).get(60, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static byte[] request(int size) throws IOException {
+        try (Socket socket = new Socket(TUNNEL_HOST, PROXY_PORT)) {
+            socket.setSoTimeout(30000);
+            socket.getOutputStream().write(("SIZE " + size + "\n").getBytes(StandardCharsets.UTF_8));
+            socket.getOutputStream().flush();
+
+            byte[] response = new byte[size];
+            new DataInputStream(socket.getInputStream()).readFully(response);
+            return response;
+        }
+    }
+
+    private static byte[] pattern(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,121 @@
+package com.acuity.test;
+
+import com.acuity.client.TunnelClientApp;
+import com.acuity.config.ClientConfig;
+import com.acuity.config.ServerConfig;
+import com.acuity.server.SpillArena;
+import com.acuity.server.TunnelServerApp;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Integration test for spilling: the server keeps only the start of each response in memory, and
+ * downloads much larger than that arrive intact from the spill file
+ */
+public class TestSpillTunnel {
+    private static final int TUNNEL_SERVER_PORT = 7012;
+    private static final int PROXY_PORT = 8093;
+    private static final int TARGET_PORT = 9013;
+    private static final String TUNNEL_HOST = "127.0.0.1";
+    private static final long STARTUP_DELAY_MS = 2000;
+
+    private static final String SHARED_KEY_PASSWORD = "Hu5SNsC4RUrRO06vtNWkRwVDeR2phas3Pih7D+uJ/V4=";
+
+    private static final byte[] ARTIFACT = new byte[2 * 1024 * 1024];
+
+    private static ServerSocket target;
+    private static Thread tunnelServerThread;
+    private static Thread clientThread;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        new Random(7).nextBytes(ARTIFACT);
+        // Answers every connection with the artifact, then closes it
+        target = new ServerSocket(TARGET_PORT);
+        Thread targetThread = new Thread(() -> {
+            while (!target.isClosed()) {
+                try (Socket socket = target.accept(); OutputStream out = socket.getOutputStream()) {
+                    socket.getInputStream().read();
+                    out.write(ARTIFACT);
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        });
+        targetThread.setDaemon(true);
+        targetThread.start();
+
+        ServerConfig serverConfig = new ServerConfig();
+        serverConfig.setPort(TUNNEL_SERVER_PORT);
+        serverConfig.setSharedKey(SHARED_KEY_PASSWORD);
+        serverConfig.setSpillThresholdBytes(64 * 1024);
+        tunnelServerThread = new Thread(() -> {
+            try {
+                new TunnelServerApp(TUNNEL_SERVER_PORT, TunnelServerApp.ClientType.SERVER, serverConfig).start();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        tunnelServerThread.setDaemon(true);
+        tunnelServerThread.start();
+        Thread.sleep(STARTUP_DELAY_MS);
+
+        ClientConfig config = new ClientConfig();
+        config.setTunnelHost(TUNNEL_HOST);
+        config.setTunnelPort(TUNNEL_SERVER_PORT);
+        config.setProxyPort(PROXY_PORT);
+        config.setTargetHost(TUNNEL_HOST);
+        config.setTargetPort(TARGET_PORT);
+        config.setSharedKey(SHARED_KEY_PASSWORD);
+        clientThread = new Thread(() -> {
+            try {
+                new TunnelClientApp(config).start();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        clientThread.setDaemon(true);
+        clientThread.start();
+        Thread.sleep(STARTUP_DELAY_MS);
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        for (Thread thread : new Thread[] {clientThread, tunnelServerThread}) {
+            thread.interrupt();
+            thread.join(3000);
+        }
+        target.close();
+    }
+
+    @Test
+    public void testSpilledDownloadsArriveIntact() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            try (Socket socket = new Socket(TUNNEL_HOST, PROXY_PORT)) {
+                socket.setSoTimeout(10000);
+                socket.getOutputStream().write('\n');
+                InputStream in = socket.getInputStream();
+                assertArrayEquals("download " + i, ARTIFACT, in.readNBytes(ARTIFACT.length));
+            }
+        }
+        // Blocks go back to the arena once written
+        long deadline = System.currentTimeMillis() + 5000;
+        while (SpillArena.shared().usedBytes() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, SpillArena.shared().usedBytes());
+        assertTrue(SpillArena.shared().peakBytes() > 0);
+    }
+}
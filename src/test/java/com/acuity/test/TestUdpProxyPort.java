@@ -0,0 +1,131 @@
+package com.acuity.test;
+
+import com.acuity.client.TunnelClientApp;
+import com.acuity.config.ClientConfig;
+import com.acuity.server.TunnelServerApp;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Integration test for a UDP proxy port: datagrams sent to the proxy port reach a UDP echo target
+ * through the tunnel and the echoes come back to the sender
+ */
+public class TestUdpProxyPort {
+    private static final int TUNNEL_SERVER_PORT = 7004;
+    private static final int UDP_PROXY_PORT = 8084;
+    private static final int UDP_ECHO_PORT = 9004;
+    private static final String TUNNEL_HOST = "127.0.0.1";
+    private static final long STARTUP_DELAY_MS = 2000;
+
+    private static final String SHARED_KEY_PASSWORD = "Hu5SNsC4RUrRO06vtNWkRwVDeR2phas3Pih7D+uJ/V4=";
+
+    private static Thread tunnelServerThread;
+    private static Thread tunnelClientThread;
+    private static DatagramSocket echoSocket;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        startUdpEcho();
+
+        tunnelServerThread = new Thread(() -> {
+            try {
+                new TunnelServerApp(TUNNEL_SERVER_PORT, TunnelServerApp.ClientType.SERVER, SHARED_KEY_PASSWORD).start();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        tunnelServerThread.setDaemon(true);
+        tunnelServerThread.start();
+        Thread.sleep(STARTUP_DELAY_MS);
+
+        ClientConfig config = new ClientConfig();
+        config.setTunnelHost(TUNNEL_HOST);
+        config.setTunnelPort(TUNNEL_SERVER_PORT);
+        config.setProxyPort(UDP_PROXY_PORT);
+        config.setTargetHost(TUNNEL_HOST);
+        config.setTargetPort(UDP_ECHO_PORT);
+        config.setSharedKey(SHARED_KEY_PASSWORD);
+        config.setProtocol(ClientConfig.PROTOCOL_UDP);
+        tunnelClientThread = new Thread(() -> {
+            try {
+                new TunnelClientApp(config).start();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        tunnelClientThread.setDaemon(true);
+        tunnelClientThread.start();
+        Thread.sleep(STARTUP_DELAY_MS);
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws InterruptedException {
+        echoSocket.close();
+        tunnelClientThread.interrupt();
+        tunnelClientThread.join(3000);
+        tunnelServerThread.interrupt();
+        tunnelServerThread.join(3000);
+    }
+
+    private static void startUdpEcho() throws IOException {
+        echoSocket = new DatagramSocket(UDP_ECHO_PORT, InetAddress.getByName(TUNNEL_HOST));
+        Thread echoThread = new Thread(() -> {
+            byte[] buffer = new byte[65535];
+            while (!echoSocket.isClosed()) {
+                try {
+                    DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                    echoSocket.receive(packet);
+                    echoSocket.send(new DatagramPacket(packet.getData(), packet.getLength(), packet.getSocketAddress()));
+                } catch (Exception e) {
+                    // Socket closed at teardown
+                }
+            }
+        });
+        echoThread.setDaemon(true);
+        echoThread.start();
+    }
+
+    @Test
+    public void testDatagramsAreEchoedThroughTunnel() throws Exception {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(5000);
+            InetAddress proxyHost = InetAddress.getByName(TUNNEL_HOST);
+            for (int i = 1; i <= 5; i++) {
+                byte[] request = ("datagram " + i).getBytes(StandardCharsets.UTF_8);
+                socket.send(new DatagramPacket(request, request.length, proxyHost, UDP_PROXY_PORT));
+
+                DatagramPacket reply = new DatagramPacket(new byte[65535], 65535);
+                socket.receive(reply);
+                assertEquals("datagram " + i, new String(reply.getData(), 0, reply.getLength(), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Test
+    public void testLargeDatagramIsNotChunked() throws Exception {
+        // Larger than a stream chunk, still delivered as one datagram
+        byte[] request = new byte[32 * 1024];
+        for (int i = 0; i < request.length; i++) {
+            request[i] = (byte) (i * 31);
+        }
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(5000);
+            socket.send(new DatagramPacket(request, request.length, InetAddress.getByName(TUNNEL_HOST), UDP_PROXY_PORT));
+
+            DatagramPacket reply = new DatagramPacket(new byte[65535], 65535);
+            socket.receive(reply);
+            assertArrayEquals(request, Arrays.copyOf(reply.getData(), reply.getLength()));
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.acuity.test;
+
+import com.acuity.client.TunnelClientApp;
+import com.acuity.config.ClientConfig;
+import com.acuity.server.TunnelServerApp;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Integration test for two services sharing one proxy port: each client names its hostnames, and
+ * every user connection reaches the service its Host header asks for.
+ */
+public class TestVirtualHosts {
+    private static final int TUNNEL_SERVER_PORT = 7010;
+    private static final int SHARED_PROXY_PORT = 8091;
+    private static final int API_TARGET_PORT = 9010;
+    private static final int SHOP_TARGET_PORT = 9011;
+    private static final String TUNNEL_HOST = "127.0.0.1";
+    private static final long STARTUP_DELAY_MS = 2000;
+
+    private static final String SHARED_KEY_PASSWORD = "Hu5SNsC4RUrRO06vtNWkRwVDeR2phas3Pih7D+uJ/V4=";
+
+    private static EventLoopGroup targetGroup;
+    private static final List<Channel> targets = new ArrayList<>();
+    private static final List<Thread> threads = new ArrayList<>();
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        targetGroup = new NioEventLoopGroup(1);
+        targets.add(startTarget(API_TARGET_PORT, "api"));
+        targets.add(startTarget(SHOP_TARGET_PORT, "shop"));
+
+        start(() -> new TunnelServerApp(TUNNEL_SERVER_PORT, TunnelServerApp.ClientType.SERVER, SHARED_KEY_PASSWORD).start());
+        Thread.sleep(STARTUP_DELAY_MS);
+
+        ClientConfig api = clientConfig("api", API_TARGET_PORT, Collections.singletonList("api.example.com"));
+        start(() -> new TunnelClientApp(api).start());
+        ClientConfig shop = clientConfig("shop", SHOP_TARGET_PORT, Collections.singletonList("*.shop.example.com"));
+        start(() -> new TunnelClientApp(shop).start());
+        Thread.sleep(STARTUP_DELAY_MS);
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws InterruptedException {
+        for (int i = threads.size() - 1; i >= 0; i--) {
+            threads.get(i).interrupt();
+            threads.get(i).join(3000);
+        }
+        for (Channel target : targets) {
+            target.close().sync();
+        }
+        targetGroup.shutdownGracefully();
+    }
+
+    private interface Server {
+        void start() throws InterruptedException;
+    }
+
+    private static void start(Server server) {
+        Thread thread = new Thread(() -> {
+            try {
+                server.start();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        threads.add(thread);
+    }
+
+    private static ClientConfig clientConfig(String groupId, int targetPort, List<String> hostnames) {
+        ClientConfig config = new ClientConfig();
+        config.setTunnelHost(TUNNEL_HOST);
+        config.setTunnelPort(TUNNEL_SERVER_PORT);
+        config.setProxyPort(SHARED_PROXY_PORT);
+        config.setTargetHost(TUNNEL_HOST);
+        config.setTargetPort(targetPort);
+        config.setSharedKey(SHARED_KEY_PASSWORD);
+        config.setGroupId(groupId);
+        config.setProtocol(ClientConfig.PROTOCOL_HTTP);
+        config.setHostnames(hostnames);
+        return config;
+    }
+
+    /**
+     * An HTTP target answering every request with its name
+     */
+    private static Channel startTarget(int port, String name) throws InterruptedException {
+        return new ServerBootstrap()
+            .group(targetGroup)
+            .channel(NioServerSocketChannel.class)
+            .childHandler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                protected void initChannel(SocketChannel ch) {
+                    ch.pipeline().addLast(new HttpServerCodec());
+                    ch.pipeline().addLast(new HttpObjectAggregator(1024 * 1024));
+                    ch.pipeline().addLast(new SimpleChannelInboundHandler<FullHttpRequest>() {
+                        @Override
+                        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+                            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
+                                Unpooled.copiedBuffer(name, StandardCharsets.UTF_8));
+                            response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, response.content().readableBytes());
+                            ctx.writeAndFlush(response);
+                        }
+                    });
+                }
+            })
+            .bind(TUNNEL_HOST, port).sync().channel();
+    }
+
+    @Test
+    public void testEachHostReachesItsService() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            assertEquals("HTTP/1.1 200 OK api", get("api.example.com"));
+            assertEquals("HTTP/1.1 200 OK shop", get("eu.shop.example.com:" + SHARED_PROXY_PORT));
+        }
+    }
+
+    @Test
+    public void testUnknownHostIsMisdirected() throws IOException {
+        assertTrue(get("other.example.com").startsWith("HTTP/1.1 421"));
+    }
+
+    /**
+     * Send one request for the host on a new connection; returns the status line and body
+     */
+    private static String get(String host) throws IOException {
+        try (Socket socket = new Socket(TUNNEL_HOST, SHARED_PROXY_PORT)) {
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write(("GET / HTTP/1.1\r\nHost: " + host + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            InputStream in = socket.getInputStream();
+            String status = readLine(in);
+            int contentLength = 0;
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                if (line.toLowerCase().startsWith("content-length:")) {
+                    contentLength = Integer.parseInt(line.substring(15).trim());
+                }
+            }
+            return status + " " + new String(in.readNBytes(contentLength), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+}